@@ -129,14 +129,11 @@ harvester-changenamespace -X changenamespace-positions.config.xml
 #   contained in the input data. This is done in several steps of finding the old statements,
 #   then the new statements, and then applying them to the Vivo main model.
 
-# Find Subtractions
+# Find Subtractions and Additions
 # When making the previous harvest model agree with the current harvest, the statements that exist in
-#	the previous harvest but not in the current harvest need to be identified for removal.
-harvester-diff -X diff-subtractions.config.xml
-
-# Find Additions
-# When making the previous harvest model agree with the current harvest, the statements that exist in
-#	the current harvest but not in the previous harvest need to be identified for addition.
+#	the previous harvest but not in the current harvest need to be identified for removal, and the
+#	statements that exist in the current harvest but not in the previous harvest need to be identified
+#	for addition. Both are found in a single run, loading each model only once.
 harvester-diff -X diff-additions.config.xml
 
 # Apply Subtractions to Previous model
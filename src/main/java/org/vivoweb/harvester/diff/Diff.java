@@ -5,25 +5,38 @@
  ******************************************************************************/
 package org.vivoweb.harvester.diff;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.ExternalSort;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.GraphFingerprint;
 import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.NTripleAide;
+import org.vivoweb.harvester.util.RdfXmlStreamWriter;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.rdf.model.RDFWriter;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 /**
  * Set math to find difference (subtraction) of one model from another
@@ -34,6 +47,14 @@ public class Diff {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(Diff.class);
+	/**
+	 * default number of triples to hold in memory per sorted chunk when streaming
+	 */
+	public static final int DEFAULT_SORT_CHUNK_SIZE = 100000;
+	/**
+	 * number of triples to add to an output model at once
+	 */
+	private static final int BATCH_SIZE = 5000;
 	/**
 	 * Models to read records from
 	 */
@@ -46,11 +67,19 @@ public class Diff {
 	 * Model to write records to
 	 */
 	private JenaConnect output;
+	/**
+	 * Model to write the reverse difference (subtrahend - minuend) to
+	 */
+	private JenaConnect reverseOutput;
 	
 	/**
 	 * dump model to file option - filename
 	 */
 	private Map<String, String> dumpFile;
+	/**
+	 * dump reverse difference (subtrahend - minuend) to file option - filename
+	 */
+	private Map<String, String> reverseDumpFile;
 	/**
 	 * dump model to file option - language
 	 */
@@ -63,6 +92,14 @@ public class Diff {
 	 * dump model to a n3 file
 	 */
 	private String dumpN3;
+	/**
+	 * use the streaming sorted-merge diff rather than an in-memory difference
+	 */
+	private boolean streaming;
+	/**
+	 * number of triples to hold in memory per sorted chunk when streaming
+	 */
+	private int sortChunkSize;
 	
 	/**
 	 * Constructor
@@ -75,10 +112,48 @@ public class Diff {
 	 * @param n3 dump n3 
 	 */
 	public Diff(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, Map<String,String> dL, String dTF, String n3) {
+		this(mJC, sJC, oJC, dF, dL, dTF, n3, false, DEFAULT_SORT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Constructor
+	 * @param mJC minuend jenaconnect
+	 * @param sJC subtrahend jenaconnect
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param dL dump language
+	 * @param dTF dump ntriple
+	 * @param n3 dump n3 
+	 * @param streaming use the streaming sorted-merge diff rather than an in-memory difference
+	 * @param sortChunkSize number of triples to hold in memory per sorted chunk when streaming
+	 */
+	public Diff(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, Map<String,String> dL, String dTF, String n3, boolean streaming, int sortChunkSize) {
+		this(mJC, sJC, oJC, dF, null, null, dL, dTF, n3, streaming, sortChunkSize);
+	}
+	
+	/**
+	 * Constructor
+	 * @param mJC minuend jenaconnect
+	 * @param sJC subtrahend jenaconnect
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param rJC reverse output jenaconnect (subtrahend - minuend)
+	 * @param rdF reverse dump file path (subtrahend - minuend)
+	 * @param dL dump language
+	 * @param dTF dump ntriple
+	 * @param n3 dump n3 
+	 * @param streaming use the streaming sorted-merge diff rather than an in-memory difference
+	 * @param sortChunkSize number of triples to hold in memory per sorted chunk when streaming
+	 */
+	public Diff(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, JenaConnect rJC, Map<String,String> rdF, Map<String,String> dL, String dTF, String n3, boolean streaming, int sortChunkSize) {
+		this.streaming = streaming;
+		this.sortChunkSize = sortChunkSize;
 		this.minuendJC = mJC;
 		this.subtrahendJC = sJC;
 		this.output = oJC;
 		this.dumpFile = dF;
+		this.reverseOutput = rJC;
+		this.reverseDumpFile = rdF;
 		this.dumpLanguage = dL;
 		this.dumpNTriple = dTF;
 		this.dumpN3=n3;
@@ -88,7 +163,7 @@ public class Diff {
 		if(this.subtrahendJC == null) {
 			throw new IllegalArgumentException("Must provide a subtrahend jena model");
 		}
-		if(this.output == null && (this.dumpFile == null )) { // TODO: check the contents of the dumpFiles if any is empty error || this.dumpFile.trim().isEmpty())) 
+		if(this.output == null && (this.dumpFile == null ) && this.reverseOutput == null && this.reverseDumpFile == null) { // TODO: check the contents of the dumpFiles if any is empty error || this.dumpFile.trim().isEmpty())) 
 			throw new IllegalArgumentException("Must provide at least one of an output jena model or a dump file");
 		}
 		checkFileName();
@@ -116,9 +191,13 @@ public class Diff {
 			JenaConnect.parseConfig(argList.get("o"), argList.getValueMap("O")),
 			
 			argList.getValueMap("d"),
+			JenaConnect.parseConfig(argList.get("r"), argList.getValueMap("R")),
+			argList.getValueMap("D"),
 			argList.getValueMap("l"),
 			argList.get("t"),
-			argList.get("n"));
+			argList.get("n"),
+			argList.has("streaming"),
+			Integer.parseInt(argList.get("sortChunkSize")));
 	}
 	
 	/**
@@ -136,24 +215,36 @@ public class Diff {
 		// Outputs
 		parser.addArgument(new ArgDef().setShortOption('o').setLongOpt("output").withParameter(true, "CONFIG_FILE").setDescription("config file for output jena model").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of output jena model config using VALUE").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("reverseOutput").withParameter(true, "CONFIG_FILE").setDescription("config file for reverse output jena model (subtrahend - minuend)").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('R').setLongOpt("reverseOutputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of reverse output jena model config using VALUE").setRequired(false));
 		
-		parser.addArgument(new ArgDef().setShortOption('l').setLongOpt("dumptolanguage").withParameterValueMap("FILE_NAME", "LANGUAGE").setDescription("language for output").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('l').setLongOpt("dumptolanguage").withParameterValueMap("FILE_NAME", "LANGUAGE").setDescription("language for output - default picked from the file extension: N-TRIPLE for .nt and .gz, N-QUADS for .nq, otherwise RDF/XML").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dumptofile").withParameterValueMap("FILE_NAME", "FILENAME").setDescription("filename for output").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('D').setLongOpt("reversedumptofile").withParameterValueMap("FILE_NAME", "FILENAME").setDescription("filename for reverse output (subtrahend - minuend)").setRequired(false));
 		
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("dumpntripletofile").withParameter(true, "FILENAME").setDescription("filename for N triple output").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("dumpn3tofile").withParameter(true, "FILENAME").setDescription("filename for N 3 output").setRequired(false));
+		
+		// Streaming
+		parser.addArgument(new ArgDef().setLongOpt("streaming").setDescription("diff by sorting both models on disk and merging them in one pass, rather than in memory").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("sortChunkSize").withParameter(true, "NUMBER").setDescription("number of triples to hold in memory per sorted chunk when streaming - default " + DEFAULT_SORT_CHUNK_SIZE).setDefaultValue(String.valueOf(DEFAULT_SORT_CHUNK_SIZE)).setRequired(false));
 		return parser;
 	}
 	
 	/**
 	 * Make sure that every dumpLanguage Key,Value pair has an identical key in
-	 * the dumpFile map.
+	 * the dumpFile or reverseDumpFile map.
 	 * @return - false if 1 language definition does not have a path to a file defined
 	 */
 	private boolean checkFileName(){
 		boolean valid = true;
+		if(this.dumpLanguage == null) {
+			return valid;
+		}
 		for(String fileName : this.dumpLanguage.keySet()){
-			if (!this.dumpFile.containsKey(fileName)){
+			boolean inDump = (this.dumpFile != null) && this.dumpFile.containsKey(fileName);
+			boolean inReverseDump = (this.reverseDumpFile != null) && this.reverseDumpFile.containsKey(fileName);
+			if (!inDump && !inReverseDump){
 				valid = false;
 				throw new IllegalArgumentException("file name '" + fileName + "' found in languages but not in paths");
 			}
@@ -173,76 +264,411 @@ public class Diff {
 	 * @throws IOException error accessing file
 	 */
 	public static void diff(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, Map<String,String> dL, String dTF, String dNTF) throws IOException {
+		diffBothDirections(mJC, sJC, oJC, dF, null, null, dL);
+	}
+	
+	/**
+	 * Perform diff of mJC and sJC in both directions, putting minuend - subtrahend in oJC and/or dF and subtrahend -
+	 * minuend in rJC and/or rdF, so both the additions and subtractions of a harvest come from loading the models once.
+	 * Models with the same fingerprint are not compared at all, otherwise only the statements of subjects whose
+	 * fingerprints differ are.
+	 * @param mJC minuend jenaconnect
+	 * @param sJC subtrahend jenaconnect
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param rJC reverse output jenaconnect (null to skip)
+	 * @param rdF reverse dump file path (null to skip)
+	 * @param dL dump language
+	 * @throws IOException error accessing file
+	 */
+	public static void diffBothDirections(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, JenaConnect rJC, Map<String,String> rdF, Map<String,String> dL) throws IOException {
 		// c - b = a
 		// minuend - subtrahend = difference
 		// minuend.diff(subtrahend) = differenece
 		// c.diff(b) = a
 		
+		boolean forward = hasOutput(oJC, dF);
+		boolean reverse = hasOutput(rJC, rdF);
 		Model diffModel = ModelFactory.createDefaultModel();
+		Model reverseModel = ModelFactory.createDefaultModel();
 		Model minuendModel = mJC.getJenaModel();
 		Model subtrahendModel = sJC.getJenaModel();
 		
-		diffModel = minuendModel.difference(subtrahendModel);
+		// the fingerprints are cached by the connections, and most harvests do not change
+		if(mJC.getFingerprint().equals(sJC.getFingerprint())) {
+			log.info("Minuend and subtrahend have the same fingerprint, no differences");
+		} else {
+			minuendModel.enterCriticalSection(Lock.READ);
+			subtrahendModel.enterCriticalSection(Lock.READ);
+			try {
+				Graph m = minuendModel.getGraph();
+				Graph s = subtrahendModel.getGraph();
+				GraphFingerprint mFp = new GraphFingerprint();
+				GraphFingerprint sFp = new GraphFingerprint();
+				int changed = 0;
+				// only the statements of subjects whose fingerprints differ are compared
+				ResIterator subjectIt = minuendModel.listSubjects();
+				try {
+					while(subjectIt.hasNext()) {
+						Node subject = subjectIt.nextResource().asNode();
+						Triple pattern = Triple.create(subject, Node.ANY, Node.ANY);
+						mFp.clear();
+						mFp.addMatches(m, pattern);
+						sFp.clear();
+						sFp.addMatches(s, pattern);
+						if(!mFp.equals(sFp)) {
+							changed++;
+							if(forward) {
+								diffModel.getGraph().getBulkUpdateHandler().add(subjectDifference(pattern, m, s));
+							}
+							if(reverse) {
+								reverseModel.getGraph().getBulkUpdateHandler().add(subjectDifference(pattern, s, m));
+							}
+						}
+					}
+				} finally {
+					subjectIt.close();
+				}
+				// subjects only in the subtrahend have nothing to compare against
+				subjectIt = subtrahendModel.listSubjects();
+				try {
+					while(subjectIt.hasNext()) {
+						Node subject = subjectIt.nextResource().asNode();
+						if(!m.contains(subject, Node.ANY, Node.ANY)) {
+							changed++;
+							if(reverse) {
+								reverseModel.getGraph().getBulkUpdateHandler().add(s.find(subject, Node.ANY, Node.ANY).toList());
+							}
+						}
+					}
+				} finally {
+					subjectIt.close();
+				}
+				log.debug("Compared the statements of " + changed + " subjects with differing fingerprints");
+			} finally {
+				subtrahendModel.leaveCriticalSection();
+				minuendModel.leaveCriticalSection();
+			}
+		}
 		
+		if(forward) {
+			writeOutputs(diffModel, oJC, dF, dL);
+		}
+		if(reverse) {
+			writeOutputs(reverseModel, rJC, rdF, dL);
+		}
+		diffModel.close();
+		reverseModel.close();
+	}
+	
+	/**
+	 * Get the statements of a subject in one graph that are not in another
+	 * @param pattern the statements of the subject
+	 * @param minuend graph to take statements from
+	 * @param subtrahend graph of statements to leave out
+	 * @return the difference
+	 */
+	private static List<Triple> subjectDifference(Triple pattern, Graph minuend, Graph subtrahend) {
+		List<Triple> diff = new ArrayList<Triple>();
+		ExtendedIterator<Triple> tripleIt = minuend.find(pattern);
+		try {
+			while(tripleIt.hasNext()) {
+				Triple t = tripleIt.next();
+				if(!subtrahend.contains(t)) {
+					diff.add(t);
+				}
+			}
+		} finally {
+			tripleIt.close();
+		}
+		return diff;
+	}
+	
+	/**
+	 * Is there anywhere to write a difference to
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @return true if either is given
+	 */
+	private static boolean hasOutput(JenaConnect oJC, Map<String,String> dF) {
+		return (oJC != null) || ((dF != null) && !dF.isEmpty());
+	}
+	
+	/**
+	 * Write an in-memory difference to the output model and dump files
+	 * @param diffModel the difference
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param dL dump language
+	 * @throws IOException error accessing file
+	 */
+	private static void writeOutputs(Model diffModel, JenaConnect oJC, Map<String,String> dF, Map<String,String> dL) throws IOException {
 		if (dF != null) {
 			for(String filename : dF.keySet()) {
 				String filepath = dF.get(filename);
-				String filelanguage = "";
-				if (dL.containsKey(filename)){
+				String filelanguage = null;
+				if ((dL != null) && dL.containsKey(filename)){
 					filelanguage = dL.get(filename);
-				} else {
-					filelanguage = "RDF/XML";
 				}
-				
-				RDFWriter fasterWriter = diffModel.getWriter(filelanguage);
-				if (filelanguage.equals("RDF/XML")){
-					fasterWriter.setProperty("showXmlDeclaration", "true");
-					fasterWriter.setProperty("allowBadURIs", "true");
-					fasterWriter.setProperty("relativeURIs", "");
+				// with no language given, .nt/.nq/.gz files get the streaming line writer
+				filelanguage = JenaConnect.getFileLanguage(filepath, filelanguage);
+				JenaConnect.exportRdfToFile(diffModel, filepath, filelanguage);
+				log.debug(((filelanguage == null) ? "RDF/XML" : filelanguage) + " Data was exported to " + filepath);	
+			}
+		}
+		if(oJC != null) {
+			oJC.getJenaModel().add(diffModel);
+			oJC.sync();
+		}
+	}
+	
+	/**
+	 * Perform diff of mJC and sJC and put result in oJC and/or dF, without holding either model or the difference in
+	 * memory. Both models are exported as canonical N-Triples sorted on disk, then merged in a single linear pass.
+	 * @param mJC minuend jenaconnect
+	 * @param sJC subtrahend jenaconnect
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param dL dump language
+	 * @param sortChunkSize number of triples to hold in memory per sorted chunk
+	 * @throws IOException error accessing file
+	 */
+	public static void streamingDiff(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, Map<String,String> dL, int sortChunkSize) throws IOException {
+		streamingDiffBothDirections(mJC, sJC, oJC, dF, null, null, dL, sortChunkSize);
+	}
+	
+	/**
+	 * Perform diff of mJC and sJC in both directions with a single streaming merge, putting minuend - subtrahend in
+	 * oJC and/or dF and subtrahend - minuend in rJC and/or rdF
+	 * @param mJC minuend jenaconnect
+	 * @param sJC subtrahend jenaconnect
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param rJC reverse output jenaconnect (null to skip)
+	 * @param rdF reverse dump file path (null to skip)
+	 * @param dL dump language
+	 * @param sortChunkSize number of triples to hold in memory per sorted chunk
+	 * @throws IOException error accessing file
+	 */
+	public static void streamingDiffBothDirections(JenaConnect mJC, JenaConnect sJC, JenaConnect oJC, Map<String,String> dF, JenaConnect rJC, Map<String,String> rdF, Map<String,String> dL, int sortChunkSize) throws IOException {
+		boolean forward = hasOutput(oJC, dF);
+		boolean reverse = hasOutput(rJC, rdF);
+		// a single pass over each model is much cheaper than sorting them, and most harvests do not change
+		boolean unchanged = mJC.getFingerprint().equals(sJC.getFingerprint());
+		File diffFile = null;
+		File reverseFile = null;
+		BufferedWriter diffWriter = null;
+		BufferedWriter reverseWriter = null;
+		try {
+			if(forward) {
+				diffFile = FileAide.createTempFile("diff", ".nt");
+				diffWriter = ExternalSort.openWriter(diffFile);
+			}
+			if(reverse) {
+				reverseFile = FileAide.createTempFile("reversediff", ".nt");
+				reverseWriter = ExternalSort.openWriter(reverseFile);
+			}
+			if(unchanged) {
+				log.info("Minuend and subtrahend have the same fingerprint, no differences");
+			} else {
+				File minuendFile = exportSorted(mJC, sortChunkSize);
+				File subtrahendFile = exportSorted(sJC, sortChunkSize);
+				try {
+					mergeSorted(minuendFile, subtrahendFile, diffWriter, reverseWriter);
+				} finally {
+					minuendFile.delete();
+					subtrahendFile.delete();
 				}
-				OutputStreamWriter osw = new OutputStreamWriter(FileAide.getOutputStream(filepath), Charset.availableCharsets().get("UTF-8"));
-				fasterWriter.write(diffModel, osw, "");
-				log.debug(filelanguage + " Data was exported to " + filepath);	
+			}
+		} finally {
+			if(diffWriter != null) {
+				diffWriter.close();
+			}
+			if(reverseWriter != null) {
+				reverseWriter.close();
 			}
 		}
-		
-		//Deprecated code (see new format using Map above)
-		/*if(dF != null) {
-			RDFWriter fasterWriter = diffModel.getWriter("RDF/XML");
-			fasterWriter.setProperty("showXmlDeclaration", "true");
-			fasterWriter.setProperty("allowBadURIs", "true");
-			fasterWriter.setProperty("relativeURIs", "");
-			OutputStreamWriter osw = new OutputStreamWriter(FileAide.getOutputStream(dF), Charset.availableCharsets().get("UTF-8"));
-			fasterWriter.write(diffModel, osw, "");
-			log.debug("RDF/XML Data was exported");
+		if(diffFile != null) {
+			writeOutputs(diffFile, oJC, dF, dL);
+			diffFile.delete();
 		}
-		if(dTF != null) {
-			RDFWriter tripplewriter = diffModel.getWriter("N-TRIPLE");
-			FileWriter fstream = new FileWriter(dTF);
-			BufferedWriter out = new BufferedWriter(fstream);
-			tripplewriter.write(diffModel, out, "");
-			out.close();
+		if(reverseFile != null) {
+			writeOutputs(reverseFile, rJC, rdF, dL);
+			reverseFile.delete();
 		}
-		if(dNTF != null) {
-			RDFWriter tripplewriter = diffModel.getWriter("N3");
-			FileWriter fstream = new FileWriter(dNTF);
-			BufferedWriter out = new BufferedWriter(fstream);
-			tripplewriter.write(diffModel, out, "");
-			out.close();
+	}
+	
+	/**
+	 * Export a model as sorted canonical N-Triples
+	 * @param jc the model
+	 * @param sortChunkSize number of triples to hold in memory per sorted chunk
+	 * @return temporary file holding the sorted lines
+	 * @throws IOException error writing file
+	 */
+	private static File exportSorted(JenaConnect jc, int sortChunkSize) throws IOException {
+		Model m = jc.getJenaModel();
+		m.enterCriticalSection(Lock.READ);
+		try {
+			return NTripleAide.exportSorted(m.getGraph(), sortChunkSize);
+		} finally {
+			m.leaveCriticalSection();
+		}
+	}
+	
+	/**
+	 * Merge two sorted canonical N-Triples files in one linear pass, writing the lines found only in the minuend to
+	 * difference and the lines found only in the subtrahend to reverseDifference
+	 * @param minuendFile sorted minuend lines
+	 * @param subtrahendFile sorted subtrahend lines
+	 * @param difference writer for minuend - subtrahend (null to skip)
+	 * @param reverseDifference writer for subtrahend - minuend (null to skip)
+	 * @throws IOException error reading or writing files
+	 */
+	public static void mergeSorted(File minuendFile, File subtrahendFile, Writer difference, Writer reverseDifference) throws IOException {
+		BufferedReader mReader = ExternalSort.openReader(minuendFile);
+		BufferedReader sReader = ExternalSort.openReader(subtrahendFile);
+		int diffCount = 0;
+		int reverseCount = 0;
+		try {
+			String mLine = mReader.readLine();
+			String sLine = sReader.readLine();
+			while((mLine != null) || (sLine != null)) {
+				int cmp;
+				if(mLine == null) {
+					cmp = 1;
+				} else if(sLine == null) {
+					cmp = -1;
+				} else {
+					cmp = mLine.compareTo(sLine);
+				}
+				if(cmp < 0) {
+					if(difference != null) {
+						difference.write(mLine);
+						difference.write('\n');
+					}
+					diffCount++;
+					mLine = mReader.readLine();
+				} else if(cmp > 0) {
+					if(reverseDifference != null) {
+						reverseDifference.write(sLine);
+						reverseDifference.write('\n');
+					}
+					reverseCount++;
+					sLine = sReader.readLine();
+				} else {
+					mLine = mReader.readLine();
+					sLine = sReader.readLine();
+				}
+			}
+		} finally {
+			mReader.close();
+			sReader.close();
+		}
+		log.debug("Merge found " + diffCount + " triples only in minuend and " + reverseCount + " triples only in subtrahend");
+	}
+	
+	/**
+	 * Write a canonical N-Triples difference file to the output model and dump files
+	 * @param diffFile the difference
+	 * @param oJC output jenaconnect
+	 * @param dF dump file path
+	 * @param dL dump language
+	 * @throws IOException error accessing file
+	 */
+	private static void writeOutputs(File diffFile, JenaConnect oJC, Map<String,String> dF, Map<String,String> dL) throws IOException {
+		if (dF != null) {
+			for(String filename : dF.keySet()) {
+				String filepath = dF.get(filename);
+				String filelanguage = null;
+				if((dL != null) && dL.containsKey(filename)) {
+					filelanguage = dL.get(filename);
+				}
+				filelanguage = JenaConnect.getFileLanguage(filepath, filelanguage);
+				boolean rdfXml = (filelanguage == null) || filelanguage.toUpperCase().startsWith("RDF/XML");
+				if(!rdfXml && !isLineLanguage(filelanguage)) {
+					throw new IllegalArgumentException("Unsupported dump language: " + filelanguage);
+				}
+				Writer out = new BufferedWriter(new OutputStreamWriter(JenaConnect.getFileOutputStream(filepath, false), Charset.availableCharsets().get("UTF-8")));
+				try {
+					if(rdfXml) {
+						// one rdf:Description per subject, written as the sorted lines are read
+						RdfXmlStreamWriter.write(diffFile, out);
+					} else {
+						// N-Triples are also valid N-Quads, Turtle and N3, so just copy the lines
+						BufferedReader br = ExternalSort.openReader(diffFile);
+						try {
+							String line;
+							while((line = br.readLine()) != null) {
+								out.write(line);
+								out.write('\n');
+							}
+						} finally {
+							br.close();
+						}
+					}
+				} finally {
+					out.close();
+				}
+				log.debug(((filelanguage == null) ? "RDF/XML" : filelanguage) + " Data was exported to " + filepath);
+			}
 		}
-		*/
 		if(oJC != null) {
-			oJC.getJenaModel().add(diffModel);
+			loadNTriples(diffFile, oJC);
 			oJC.sync();
 		}
 	}
 	
+	/**
+	 * Can the language be written by copying N-Triples lines
+	 * @param language the language
+	 * @return true for N-Triples, N-Quads, Turtle and N3
+	 */
+	private static boolean isLineLanguage(String language) {
+		if(JenaConnect.isNTriples(language) || JenaConnect.isNQuads(language)) {
+			return true;
+		}
+		String lang = language.toUpperCase();
+		return lang.equals("TURTLE") || lang.equals("TTL") || lang.startsWith("N3");
+	}
+	
+	/**
+	 * Load a canonical N-Triples file into a model in bounded batches
+	 * @param file the file
+	 * @param jc the model to load into
+	 * @throws IOException error reading file
+	 */
+	private static void loadNTriples(File file, JenaConnect jc) throws IOException {
+		Graph g = jc.getJenaModel().getGraph();
+		List<Triple> batch = new ArrayList<Triple>();
+		BufferedReader br = ExternalSort.openReader(file);
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				Triple t = NTripleAide.parseLine(line);
+				if(t != null) {
+					batch.add(t);
+				}
+				if(batch.size() >= BATCH_SIZE) {
+					g.getBulkUpdateHandler().add(batch);
+					batch.clear();
+				}
+			}
+			g.getBulkUpdateHandler().add(batch);
+		} finally {
+			br.close();
+		}
+	}
+	
 	/**
 	 * Execute the diff
 	 * @throws IOException error accessing file
 	 */
 	public void execute() throws IOException {
-		diff(this.minuendJC, this.subtrahendJC, this.output, this.dumpFile, this.dumpLanguage, this.dumpNTriple, this.dumpN3);
+		if(this.streaming) {
+			streamingDiffBothDirections(this.minuendJC, this.subtrahendJC, this.output, this.dumpFile, this.reverseOutput, this.reverseDumpFile, this.dumpLanguage, this.sortChunkSize);
+		} else {
+			diffBothDirections(this.minuendJC, this.subtrahendJC, this.output, this.dumpFile, this.reverseOutput, this.reverseDumpFile, this.dumpLanguage);
+		}
 	}
 	
 	/**
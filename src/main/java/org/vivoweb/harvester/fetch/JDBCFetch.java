@@ -29,6 +29,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
 /**
@@ -660,6 +661,7 @@ public class JDBCFetch {
 	 */
 	public void execute() throws IOException {
 		int count = 0;
+		RecordBatch batch = new RecordBatch(this.rh, this.getClass());
 		// For each Table
 		try {
 			for(String tableName : getTableNames()) {
@@ -757,12 +759,15 @@ public class JDBCFetch {
 					
 					// Write RDF to RecordHandler
 					log.trace("Adding record: " + tableName + "_" + recID);
-					this.rh.addRecord(tableName + "_" + recID, sb.toString(), this.getClass());
+					batch.add(tableName + "_" + recID, sb.toString());
 					count++;
 				}
 			}
 		} catch(SQLException e) {
 			throw new IOException(e);
+		} finally {
+			// records fetched are only in the recordhandler once their batch is written
+			batch.close();
 		}
 		log.info("Added " + count + " Records");
 	}
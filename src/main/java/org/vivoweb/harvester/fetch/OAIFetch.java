@@ -15,6 +15,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordStreamOrigin;
 import org.vivoweb.harvester.util.repo.XMLRecordOutputStream;
@@ -53,6 +54,10 @@ public class OAIFetch implements RecordStreamOrigin {
 	 * The record handler to write records to
 	 */
 	private RecordHandler rhOutput;
+	/**
+	 * Batch of records to add to rhOutput, null until first used
+	 */
+	private RecordBatch batch;
 	/**
 	 * the base for each instance's xmlRos
 	 */
@@ -117,6 +122,11 @@ public class OAIFetch implements RecordStreamOrigin {
 			throw new IOException(e);
 		} catch(NoSuchFieldException e) {
 			throw new IOException(e);
+		} finally {
+			if(this.batch != null) {
+				// records fetched are only in the recordhandler once their batch is written
+				this.batch.close();
+			}
 		}
 	}
 	
@@ -137,7 +147,10 @@ public class OAIFetch implements RecordStreamOrigin {
 	@Override
 	public void writeRecord(String id, String data) throws IOException {
 		log.trace("Adding record "+id);
-		this.rhOutput.addRecord(id, data, getClass());
+		if(this.batch == null) {
+			this.batch = new RecordBatch(this.rhOutput, getClass());
+		}
+		this.batch.add(id, data);
 	}
 	
 	/**
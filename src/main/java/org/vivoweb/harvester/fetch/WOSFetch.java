@@ -32,6 +32,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -58,6 +59,10 @@ public class WOSFetch {
 	 * RecordHandler to put data in.
 	 */
 	private RecordHandler outputRH;
+	/**
+	 * Batch of records to add to outputRH, null until first used
+	 */
+	private RecordBatch outputBatch;
 	
 	/**
 	 * URL to send Authorization message to
@@ -494,7 +499,10 @@ public class WOSFetch {
 	 */
 	public void writeRecord(String id, String data) throws IOException {
 		log.trace("Adding Record " + id);
-		this.outputRH.addRecord(id, data, this.getClass());
+		if(this.outputBatch == null) {
+			this.outputBatch = new RecordBatch(this.outputRH, this.getClass());
+		}
+		this.outputBatch.add(id, data);
 	}
 	
 	/**
@@ -515,6 +523,21 @@ public class WOSFetch {
 	 * @throws IOException error processing record handler or jdbc connection
 	 */
 	public void execute() throws IOException {
+		try {
+			fetchRecords();
+		} finally {
+			if(this.outputBatch != null) {
+				// records fetched are only in the recordhandler once their batch is written
+				this.outputBatch.close();
+			}
+		}
+	}
+	
+	/**
+	 * Run the searches and lamr queries, adding the records found to the output batch
+	 * @throws IOException error processing record handler or soap messages
+	 */
+	private void fetchRecords() throws IOException {
 		String searchQuery = IOUtils.toString(this.searchFile);
 		ByteArrayOutputStream authResponse = new ByteArrayOutputStream();
 		{
@@ -16,6 +16,7 @@ import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordStreamOrigin;
 
@@ -63,6 +64,10 @@ public abstract class NIHFetch implements RecordStreamOrigin {
 	 * The Record Handler to write to
 	 */
 	private RecordHandler rh;
+	/**
+	 * batch of records to add to the recordhandler, null until first used
+	 */
+	private RecordBatch recordBatch;
 	
 	/**
 	 * Constructor: Primary method for running an NIH Fetch. The email address of the person responsible for this
@@ -192,26 +197,33 @@ public abstract class NIHFetch implements RecordStreamOrigin {
 		// Eliza: comment out this line
 		// if(env != null) {
 		// Eliza: use this instead
-		if(env != null && resultsCount > 0) {
-			if(recToFetch <= intBatchSize) {
-				fetchRecords(env, "0", "" + recToFetch);
-			} else {
-				String WebEnv = env[0];
-				String QueryKey = env[1];
-				// sanity check for max records
-				if(Integer.parseInt(env[2]) < recToFetch) {
-					recToFetch = Integer.parseInt(env[2]);
-				}
-//				log.debug("recToFetch: "+recToFetch);
-				log.info("Fetching " + recToFetch + " records from search");
-				for(int x = recToFetch; x > 0; x -= intBatchSize) {
-					int maxRec = (x <= intBatchSize) ? x : intBatchSize;
-					int startRec = recToFetch - x;
-//					log.debug("maxRec: "+maxRec);
-//					log.debug("startRec: "+startRec);
-					fetchRecords(WebEnv, QueryKey, startRec + "", maxRec + "");
+		try {
+			if(env != null && resultsCount > 0) {
+				if(recToFetch <= intBatchSize) {
+					fetchRecords(env, "0", "" + recToFetch);
+				} else {
+					String WebEnv = env[0];
+					String QueryKey = env[1];
+					// sanity check for max records
+					if(Integer.parseInt(env[2]) < recToFetch) {
+						recToFetch = Integer.parseInt(env[2]);
+					}
+//					log.debug("recToFetch: "+recToFetch);
+					log.info("Fetching " + recToFetch + " records from search");
+					for(int x = recToFetch; x > 0; x -= intBatchSize) {
+						int maxRec = (x <= intBatchSize) ? x : intBatchSize;
+						int startRec = recToFetch - x;
+//						log.debug("maxRec: "+maxRec);
+//						log.debug("startRec: "+startRec);
+						fetchRecords(WebEnv, QueryKey, startRec + "", maxRec + "");
+					}
 				}
 			}
+		} finally {
+			if(this.recordBatch != null) {
+				// records fetched are only in the recordhandler once their batch is written
+				this.recordBatch.close();
+			}
 		}
 	}
 	
@@ -360,4 +372,15 @@ public abstract class NIHFetch implements RecordStreamOrigin {
 	protected RecordHandler getRh() {
 		return this.rh;
 	}
+	
+	/**
+	 * Get the batch records are added to the recordhandler through, it is written at the end of {@link #execute()}
+	 * @return the batch
+	 */
+	protected RecordBatch getRecordBatch() {
+		if(this.recordBatch == null) {
+			this.recordBatch = new RecordBatch(this.rh, getClass());
+		}
+		return this.recordBatch;
+	}
 }
@@ -227,7 +227,7 @@ public class NLMJournalFetch extends NIHFetch {
 	@Override
 	public void writeRecord(String id, String data) throws IOException {
 		log.trace("Adding Record "+id);
-		getRh().addRecord(id, data, getClass());
+		getRecordBatch().add(id, data);
 	}
 	
 	/**
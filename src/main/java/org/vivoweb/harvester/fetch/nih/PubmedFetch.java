@@ -188,7 +188,7 @@ public class PubmedFetch extends NIHFetch {
 	@Override
 	public void writeRecord(String id, String data) throws IOException {
 		log.trace("Adding Record "+id);
-		getRh().addRecord(id, data, getClass());
+		getRecordBatch().add(id, data);
 	}
 	
 	/**
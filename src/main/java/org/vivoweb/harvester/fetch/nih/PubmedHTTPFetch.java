@@ -190,7 +190,7 @@ public class PubmedHTTPFetch extends NIHFetch {
 	@Override
 	public void writeRecord(String id, String data) throws IOException {
 		log.trace("Adding Record "+id);
-		getRh().addRecord(id, data, getClass());
+		getRecordBatch().add(id, data);
 	}
 	
 	/**
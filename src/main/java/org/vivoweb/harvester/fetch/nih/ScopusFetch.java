@@ -1051,8 +1051,10 @@ public class ScopusFetch extends NIHFetch {
 	 */
 	/*
 	private boolean isDoiInVivo(String doi) throws IOException {
-		String query = "PREFIX bibo: <http://purl.org/ontology/bibo/doi> ASK  { ?x bibo:doi  \"" + doi + "\" }";
-		boolean doiInVivo = this.vivoJena.executeAskQuery(query);
+		String query = "PREFIX bibo: <http://purl.org/ontology/bibo/> ASK  { ?x bibo:doi ?doi }";
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		bindings.add("doi", this.vivoJena.getJenaModel().createLiteral(doi));
+		boolean doiInVivo = this.vivoJena.executeAskQuery(query, bindings, false);
 		if (doiInVivo) {
 			log.trace("Document DOI: " + doi + " already exists in VIVO.");
 		}
@@ -1068,8 +1070,10 @@ public class ScopusFetch extends NIHFetch {
 	 */
 	/*
 	private boolean isScopusDocIdInVivo(String scopusDocId) throws IOException {
-		String query = "PREFIX wcmc: <http://weill.cornell.edu/vivo/ontology/wcmc#> ASK  { ?x wcmc:scopusDocId  \"" + scopusDocId + "\" }";
-		boolean idInVivo = this.vivoJena.executeAskQuery(query);
+		String query = "PREFIX wcmc: <http://weill.cornell.edu/vivo/ontology/wcmc#> ASK  { ?x wcmc:scopusDocId ?scopusDocId }";
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		bindings.add("scopusDocId", this.vivoJena.getJenaModel().createLiteral(scopusDocId));
+		boolean idInVivo = this.vivoJena.executeAskQuery(query, bindings, false);
 		if (idInVivo) {
 			log.trace("Scopus Doc ID: " + scopusDocId + " already exists in VIVO.");
 		}
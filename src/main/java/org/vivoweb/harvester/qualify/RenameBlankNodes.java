@@ -5,29 +5,40 @@
  ******************************************************************************/
 package org.vivoweb.harvester.qualify;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.ExternalSort;
+import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.NTripleAide;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
-import com.hp.hpl.jena.ontology.OntModel;
-import com.hp.hpl.jena.ontology.OntModelSpec;
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
 import com.hp.hpl.jena.shared.Lock;
-import com.hp.hpl.jena.util.iterator.ClosableIterator;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 /**
  * Find nodes with no name and give them a name
@@ -38,6 +49,10 @@ public class RenameBlankNodes {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(RenameBlankNodes.class);
+	/**
+	 * number of triples to write to the output model at once
+	 */
+	private static final int BATCH_SIZE = 5000;
 	/**
 	 * The model to perform rename in
 	 */
@@ -125,49 +140,228 @@ public class RenameBlankNodes {
 	public static void renameBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, JenaConnect dedupJC, String pattern, String property) {
 		Model inModel = inJC.getJenaModel();
 		Model outModel = outJC.getJenaModel();
-		Model dedupModel = dedupJC.getJenaModel();
-		Property propertyRes = ResourceFactory.createProperty(property);
-		OntModel dedupUnionModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM); // we're not using OWL here, just the OntModel submodel infrastructure
-		dedupUnionModel.addSubModel(outModel);
-		if (dedupModel != null) {
-			dedupUnionModel.addSubModel(dedupModel);
-		}
-		// the dedupUnionModel is so we can guard against reusing a URI in an 
-		// existing model, as well as in the course of running this process
+		Graph inGraph = inModel.getGraph();
+		Graph outGraph = outModel.getGraph();
+		boolean sameStore = (inJC == outJC) || inJC.sharesStoreWith(outJC);
+		boolean inPlace = (inModel == outModel) || (inGraph == outGraph) || (sameStore && sameModelName(inJC, outJC));
+		Map<Node, Node> renames;
+		File spill = null;
 		inModel.enterCriticalSection(Lock.READ);
-		Set<String> doneSet = new HashSet<String>();
-		
 		try {
-			outJC.loadRdfFromJC(inJC);
-			ClosableIterator<Resource> closeIt = inModel.listSubjects();
+			renames = buildRenames(inModel, ResourceFactory.createProperty(property), namespaceEtc + pattern + "_");
+			log.debug("Renaming " + renames.size() + " blank nodes");
+			if(dedupJC != null) {
+				checkDedup(dedupJC.getJenaModel().getGraph(), renames);
+			}
+			if(!inPlace && sameStore) {
+				// writing to the store being read would disturb the read, so the rewritten triples go to disk first
+				spill = spillRenamed(inGraph, renames);
+			} else if(!inPlace) {
+				copyRenamed(inGraph, outGraph, renames);
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException("Could not stage renamed triples in a temporary file", e);
+		} finally {
+			inModel.leaveCriticalSection();
+		}
+		if(inPlace) {
+			renameInPlace(outModel, renames);
+		} else if(spill != null) {
 			try {
-				for (Iterator<Resource> it = closeIt; it.hasNext();) {
-					Resource res = it.next();
-					if (res.isAnon() && !(doneSet.contains(res.getId()))) {
-						// now we do something hacky to get the same resource in the outModel, since there's no getResourceById();
-						ClosableIterator<Statement> closfIt = outModel.listStatements(res,propertyRes,(RDFNode)null);
-						Statement stmt = null;
-						try {
-							if (closfIt.hasNext()) {
-								stmt = closfIt.next();
-							}
-						} finally {
-							closfIt.close();
-						}
-						if (stmt != null) {
-							Resource outRes = stmt.getSubject();
-							if(stmt.getObject().isLiteral()){
-								RenameResources.renameResource(outRes,namespaceEtc+pattern+"_"+stmt.getObject().toString());
-							}
-							doneSet.add(res.getId().toString());
+				loadSpilled(spill, outGraph);
+			} catch(IOException e) {
+				throw new IllegalStateException("Could not read renamed triples from a temporary file", e);
+			} finally {
+				spill.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Copy every triple of one graph to another in a single pass, rewriting each as it is copied and writing a batch
+	 * at a time
+	 * @param inGraph the graph to read
+	 * @param outGraph the graph to write, which must not share a store with inGraph
+	 * @param renames mapping of blank nodes to their new uri nodes
+	 */
+	private static void copyRenamed(Graph inGraph, Graph outGraph, Map<Node, Node> renames) {
+		List<Triple> addTriples = new ArrayList<Triple>();
+		ExtendedIterator<Triple> tripleIt = inGraph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(tripleIt.hasNext()) {
+				addTriples.add(rename(tripleIt.next(), renames));
+				if(addTriples.size() >= BATCH_SIZE) {
+					outGraph.getBulkUpdateHandler().add(addTriples);
+					addTriples.clear();
+				}
+			}
+		} finally {
+			tripleIt.close();
+		}
+		outGraph.getBulkUpdateHandler().add(addTriples);
+	}
+	
+	/**
+	 * Write every triple of a graph, rewritten, as canonical N-Triples lines into a temporary file
+	 * @param inGraph the graph to read
+	 * @param renames mapping of blank nodes to their new uri nodes
+	 * @return the temporary file
+	 * @throws IOException error writing file
+	 */
+	private static File spillRenamed(Graph inGraph, Map<Node, Node> renames) throws IOException {
+		File spill = FileAide.createTempFile("renamed", ".nt");
+		BufferedWriter bw = ExternalSort.openWriter(spill);
+		ExtendedIterator<Triple> tripleIt = inGraph.find(Node.ANY, Node.ANY, Node.ANY);
+		boolean done = false;
+		try {
+			while(tripleIt.hasNext()) {
+				bw.write(NTripleAide.toLine(rename(tripleIt.next(), renames)));
+				bw.newLine();
+			}
+			done = true;
+		} finally {
+			tripleIt.close();
+			bw.close();
+			if(!done) {
+				spill.delete();
+			}
+		}
+		return spill;
+	}
+	
+	/**
+	 * Add the triples of a canonical N-Triples file to a graph a batch at a time
+	 * @param spill the file
+	 * @param outGraph the graph to write
+	 * @throws IOException error reading file
+	 */
+	private static void loadSpilled(File spill, Graph outGraph) throws IOException {
+		BufferedReader br = ExternalSort.openReader(spill);
+		try {
+			for(List<Triple> batch = NTripleAide.readBatch(br, BATCH_SIZE); !batch.isEmpty(); batch = NTripleAide.readBatch(br, BATCH_SIZE)) {
+				outGraph.getBulkUpdateHandler().add(batch);
+			}
+		} finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * Do two connections to the same store use the same model
+	 * @param inJC one connection
+	 * @param outJC the other connection
+	 * @return true if their model names match
+	 */
+	private static boolean sameModelName(JenaConnect inJC, JenaConnect outJC) {
+		String inName = inJC.getModelName();
+		String outName = outJC.getModelName();
+		return (inName == null) ? (outName == null) : inName.equals(outName);
+	}
+	
+	/**
+	 * Rewrite a triple with its renamed blank nodes
+	 * @param t the triple
+	 * @param renames mapping of blank nodes to their new uri nodes
+	 * @return the rewritten triple, or the same triple if it mentions no renamed blank node
+	 */
+	private static Triple rename(Triple t, Map<Node, Node> renames) {
+		Node subj = renames.containsKey(t.getSubject()) ? renames.get(t.getSubject()) : t.getSubject();
+		Node obj = renames.containsKey(t.getObject()) ? renames.get(t.getObject()) : t.getObject();
+		if((subj == t.getSubject()) && (obj == t.getObject())) {
+			return t;
+		}
+		return Triple.create(subj, t.getPredicate(), obj);
+	}
+	
+	/**
+	 * Rename blank nodes within a model, reading and rewriting the triples that mention them a batch at a time
+	 * @param model the model
+	 * @param renames mapping of blank nodes to their new uri nodes
+	 */
+	private static void renameInPlace(Model model, Map<Node, Node> renames) {
+		Graph graph = model.getGraph();
+		List<Triple> removeTriples = new ArrayList<Triple>();
+		List<Triple> addTriples = new ArrayList<Triple>();
+		model.enterCriticalSection(Lock.WRITE);
+		try {
+			BulkUpdateHandler buh = graph.getBulkUpdateHandler();
+			for(Node bnode : renames.keySet()) {
+				// the triples of one blank node are read completely before any are written
+				ExtendedIterator<Triple> tripleIt = graph.find(bnode, Node.ANY, Node.ANY);
+				try {
+					while(tripleIt.hasNext()) {
+						Triple t = tripleIt.next();
+						removeTriples.add(t);
+						addTriples.add(rename(t, renames));
+					}
+				} finally {
+					tripleIt.close();
+				}
+				tripleIt = graph.find(Node.ANY, Node.ANY, bnode);
+				try {
+					while(tripleIt.hasNext()) {
+						Triple t = tripleIt.next();
+						// triples whose subject is still to be renamed are rewritten with that subject
+						if(!renames.containsKey(t.getSubject())) {
+							removeTriples.add(t);
+							addTriples.add(rename(t, renames));
 						}
 					}
+				} finally {
+					tripleIt.close();
+				}
+				if(removeTriples.size() >= BATCH_SIZE) {
+					buh.delete(removeTriples);
+					buh.add(addTriples);
+					removeTriples.clear();
+					addTriples.clear();
 				}
-			} finally {
-				closeIt.close();
 			}
+			buh.delete(removeTriples);
+			buh.add(addTriples);
 		} finally {
-			inModel.leaveCriticalSection();
+			model.leaveCriticalSection();
+		}
+	}
+	
+	/**
+	 * Build the blank node to uri assignments in one pass over the naming property
+	 * @param inModel the model to find blank nodes in
+	 * @param propertyRes the property whose literal value names the blank node
+	 * @param uriPrefix the prefix to prepend to the literal value
+	 * @return mapping of blank nodes to their new uri nodes
+	 */
+	private static Map<Node, Node> buildRenames(Model inModel, Property propertyRes, String uriPrefix) {
+		Map<Node, Node> renames = new HashMap<Node, Node>();
+		StmtIterator stmtIt = inModel.listStatements((Resource)null, propertyRes, (RDFNode)null);
+		try {
+			while(stmtIt.hasNext()) {
+				Statement stmt = stmtIt.nextStatement();
+				Node subj = stmt.getSubject().asNode();
+				// the first literal value found names the blank node
+				if(subj.isBlank() && stmt.getObject().isLiteral() && !renames.containsKey(subj)) {
+					renames.put(subj, Node.createURI(uriPrefix + stmt.getObject().toString()));
+				}
+			}
+		} finally {
+			stmtIt.close();
+		}
+		return renames;
+	}
+	
+	/**
+	 * Report new uris that are already in use, either in the deduplication model or by another renamed blank node
+	 * @param dedupGraph the deduplication test graph
+	 * @param renames mapping of blank nodes to their new uri nodes
+	 */
+	private static void checkDedup(Graph dedupGraph, Map<Node, Node> renames) {
+		Set<Node> usedURIs = new HashSet<Node>();
+		for(Node uri : renames.values()) {
+			if(!usedURIs.add(uri)) {
+				log.debug("Multiple blank nodes renamed to <" + uri.getURI() + ">");
+			} else if(dedupGraph.contains(uri, Node.ANY, Node.ANY)) {
+				log.warn("<" + uri.getURI() + "> already exists in the deduplication model");
+			}
 		}
 	}
 
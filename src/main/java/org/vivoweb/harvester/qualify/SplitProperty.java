@@ -5,18 +5,27 @@
  ******************************************************************************/
 package org.vivoweb.harvester.qualify;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.ExternalSort;
 import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.NTripleAide;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
@@ -55,6 +64,18 @@ public class SplitProperty {
 	 * trim() the new values
 	 */
 	private boolean trim;
+	/**
+	 * split directly into the model in bounded batches rather than building a separate model
+	 */
+	private boolean streaming;
+	/**
+	 * remove the original (unsplit) statements, only used when streaming
+	 */
+	private boolean removeOriginal;
+	/**
+	 * number of statements to process in each batch, only used when streaming
+	 */
+	private int batchSize;
 	
 	/**
 	 * Constructor
@@ -75,6 +96,21 @@ public class SplitProperty {
 	 * @param trim trim() the new values
 	 */
 	public SplitProperty(JenaConnect model, String splitRegex, String oldPropertyURI, String newPropertyURI, boolean trim) {
+		this(model, splitRegex, oldPropertyURI, newPropertyURI, trim, false, false, 0);
+	}
+	
+	/**
+	 * Constructor
+	 * @param model model to split property values in
+	 * @param splitRegex regex to split oldPropertyURI value on
+	 * @param oldPropertyURI old property uri (to be split)
+	 * @param newPropertyURI new property uri (to store split values in)
+	 * @param trim trim() the new values
+	 * @param streaming split directly into the model in bounded batches rather than building a separate model
+	 * @param removeOriginal remove the original (unsplit) statements, only used when streaming
+	 * @param batchSize number of statements to process in each batch, only used when streaming
+	 */
+	public SplitProperty(JenaConnect model, String splitRegex, String oldPropertyURI, String newPropertyURI, boolean trim, boolean streaming, boolean removeOriginal, int batchSize) {
 		if(model == null) {
 			throw new IllegalArgumentException("No model provided! Must provide a model");
 		}
@@ -83,6 +119,12 @@ public class SplitProperty {
 		this.oldPropertyURI = oldPropertyURI;
 		this.newPropertyURI = newPropertyURI;
 		this.trim = trim;
+		this.streaming = streaming;
+		this.removeOriginal = removeOriginal;
+		setBatchSize(batchSize);
+		if(!this.streaming && this.removeOriginal) {
+			throw new IllegalArgumentException("Removing the original statements is only supported when streaming");
+		}
 	}
 	
 	/**
@@ -96,10 +138,25 @@ public class SplitProperty {
 			argList.get("r"), 
 			argList.get("u"), 
 			argList.get("n"), 
-			argList.has("t")
+			argList.has("t"),
+			argList.has("s"),
+			argList.has("R"),
+			Integer.parseInt(argList.get("b"))
 		);
 	}
 	
+	/**
+	 * Set the processing batch size
+	 * @param size the size to use
+	 */
+	public void setBatchSize(int size) {
+		this.batchSize = size;
+		if(this.streaming && (this.batchSize < 1)) {
+			log.warn("Batch Size of '"+size+"' invalid, must be greater than or equal to 1.  Using '1' as Batch Size.");
+			this.batchSize = 1;
+		}
+	}
+	
 	/**
 	 * Splits values for a given data property URI on a supplied regex and 
 	 * asserts each value using newPropertyURI.  New statements returned in
@@ -116,38 +173,15 @@ public class SplitProperty {
 		Pattern delimiterPattern = Pattern.compile(splitRegex);
 		Property theProp = ResourceFactory.createProperty(oldPropertyURI);
 		Property newProp = ResourceFactory.createProperty(newPropertyURI);
+		List<Statement> newStmts = new ArrayList<Statement>();
 		model.getJenaModel().enterCriticalSection(Lock.READ);
 		try {
 			StmtIterator stmtIt = model.getJenaModel().listStatements( (Resource)null, theProp, (RDFNode)null );
 			try {
 				while(stmtIt.hasNext()) {
-					Statement stmt = stmtIt.nextStatement();
-					Resource subj = stmt.getSubject();
-					RDFNode obj = stmt.getObject();
-					if (obj.isLiteral()) {
-						Literal lit = (Literal) obj;
-						String unsplitStr = lit.getLexicalForm();
-						String[] splitPieces = delimiterPattern.split(unsplitStr);
-						for (int i=0; i<splitPieces.length; i++) {
-							String newLexicalForm = splitPieces[i];
-							if (trim) {
-								newLexicalForm = newLexicalForm.trim();
-							}
-							if (newLexicalForm.length() > 0) {
-								Literal newLiteral = null;
-								if (lit.getDatatype() != null) {
-									newLiteral = outModel.getJenaModel().createTypedLiteral(newLexicalForm, lit.getDatatype());
-								} else {
-									if (lit.getLanguage() != null) {
-										newLiteral = outModel.getJenaModel().createLiteral(newLexicalForm, lit.getLanguage());
-									} else {
-										newLiteral = outModel.getJenaModel().createLiteral(newLexicalForm);
-									}
-								}
-								outModel.getJenaModel().add(subj,newProp,newLiteral);
-							}
-						}
-					}
+					splitStatement(stmtIt.nextStatement(), delimiterPattern, newProp, trim, outModel.getJenaModel(), newStmts);
+					outModel.getJenaModel().add(newStmts);
+					newStmts.clear();
 				}
 			} finally {
 				stmtIt.close();
@@ -158,11 +192,129 @@ public class SplitProperty {
 		return outModel;
 	}
 	
+	/**
+	 * Splits values for a given data property URI on a supplied regex and asserts each value using newPropertyURI
+	 * directly into the model, so that no separate model of split values is ever built. The statements of
+	 * oldPropertyURI are copied to a temporary file in one pass (the model cannot be written while it is being
+	 * listed), then read back, split and written batchSize statements at a time. Split values may be optionally
+	 * trim()ed and the original statements optionally removed.
+	 * @param model model to split property values in
+	 * @param oldPropertyURI old property uri (to be split)
+	 * @param splitRegex regex to split oldPropertyURI value on
+	 * @param newPropertyURI new property uri (to store split values in), must differ from oldPropertyURI
+	 * @param trim trim() the new values
+	 * @param removeOriginal remove the original (unsplit) literal statements
+	 * @param batchSize number of original statements to process in each batch
+	 * @return number of split statements added
+	 */
+	public static int splitPropertyValuesInPlace(JenaConnect model, String oldPropertyURI, String splitRegex, String newPropertyURI, boolean trim, boolean removeOriginal, int batchSize) {
+		if(oldPropertyURI.equals(newPropertyURI)) {
+			throw new IllegalArgumentException("oldPropertyURI and newPropertyURI must differ when splitting in place");
+		}
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be greater than or equal to 1");
+		}
+		Model jenaModel = model.getJenaModel();
+		Pattern delimiterPattern = Pattern.compile(splitRegex);
+		Property theProp = ResourceFactory.createProperty(oldPropertyURI);
+		Property newProp = ResourceFactory.createProperty(newPropertyURI);
+		int count = 0;
+		try {
+			File originals;
+			jenaModel.enterCriticalSection(Lock.READ);
+			try {
+				originals = NTripleAide.export(jenaModel.getGraph(), Triple.create(Node.ANY, theProp.asNode(), Node.ANY));
+			} finally {
+				jenaModel.leaveCriticalSection();
+			}
+			try {
+				BufferedReader br = ExternalSort.openReader(originals);
+				try {
+					List<Statement> batch = new ArrayList<Statement>(batchSize);
+					List<Statement> newStmts = new ArrayList<Statement>();
+					for(List<Triple> triples = NTripleAide.readBatch(br, batchSize); !triples.isEmpty(); triples = NTripleAide.readBatch(br, batchSize)) {
+						batch.clear();
+						newStmts.clear();
+						for(Triple t : triples) {
+							// only literal values are split, other statements are left as they are
+							if(t.getObject().isLiteral()) {
+								Statement stmt = jenaModel.asStatement(t);
+								batch.add(stmt);
+								splitStatement(stmt, delimiterPattern, newProp, trim, jenaModel, newStmts);
+							}
+						}
+						jenaModel.enterCriticalSection(Lock.WRITE);
+						try {
+							if(removeOriginal) {
+								jenaModel.remove(batch);
+							}
+							jenaModel.add(newStmts);
+						} finally {
+							jenaModel.leaveCriticalSection();
+						}
+						count += newStmts.size();
+						log.trace("Processed batch of " + batch.size() + " statements, " + count + " split values added so far");
+					}
+				} finally {
+					br.close();
+				}
+			} finally {
+				originals.delete();
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException("Could not stage statements in a temporary file", e);
+		}
+		log.debug("Added " + count + " split values");
+		return count;
+	}
+	
+	/**
+	 * Split the literal value of a statement, adding a statement for each piece
+	 * @param stmt the statement to split
+	 * @param delimiterPattern pattern to split the value on
+	 * @param newProp property to store split values in
+	 * @param trim trim() the new values
+	 * @param factory model used to create the new literals
+	 * @param newStmts list to add the new statements to
+	 */
+	private static void splitStatement(Statement stmt, Pattern delimiterPattern, Property newProp, boolean trim, Model factory, List<Statement> newStmts) {
+		Resource subj = stmt.getSubject();
+		RDFNode obj = stmt.getObject();
+		if (obj.isLiteral()) {
+			Literal lit = (Literal) obj;
+			String unsplitStr = lit.getLexicalForm();
+			String[] splitPieces = delimiterPattern.split(unsplitStr);
+			for (int i=0; i<splitPieces.length; i++) {
+				String newLexicalForm = splitPieces[i];
+				if (trim) {
+					newLexicalForm = newLexicalForm.trim();
+				}
+				if (newLexicalForm.length() > 0) {
+					Literal newLiteral = null;
+					if (lit.getDatatype() != null) {
+						newLiteral = factory.createTypedLiteral(newLexicalForm, lit.getDatatype());
+					} else {
+						if (lit.getLanguage() != null) {
+							newLiteral = factory.createLiteral(newLexicalForm, lit.getLanguage());
+						} else {
+							newLiteral = factory.createLiteral(newLexicalForm);
+						}
+					}
+					newStmts.add(factory.createStatement(subj,newProp,newLiteral));
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Split Property Values
 	 */
 	public void execute() {
-		this.model.loadRdfFromJC(splitPropertyValues(this.model, this.splitRegex, this.oldPropertyURI, this.newPropertyURI, this.trim));
+		if(this.streaming) {
+			splitPropertyValuesInPlace(this.model, this.oldPropertyURI, this.splitRegex, this.newPropertyURI, this.trim, this.removeOriginal, this.batchSize);
+		} else {
+			this.model.loadRdfFromJC(splitPropertyValues(this.model, this.oldPropertyURI, this.splitRegex, this.newPropertyURI, this.trim));
+		}
 		this.model.sync();
 	}
 	
@@ -181,6 +333,9 @@ public class SplitProperty {
 		parser.addArgument(new ArgDef().setShortOption('u').setLongOpt("oldPropertyURI").withParameter(true, "OLD_PREDICATE").setDescription("old property uri (to be split)").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("newPropertyURI").withParameter(true, "NEW_PREDICATE").setDescription("new property uri (to store split values in)").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("trim").setDescription("trim() the new values").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("streaming").setDescription("split directly into the input model in bounded batches rather than building a separate model").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('R').setLongOpt("removeOriginal").setDescription("remove the original (unsplit) statements - requires streaming").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('b').setLongOpt("batch-size").withParameter(true, "BATCH_SIZE").setDescription("number of statements to process in each batch when streaming - default 5000").setDefaultValue("5000").setRequired(false));
 		return parser;
 	}
 	
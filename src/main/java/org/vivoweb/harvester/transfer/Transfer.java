@@ -39,6 +39,10 @@ public class Transfer {
 	 * dump model option
 	 */
 	private String dumpFile;
+	/**
+	 * maximum number of statements per dump file, 0 to write a single file
+	 */
+	private long dumpChunkSize;
 	/**
 	 * input rdf file
 	 */
@@ -48,6 +52,10 @@ public class Transfer {
 	 * null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for "RDF/XML"
 	 */
 	private String inRDFlang;
+	/**
+	 * number of threads to parse an n-triples rdf file on
+	 */
+	private int parseThreads;
 	/**
 	 * input record handler
 	 */
@@ -86,12 +94,16 @@ public class Transfer {
 		// load any specified rdf file data
 		this.inRDF = argList.get("r");
 		this.inRDFlang = argList.get("R");
+		this.parseThreads = Integer.parseInt(argList.get("parseThreads"));
 		
 		// load data from recordhandler
 		this.inRH = RecordHandler.parseConfig(argList.get("s"), argList.getValueMap("S"));
 		
 		// output to file, if requested
 		this.dumpFile = argList.get("d");
+		if(argList.has("dumpChunkSize")) {
+			this.dumpChunkSize = Long.parseLong(argList.get("dumpChunkSize"));
+		}
 		
 		// get namespace
 		this.namespace = argList.get("n");
@@ -124,7 +136,11 @@ public class Transfer {
 				this.output.removeRdfFromJC(this.input);
 			}
 			if(this.inRDF != null) {
-				this.output.removeRdfFromFile(this.inRDF, this.namespace, this.inRDFlang);
+				if(useParallelParse()) {
+					this.output.removeNTriplesFromFile(this.inRDF, this.namespace, this.parseThreads);
+				} else {
+					this.output.removeRdfFromFile(this.inRDF, this.namespace, this.inRDFlang);
+				}
 			}
 			if(this.inRH != null) {
 				this.output.removeRdfFromRH(this.inRH, this.namespace, this.inRDFlang);
@@ -134,14 +150,22 @@ public class Transfer {
 				this.output.loadRdfFromJC(this.input);
 			}
 			if(this.inRDF != null) {
-				this.output.loadRdfFromFile(this.inRDF, this.namespace, this.inRDFlang);
+				if(useParallelParse()) {
+					this.output.loadNTriplesFromFile(this.inRDF, this.namespace, this.parseThreads);
+				} else {
+					this.output.loadRdfFromFile(this.inRDF, this.namespace, this.inRDFlang);
+				}
 			}
 			if(this.inRH != null) {
 				this.output.loadRdfFromRH(this.inRH, this.namespace, this.inRDFlang);
 			}
 		}
 		if(this.dumpFile != null) {
-			this.output.exportRdfToFile(this.dumpFile);
+			if(this.dumpChunkSize > 0) {
+				log.info("Dumped to " + this.output.exportRdfToFiles(this.dumpFile, null, this.dumpChunkSize).size() + " files");
+			} else {
+				this.output.exportRdfToFile(this.dumpFile);
+			}
 		}
 		if(this.input != null) {
 			this.input.sync();
@@ -151,6 +175,14 @@ public class Transfer {
 		}
 	}
 	
+	/**
+	 * Should the rdf file be parsed on several threads
+	 * @return true if the file is n-triples (by language or extension) and more than one thread is allowed
+	 */
+	private boolean useParallelParse() {
+		return (this.parseThreads > 1) && JenaConnect.isNTriples(JenaConnect.getFileLanguage(this.inRDF, this.inRDFlang));
+	}
+	
 	/**
 	 * Get the ArgParser for this task
 	 * @return the ArgParser
@@ -162,6 +194,7 @@ public class Transfer {
 		parser.addArgument(new ArgDef().setShortOption('I').setLongOpt("inputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of input jena model config using VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("rdf").withParameter(true, "RDF_FILE").setDescription("rdf filename to load into output model").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('R').setLongOpt("rdfLang").withParameter(true, "LANGUAGE").setDescription("rdf language of rdf file").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("parseThreads").withParameter(true, "NUMBER").setDescription("number of threads to parse an n-triples rdf file on - default the number of processors").setDefaultValue(String.valueOf(Runtime.getRuntime().availableProcessors())).setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("recordHandler").withParameter(true, "RECORD_HANDLER").setDescription("record handler to load into output model").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('S').setLongOpt("recordHandlerOverride").withParameterValueMap("RH_PARAM", "VALUE").setDescription("override the RH_PARAM of recordhandler using VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("namespace").withParameter(true, "URI_BASE").setDescription("use URI_BASE when importing relative uris").setRequired(false));
@@ -170,7 +203,8 @@ public class Transfer {
 		// Outputs
 		parser.addArgument(new ArgDef().setShortOption('o').setLongOpt("output").withParameter(true, "CONFIG_FILE").setDescription("config file for output jena model").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of output jena model config using VALUE").setRequired(false));
-		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dumptofile").withParameter(true, "FILENAME").setDescription("filename into which output model should be dumped (as rdf/xml)").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dumptofile").withParameter(true, "FILENAME").setDescription("filename into which output model should be dumped (as n-triples for .nt and .gz, n-quads for .nq, otherwise rdf/xml)").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("dumpChunkSize").withParameter(true, "NUMBER").setDescription("split the n-triples/n-quads dump into numbered files of at most NUMBER statements").setRequired(false));
 		return parser;
 	}
 	
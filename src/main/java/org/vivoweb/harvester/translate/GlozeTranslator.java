@@ -22,6 +22,7 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import com.hp.gloze.Gloze;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -191,17 +192,21 @@ public class GlozeTranslator {
 			try {
 				// create a output stream for writing to the out store
 				ByteArrayOutputStream buff = new ByteArrayOutputStream();
-				// get from the in record and translate
-				for(Record r : this.inStore) {
-					if(r.needsProcessed(this.getClass())) {
-						this.inStream = new ByteArrayInputStream(r.getData().getBytes());
-						this.outStream = buff;
-						translateFile();
-						buff.flush();
-						this.outStore.addRecord(r.getID(), buff.toString(), this.getClass());
-						r.setProcessed(this.getClass());
-						buff.reset();
+				RecordBatch batch = new RecordBatch(this.outStore, this.getClass());
+				try {
+					// get from the in record and translate
+					for(Record r : this.inStore) {
+						if(r.needsProcessed(this.getClass())) {
+							this.inStream = new ByteArrayInputStream(r.getData().getBytes());
+							this.outStream = buff;
+							translateFile();
+							buff.flush();
+							batch.add(r.getID(), buff.toString(), r);
+							buff.reset();
+						}
 					}
+				} finally {
+					batch.close();
 				}
 				buff.close();
 			} catch(Exception e) {
@@ -22,6 +22,7 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
 /**
@@ -162,19 +163,23 @@ public class RunBibutils {
 		int translated = 0;
 		int skipped = 0;
 
-		for(Record r : this.inStore) {
-			if(this.force || r.needsProcessed(this.getClass())) {
-				log.trace("Running bibutils on record " + r.getID());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				translateRecordWithBibutils(r, baos, tempInputFile);
-				this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
-				r.setProcessed(this.getClass());
-				baos.close();
-				translated++;
-			} else {
-				log.trace("No bibutils run needed: " + r.getID());
-				skipped++;
+		RecordBatch batch = new RecordBatch(this.outStore, this.getClass());
+		try {
+			for(Record r : this.inStore) {
+				if(this.force || r.needsProcessed(this.getClass())) {
+					log.trace("Running bibutils on record " + r.getID());
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					translateRecordWithBibutils(r, baos, tempInputFile);
+					batch.add(r.getID(), baos.toString(), r);
+					baos.close();
+					translated++;
+				} else {
+					log.trace("No bibutils run needed: " + r.getID());
+					skipped++;
+				}
 			}
+		} finally {
+			batch.close();
 		}
 		log.info(String.valueOf(translated) + " records translated into MODS by Bibutils.");
 		log.info(String.valueOf(skipped) + " records did not need translation into MODS by Bibutils.");
@@ -26,6 +26,7 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
@@ -120,19 +121,23 @@ public class SanitizeMODSXML {
 		int sanitized = 0;
 		int skipped = 0;
 
-		for(Record r : this.inStore) {
-			if(this.force || r.needsProcessed(this.getClass())) {
-				log.trace("Sanitizing record " + r.getID());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				sanitizeRecord(r, baos);
-				this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
-				r.setProcessed(this.getClass());
-				baos.close();
-				sanitized++;
-			} else {
-				log.trace("No sanitize needed: " + r.getID());
-				skipped++;
+		RecordBatch batch = new RecordBatch(this.outStore, this.getClass());
+		try {
+			for(Record r : this.inStore) {
+				if(this.force || r.needsProcessed(this.getClass())) {
+					log.trace("Sanitizing record " + r.getID());
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					sanitizeRecord(r, baos);
+					batch.add(r.getID(), baos.toString(), r);
+					baos.close();
+					sanitized++;
+				} else {
+					log.trace("No sanitize needed: " + r.getID());
+					skipped++;
+				}
 			}
+		} finally {
+			batch.close();
 		}
 		log.info(String.valueOf(sanitized) + " records sanitized.");
 		log.info(String.valueOf(skipped) + " records did not need sanitization.");
@@ -28,6 +28,7 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
 /**
@@ -139,19 +140,23 @@ public class XSLTranslator {
 		int translated = 0;
 		int passed = 0;
 		
-		for(Record r : this.inStore) {
-			if(this.force || r.needsProcessed(this.getClass())) {
-				log.trace("Translating Record " + r.getID());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				xmlTranslate(new ByteArrayInputStream(r.getData().getBytes("UTF-8")), baos, new ByteArrayInputStream(this.translationString.getBytes()));
-				this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
-				r.setProcessed(this.getClass());
-				baos.close();
-				translated++;
-			} else {
-				log.trace("No Translation Needed: " + r.getID());
-				passed++;
+		RecordBatch batch = new RecordBatch(this.outStore, this.getClass());
+		try {
+			for(Record r : this.inStore) {
+				if(this.force || r.needsProcessed(this.getClass())) {
+					log.trace("Translating Record " + r.getID());
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					xmlTranslate(new ByteArrayInputStream(r.getData().getBytes("UTF-8")), baos, new ByteArrayInputStream(this.translationString.getBytes()));
+					batch.add(r.getID(), baos.toString(), r);
+					baos.close();
+					translated++;
+				} else {
+					log.trace("No Translation Needed: " + r.getID());
+					passed++;
+				}
 			}
+		} finally {
+			batch.close();
 		}
 		log.info(Integer.toString(translated) + " records translated.");
 		log.info(Integer.toString(passed) + " records did not need translation");
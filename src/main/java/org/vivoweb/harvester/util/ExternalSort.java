@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts lines of text that may not fit in memory, by sorting fixed size chunks into temporary files on disk and then
+ * merging them. Duplicate lines are dropped. Lines are compared with String.compareTo.
+ * @author VIVO Harvester Team
+ */
+public class ExternalSort {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(ExternalSort.class);
+	/**
+	 * largest number of files merged at once
+	 */
+	private static final int MAX_FAN_IN = 64;
+	/**
+	 * maximum number of lines to hold in memory
+	 */
+	private final int chunkSize;
+	/**
+	 * lines of the current chunk
+	 */
+	private final List<String> chunk;
+	/**
+	 * sorted chunk files written so far
+	 */
+	private final List<File> chunkFiles;
+	
+	/**
+	 * Constructor
+	 * @param chunkSize maximum number of lines to hold in memory
+	 */
+	public ExternalSort(int chunkSize) {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be greater than or equal to 1");
+		}
+		this.chunkSize = chunkSize;
+		this.chunk = new ArrayList<String>();
+		this.chunkFiles = new ArrayList<File>();
+	}
+	
+	/**
+	 * Add a line to be sorted
+	 * @param line the line (must not contain line terminators)
+	 * @throws IOException error writing chunk file
+	 */
+	public void add(String line) throws IOException {
+		this.chunk.add(line);
+		if(this.chunk.size() >= this.chunkSize) {
+			writeChunk();
+		}
+	}
+	
+	/**
+	 * Sort the current chunk and write it to a temporary file
+	 * @throws IOException error writing chunk file
+	 */
+	private void writeChunk() throws IOException {
+		Collections.sort(this.chunk);
+		File chunkFile = FileAide.createTempFile("sortchunk", ".txt");
+		BufferedWriter bw = openWriter(chunkFile);
+		try {
+			String last = null;
+			for(String line : this.chunk) {
+				if(!line.equals(last)) {
+					bw.write(line);
+					bw.newLine();
+				}
+				last = line;
+			}
+		} finally {
+			bw.close();
+		}
+		log.trace("Wrote sorted chunk of " + this.chunk.size() + " lines to " + chunkFile.getAbsolutePath());
+		this.chunk.clear();
+		this.chunkFiles.add(chunkFile);
+	}
+	
+	/**
+	 * Finish sorting, merging all chunks into a single file. Chunk files are deleted.
+	 * <p>
+	 * At most {@link #MAX_FAN_IN} files are merged at once, so with more chunks than that they are merged in several
+	 * passes, each merging groups of files into larger sorted files.
+	 * </p>
+	 * @return temporary file holding the sorted, de-duplicated lines
+	 * @throws IOException error reading or writing files
+	 */
+	public File sort() throws IOException {
+		if(!this.chunk.isEmpty() || this.chunkFiles.isEmpty()) {
+			writeChunk();
+		}
+		try {
+			// the oldest files are merged first and the result queued behind the rest, so every line is merged about
+			// log(chunks) / log(MAX_FAN_IN) times
+			while(this.chunkFiles.size() > 1) {
+				List<File> group = this.chunkFiles.subList(0, Math.min(MAX_FAN_IN, this.chunkFiles.size()));
+				List<File> toMerge = new ArrayList<File>(group);
+				group.clear();
+				try {
+					this.chunkFiles.add(merge(toMerge));
+				} finally {
+					for(File file : toMerge) {
+						file.delete();
+					}
+				}
+			}
+			return this.chunkFiles.remove(0);
+		} finally {
+			for(File chunkFile : this.chunkFiles) {
+				chunkFile.delete();
+			}
+			this.chunkFiles.clear();
+		}
+	}
+	
+	/**
+	 * Merge sorted files into one, dropping duplicate lines
+	 * @param files the files to merge, at least two
+	 * @return temporary file holding the merged lines
+	 * @throws IOException error reading or writing files
+	 */
+	private static File merge(List<File> files) throws IOException {
+		File merged = FileAide.createTempFile("sorted", ".txt");
+		List<ChunkReader> readers = new ArrayList<ChunkReader>();
+		BufferedWriter bw = openWriter(merged);
+		boolean done = false;
+		try {
+			PriorityQueue<ChunkReader> queue = new PriorityQueue<ChunkReader>();
+			for(File file : files) {
+				ChunkReader reader = new ChunkReader(file);
+				readers.add(reader);
+				if(reader.getLine() != null) {
+					queue.add(reader);
+				}
+			}
+			String last = null;
+			while(!queue.isEmpty()) {
+				ChunkReader reader = queue.poll();
+				String line = reader.getLine();
+				if(!line.equals(last)) {
+					bw.write(line);
+					bw.newLine();
+					last = line;
+				}
+				if(reader.next() != null) {
+					queue.add(reader);
+				}
+			}
+			done = true;
+		} finally {
+			bw.close();
+			for(ChunkReader reader : readers) {
+				reader.close();
+			}
+			if(!done) {
+				merged.delete();
+			}
+		}
+		log.trace("Merged " + files.size() + " sorted files into " + merged.getAbsolutePath());
+		return merged;
+	}
+	
+	/**
+	 * Open a UTF-8 reader on a file
+	 * @param file the file
+	 * @return the reader
+	 * @throws IOException error opening file
+	 */
+	public static BufferedReader openReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+	
+	/**
+	 * Open a UTF-8 writer on a file
+	 * @param file the file
+	 * @return the writer
+	 * @throws IOException error opening file
+	 */
+	public static BufferedWriter openWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+	}
+	
+	/**
+	 * Reader over a sorted chunk file that orders by its current line
+	 */
+	private static class ChunkReader implements Comparable<ChunkReader> {
+		/**
+		 * the reader
+		 */
+		private final BufferedReader reader;
+		/**
+		 * the current line
+		 */
+		private String line;
+		
+		/**
+		 * Constructor
+		 * @param file the chunk file
+		 * @throws IOException error reading file
+		 */
+		protected ChunkReader(File file) throws IOException {
+			this.reader = openReader(file);
+			this.line = this.reader.readLine();
+		}
+		
+		/**
+		 * Get the current line
+		 * @return the line, null at end of file
+		 */
+		protected String getLine() {
+			return this.line;
+		}
+		
+		/**
+		 * Advance to the next line
+		 * @return the line, null at end of file
+		 * @throws IOException error reading file
+		 */
+		protected String next() throws IOException {
+			this.line = this.reader.readLine();
+			return this.line;
+		}
+		
+		/**
+		 * Close the reader
+		 * @throws IOException error closing file
+		 */
+		protected void close() throws IOException {
+			this.reader.close();
+		}
+		
+		@Override
+		public int compareTo(ChunkReader o) {
+			return this.line.compareTo(o.line);
+		}
+	}
+}
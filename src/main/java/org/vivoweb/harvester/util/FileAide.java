@@ -145,6 +145,46 @@ public class FileAide {
 		return getFileObject(path).isReadable();
 	}
 	
+	/**
+	 * Get the size of a file
+	 * @param path the path to the file
+	 * @return the size in bytes
+	 * @throws IOException error resolving path
+	 */
+	public static long getSize(String path) throws IOException {
+		return getFileObject(path).getContent().getSize();
+	}
+	
+	/**
+	 * Get the last modified time of a file or folder
+	 * @param path the path to the file or folder
+	 * @return the time in ms
+	 * @throws IOException error resolving path
+	 */
+	public static long getLastModified(String path) throws IOException {
+		return getFileObject(path).getContent().getLastModifiedTime();
+	}
+	
+	/**
+	 * Set the last modified time of a file or folder
+	 * @param path the path to the file or folder
+	 * @param time the time in ms
+	 * @throws IOException error resolving path
+	 */
+	public static void setLastModified(String path, long time) throws IOException {
+		getFileObject(path).getContent().setLastModifiedTime(time);
+	}
+	
+	/**
+	 * Move a file, replacing any file already at the destination
+	 * @param fromPath the path to move
+	 * @param toPath the path to move it to
+	 * @throws IOException error moving file
+	 */
+	public static void move(String fromPath, String toPath) throws IOException {
+		getFileObject(fromPath).moveTo(getFileObject(toPath));
+	}
+	
 	/**
 	 * Determines if the given path is Writeable
 	 * @param path the path to determine if it is a writeable
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Order independent 128-bit fingerprint of a set of triples
+ * <p>
+ * Each triple is hashed (MD5 of its canonical N-Triples line) and the hashes are summed modulo 2^128, so the
+ * fingerprint does not depend on the order triples are visited in and can be maintained incrementally as triples are
+ * added and removed. Two graphs with the same fingerprint hold the same triples (blank nodes compare by label).
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class GraphFingerprint {
+	/**
+	 * high 64 bits of the sum
+	 */
+	private long high;
+	/**
+	 * low 64 bits of the sum
+	 */
+	private long low;
+	/**
+	 * number of triples summed
+	 */
+	private long count;
+	/**
+	 * digest used to hash triples, created on first use
+	 */
+	private MessageDigest digest;
+	
+	/**
+	 * Constructor for the fingerprint of an empty graph
+	 */
+	public GraphFingerprint() {
+		this.high = 0;
+		this.low = 0;
+		this.count = 0;
+		this.digest = null;
+	}
+	
+	/**
+	 * Add a triple to the fingerprint
+	 * @param t the triple
+	 */
+	public void add(Triple t) {
+		long[] h = hash(getDigest(), t);
+		add(h[0], h[1], 1);
+	}
+	
+	/**
+	 * Remove a triple from the fingerprint
+	 * @param t the triple
+	 */
+	public void remove(Triple t) {
+		long[] h = hash(getDigest(), t);
+		add(-h[0] - ((h[1] == 0) ? 0 : 1), -h[1], -1);
+	}
+	
+	/**
+	 * Add every triple of another fingerprint to this one
+	 * @param other the other fingerprint
+	 */
+	public void add(GraphFingerprint other) {
+		add(other.high, other.low, other.count);
+	}
+	
+	/**
+	 * Add a 128-bit value to the sum
+	 * @param h high 64 bits
+	 * @param l low 64 bits
+	 * @param n change in the number of triples
+	 */
+	private void add(long h, long l, long n) {
+		long newLow = this.low + l;
+		// unsigned overflow of the low word carries into the high word
+		long carry = ((newLow ^ Long.MIN_VALUE) < (this.low ^ Long.MIN_VALUE)) ? 1 : 0;
+		this.low = newLow;
+		this.high += h + carry;
+		this.count += n;
+	}
+	
+	/**
+	 * Get the number of triples in the fingerprint
+	 * @return the number of triples
+	 */
+	public long getCount() {
+		return this.count;
+	}
+	
+	/**
+	 * Get the digest for this fingerprint
+	 * @return the digest
+	 */
+	private MessageDigest getDigest() {
+		if(this.digest == null) {
+			this.digest = createDigest();
+		}
+		return this.digest;
+	}
+	
+	/**
+	 * Create an MD5 digest
+	 * @return the digest
+	 */
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not supported by this jvm", e);
+		}
+	}
+	
+	/**
+	 * Hash a triple to 128 bits
+	 * @param md the digest to use
+	 * @param t the triple
+	 * @return the hash as {high, low}
+	 */
+	private static long[] hash(MessageDigest md, Triple t) {
+		byte[] bytes;
+		try {
+			bytes = md.digest(NTripleAide.toLine(t).getBytes("UTF-8"));
+		} catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported by this jvm", e);
+		}
+		long h = 0;
+		long l = 0;
+		for(int x = 0; x < 8; x++) {
+			h = (h << 8) | (bytes[x] & 0xFF);
+			l = (l << 8) | (bytes[x + 8] & 0xFF);
+		}
+		return new long[]{h, l};
+	}
+	
+	/**
+	 * Fingerprint every triple in a graph, in one pass
+	 * @param g the graph
+	 * @return the fingerprint
+	 */
+	public static GraphFingerprint fingerprint(Graph g) {
+		GraphFingerprint fp = new GraphFingerprint();
+		fp.addMatches(g, Triple.ANY);
+		return fp;
+	}
+	
+	/**
+	 * Add every triple of a graph matching a pattern to the fingerprint
+	 * @param g the graph
+	 * @param pattern the triples to add, Triple.ANY for all
+	 */
+	public void addMatches(Graph g, Triple pattern) {
+		ExtendedIterator<Triple> tripleIt = g.find(pattern);
+		try {
+			while(tripleIt.hasNext()) {
+				add(tripleIt.next());
+			}
+		} finally {
+			tripleIt.close();
+		}
+	}
+	
+	/**
+	 * Reset to the fingerprint of an empty graph, so one instance can fingerprint many sets of triples in turn
+	 */
+	public void clear() {
+		this.high = 0;
+		this.low = 0;
+		this.count = 0;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof GraphFingerprint)) {
+			return false;
+		}
+		GraphFingerprint other = (GraphFingerprint)obj;
+		return (this.high == other.high) && (this.low == other.low) && (this.count == other.count);
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int)(this.low ^ (this.low >>> 32));
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", Long.valueOf(this.high), Long.valueOf(this.low));
+	}
+}
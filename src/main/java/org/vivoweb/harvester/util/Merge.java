@@ -20,6 +20,7 @@ import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
 import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
 /**
@@ -107,16 +108,21 @@ public class Merge {
 		log.info("Beginning Merging Records into Primary Records");
 		int cur = 0;
 		JenaConnect jc = new MemJenaConnect();
-		for(String rid : new TreeSet<String>(matchedIDs.keySet())) {
-			cur++;
-			String matchTerm = matchedIDs.get(rid);
-			log.debug("(" + cur + "/" + count + ": " + Math.round(10000f * cur / count) / 100f + "%): merging '" + matchTerm + "'");
-			jc.truncate();
-			for(String id : input.find(matchTerm)) {
-				log.trace("Merging Record '" + id + "' into '" + matchTerm + "'");
-				jc.loadRdfFromString(input.getRecord(id).getData(), null, null);
+		RecordBatch batch = new RecordBatch(output, Merge.class);
+		try {
+			for(String rid : new TreeSet<String>(matchedIDs.keySet())) {
+				cur++;
+				String matchTerm = matchedIDs.get(rid);
+				log.debug("(" + cur + "/" + count + ": " + Math.round(10000f * cur / count) / 100f + "%): merging '" + matchTerm + "'");
+				jc.truncate();
+				for(String id : input.find(matchTerm)) {
+					log.trace("Merging Record '" + id + "' into '" + matchTerm + "'");
+					jc.loadRdfFromString(input.getRecord(id).getData(), null, null);
+				}
+				batch.add(matchTerm, jc.exportRdfToString());
 			}
-			output.addRecord(matchTerm, jc.exportRdfToString(), Merge.class);
+		} finally {
+			batch.close();
 		}
 		log.info("Merging into Primary Records Complete");
 		jc.close();
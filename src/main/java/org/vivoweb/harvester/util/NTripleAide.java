@@ -0,0 +1,548 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Formats and parses triples as canonical single line N-Triples
+ * <p>
+ * Every triple is written the same way every time (ascii only, \\u escapes, no abbreviations, blank nodes labeled by
+ * their AnonId) so lines can be compared, sorted and hashed as plain strings, and parsing a line back gives the same
+ * triple, including the identity of blank nodes.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class NTripleAide {
+	/**
+	 * hex digits
+	 */
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	
+	/**
+	 * Format a triple as a canonical N-Triples line (without the line terminator)
+	 * @param t the triple
+	 * @return the line
+	 */
+	public static String toLine(Triple t) {
+		StringBuilder sb = new StringBuilder();
+		appendNode(sb, t.getSubject());
+		sb.append(' ');
+		appendNode(sb, t.getPredicate());
+		sb.append(' ');
+		appendNode(sb, t.getObject());
+		sb.append(" .");
+		return sb.toString();
+	}
+	
+	/**
+	 * Format a triple in a named graph as a canonical N-Quads line (without the line terminator)
+	 * @param t the triple
+	 * @param graph the graph name, null for the default graph (giving a plain N-Triples line)
+	 * @return the line
+	 */
+	public static String toQuadLine(Triple t, Node graph) {
+		if(graph == null) {
+			return toLine(t);
+		}
+		StringBuilder sb = new StringBuilder();
+		appendNode(sb, t.getSubject());
+		sb.append(' ');
+		appendNode(sb, t.getPredicate());
+		sb.append(' ');
+		appendNode(sb, t.getObject());
+		sb.append(' ');
+		appendNode(sb, graph);
+		sb.append(" .");
+		return sb.toString();
+	}
+	
+	/**
+	 * Append the canonical N-Triples form of a node
+	 * @param sb the builder to append to
+	 * @param n the node
+	 */
+	public static void appendNode(StringBuilder sb, Node n) {
+		if(n.isURI()) {
+			sb.append('<');
+			escape(sb, n.getURI(), true);
+			sb.append('>');
+		} else if(n.isBlank()) {
+			sb.append("_:b");
+			String label = n.getBlankNodeLabel();
+			for(int x = 0; x < label.length(); x++) {
+				char c = label.charAt(x);
+				if(((c >= 'a') && (c <= 'z') && (c != 'x')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))) {
+					sb.append(c);
+				} else {
+					sb.append('x');
+					appendHex(sb, c, 4);
+				}
+			}
+		} else if(n.isLiteral()) {
+			sb.append('"');
+			escape(sb, n.getLiteralLexicalForm(), false);
+			sb.append('"');
+			String lang = n.getLiteralLanguage();
+			String dt = n.getLiteralDatatypeURI();
+			if((lang != null) && (lang.length() > 0)) {
+				sb.append('@');
+				sb.append(lang);
+			} else if(dt != null) {
+				sb.append("^^<");
+				escape(sb, dt, true);
+				sb.append('>');
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot write node as N-Triples: " + n);
+		}
+	}
+	
+	/**
+	 * Escape a string using N-Triples escapes
+	 * @param sb the builder to append to
+	 * @param s the string
+	 * @param uri the string is a uri (only \\u escapes are allowed)
+	 */
+	private static void escape(StringBuilder sb, String s, boolean uri) {
+		for(int x = 0; x < s.length(); x++) {
+			int c = s.codePointAt(x);
+			if(Character.isSupplementaryCodePoint(c)) {
+				x++;
+			}
+			if(!uri && (c == '\\')) {
+				sb.append("\\\\");
+			} else if(!uri && (c == '"')) {
+				sb.append("\\\"");
+			} else if(!uri && (c == '\n')) {
+				sb.append("\\n");
+			} else if(!uri && (c == '\r')) {
+				sb.append("\\r");
+			} else if(!uri && (c == '\t')) {
+				sb.append("\\t");
+			} else if((c >= 0x20) && (c <= 0x7E) && !(uri && ((c == '>') || (c == '\\')))) {
+				sb.append((char)c);
+			} else if(c <= 0xFFFF) {
+				sb.append("\\u");
+				appendHex(sb, c, 4);
+			} else {
+				sb.append("\\U");
+				appendHex(sb, c, 8);
+			}
+		}
+	}
+	
+	/**
+	 * Append a zero padded hex value
+	 * @param sb the builder to append to
+	 * @param value the value
+	 * @param digits number of digits to write
+	 */
+	private static void appendHex(StringBuilder sb, int value, int digits) {
+		for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			sb.append(HEX[(value >> shift) & 0xF]);
+		}
+	}
+	
+	/**
+	 * Parse a canonical N-Triples line, as written by {@link #toLine(Triple)}, giving blank nodes back their original
+	 * AnonIds
+	 * @param line the line
+	 * @return the triple, or null if the line is blank or a comment
+	 * @throws IllegalArgumentException the line is not valid N-Triples, or has a blank node label not written by
+	 *         {@link #toLine(Triple)}
+	 */
+	public static Triple parseLine(String line) {
+		return parseLine(line, null);
+	}
+	
+	/**
+	 * Parse an N-Triples line from any source, scoping its blank node labels
+	 * <p>
+	 * Blank node labels only identify a node within one file, so a loader reading several files (or several parts of a
+	 * file in parallel) passes the same prefix for every line of a file and a different prefix for each file. The
+	 * labels are used as they are, after the prefix, so distinct labels always give distinct blank nodes.
+	 * </p>
+	 * @param line the line
+	 * @param blankPrefix prefix added to blank node labels, null to parse a canonical line as {@link #parseLine(String)}
+	 *        does
+	 * @return the triple, or null if the line is blank or a comment
+	 * @throws IllegalArgumentException the line is not valid N-Triples
+	 */
+	public static Triple parseLine(String line, String blankPrefix) {
+		LineParser p = new LineParser(line, blankPrefix);
+		p.skipWhitespace();
+		if(p.atEnd() || (p.peek() == '#')) {
+			return null;
+		}
+		Node s = p.readNode();
+		p.skipWhitespace();
+		Node pred = p.readNode();
+		p.skipWhitespace();
+		Node o = p.readNode();
+		p.skipWhitespace();
+		p.expect('.');
+		p.skipWhitespace();
+		if(!p.atEnd() && (p.peek() != '#')) {
+			throw p.error("unexpected trailing content");
+		}
+		return Triple.create(s, pred, o);
+	}
+	
+	/**
+	 * Write every triple in a graph as canonical N-Triples lines into an external sort, returning the sorted file
+	 * @param g the graph to export
+	 * @param chunkSize maximum number of lines to hold in memory while sorting
+	 * @return temporary file holding the sorted, de-duplicated lines
+	 * @throws IOException error writing temporary files
+	 */
+	public static File exportSorted(Graph g, int chunkSize) throws IOException {
+		ExternalSort sort = new ExternalSort(chunkSize);
+		ExtendedIterator<Triple> tripleIt = g.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(tripleIt.hasNext()) {
+				sort.add(toLine(tripleIt.next()));
+			}
+		} finally {
+			tripleIt.close();
+		}
+		return sort.sort();
+	}
+	
+	/**
+	 * Write the triples of a graph matching a pattern as canonical N-Triples lines into a temporary file, in the order
+	 * the graph returns them
+	 * @param g the graph to export
+	 * @param pattern the triples to export, Triple.ANY for all
+	 * @return temporary file holding the lines
+	 * @throws IOException error writing temporary file
+	 */
+	public static File export(Graph g, Triple pattern) throws IOException {
+		File file = FileAide.createTempFile("export", ".nt");
+		BufferedWriter bw = ExternalSort.openWriter(file);
+		ExtendedIterator<Triple> tripleIt = g.find(pattern);
+		boolean done = false;
+		try {
+			while(tripleIt.hasNext()) {
+				bw.write(toLine(tripleIt.next()));
+				bw.newLine();
+			}
+			done = true;
+		} finally {
+			tripleIt.close();
+			bw.close();
+			if(!done) {
+				file.delete();
+			}
+		}
+		return file;
+	}
+	
+	/**
+	 * Read the next batch of canonical N-Triples lines
+	 * @param br the reader
+	 * @param batchSize maximum number of triples to read
+	 * @return the triples, empty when there are no more lines
+	 * @throws IOException error reading
+	 */
+	public static List<Triple> readBatch(BufferedReader br, int batchSize) throws IOException {
+		List<Triple> batch = new ArrayList<Triple>(batchSize);
+		String line;
+		while((batch.size() < batchSize) && ((line = br.readLine()) != null)) {
+			Triple t = parseLine(line);
+			if(t != null) {
+				batch.add(t);
+			}
+		}
+		return batch;
+	}
+	
+	/**
+	 * Simple cursor based parser for a single N-Triples line
+	 */
+	private static class LineParser {
+		/**
+		 * the line
+		 */
+		private final String line;
+		/**
+		 * prefix added to blank node labels, null for canonical labels
+		 */
+		private final String blankPrefix;
+		/**
+		 * current position
+		 */
+		private int pos;
+		
+		/**
+		 * Constructor
+		 * @param line the line to parse
+		 * @param blankPrefix prefix added to blank node labels, null for canonical labels
+		 */
+		protected LineParser(String line, String blankPrefix) {
+			this.line = line;
+			this.blankPrefix = blankPrefix;
+			this.pos = 0;
+		}
+		
+		/**
+		 * Is the cursor at the end of the line
+		 * @return true if at end
+		 */
+		protected boolean atEnd() {
+			return this.pos >= this.line.length();
+		}
+		
+		/**
+		 * Current character
+		 * @return the character
+		 */
+		protected char peek() {
+			if(atEnd()) {
+				throw error("unexpected end of line");
+			}
+			return this.line.charAt(this.pos);
+		}
+		
+		/**
+		 * Skip spaces and tabs
+		 */
+		protected void skipWhitespace() {
+			while(!atEnd() && ((peek() == ' ') || (peek() == '\t'))) {
+				this.pos++;
+			}
+		}
+		
+		/**
+		 * Consume the expected character
+		 * @param c the character
+		 */
+		protected void expect(char c) {
+			if(peek() != c) {
+				throw error("expected '" + c + "'");
+			}
+			this.pos++;
+		}
+		
+		/**
+		 * Build an error for the current position
+		 * @param msg the message
+		 * @return the exception
+		 */
+		protected IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException("Invalid N-Triples (" + msg + " at column " + this.pos + "): " + this.line);
+		}
+		
+		/**
+		 * Read a uri, blank node, or literal
+		 * @return the node
+		 */
+		protected Node readNode() {
+			char c = peek();
+			if(c == '<') {
+				return Node.createURI(readURI());
+			}
+			if(c == '_') {
+				expect('_');
+				expect(':');
+				int start = this.pos;
+				while(!atEnd() && (isLabelChar(peek()) || ((peek() == '.') && (this.pos > start) && ((this.pos + 1) < this.line.length()) && isLabelChar(this.line.charAt(this.pos + 1))))) {
+					this.pos++;
+				}
+				if(this.pos == start) {
+					throw error("empty blank node label");
+				}
+				String label = this.line.substring(start, this.pos);
+				if(this.blankPrefix != null) {
+					return Node.createAnon(new AnonId(this.blankPrefix + label));
+				}
+				String id = decodeLabel(label);
+				if(id == null) {
+					throw error("blank node label not in canonical form");
+				}
+				return Node.createAnon(new AnonId(id));
+			}
+			if(c == '"') {
+				this.pos++;
+				StringBuilder lex = new StringBuilder();
+				while(peek() != '"') {
+					if(peek() == '\\') {
+						readEscape(lex);
+					} else {
+						lex.append(peek());
+						this.pos++;
+					}
+				}
+				this.pos++;
+				if(!atEnd() && (peek() == '@')) {
+					this.pos++;
+					int start = this.pos;
+					while(!atEnd() && (Character.isLetterOrDigit(peek()) || (peek() == '-'))) {
+						this.pos++;
+					}
+					return Node.createLiteral(lex.toString(), this.line.substring(start, this.pos), null);
+				}
+				if(!atEnd() && (peek() == '^')) {
+					expect('^');
+					expect('^');
+					return Node.createLiteral(lex.toString(), null, TypeMapper.getInstance().getSafeTypeByName(readURI()));
+				}
+				return Node.createLiteral(lex.toString(), null, null);
+			}
+			throw error("expected node");
+		}
+		
+		/**
+		 * Read a &lt;uri&gt;
+		 * @return the uri
+		 */
+		private String readURI() {
+			expect('<');
+			StringBuilder uri = new StringBuilder();
+			while(peek() != '>') {
+				if(peek() == '\\') {
+					readEscape(uri);
+				} else {
+					uri.append(peek());
+					this.pos++;
+				}
+			}
+			this.pos++;
+			return uri.toString();
+		}
+		
+		/**
+		 * Read an escape sequence
+		 * @param sb the builder to append the unescaped value to
+		 */
+		private void readEscape(StringBuilder sb) {
+			expect('\\');
+			char c = peek();
+			this.pos++;
+			switch(c) {
+				case 't':
+					sb.append('\t');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case '"':
+					sb.append('"');
+					break;
+				case '\\':
+					sb.append('\\');
+					break;
+				case 'u':
+					sb.appendCodePoint(readHex(4));
+					break;
+				case 'U':
+					sb.appendCodePoint(readHex(8));
+					break;
+				default:
+					throw error("unknown escape '\\" + c + "'");
+			}
+		}
+		
+		/**
+		 * Read a hex value
+		 * @param digits number of digits
+		 * @return the value
+		 */
+		private int readHex(int digits) {
+			if((this.pos + digits) > this.line.length()) {
+				throw error("truncated escape");
+			}
+			try {
+				int value = Integer.parseInt(this.line.substring(this.pos, this.pos + digits), 16);
+				this.pos += digits;
+				return value;
+			} catch(NumberFormatException e) {
+				throw error("invalid escape");
+			}
+		}
+		
+		/**
+		 * Can a character appear in a blank node label (a dot may also appear, but not at the end)
+		 * @param c the character
+		 * @return true if it can
+		 */
+		private static boolean isLabelChar(char c) {
+			return Character.isLetterOrDigit(c) || (c == '_') || (c == '-') || (c == ':') || (c == '\u00B7') || ((c >= '\u0300') && (c <= '\u036F')) || (c == '\u203F') || (c == '\u2040');
+		}
+		
+		/**
+		 * Decode a blank node label written by appendNode
+		 * @param label the label (without the _: prefix)
+		 * @return the AnonId label, null if the label was not written by appendNode
+		 */
+		private static String decodeLabel(String label) {
+			if(!label.startsWith("b")) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder();
+			for(int x = 1; x < label.length(); x++) {
+				char c = label.charAt(x);
+				if(isPlainLabelChar(c)) {
+					sb.append(c);
+				} else if((c == 'x') && isHex(label, x + 1, 4)) {
+					char decoded = (char)Integer.parseInt(label.substring(x + 1, x + 5), 16);
+					// appendNode writes these as they are, so each id has only one label
+					if(isPlainLabelChar(decoded)) {
+						return null;
+					}
+					sb.append(decoded);
+					x += 4;
+				} else {
+					return null;
+				}
+			}
+			return sb.toString();
+		}
+		
+		/**
+		 * Is a character written as it is in a label by appendNode, rather than escaped
+		 * @param c the character
+		 * @return true if written as it is
+		 */
+		private static boolean isPlainLabelChar(char c) {
+			return ((c >= 'a') && (c <= 'z') && (c != 'x')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'));
+		}
+		
+		/**
+		 * Are the given characters all upper case hex digits, as appendHex writes them
+		 * @param s the string
+		 * @param start first index
+		 * @param len number of characters
+		 * @return true if all are hex digits
+		 */
+		private static boolean isHex(String s, int start, int len) {
+			if((start + len) > s.length()) {
+				return false;
+			}
+			for(int x = start; x < (start + len); x++) {
+				char c = s.charAt(x);
+				if(!(((c >= '0') && (c <= '9')) || ((c >= 'A') && (c <= 'F')))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+
+/**
+ * Parses a local N-Triples file on several threads
+ * <p>
+ * The file is split into chunks at line boundaries, each chunk is memory mapped and parsed by a worker thread, and the
+ * parsed triples are handed back in batches through a bounded queue, so a single writer can consume them while the
+ * workers keep parsing. Triples come back in no particular order. Blank node labels are scoped to the file, so the
+ * same label in two chunks is the same node.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class ParallelNTriplesReader {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(ParallelNTriplesReader.class);
+	/**
+	 * smallest chunk worth handing to a thread
+	 */
+	private static final long MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+	/**
+	 * largest chunk mapped at once
+	 */
+	private static final long MAX_CHUNK_SIZE = 256 * 1024 * 1024;
+	/**
+	 * number of chunks per thread, so threads that finish early can take more
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+	/**
+	 * the file to parse
+	 */
+	private final File file;
+	/**
+	 * number of parser threads
+	 */
+	private final int threads;
+	/**
+	 * number of triples per batch
+	 */
+	private final int batchSize;
+	/**
+	 * prefix for the blank node labels of this file
+	 */
+	private final String blankPrefix;
+	/**
+	 * parsed batches, an empty batch marks the end of a chunk
+	 */
+	private BlockingQueue<List<Triple>> queue;
+	/**
+	 * the parser threads
+	 */
+	private ExecutorService executor;
+	/**
+	 * number of chunks not yet finished
+	 */
+	private int chunksLeft;
+	/**
+	 * first error hit by a parser thread
+	 */
+	private volatile RuntimeException error;
+	
+	/**
+	 * Constructor
+	 * @param file the file to parse
+	 * @param threads number of parser threads
+	 * @param batchSize number of triples per batch
+	 */
+	public ParallelNTriplesReader(File file, int threads, int batchSize) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.file = file;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.blankPrefix = "f" + AnonId.create().getLabelString().replaceAll("[^A-Za-z0-9]", "") + "x";
+	}
+	
+	/**
+	 * Split the file into chunks and start parsing them
+	 * @throws IOException error reading file
+	 */
+	public void start() throws IOException {
+		List<long[]> chunks = split();
+		log.debug("Parsing " + this.file.getPath() + " in " + chunks.size() + " chunks on " + this.threads + " threads");
+		this.queue = new ArrayBlockingQueue<List<Triple>>(this.threads * 2);
+		this.chunksLeft = chunks.size();
+		this.executor = Executors.newFixedThreadPool(this.threads);
+		for(final long[] chunk : chunks) {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					parseChunk(chunk[0], chunk[1]);
+				}
+			});
+		}
+		this.executor.shutdown();
+	}
+	
+	/**
+	 * Get the next batch of triples, waiting for the parser threads
+	 * @return the batch, or null when the whole file has been read
+	 * @throws IllegalArgumentException the file is not valid N-Triples
+	 */
+	public List<Triple> next() {
+		try {
+			while(this.chunksLeft > 0) {
+				List<Triple> batch = this.queue.take();
+				if(this.error != null) {
+					throw this.error;
+				}
+				if(!batch.isEmpty()) {
+					return batch;
+				}
+				this.chunksLeft--;
+			}
+			return null;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading " + this.file.getPath(), e);
+		}
+	}
+	
+	/**
+	 * Stop the parser threads
+	 */
+	public void close() {
+		if(this.executor != null) {
+			this.executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Split the file into chunks that end on line boundaries
+	 * @return the chunks, as {start, end} byte offsets
+	 * @throws IOException error reading file
+	 */
+	private List<long[]> split() throws IOException {
+		List<long[]> chunks = new ArrayList<long[]>();
+		RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+		try {
+			long size = raf.length();
+			long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (this.threads * CHUNKS_PER_THREAD)));
+			long start = 0;
+			while(start < size) {
+				long end = Math.min(size, start + chunkSize);
+				if(end < size) {
+					// move the end past the next line break
+					raf.seek(end - 1);
+					int b;
+					while(((b = raf.read()) != -1) && (b != '\n')) {
+						// keep looking
+					}
+					end = raf.getFilePointer();
+				}
+				chunks.add(new long[]{start, end});
+				start = end;
+			}
+		} finally {
+			raf.close();
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Parse one chunk, handing batches to the queue, then mark the chunk done
+	 * @param start first byte of the chunk
+	 * @param end byte after the chunk
+	 */
+	protected void parseChunk(long start, long end) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+			try {
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+				List<Triple> batch = new ArrayList<Triple>(this.batchSize);
+				byte[] line = new byte[1024];
+				int len = 0;
+				while(buf.hasRemaining() || (len > 0)) {
+					byte b = buf.hasRemaining() ? buf.get() : (byte)'\n';
+					if(b != '\n') {
+						if(len == line.length) {
+							byte[] bigger = new byte[line.length * 2];
+							System.arraycopy(line, 0, bigger, 0, len);
+							line = bigger;
+						}
+						line[len++] = b;
+						continue;
+					}
+					if((len > 0) && (line[len - 1] == '\r')) {
+						len--;
+					}
+					Triple t = NTripleAide.parseLine(new String(line, 0, len, "UTF-8"), this.blankPrefix);
+					len = 0;
+					if(t != null) {
+						batch.add(t);
+						if(batch.size() >= this.batchSize) {
+							this.queue.put(batch);
+							batch = new ArrayList<Triple>(this.batchSize);
+						}
+					}
+				}
+				if(!batch.isEmpty()) {
+					this.queue.put(batch);
+				}
+			} finally {
+				raf.close();
+			}
+		} catch(InterruptedException e) {
+			// reader closed
+			return;
+		} catch(IOException e) {
+			this.error = new IllegalArgumentException("Error reading " + this.file.getPath() + ": " + e.getMessage(), e);
+		} catch(RuntimeException e) {
+			this.error = e;
+		}
+		try {
+			// an empty batch marks the end of the chunk
+			this.queue.put(new ArrayList<Triple>());
+		} catch(InterruptedException e) {
+			// reader closed
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.impl.Util;
+
+/**
+ * Writes a sorted canonical N-Triples file as RDF/XML without building a model
+ * <p>
+ * In a sorted file the lines of each subject are next to each other, so each subject becomes one rdf:Description
+ * written as its lines are read. A first pass over the file collects the namespaces of the predicates, since the
+ * rdf:RDF element must declare them before any statement is written. Blank nodes are written with their canonical
+ * labels as rdf:nodeID values.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class RdfXmlStreamWriter {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RdfXmlStreamWriter.class);
+	/**
+	 * the rdf namespace
+	 */
+	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	
+	/**
+	 * Static helper class
+	 */
+	private RdfXmlStreamWriter() {
+		// Static helper class
+	}
+	
+	/**
+	 * Write a sorted canonical N-Triples file as RDF/XML
+	 * @param sortedFile the file, as written by {@link ExternalSort} from {@link NTripleAide#toLine(Triple)} lines
+	 * @param out the writer to write to, which is flushed but not closed
+	 * @throws IOException error reading the file or writing
+	 * @throws IllegalArgumentException a predicate cannot be written as an xml element name
+	 */
+	public static void write(File sortedFile, Writer out) throws IOException {
+		Map<String, String> prefixes = readNamespaces(sortedFile);
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rdf:RDF");
+		for(Map.Entry<String, String> ns : prefixes.entrySet()) {
+			out.write("\n    xmlns:" + ns.getValue() + "=\"" + Util.substituteStandardEntities(ns.getKey()) + "\"");
+		}
+		out.write(">\n");
+		int subjects = 0;
+		BufferedReader br = ExternalSort.openReader(sortedFile);
+		try {
+			Node subject = null;
+			String line;
+			while((line = br.readLine()) != null) {
+				Triple t = NTripleAide.parseLine(line);
+				if(t == null) {
+					continue;
+				}
+				if(!t.getSubject().equals(subject)) {
+					if(subject != null) {
+						out.write("  </rdf:Description>\n");
+					}
+					subject = t.getSubject();
+					subjects++;
+					out.write("  <rdf:Description " + nodeAttribute(subject, "about") + ">\n");
+				}
+				writeProperty(t, prefixes, out);
+			}
+			if(subject != null) {
+				out.write("  </rdf:Description>\n");
+			}
+		} finally {
+			br.close();
+		}
+		out.write("</rdf:RDF>\n");
+		out.flush();
+		log.trace("Wrote " + subjects + " subjects as RDF/XML");
+	}
+	
+	/**
+	 * Collect the namespaces of the predicates in a file, giving each a prefix
+	 * @param sortedFile the file
+	 * @return prefixes by namespace
+	 * @throws IOException error reading the file
+	 */
+	private static Map<String, String> readNamespaces(File sortedFile) throws IOException {
+		Map<String, String> prefixes = new LinkedHashMap<String, String>();
+		prefixes.put(RDF_NS, "rdf");
+		BufferedReader br = ExternalSort.openReader(sortedFile);
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				Triple t = NTripleAide.parseLine(line);
+				if(t != null) {
+					String ns = getNamespace(t.getPredicate().getURI());
+					if(!prefixes.containsKey(ns)) {
+						prefixes.put(ns, "j." + (prefixes.size() - 1));
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return prefixes;
+	}
+	
+	/**
+	 * Get the namespace part of a predicate, which leaves a valid xml name as the local part
+	 * @param uri the predicate
+	 * @return the namespace
+	 * @throws IllegalArgumentException no part of the predicate is a valid xml name
+	 */
+	private static String getNamespace(String uri) {
+		int split = Util.splitNamespace(uri);
+		if((split <= 0) || (split >= uri.length())) {
+			throw new IllegalArgumentException("Cannot write predicate as RDF/XML: " + uri);
+		}
+		return uri.substring(0, split);
+	}
+	
+	/**
+	 * Write one statement as a property element
+	 * @param t the statement
+	 * @param prefixes prefixes by namespace
+	 * @param out the writer
+	 * @throws IOException error writing
+	 */
+	private static void writeProperty(Triple t, Map<String, String> prefixes, Writer out) throws IOException {
+		String uri = t.getPredicate().getURI();
+		String ns = getNamespace(uri);
+		String element = prefixes.get(ns) + ":" + uri.substring(ns.length());
+		Node o = t.getObject();
+		out.write("    <" + element);
+		if(!o.isLiteral()) {
+			out.write(" " + nodeAttribute(o, "resource") + "/>\n");
+			return;
+		}
+		String lang = o.getLiteralLanguage();
+		if((lang != null) && (lang.length() > 0)) {
+			out.write(" xml:lang=\"" + Util.substituteStandardEntities(lang) + "\"");
+		} else if(o.getLiteralDatatypeURI() != null) {
+			out.write(" rdf:datatype=\"" + Util.substituteStandardEntities(o.getLiteralDatatypeURI()) + "\"");
+		}
+		out.write(">" + Util.substituteEntitiesInElementContent(o.getLiteralLexicalForm()) + "</" + element + ">\n");
+	}
+	
+	/**
+	 * Format the attribute naming a uri or blank node
+	 * @param n the node
+	 * @param uriAttribute the rdf attribute to use for a uri ("about" or "resource")
+	 * @return the attribute
+	 */
+	private static String nodeAttribute(Node n, String uriAttribute) {
+		if(n.isBlank()) {
+			StringBuilder sb = new StringBuilder();
+			NTripleAide.appendNode(sb, n);
+			// drop the "_:", leaving a label of letters and digits that is a valid xml name
+			return "rdf:nodeID=\"" + sb.substring(2) + "\"";
+		}
+		return "rdf:" + uriAttribute + "=\"" + Util.substituteStandardEntities(n.getURI()) + "\"";
+	}
+}
@@ -0,0 +1,572 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.TransactionHandler;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.graph.impl.TransactionHandlerBase;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * Read-mostly graph that stores each distinct term once and triples as int ids
+ * <p>
+ * Triples live in three primitive arrays sorted by subject, predicate, object, plus two int permutations giving the
+ * predicate, object, subject and object, subject, predicate orders, so every find pattern is a binary search over
+ * about 20 bytes per triple. Additions go to a small heap graph and deletions mark rows, both are merged into the
+ * sorted arrays once they grow large enough, so bulk loading is cheap and reads stay fast.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class CompactGraph extends GraphBase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(CompactGraph.class);
+	/**
+	 * minimum number of pending changes before they are merged into the sorted arrays
+	 */
+	private static final int MIN_MERGE_SIZE = 65536;
+	/**
+	 * subject, predicate, object order (the row order of the arrays)
+	 */
+	private static final int SPO = 0;
+	/**
+	 * predicate, object, subject order
+	 */
+	private static final int POS = 1;
+	/**
+	 * object, subject, predicate order
+	 */
+	private static final int OSP = 2;
+	/**
+	 * term by id
+	 */
+	private final List<Node> terms;
+	/**
+	 * id by term
+	 */
+	private final Map<Node, Integer> ids;
+	/**
+	 * subject ids in spo order
+	 */
+	private int[] subjects;
+	/**
+	 * predicate ids in spo order
+	 */
+	private int[] predicates;
+	/**
+	 * object ids in spo order
+	 */
+	private int[] objects;
+	/**
+	 * rows in pos order
+	 */
+	private int[] pos;
+	/**
+	 * rows in osp order
+	 */
+	private int[] osp;
+	/**
+	 * rows that have been deleted since the last merge
+	 */
+	private BitSet deleted;
+	/**
+	 * number of deleted rows
+	 */
+	private int deletedCount;
+	/**
+	 * triples added since the last merge
+	 */
+	private Graph pending;
+	/**
+	 * number of times the sorted arrays have been rebuilt, to detect use of stale iterators
+	 */
+	private int mergeCount;
+	
+	/**
+	 * Constructor
+	 */
+	public CompactGraph() {
+		this.terms = new ArrayList<Node>();
+		this.ids = new HashMap<Node, Integer>();
+		this.subjects = new int[0];
+		this.predicates = new int[0];
+		this.objects = new int[0];
+		this.pos = new int[0];
+		this.osp = new int[0];
+		this.deleted = new BitSet();
+		this.deletedCount = 0;
+		this.pending = Factory.createGraphMem();
+		this.mergeCount = 0;
+	}
+	
+	/**
+	 * Merge pending additions and deletions into the sorted arrays. Called automatically as changes build up, call it
+	 * directly after a bulk load to release the memory used by the pending additions.
+	 */
+	public void compact() {
+		int mainSize = this.subjects.length;
+		int n = (mainSize - this.deletedCount) + this.pending.size();
+		int[] s = new int[n];
+		int[] p = new int[n];
+		int[] o = new int[n];
+		int x = 0;
+		for(int row = 0; row < mainSize; row++) {
+			if(!this.deleted.get(row)) {
+				s[x] = this.subjects[row];
+				p[x] = this.predicates[row];
+				o[x] = this.objects[row];
+				x++;
+			}
+		}
+		ExtendedIterator<Triple> tripleIt = this.pending.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(tripleIt.hasNext()) {
+				Triple t = tripleIt.next();
+				s[x] = encode(t.getSubject());
+				p[x] = encode(t.getPredicate());
+				o[x] = encode(t.getObject());
+				x++;
+			}
+		} finally {
+			tripleIt.close();
+		}
+		// put the rows in spo order
+		int[] order = sortRows(s, p, o);
+		this.subjects = permute(s, order);
+		this.predicates = permute(p, order);
+		this.objects = permute(o, order);
+		this.pos = sortRows(this.predicates, this.objects, this.subjects);
+		this.osp = sortRows(this.objects, this.subjects, this.predicates);
+		this.deleted = new BitSet();
+		this.deletedCount = 0;
+		this.pending = Factory.createGraphMem();
+		this.mergeCount++;
+		log.trace("Compacted graph to " + n + " triples over " + this.terms.size() + " terms");
+	}
+	
+	/**
+	 * Merge if enough changes are pending
+	 */
+	private void compactIfNeeded() {
+		int limit = Math.max(MIN_MERGE_SIZE, this.subjects.length / 4);
+		if((this.pending.size() > limit) || (this.deletedCount > limit)) {
+			compact();
+		}
+	}
+	
+	/**
+	 * Get the id of a term, adding it to the dictionary if new
+	 * @param n the term
+	 * @return the id
+	 */
+	private int encode(Node n) {
+		Integer id = this.ids.get(n);
+		if(id == null) {
+			id = Integer.valueOf(this.terms.size());
+			this.terms.add(n);
+			this.ids.put(n, id);
+		}
+		return id.intValue();
+	}
+	
+	/**
+	 * Get the id of a term without adding it
+	 * @param n the term
+	 * @return the id, or -1 if the term is not in the dictionary
+	 */
+	private int lookup(Node n) {
+		Integer id = this.ids.get(n);
+		return (id == null) ? -1 : id.intValue();
+	}
+	
+	/**
+	 * Reorder an array
+	 * @param values the values
+	 * @param order the new order (order[x] is the index of the value to put at x)
+	 * @return the reordered values
+	 */
+	private static int[] permute(int[] values, int[] order) {
+		int[] result = new int[values.length];
+		for(int x = 0; x < order.length; x++) {
+			result[x] = values[order[x]];
+		}
+		return result;
+	}
+	
+	/**
+	 * Sort row numbers by the given columns, with a bottom up merge sort so no boxing is needed
+	 * @param a first sort column
+	 * @param b second sort column
+	 * @param c third sort column
+	 * @return the row numbers in sorted order
+	 */
+	private static int[] sortRows(int[] a, int[] b, int[] c) {
+		int n = a.length;
+		int[] rows = new int[n];
+		for(int x = 0; x < n; x++) {
+			rows[x] = x;
+		}
+		int[] buffer = new int[n];
+		for(int width = 1; width < n; width *= 2) {
+			for(int lo = 0; lo < n; lo += 2 * width) {
+				int mid = Math.min(lo + width, n);
+				int hi = Math.min(lo + (2 * width), n);
+				int left = lo;
+				int right = mid;
+				for(int x = lo; x < hi; x++) {
+					if((left < mid) && ((right >= hi) || (compareRows(a, b, c, rows[left], rows[right]) <= 0))) {
+						buffer[x] = rows[left++];
+					} else {
+						buffer[x] = rows[right++];
+					}
+				}
+			}
+			int[] swap = rows;
+			rows = buffer;
+			buffer = swap;
+		}
+		return rows;
+	}
+	
+	/**
+	 * Compare two rows by the given columns
+	 * @param a first column
+	 * @param b second column
+	 * @param c third column
+	 * @param x first row
+	 * @param y second row
+	 * @return negative, zero or positive as row x sorts before, with or after row y
+	 */
+	private static int compareRows(int[] a, int[] b, int[] c, int x, int y) {
+		if(a[x] != a[y]) {
+			return (a[x] < a[y]) ? -1 : 1;
+		}
+		if(b[x] != b[y]) {
+			return (b[x] < b[y]) ? -1 : 1;
+		}
+		if(c[x] != c[y]) {
+			return (c[x] < c[y]) ? -1 : 1;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Get the row at a position of an index
+	 * @param index the index (SPO, POS or OSP)
+	 * @param position the position
+	 * @return the row
+	 */
+	private int row(int index, int position) {
+		if(index == POS) {
+			return this.pos[position];
+		}
+		if(index == OSP) {
+			return this.osp[position];
+		}
+		return position;
+	}
+	
+	/**
+	 * Get a key column of a row for an index
+	 * @param index the index (SPO, POS or OSP)
+	 * @param row the row
+	 * @param column the key column (0, 1 or 2)
+	 * @return the term id
+	 */
+	private int key(int index, int row, int column) {
+		int field = (index + column) % 3;
+		if(field == 0) {
+			return this.subjects[row];
+		}
+		if(field == 1) {
+			return this.predicates[row];
+		}
+		return this.objects[row];
+	}
+	
+	/**
+	 * Find the first position of an index whose key is not less than (or, if upper, greater than) a key prefix
+	 * @param index the index (SPO, POS or OSP)
+	 * @param prefix the key prefix
+	 * @param upper find the first position past the prefix rather than the first position at it
+	 * @return the position
+	 */
+	private int search(int index, int[] prefix, boolean upper) {
+		int lo = 0;
+		int hi = this.subjects.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int row = row(index, mid);
+			int cmp = 0;
+			for(int column = 0; (column < prefix.length) && (cmp == 0); column++) {
+				int k = key(index, row, column);
+				if(k != prefix[column]) {
+					cmp = (k < prefix[column]) ? -1 : 1;
+				}
+			}
+			if((cmp < 0) || (upper && (cmp == 0))) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Find the row holding a triple
+	 * @param t the triple (must be concrete)
+	 * @return the row, or -1 if not in the sorted arrays (or deleted)
+	 */
+	private int findRow(Triple t) {
+		int s = lookup(t.getSubject());
+		int p = lookup(t.getPredicate());
+		int o = lookup(t.getObject());
+		if((s < 0) || (p < 0) || (o < 0)) {
+			return -1;
+		}
+		int row = search(SPO, new int[]{s, p, o}, false);
+		if((row < this.subjects.length) && (this.subjects[row] == s) && (this.predicates[row] == p) && (this.objects[row] == o) && !this.deleted.get(row)) {
+			return row;
+		}
+		return -1;
+	}
+	
+	@Override
+	public void performAdd(Triple t) {
+		if((findRow(t) < 0) && !this.pending.contains(t)) {
+			this.pending.add(t);
+			compactIfNeeded();
+		}
+	}
+	
+	@Override
+	public void performDelete(Triple t) {
+		if(this.pending.contains(t)) {
+			this.pending.delete(t);
+		} else {
+			int row = findRow(t);
+			if(row >= 0) {
+				markDeleted(row);
+				compactIfNeeded();
+			}
+		}
+	}
+	
+	/**
+	 * Mark a row deleted
+	 * @param row the row
+	 */
+	protected void markDeleted(int row) {
+		if(!this.deleted.get(row)) {
+			this.deleted.set(row);
+			this.deletedCount++;
+		}
+	}
+	
+	/**
+	 * Remove every triple
+	 */
+	public void clear() {
+		this.terms.clear();
+		this.ids.clear();
+		this.subjects = new int[0];
+		this.predicates = new int[0];
+		this.objects = new int[0];
+		this.pos = new int[0];
+		this.osp = new int[0];
+		this.deleted = new BitSet();
+		this.deletedCount = 0;
+		this.pending = Factory.createGraphMem();
+		this.mergeCount++;
+	}
+	
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		Triple match = m.asTriple();
+		Node s = match.getMatchSubject();
+		Node p = match.getMatchPredicate();
+		Node o = match.getMatchObject();
+		int[] prefix;
+		int index;
+		if(s != null) {
+			if(o != null && p == null) {
+				index = OSP;
+				prefix = new int[]{lookup(o), lookup(s)};
+			} else if(p != null) {
+				index = SPO;
+				prefix = (o != null) ? new int[]{lookup(s), lookup(p), lookup(o)} : new int[]{lookup(s), lookup(p)};
+			} else {
+				index = SPO;
+				prefix = new int[]{lookup(s)};
+			}
+		} else if(p != null) {
+			index = POS;
+			prefix = (o != null) ? new int[]{lookup(p), lookup(o)} : new int[]{lookup(p)};
+		} else if(o != null) {
+			index = OSP;
+			prefix = new int[]{lookup(o)};
+		} else {
+			index = SPO;
+			prefix = new int[0];
+		}
+		ExtendedIterator<Triple> pendingIt = this.pending.find(m);
+		for(int id : prefix) {
+			if(id < 0) {
+				// a term that has never been stored cannot match any row
+				return pendingIt;
+			}
+		}
+		return new RowIterator(index, search(index, prefix, false), search(index, prefix, true)).andThen(pendingIt);
+	}
+	
+	@Override
+	protected boolean graphBaseContains(Triple t) {
+		if(!t.isConcrete()) {
+			return containsByFind(t);
+		}
+		return (findRow(t) >= 0) || this.pending.contains(t);
+	}
+	
+	@Override
+	protected int graphBaseSize() {
+		return (this.subjects.length - this.deletedCount) + this.pending.size();
+	}
+	
+	@Override
+	public BulkUpdateHandler getBulkUpdateHandler() {
+		if(this.bulkHandler == null) {
+			this.bulkHandler = new SimpleBulkUpdateHandler(this) {
+				@Override
+				public void removeAll() {
+					clear();
+					notifyRemoveAll();
+				}
+			};
+		}
+		return this.bulkHandler;
+	}
+	
+	@Override
+	public TransactionHandler getTransactionHandler() {
+		return new TransactionHandlerBase() {
+			@Override
+			public boolean transactionsSupported() {
+				return false;
+			}
+			
+			@Override
+			public void begin() {
+				// Do Nothing
+			}
+			
+			@Override
+			public void commit() {
+				// Do Nothing
+			}
+			
+			@Override
+			public void abort() {
+				// Do Nothing
+			}
+		};
+	}
+	
+	@Override
+	public void close() {
+		clear();
+		super.close();
+	}
+	
+	/**
+	 * Iterates the rows of one index between two positions, skipping deleted rows
+	 */
+	private class RowIterator extends NiceIterator<Triple> {
+		/**
+		 * the index (SPO, POS or OSP)
+		 */
+		private final int index;
+		/**
+		 * position past the last match
+		 */
+		private final int end;
+		/**
+		 * merge count when the iterator was created
+		 */
+		private final int expectedMergeCount;
+		/**
+		 * next position to look at
+		 */
+		private int position;
+		/**
+		 * row last returned by next(), -1 if none
+		 */
+		private int lastRow;
+		
+		/**
+		 * Constructor
+		 * @param index the index (SPO, POS or OSP)
+		 * @param start first position
+		 * @param end position past the last match
+		 */
+		protected RowIterator(int index, int start, int end) {
+			this.index = index;
+			this.position = start;
+			this.end = end;
+			this.expectedMergeCount = CompactGraph.this.mergeCount;
+			this.lastRow = -1;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if(this.expectedMergeCount != CompactGraph.this.mergeCount) {
+				throw new ConcurrentModificationException();
+			}
+			while((this.position < this.end) && CompactGraph.this.deleted.get(row(this.index, this.position))) {
+				this.position++;
+			}
+			return this.position < this.end;
+		}
+		
+		@Override
+		public Triple next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int row = row(this.index, this.position++);
+			this.lastRow = row;
+			List<Node> t = CompactGraph.this.terms;
+			return Triple.create(t.get(CompactGraph.this.subjects[row]), t.get(CompactGraph.this.predicates[row]), t.get(CompactGraph.this.objects[row]));
+		}
+		
+		@Override
+		public void remove() {
+			if(this.lastRow < 0) {
+				throw new IllegalStateException();
+			}
+			markDeleted(this.lastRow);
+			this.lastRow = -1;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.query.DataSource;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Connection Helper for in-memory models held in a {@link CompactGraph}
+ * <p>
+ * Intended for large models that are loaded once and then mostly read, such as the vivo and input models of a
+ * Score or Match run, where it takes a fraction of the heap of a mem model. Neighbor connections are named models in
+ * the same dataset. A model is freed when the last connection to it is closed, and the default model when the last
+ * connection to the dataset is closed.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class CompactJenaConnect extends JenaConnect {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(CompactJenaConnect.class);
+	/**
+	 * name of the default model
+	 */
+	private static final String DEFAULT_GRAPH = "urn:x-arq:DefaultGraph";
+	/**
+	 * The dataset the model belongs to
+	 */
+	private final CompactDataset ds;
+	
+	/**
+	 * Constructor (Compact Default Model)
+	 */
+	public CompactJenaConnect() {
+		this(null);
+	}
+	
+	/**
+	 * Constructor (Compact Named Model)
+	 * @param modelName the model name to use
+	 */
+	public CompactJenaConnect(String modelName) {
+		Model model = createModel();
+		this.ds = new CompactDataset(model);
+		if(modelName != null) {
+			setModelName(modelName);
+			this.ds.getDataSource().addNamedModel(modelName, model);
+		} else {
+			setModelName(DEFAULT_GRAPH);
+		}
+		setJenaModel(this.ds.acquire(getModelName()));
+	}
+	
+	/**
+	 * Constructor (Named Model in existing Dataset)
+	 * @param ds the dataset
+	 * @param modelName the model name to use
+	 */
+	private CompactJenaConnect(CompactDataset ds, String modelName) {
+		this.ds = ds;
+		setModelName(modelName);
+		setJenaModel(ds.acquire(modelName));
+	}
+	
+	/**
+	 * Create a model backed by a new compact graph
+	 * @return the model
+	 */
+	private static Model createModel() {
+		return ModelFactory.createModelForGraph(new CompactGraph());
+	}
+	
+	/**
+	 * Merge any pending changes into the compact store, call after a bulk load
+	 */
+	public void compact() {
+		((CompactGraph)getJenaModel().getGraph()).compact();
+	}
+	
+	@Override
+	protected int countStatements() {
+		return getJenaModel().getGraph().size();
+	}
+	
+	@Override
+	public JenaConnect neighborConnectClone(String modelName) {
+		return new CompactJenaConnect(this.ds, modelName);
+	}
+	
+	@Override
+	public Dataset getDataset() {
+		return this.ds.getDataSource();
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		this.ds.release(getModelName());
+	}
+	
+	@Override
+	public void printParameters() {
+		super.printParameters();
+		log.trace("type: 'compact'");
+	}
+	
+	@Override
+	public void sync() {
+		// Do Nothing
+	}
+	
+	/**
+	 * Compact models that can see each other, with the number of open connections to each
+	 */
+	private static class CompactDataset {
+		/**
+		 * the dataset for queries
+		 */
+		private final DataSource dataSource;
+		/**
+		 * number of open connections by model name
+		 */
+		private final Map<String, Integer> openCounts;
+		
+		/**
+		 * Constructor
+		 * @param defaultModel the default model
+		 */
+		protected CompactDataset(Model defaultModel) {
+			this.dataSource = DatasetFactory.create(defaultModel);
+			this.openCounts = new HashMap<String, Integer>();
+		}
+		
+		/**
+		 * Get the dataset for queries
+		 * @return the dataset
+		 */
+		protected DataSource getDataSource() {
+			return this.dataSource;
+		}
+		
+		/**
+		 * Open a model, creating it if needed
+		 * @param modelName the model name
+		 * @return the model
+		 */
+		protected synchronized Model acquire(String modelName) {
+			Model m;
+			if(this.dataSource.containsNamedModel(modelName)) {
+				m = this.dataSource.getNamedModel(modelName);
+			} else if(modelName.equals(DEFAULT_GRAPH)) {
+				m = this.dataSource.getDefaultModel();
+			} else {
+				m = createModel();
+				this.dataSource.addNamedModel(modelName, m);
+			}
+			Integer count = this.openCounts.get(modelName);
+			this.openCounts.put(modelName, Integer.valueOf((count == null) ? 1 : (count.intValue() + 1)));
+			return m;
+		}
+		
+		/**
+		 * Close a model, freeing it once no connection has it open (the default model is kept until no connection has
+		 * any model of the dataset open)
+		 * @param modelName the model name
+		 */
+		protected synchronized void release(String modelName) {
+			Integer count = this.openCounts.get(modelName);
+			if((count == null) || (count.intValue() > 1)) {
+				if(count != null) {
+					this.openCounts.put(modelName, Integer.valueOf(count.intValue() - 1));
+				}
+				return;
+			}
+			this.openCounts.remove(modelName);
+			Model defaultModel = this.dataSource.getDefaultModel();
+			if(this.dataSource.containsNamedModel(modelName)) {
+				Model m = this.dataSource.getNamedModel(modelName);
+				if(m != defaultModel) {
+					this.dataSource.removeNamedModel(modelName);
+					m.close();
+				}
+			}
+			if(this.openCounts.isEmpty()) {
+				defaultModel.close();
+			}
+		}
+	}
+}
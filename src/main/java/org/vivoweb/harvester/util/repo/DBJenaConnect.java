@@ -7,8 +7,6 @@ package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,19 +77,26 @@ public abstract class DBJenaConnect extends JenaConnect {
 	}
 	
 	/**
-	 * Build a new jdbc connection using connect info
-	 * @return a new jdbc connection
+	 * Get a jdbc connection using connect info, reusing an idle pooled connection when there is one (closing the
+	 * connection returns it to the pool)
+	 * @return a jdbc connection
 	 * @throws IOException error making jdbc connection
 	 */
 	protected Connection buildConnection() throws IOException {
-		try {
-			Class.forName(this.dbClass);
-			return DriverManager.getConnection(this.dbUrl, this.dbUser, this.dbPass);
-		} catch(SQLException e) {
-			throw new IOException(e);
-		} catch(ClassNotFoundException e) {
-			throw new IOException(e);
+		return JDBCConnectionPool.getConnection(this.dbClass, this.dbUrl, this.dbUser, this.dbPass);
+	}
+	
+	@Override
+	public boolean sharesStoreWith(JenaConnect other) {
+		// neighbor clones and dataset models in the same database all read and write the same tables
+		if(other == this) {
+			return true;
+		}
+		if((other == null) || (other.getClass() != getClass())) {
+			return false;
 		}
+		DBJenaConnect db = (DBJenaConnect)other;
+		return this.dbUrl.equals(db.dbUrl) && ((this.dbUser == null) ? (db.dbUser == null) : this.dbUser.equals(db.dbUser));
 	}
 	
 	@Override
@@ -5,13 +5,32 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.NTripleAide;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 /**
  * Wraps a file an RDF File as a JenaConnect
+ * <p>
+ * Changes made since the file was loaded (or last synced) are tracked, so a sync with no changes does not touch the
+ * file, and a sync of an N-Triples file that only added triples appends them to the end of the file. Any removal (or
+ * any added blank node, whose label could not be matched to the file) still rewrites the whole file. Files ending in
+ * .gz are read and written compressed, and with no language given .nt and .gz files are taken to be N-Triples.
+ * </p>
  * @author Christopher Haines hainesc@ufl.edu
  */
 public class FileJenaConnect extends MemJenaConnect {
@@ -23,6 +42,14 @@ public class FileJenaConnect extends MemJenaConnect {
 	 * 
 	 */
 	private final String filepath;
+	/**
+	 * the language the file is in, null for RDF/XML
+	 */
+	private final String language;
+	/**
+	 * tracks changes made to the model since the last sync
+	 */
+	private final ChangeTracker changes;
 	
 	/**
 	 * Constructor
@@ -50,24 +77,238 @@ public class FileJenaConnect extends MemJenaConnect {
 	 * @param filepath path to the file
 	 * @param namespace the base uri to use for imported uris
 	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 *        "TTL") and "N3". null picks N-Triples for .nt and .gz files and "RDF/XML" otherwise. "RDF/XML-ABBREV" is a
+	 *        synonym for "RDF/XML"
 	 * @throws IOException error reading file
 	 */
 	public FileJenaConnect(String filepath, String namespace, String language) throws IOException {
-		super(FileAide.getInputStream(filepath), namespace, language);
+		this(filepath, namespace, language, getReadLanguage(filepath, language));
+	}
+	
+	/**
+	 * Constructor
+	 * @param filepath path to the file
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the language given
+	 * @param readLanguage the language the file is actually in
+	 * @throws IOException error reading file
+	 */
+	private FileJenaConnect(String filepath, String namespace, String language, String readLanguage) throws IOException {
+		super(getFileInputStream(filepath), namespace, readLanguage);
 		this.filepath = filepath;
+		this.language = (readLanguage != null) ? readLanguage : language;
+		this.changes = new ChangeTracker();
+		getJenaModel().getGraph().getEventManager().register(this.changes);
+	}
+	
+	/**
+	 * Get the language to read a file in
+	 * @param filepath path to the file
+	 * @param language the language given, null to pick from the extension
+	 * @return the language given, otherwise "N-TRIPLE" for .nt and .gz files or null for RDF/XML
+	 */
+	private static String getReadLanguage(String filepath, String language) {
+		String fileLanguage = getFileLanguage(filepath, language);
+		if((language == null) && !isNTriples(fileLanguage)) {
+			// only n-triples can be read back by the model readers
+			return null;
+		}
+		return fileLanguage;
+	}
+	
+	/**
+	 * Is the file in N-Triples, so triples can be appended to it
+	 * @return true if N-Triples
+	 */
+	private boolean isNTriples() {
+		return isNTriples(this.language);
+	}
+	
+	/**
+	 * Append triples to the end of the file
+	 * @param triples the triples
+	 * @throws IOException error writing file
+	 */
+	private void appendToFile(Set<Triple> triples) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(getFileOutputStream(this.filepath, true), "UTF-8"));
+		try {
+			for(Triple t : triples) {
+				bw.write(NTripleAide.toLine(t));
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
 	}
 	
 	@Override
 	public void sync() {
+		if(!this.changes.isChanged()) {
+			log.trace("Model unchanged since last syncronization, skipping");
+			return;
+		}
 		log.trace("Syncronizing the model...");
 		try {
-			exportRdfToFile(this.filepath);
+			if(isNTriples() && this.changes.isAppendable()) {
+				log.trace("Appending " + this.changes.getAdded().size() + " triples");
+				appendToFile(this.changes.getAdded());
+			} else {
+				exportRdfToFile(this.filepath, this.language);
+			}
+			this.changes.reset();
 			log.trace("Syncronization of model complete");
 		} catch(IOException e) {
 			log.error("Failed to syncronize the model!");
 			log.debug("Stacktrace:",e);
 		}
 	}
+	
+	@Override
+	public void close() {
+		getJenaModel().getGraph().getEventManager().unregister(this.changes);
+		super.close();
+	}
+	
+	/**
+	 * Records the triples added to a graph, and whether anything happened that can only be written by a full rewrite
+	 */
+	private static class ChangeTracker implements GraphListener {
+		/**
+		 * triples added since the last reset, in order
+		 */
+		private final Set<Triple> added;
+		/**
+		 * has a change that cannot be appended happened since the last reset
+		 */
+		private boolean rewrite;
+		
+		/**
+		 * Constructor
+		 */
+		protected ChangeTracker() {
+			this.added = new LinkedHashSet<Triple>();
+			this.rewrite = false;
+		}
+		
+		/**
+		 * Has anything changed since the last reset
+		 * @return true if changed
+		 */
+		protected boolean isChanged() {
+			return this.rewrite || !this.added.isEmpty();
+		}
+		
+		/**
+		 * Can the changes be written by appending the added triples
+		 * @return true if only triples without blank nodes were added
+		 */
+		protected boolean isAppendable() {
+			return !this.rewrite;
+		}
+		
+		/**
+		 * Get the triples added since the last reset
+		 * @return the triples
+		 */
+		protected Set<Triple> getAdded() {
+			return this.added;
+		}
+		
+		/**
+		 * Forget all changes
+		 */
+		protected void reset() {
+			this.added.clear();
+			this.rewrite = false;
+		}
+		
+		/**
+		 * Record an added triple
+		 * @param t the triple
+		 */
+		private void added(Triple t) {
+			if(this.rewrite) {
+				return;
+			}
+			if(t.getSubject().isBlank() || t.getObject().isBlank()) {
+				this.rewrite = true;
+				this.added.clear();
+			} else {
+				this.added.add(t);
+			}
+		}
+		
+		/**
+		 * Record a removed triple
+		 */
+		private void removed() {
+			this.rewrite = true;
+			this.added.clear();
+		}
+		
+		@Override
+		public void notifyAddTriple(Graph g, Triple t) {
+			added(t);
+		}
+		
+		@Override
+		public void notifyAddArray(Graph g, Triple[] triples) {
+			notifyAddList(g, Arrays.asList(triples));
+		}
+		
+		@Override
+		public void notifyAddList(Graph g, List<Triple> triples) {
+			notifyAddIterator(g, triples.iterator());
+		}
+		
+		@Override
+		public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+			while(it.hasNext()) {
+				added(it.next());
+			}
+		}
+		
+		@Override
+		public void notifyAddGraph(Graph g, Graph added) {
+			ExtendedIterator<Triple> tripleIt = added.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				notifyAddIterator(g, tripleIt);
+			} finally {
+				tripleIt.close();
+			}
+		}
+		
+		@Override
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			removed();
+		}
+		
+		@Override
+		public void notifyDeleteList(Graph g, List<Triple> triples) {
+			removed();
+		}
+		
+		@Override
+		public void notifyDeleteArray(Graph g, Triple[] triples) {
+			removed();
+		}
+		
+		@Override
+		public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+			removed();
+		}
+		
+		@Override
+		public void notifyDeleteGraph(Graph g, Graph removed) {
+			removed();
+		}
+		
+		@Override
+		public void notifyEvent(Graph source, Object value) {
+			if(!GraphEvents.startRead.equals(value) && !GraphEvents.finishRead.equals(value)) {
+				// removeAll and pattern removes
+				removed();
+			}
+		}
+	}
 }
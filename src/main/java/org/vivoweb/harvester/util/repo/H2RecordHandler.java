@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record Handler that stores records and metadata in an embedded H2 database file in a local directory
+ * <p>
+ * Needs no database setup: only a directory is configured, and the database, tables and indexes are created the first
+ * time it is used. Record data is stored deflate compressed, and the database is opened with multi-version concurrency
+ * so reading records does not wait on writes. As with {@link JDBCRecordHandler}, each write is committed as it is made
+ * unless a batch size is set; add records through {@link RecordBatch} or {@link #addRecords(Iterable, Class, boolean)}
+ * to commit them a block at a time.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class H2RecordHandler extends JDBCRecordHandler {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(H2RecordHandler.class);
+	/**
+	 * name of the database files within the directory
+	 */
+	private static final String storeName = "store";
+	/**
+	 * settings added to the connection line
+	 */
+	private static final String connSettings = ";COMPRESS_LOB=DEFLATE;MVCC=TRUE";
+	
+	/**
+	 * Default Constructor
+	 */
+	protected H2RecordHandler() {
+		// Nothing to do here
+		// Used by config construction
+		// Should only be used in conjunction with setParams()
+	}
+	
+	/**
+	 * Constructor
+	 * @param directory the local directory to store the database in, created if it does not exist
+	 * @throws IOException error opening the database
+	 */
+	public H2RecordHandler(String directory) throws IOException {
+		this(directory, null, null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param directory the local directory to store the database in, created if it does not exist
+	 * @param tableName name of table to use, null for the default
+	 * @param dataFieldName name of field to store data in, null for the default
+	 * @throws IOException error opening the database
+	 */
+	public H2RecordHandler(String directory, String tableName, String dataFieldName) throws IOException {
+		open(directory, tableName, dataFieldName);
+	}
+	
+	/**
+	 * Build the connection line for the database in a directory
+	 * @param directory the directory
+	 * @return jdbc connection line
+	 * @throws IOException error creating the directory
+	 */
+	private static String buildConnLine(String directory) throws IOException {
+		File dir = new File(directory);
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory " + dir.getAbsolutePath());
+		}
+		return "jdbc:h2:" + new File(dir, storeName).getAbsolutePath() + connSettings;
+	}
+	
+	/**
+	 * Open the database in a directory
+	 * @param directory the directory
+	 * @param tableName name of table to use, null for the default
+	 * @param dataFieldName name of field to store data in, null for the default
+	 * @throws IOException error opening the database
+	 */
+	private void open(String directory, String tableName, String dataFieldName) throws IOException {
+		String connLine = buildConnLine(directory);
+		log.debug("Opening embedded record store " + connLine);
+		initAll("org.h2.Driver", connLine, "sa", "", tableName, dataFieldName);
+	}
+	
+	@Override
+	public void setParams(Map<String, String> params) throws IllegalArgumentException, IOException {
+		String directory = getParam(params, "fileDir", true);
+		String dbTable = getParam(params, "dbTable", false);
+		String dataFieldName = getParam(params, "dataFieldName", false);
+		String batchSizeParam = getParam(params, "batchSize", false);
+		open(directory, dbTable, dataFieldName);
+		if(batchSizeParam != null) {
+			try {
+				setBatchSize(Integer.parseInt(batchSizeParam.trim()));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("batchSize must be a number: " + batchSizeParam, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,480 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares JDBC connections between the database backed JenaConnects and RecordHandlers
+ * <p>
+ * Connections are pooled by driver, url and user. A connection handed out by {@link #getConnection(String, String,
+ * String, String)} goes back to the pool when it is closed, so code that opens and closes connections (including
+ * Jena's and SDB's own close methods) needs no changes. At most {@link #setMaxIdle(int) maxIdle} idle connections are
+ * kept per database, and at most {@link #setMaxActive(int) maxActive} are in use at once; once that many are in use a
+ * caller waits up to {@link #setMaxWait(long) maxWait} for one to be closed. The default limit is generous, since one
+ * task often holds several models of the same database open at once. Idle connections are checked before being reused
+ * and closed once they have been idle longer than the {@link #setIdleTimeout(long) idle timeout}. Connections to
+ * in-memory databases are not pooled.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class JDBCConnectionPool {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(JDBCConnectionPool.class);
+	/**
+	 * default maximum number of idle connections kept per database
+	 */
+	public static final int DEFAULT_MAX_IDLE = 8;
+	/**
+	 * default maximum number of connections in use at once per database
+	 */
+	public static final int DEFAULT_MAX_ACTIVE = 64;
+	/**
+	 * default time in ms to wait for a connection when the maximum number are in use
+	 */
+	public static final long DEFAULT_MAX_WAIT = 60 * 1000;
+	/**
+	 * default time in ms after which an idle connection is closed
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+	/**
+	 * time in ms a connection may sit idle before it is validated on reuse
+	 */
+	private static final long VALIDATE_AFTER = 30 * 1000;
+	/**
+	 * seconds to wait when validating a connection
+	 */
+	private static final int VALIDATE_TIMEOUT = 5;
+	/**
+	 * idle connections by pool key
+	 */
+	private static final Map<String, LinkedList<IdleConnection>> pools = new HashMap<String, LinkedList<IdleConnection>>();
+	/**
+	 * number of connections in use by pool key
+	 */
+	private static final Map<String, Integer> activeCounts = new HashMap<String, Integer>();
+	/**
+	 * maximum number of idle connections kept per database
+	 */
+	private static int maxIdle = DEFAULT_MAX_IDLE;
+	/**
+	 * maximum number of connections in use at once per database
+	 */
+	private static int maxActive = DEFAULT_MAX_ACTIVE;
+	/**
+	 * time in ms to wait for a connection when the maximum number are in use
+	 */
+	private static long maxWait = DEFAULT_MAX_WAIT;
+	/**
+	 * time in ms after which an idle connection is closed
+	 */
+	private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	
+	/**
+	 * Static helper class
+	 */
+	private JDBCConnectionPool() {
+		// Static helper class
+	}
+	
+	/**
+	 * Set the maximum number of idle connections kept per database, 0 disables pooling
+	 * @param max the maximum
+	 */
+	public static synchronized void setMaxIdle(int max) {
+		if(max < 0) {
+			throw new IllegalArgumentException("maxIdle must not be negative");
+		}
+		maxIdle = max;
+		closeIdleConnections(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Set the maximum number of connections in use at once per database
+	 * @param max the maximum
+	 */
+	public static synchronized void setMaxActive(int max) {
+		if(max < 1) {
+			throw new IllegalArgumentException("maxActive must be at least 1");
+		}
+		maxActive = max;
+		JDBCConnectionPool.class.notifyAll();
+	}
+	
+	/**
+	 * Set how long to wait for a connection when the maximum number are in use, before giving up
+	 * @param wait the time in ms, 0 to give up at once
+	 */
+	public static synchronized void setMaxWait(long wait) {
+		if(wait < 0) {
+			throw new IllegalArgumentException("maxWait must not be negative");
+		}
+		maxWait = wait;
+	}
+	
+	/**
+	 * Set the time after which an idle connection is closed
+	 * @param timeout the timeout in ms
+	 */
+	public static synchronized void setIdleTimeout(long timeout) {
+		idleTimeout = timeout;
+	}
+	
+	/**
+	 * Get a connection, reusing an idle one if there is a valid one
+	 * @param driverClass the jdbc driver class
+	 * @param url the jdbc connection line
+	 * @param user the username
+	 * @param pass the password
+	 * @return the connection, which returns to the pool when closed
+	 * @throws IOException error connecting, or no connection was closed within maxWait while maxActive were in use
+	 */
+	public static Connection getConnection(String driverClass, String url, String user, String pass) throws IOException {
+		String key = driverClass + "|" + url + "|" + user + "|" + ((pass == null) ? 0 : pass.hashCode());
+		if(!isPoolable(url)) {
+			return openConnection(driverClass, url, user, pass);
+		}
+		acquireActive(key, url);
+		boolean handedOut = false;
+		try {
+			Connection conn = null;
+			IdleConnection idle;
+			while((conn == null) && ((idle = takeIdle(key)) != null)) {
+				if(isUsable(idle)) {
+					conn = idle.conn;
+				} else {
+					closeQuietly(idle.conn);
+				}
+			}
+			if(conn == null) {
+				conn = openConnection(driverClass, url, user, pass);
+			}
+			handedOut = true;
+			return wrap(key, conn);
+		} finally {
+			if(!handedOut) {
+				releaseActive(key);
+			}
+		}
+	}
+	
+	/**
+	 * Open a new connection
+	 * @param driverClass the jdbc driver class
+	 * @param url the jdbc connection line
+	 * @param user the username
+	 * @param pass the password
+	 * @return the connection
+	 * @throws IOException error connecting
+	 */
+	private static Connection openConnection(String driverClass, String url, String user, String pass) throws IOException {
+		try {
+			Class.forName(driverClass);
+			log.trace("Opening new connection to " + url);
+			return DriverManager.getConnection(url, user, pass);
+		} catch(SQLException e) {
+			throw new IOException(e);
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Count one more connection to a database as in use, waiting for one to be closed if maxActive are already in use
+	 * @param key the pool key
+	 * @param url the jdbc connection line
+	 * @throws IOException no connection was closed within maxWait
+	 */
+	private static synchronized void acquireActive(String key, String url) throws IOException {
+		long deadline = System.currentTimeMillis() + maxWait;
+		int active = getActiveCount(key);
+		while(active >= maxActive) {
+			long left = deadline - System.currentTimeMillis();
+			if(left <= 0) {
+				throw new IOException("Timed out after " + maxWait + "ms waiting for one of the " + active + " connections in use to " + url + " to be closed");
+			}
+			try {
+				JDBCConnectionPool.class.wait(left);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a connection to " + url, e);
+			}
+			active = getActiveCount(key);
+		}
+		activeCounts.put(key, Integer.valueOf(active + 1));
+	}
+	
+	/**
+	 * Count one less connection to a database as in use, waking anyone waiting for one
+	 * @param key the pool key
+	 */
+	private static synchronized void releaseActive(String key) {
+		int active = getActiveCount(key);
+		if(active <= 1) {
+			activeCounts.remove(key);
+		} else {
+			activeCounts.put(key, Integer.valueOf(active - 1));
+		}
+		JDBCConnectionPool.class.notifyAll();
+	}
+	
+	/**
+	 * Get the number of connections to a database in use
+	 * @param key the pool key
+	 * @return the number in use
+	 */
+	private static synchronized int getActiveCount(String key) {
+		Integer active = activeCounts.get(key);
+		return (active == null) ? 0 : active.intValue();
+	}
+	
+	/**
+	 * Close all idle connections
+	 */
+	public static synchronized void closeIdleConnections() {
+		closeIdleConnections(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Can connections to a database be pooled. In-memory databases are dropped when their last connection closes, so
+	 * keeping an idle connection would keep their contents alive, and they have no connection cost to save anyway.
+	 * @param url the jdbc connection line
+	 * @return true if poolable
+	 */
+	private static boolean isPoolable(String url) {
+		return !url.startsWith("jdbc:h2:mem:") && !url.startsWith("jdbc:hsqldb:mem:");
+	}
+	
+	/**
+	 * Take the most recently used idle connection for a database
+	 * @param key the pool key
+	 * @return the connection, or null if none is idle
+	 */
+	private static synchronized IdleConnection takeIdle(String key) {
+		closeIdleConnections(System.currentTimeMillis());
+		LinkedList<IdleConnection> pool = pools.get(key);
+		if((pool == null) || pool.isEmpty()) {
+			return null;
+		}
+		return pool.removeFirst();
+	}
+	
+	/**
+	 * Can a connection taken from the pool be handed out
+	 * @param idle the connection
+	 * @return true if still open (and valid, when it was idle long enough to need checking)
+	 */
+	private static boolean isUsable(IdleConnection idle) {
+		Connection conn = idle.conn;
+		try {
+			if(conn.isClosed()) {
+				return false;
+			}
+			if((System.currentTimeMillis() - idle.since) > VALIDATE_AFTER) {
+				try {
+					return conn.isValid(VALIDATE_TIMEOUT);
+				} catch(AbstractMethodError e) {
+					// pre-jdbc4 driver, isClosed is all we can check
+					return true;
+				}
+			}
+			return true;
+		} catch(SQLException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Return a connection to the pool, or close it if the pool is full
+	 * @param key the pool key
+	 * @param conn the connection
+	 */
+	protected static void release(String key, Connection conn) {
+		try {
+			returnIdle(key, conn);
+		} finally {
+			releaseActive(key);
+		}
+	}
+	
+	/**
+	 * Keep a connection that is no longer in use as idle, or close it if the pool is full
+	 * @param key the pool key
+	 * @param conn the connection
+	 */
+	private static void returnIdle(String key, Connection conn) {
+		try {
+			if(conn.isClosed()) {
+				return;
+			}
+			if(!conn.getAutoCommit()) {
+				// do not hand an open transaction to the next user
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} catch(SQLException e) {
+			closeQuietly(conn);
+			return;
+		}
+		synchronized(JDBCConnectionPool.class) {
+			LinkedList<IdleConnection> pool = pools.get(key);
+			if(pool == null) {
+				pool = new LinkedList<IdleConnection>();
+				pools.put(key, pool);
+			}
+			if(pool.size() < maxIdle) {
+				pool.addFirst(new IdleConnection(conn));
+				return;
+			}
+		}
+		closeQuietly(conn);
+	}
+	
+	/**
+	 * Close connections that have been idle too long, and any over the idle limit
+	 * @param now the current time, Long.MAX_VALUE to close all idle connections
+	 */
+	private static synchronized void closeIdleConnections(long now) {
+		for(Iterator<LinkedList<IdleConnection>> poolIt = pools.values().iterator(); poolIt.hasNext();) {
+			LinkedList<IdleConnection> pool = poolIt.next();
+			for(Iterator<IdleConnection> idleIt = pool.iterator(); idleIt.hasNext();) {
+				IdleConnection idle = idleIt.next();
+				if((now == Long.MAX_VALUE) || ((now - idle.since) > idleTimeout)) {
+					idleIt.remove();
+					closeQuietly(idle.conn);
+				}
+			}
+			while(pool.size() > maxIdle) {
+				closeQuietly(pool.removeLast().conn);
+			}
+			if(pool.isEmpty()) {
+				poolIt.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Close a connection, ignoring errors
+	 * @param conn the connection
+	 */
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		} catch(SQLException e) {
+			log.debug("Error closing pooled connection", e);
+		}
+	}
+	
+	/**
+	 * Wrap a connection so closing it returns it to the pool
+	 * @param key the pool key
+	 * @param conn the connection
+	 * @return the wrapped connection
+	 */
+	private static Connection wrap(String key, Connection conn) {
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new PooledConnectionHandler(key, conn));
+	}
+	
+	/**
+	 * An idle connection and when it was returned
+	 */
+	private static class IdleConnection {
+		/**
+		 * the connection
+		 */
+		protected final Connection conn;
+		/**
+		 * time the connection was returned
+		 */
+		protected final long since;
+		
+		/**
+		 * Constructor
+		 * @param conn the connection
+		 */
+		protected IdleConnection(Connection conn) {
+			this.conn = conn;
+			this.since = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Passes calls through to a pooled connection, returning it to the pool on close
+	 */
+	private static class PooledConnectionHandler implements InvocationHandler {
+		/**
+		 * the pool key
+		 */
+		private final String key;
+		/**
+		 * the real connection, null once closed
+		 */
+		private Connection conn;
+		
+		/**
+		 * Constructor
+		 * @param key the pool key
+		 * @param conn the real connection
+		 */
+		protected PooledConnectionHandler(String key, Connection conn) {
+			this.key = key;
+			this.conn = conn;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")) {
+				Connection c;
+				synchronized(this) {
+					c = this.conn;
+					this.conn = null;
+				}
+				if(c != null) {
+					release(this.key, c);
+				}
+				return null;
+			}
+			if(name.equals("isClosed")) {
+				Connection c = this.conn;
+				return Boolean.valueOf((c == null) || c.isClosed());
+			}
+			if(name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			if(name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			if(name.equals("toString")) {
+				return "Pooled " + this.conn;
+			}
+			Connection c = this.conn;
+			if(c == null) {
+				throw new SQLException("Connection is closed");
+			}
+			try {
+				return method.invoke(c, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -7,14 +7,17 @@ package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -28,6 +31,14 @@ import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
 
 /**
  * RecordHandler that stores data in a JDBC Database
+ * <p>
+ * Statements are prepared once and reused. With a {@link #setBatchSize(int) batch size} above 1, record and metadata
+ * writes are queued as JDBC batches and written in one transaction when the batch is full, before any read that
+ * depends on them, and on {@link #flush()} or {@link #close()}. Records are written with a single upsert statement on
+ * databases that have one (H2, MySQL, PostgreSQL 9.5+); other databases update and then insert if needed, one record
+ * at a time. {@link #addRecords(Iterable, Class, boolean)} checks which records have changed with one query per
+ * block of records and writes each block in one transaction, whatever the batch size.
+ * </p>
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
 public class JDBCRecordHandler extends RecordHandler {
@@ -71,10 +82,42 @@ public class JDBCRecordHandler extends RecordHandler {
 	 * Metadata table must have this field to store the md5
 	 */
 	private static final String rmdMD5Field = "md5";
+	/**
+	 * number of records the iterator reads from the database at a time
+	 */
+	private static final int ITERATOR_BLOCK_SIZE = 500;
+	/**
+	 * number of records addRecords checks and writes at a time
+	 */
+	private static final int ADD_RECORDS_BLOCK_SIZE = 500;
 	/**
 	 * Field to store data in
 	 */
 	protected String dataField;
+	/**
+	 * number of writes to queue before sending them to the database, 1 to write immediately
+	 */
+	private int batchSize = 1;
+	/**
+	 * statement to insert or replace a record in one step, null if the database has none
+	 */
+	private String upsertSQL;
+	/**
+	 * prepared statements by sql
+	 */
+	private Map<String, PreparedStatement> statements;
+	/**
+	 * statements with queued writes
+	 */
+	private Set<PreparedStatement> batchedStatements;
+	/**
+	 * ids of records with queued writes
+	 */
+	private Set<String> pendingIDs;
+	/**
+	 * number of queued writes
+	 */
+	private int pendingCount;
 	
 	/**
 	 * Default Constructor
@@ -144,7 +187,7 @@ public class JDBCRecordHandler extends RecordHandler {
 	 * @param dataFieldName field to store data in
 	 * @throws IOException connection error
 	 */
-	private void initAll(String jdbcDriverClass, String connLine, String username, String password, String tableName, String dataFieldName) throws IOException {
+	protected void initAll(String jdbcDriverClass, String connLine, String username, String password, String tableName, String dataFieldName) throws IOException {
 		this.table = tableName;
 		if(this.table == null) {
 			this.table = "recordTable";
@@ -153,9 +196,12 @@ public class JDBCRecordHandler extends RecordHandler {
 		if(this.dataField == null) {
 			this.dataField = "dataField";
 		}
+		this.statements = new HashMap<String, PreparedStatement>();
+		this.batchedStatements = new HashSet<PreparedStatement>();
+		this.pendingIDs = new HashSet<String>();
+		this.pendingCount = 0;
 		try {
-			Class.forName(jdbcDriverClass);
-			this.db = DriverManager.getConnection(connLine, username, password);
+			this.db = JDBCConnectionPool.getConnection(jdbcDriverClass, connLine, username, password);
 			this.cursor = this.db.createStatement();
 			if(!checkTableExists(this.table)) {
 				log.trace("Database Does Not Contain Table: " + this.table + ". Attempting to create.");
@@ -167,13 +213,138 @@ public class JDBCRecordHandler extends RecordHandler {
 				createMetaTable();
 			}
 			checkMetaTableConfigured();
-		} catch(ClassNotFoundException e) {
-			throw new IllegalArgumentException(e);
+			this.upsertSQL = buildUpsertSQL();
 		} catch(SQLException e) {
 			throw new IOException("Error in communication with database", e);
 		}
 	}
 	
+	/**
+	 * Build the statement that inserts or replaces a record in one step, for databases that have one
+	 * @return the sql, with the record id and data as parameters, or null if the database has no such statement
+	 * @throws SQLException error reading database metadata
+	 */
+	private String buildUpsertSQL() throws SQLException {
+		DatabaseMetaData dbmd = this.db.getMetaData();
+		String product = dbmd.getDatabaseProductName();
+		if(product.equals("H2")) {
+			return "merge into " + this.table + " (" + recordIdField + ", " + this.dataField + ") key (" + recordIdField + ") values (?, ?)";
+		}
+		if(product.equals("MySQL")) {
+			return "insert into " + this.table + " (" + recordIdField + ", " + this.dataField + ") values (?, ?) on duplicate key update " + this.dataField + " = values(" + this.dataField + ")";
+		}
+		if(product.equals("PostgreSQL") && ((dbmd.getDatabaseMajorVersion() > 9) || ((dbmd.getDatabaseMajorVersion() == 9) && (dbmd.getDatabaseMinorVersion() >= 5)))) {
+			return "insert into " + this.table + " (" + recordIdField + ", " + this.dataField + ") values (?, ?) on conflict (" + recordIdField + ") do update set " + this.dataField + " = excluded." + this.dataField;
+		}
+		log.debug("No upsert statement for " + product + ", records will be written one at a time");
+		return null;
+	}
+	
+	/**
+	 * Set the number of writes to queue before sending them to the database
+	 * @param size the batch size, 1 to write immediately
+	 * @throws IOException error writing queued records
+	 */
+	public void setBatchSize(int size) throws IOException {
+		if(size < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		if(size < this.pendingCount) {
+			flush();
+		}
+		this.batchSize = size;
+	}
+	
+	/**
+	 * Get a prepared statement, preparing it the first time
+	 * @param sql the sql
+	 * @return the statement
+	 * @throws SQLException error preparing statement
+	 */
+	private PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = this.statements.get(sql);
+		if(ps == null) {
+			ps = this.db.prepareStatement(sql);
+			this.statements.put(sql, ps);
+		}
+		return ps;
+	}
+	
+	/**
+	 * Run a write, or queue it if batching
+	 * @param ps the statement, with its parameters set
+	 * @param recID the record written
+	 * @throws SQLException error running statement
+	 * @throws IOException error writing the batch
+	 */
+	private void write(PreparedStatement ps, String recID) throws SQLException, IOException {
+		if(this.batchSize <= 1) {
+			ps.executeUpdate();
+			return;
+		}
+		if(this.pendingCount == 0) {
+			this.db.setAutoCommit(false);
+		}
+		ps.addBatch();
+		this.batchedStatements.add(ps);
+		this.pendingIDs.add(recID);
+		this.pendingCount++;
+		if(this.pendingCount >= this.batchSize) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Write queued writes for a record before it is read
+	 * @param recID the record id
+	 * @throws IOException error writing the batch
+	 */
+	private void flush(String recID) throws IOException {
+		if(this.pendingIDs.contains(recID)) {
+			flush();
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		if(this.pendingCount == 0) {
+			return;
+		}
+		log.trace("Writing batch of " + this.pendingCount + " writes");
+		try {
+			// records go first, so their metadata rows have something to reference
+			PreparedStatement upsert = (this.upsertSQL == null) ? null : this.statements.get(this.upsertSQL);
+			if((upsert != null) && this.batchedStatements.contains(upsert)) {
+				upsert.executeBatch();
+			}
+			for(PreparedStatement ps : this.batchedStatements) {
+				if(ps != upsert) {
+					ps.executeBatch();
+				}
+			}
+			this.db.commit();
+		} catch(SQLException e) {
+			try {
+				for(PreparedStatement ps : this.batchedStatements) {
+					ps.clearBatch();
+				}
+				this.db.rollback();
+			} catch(SQLException e2) {
+				log.debug("Error rolling back batch", e2);
+			}
+			throw new IOException("Unable to write batch of " + this.pendingIDs.size() + " records", e);
+		} finally {
+			this.batchedStatements.clear();
+			this.pendingIDs.clear();
+			this.pendingCount = 0;
+			try {
+				this.db.setAutoCommit(true);
+			} catch(SQLException e) {
+				log.debug("Error ending transaction", e);
+			}
+		}
+	}
+	
 	/**
 	 * Create the record table
 	 * @throws IOException error creating table
@@ -253,35 +424,148 @@ public class JDBCRecordHandler extends RecordHandler {
 		if(!needsUpdated(rec)) {
 			return false;
 		}
+		writeRecord(rec, overwrite);
+		addMetaData(rec, creator, RecordMetaDataType.written);
+		return true;
+	}
+	
+	@Override
+	public int addRecords(Iterable<Record> recs, Class<?> creator, boolean overwrite) throws IOException {
+		List<Record> block = new ArrayList<Record>(ADD_RECORDS_BLOCK_SIZE);
+		int count = 0;
+		for(Record rec : recs) {
+			block.add(rec);
+			if(block.size() >= ADD_RECORDS_BLOCK_SIZE) {
+				count += addRecordBlock(block, creator, overwrite);
+				block.clear();
+			}
+		}
+		if(!block.isEmpty()) {
+			count += addRecordBlock(block, creator, overwrite);
+		}
+		return count;
+	}
+	
+	/**
+	 * Add a block of records in one transaction
+	 * @param block the records
+	 * @param creator the creator
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @return the number of records added
+	 * @throws IOException error adding
+	 */
+	private int addRecordBlock(List<Record> block, Class<?> creator, boolean overwrite) throws IOException {
+		flush();
+		Map<String, String> lastMD5s = getLastWrittenMD5s(block);
+		int oldBatchSize = this.batchSize;
+		// queue the whole block, it is written when flushed below
+		this.batchSize = Integer.MAX_VALUE;
+		int count = 0;
+		try {
+			for(Record rec : block) {
+				String md5 = RecordMetaData.md5hex(rec.getData());
+				if(md5.equals(lastMD5s.put(rec.getID(), md5))) {
+					continue;
+				}
+				writeRecord(rec, overwrite);
+				addMetaData(rec, new RecordMetaData(creator, RecordMetaDataType.written, md5));
+				count++;
+			}
+			flush();
+		} finally {
+			this.batchSize = oldBatchSize;
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the md5 of the data last written for each of a set of records
+	 * @param recs the records, no more than {@link #ADD_RECORDS_BLOCK_SIZE}
+	 * @return the md5s by record id, records never written are left out
+	 * @throws IOException error reading metadata
+	 */
+	private Map<String, String> getLastWrittenMD5s(List<Record> recs) throws IOException {
+		// the id list is always padded to a full block, so a single prepared statement is cached whatever the block size
+		StringBuilder sql = new StringBuilder("select " + rmdRelField + ", " + rmdCalField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdOperationField + " = ? and " + rmdRelField + " in (");
+		for(int x = 0; x < ADD_RECORDS_BLOCK_SIZE; x++) {
+			sql.append((x == 0) ? "?" : ", ?");
+		}
+		sql.append(")");
+		Map<String, String> md5s = new HashMap<String, String>();
+		Map<String, Long> dates = new HashMap<String, Long>();
 		try {
-			PreparedStatement ps = this.db.prepareStatement("insert into " + this.table + "(" + recordIdField + ", " + this.dataField + ") values (?, ?)");
-			ps.setString(1, rec.getID());
-			ps.setBytes(2, rec.getData().getBytes());
-			ps.executeUpdate();
+			PreparedStatement ps = prepare(sql.toString());
+			ps.setString(1, RecordMetaDataType.written.toString());
+			for(int x = 0; x < ADD_RECORDS_BLOCK_SIZE; x++) {
+				// unused places repeat the last id
+				ps.setString(x + 2, recs.get(Math.min(x, recs.size() - 1)).getID());
+			}
+			ResultSet rs = ps.executeQuery();
+			try {
+				while(rs.next()) {
+					String recID = rs.getString(1);
+					long cal = Long.parseLong(rs.getString(2));
+					Long last = dates.get(recID);
+					if((last == null) || (cal >= last.longValue())) {
+						dates.put(recID, Long.valueOf(cal));
+						md5s.put(recID, rs.getString(3));
+					}
+				}
+			} finally {
+				rs.close();
+			}
 		} catch(SQLException e) {
-			if(overwrite) {
-				log.trace("Unable to add record: atempting to update existing record");
-				try {
-					PreparedStatement ps = this.db.prepareStatement("update " + this.table + " set " + this.dataField + " = ? where " + recordIdField + " = ?");
+			throw new IOException(e);
+		}
+		return md5s;
+	}
+	
+	/**
+	 * Write a record's data, queueing the write if batching
+	 * @param rec the record
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @throws IOException error writing
+	 */
+	private void writeRecord(Record rec, boolean overwrite) throws IOException {
+		byte[] data = rec.getData().getBytes();
+		if(overwrite && (this.upsertSQL != null)) {
+			try {
+				PreparedStatement ps = prepare(this.upsertSQL);
+				ps.setString(1, rec.getID());
+				ps.setBytes(2, data);
+				write(ps, rec.getID());
+			} catch(SQLException e) {
+				throw new IOException("Unable to add record: " + rec.getID(), e);
+			}
+		} else {
+			flush(rec.getID());
+			try {
+				int updated = 0;
+				if(overwrite) {
+					PreparedStatement ps = prepare("update " + this.table + " set " + this.dataField + " = ? where " + recordIdField + " = ?");
+					ps.setBytes(1, data);
 					ps.setString(2, rec.getID());
-					ps.setBytes(1, rec.getData().getBytes());
+					updated = ps.executeUpdate();
+				}
+				if(updated == 0) {
+					PreparedStatement ps = prepare("insert into " + this.table + " (" + recordIdField + ", " + this.dataField + ") values (?, ?)");
+					ps.setString(1, rec.getID());
+					ps.setBytes(2, data);
 					ps.executeUpdate();
-				} catch(SQLException e2) {
-					throw new IOException("Unable to update record: " + rec.getID(), e2);
 				}
-			} else {
+			} catch(SQLException e) {
 				throw new IOException("Unable to add record: " + rec.getID(), e);
 			}
 		}
-		addMetaData(rec, creator, RecordMetaDataType.written);
-		return true;
 	}
 	
 	@Override
 	public void delRecord(String recID) throws IOException {
 		delMetaData(recID);
 		try {
-			this.cursor.execute("delete from " + this.table + " where " + recordIdField + " = '" + recID + "'");
+			PreparedStatement ps = prepare("delete from " + this.table + " where " + recordIdField + " = ?");
+			ps.setString(1, recID);
+			ps.executeUpdate();
 		} catch(SQLException e) {
 			throw new IOException("Unable to delete record: " + recID, e);
 		}
@@ -289,15 +573,19 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	@Override
 	public String getRecordData(String recID) throws IOException {
+		flush(recID);
 		try {
-			ResultSet existrs = this.cursor.executeQuery("select count(*) from " + this.table + " where " + recordIdField + " = '" + recID + "'");
-			existrs.first();
-			if(existrs.getInt(1) < 1) {
-				throw new IllegalArgumentException("Record " + recID + " does not exist!");
+			PreparedStatement ps = prepare("select " + this.dataField + " from " + this.table + " where " + recordIdField + " = ?");
+			ps.setString(1, recID);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if(!rs.next()) {
+					throw new IllegalArgumentException("Record " + recID + " does not exist!");
+				}
+				return new String(rs.getBytes(1));
+			} finally {
+				rs.close();
 			}
-			ResultSet rs = this.cursor.executeQuery("select " + this.dataField + " from " + this.table + " where " + recordIdField + " = '" + recID + "'");
-			rs.first();
-			return new String(rs.getBytes(1));
 		} catch(SQLException e) {
 			throw new IOException("Unable to retrieve record: " + recID, e);
 		}
@@ -307,7 +595,11 @@ public class JDBCRecordHandler extends RecordHandler {
 	public Iterator<Record> iterator() {
 		JDBCRecordIterator ri = null;
 		try {
+			flush();
 			ri = new JDBCRecordIterator();
+		} catch(IOException e) {
+			log.error("Unable to retrieve records");
+			log.debug("Stacktrace:",e);
 		} catch(SQLException e) {
 			log.error("Unable to retrieve records");
 			log.debug("Stacktrace:",e);
@@ -317,26 +609,132 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	/**
 	 * Iterator for JDBCRecordHandler
+	 * <p>
+	 * Reads the records a block at a time in id order, each block with its data and latest metadata of each operation
+	 * and operator in a single query, so checking needsProcessed and reading the data of a record costs no further
+	 * queries. Each block starts after the last id of the one before, so only one block is ever held in memory, and
+	 * no result set is left open between blocks. Drivers differ in whether and how they stream an open result set
+	 * (PostgreSQL only with autocommit off, MySQL only with a cursor or row-by-row fetching that blocks every other
+	 * statement on the connection), and records are often written while they are being iterated.
+	 * </p>
 	 * @author Christopher Haines (hainesc@ctrip.ufl.edu)
 	 */
 	private class JDBCRecordIterator implements Iterator<Record> {
 		/**
-		 * The result set for records in a database
+		 * The records of the current block
 		 */
-		ResultSet rs;
+		private List<Record> block;
+		/**
+		 * Position of the next record in the block
+		 */
+		private int pos;
+		/**
+		 * Last id read, null before the first block
+		 */
+		private String lastID;
+		/**
+		 * Have all records been read
+		 */
+		private boolean exhausted;
+		/**
+		 * Operator classes by name
+		 */
+		private Map<String, Class<?>> operators;
 		
 		/**
 		 * Default Constructor
 		 * @throws SQLException failed to read records
 		 */
 		protected JDBCRecordIterator() throws SQLException {
-			this.rs = JDBCRecordHandler.this.db.createStatement().executeQuery("select " + JDBCRecordHandler.recordIdField + " from " + JDBCRecordHandler.this.table + " order by " + JDBCRecordHandler.recordIdField);
+			this.block = new ArrayList<Record>();
+			this.pos = 0;
+			this.lastID = null;
+			this.exhausted = false;
+			this.operators = new HashMap<String, Class<?>>();
+			readBlock();
+		}
+		
+		/**
+		 * Read the next block of records
+		 * @throws SQLException error reading
+		 */
+		private void readBlock() throws SQLException {
+			this.block.clear();
+			this.pos = 0;
+			String rt = JDBCRecordHandler.this.table;
+			String mt = rt + "_rmd";
+			String after = (this.lastID == null) ? "" : " where " + recordIdField + " > ?";
+			PreparedStatement idPS = prepare("select " + recordIdField + " from " + rt + after + " order by " + recordIdField);
+			idPS.setMaxRows(ITERATOR_BLOCK_SIZE);
+			if(this.lastID != null) {
+				idPS.setString(1, this.lastID);
+			}
+			String firstID = null;
+			String blockLastID = null;
+			ResultSet idRS = idPS.executeQuery();
+			try {
+				while(idRS.next()) {
+					blockLastID = idRS.getString(1);
+					if(firstID == null) {
+						firstID = blockLastID;
+					}
+				}
+			} finally {
+				idRS.close();
+			}
+			if(firstID == null) {
+				this.exhausted = true;
+				return;
+			}
+			// l holds the time of the latest entry for each record, operation and operator, m the entries themselves
+			String query = "select r." + recordIdField + ", r." + JDBCRecordHandler.this.dataField + ", m." + rmdCalField + ", m." + rmdOperationField + ", m." + rmdOperatorField + ", m." + rmdMD5Field +
+				" from " + rt + " r" +
+				" left join (select " + rmdRelField + ", " + rmdOperationField + ", " + rmdOperatorField + ", max(" + rmdCalField + ") as " + rmdCalField + " from " + mt + " where " + rmdRelField + " >= ? and " + rmdRelField + " <= ? group by " + rmdRelField + ", " + rmdOperationField + ", " + rmdOperatorField + ") l on l." + rmdRelField + " = r." + recordIdField +
+				" left join " + mt + " m on m." + rmdRelField + " = l." + rmdRelField + " and m." + rmdOperationField + " = l." + rmdOperationField + " and m." + rmdOperatorField + " = l." + rmdOperatorField + " and m." + rmdCalField + " = l." + rmdCalField +
+				" where r." + recordIdField + " >= ? and r." + recordIdField + " <= ?" +
+				" order by r." + recordIdField;
+			PreparedStatement ps = prepare(query);
+			ps.setString(1, firstID);
+			ps.setString(2, blockLastID);
+			ps.setString(3, firstID);
+			ps.setString(4, blockLastID);
+			ResultSet rs = ps.executeQuery();
+			try {
+				String id = null;
+				String data = null;
+				SortedSet<RecordMetaData> rmds = null;
+				while(rs.next()) {
+					String rowID = rs.getString(1);
+					if(!rowID.equals(id)) {
+						if(id != null) {
+							this.block.add(new Record(id, data, JDBCRecordHandler.this, rmds));
+						}
+						id = rowID;
+						data = new String(rs.getBytes(2));
+						rmds = new TreeSet<RecordMetaData>();
+					}
+					RecordMetaData rmd = readMetaData(rs);
+					if(rmd != null) {
+						rmds.add(rmd);
+					}
+				}
+				if(id != null) {
+					this.block.add(new Record(id, data, JDBCRecordHandler.this, rmds));
+				}
+			} finally {
+				rs.close();
+			}
+			this.lastID = blockLastID;
 		}
 		
 		@Override
 		public boolean hasNext() {
 			try {
-				return this.rs.next();
+				// a block can come back empty if its records were deleted between the two queries
+				while((this.pos >= this.block.size()) && !this.exhausted) {
+					readBlock();
+				}
+				return this.pos < this.block.size();
 			} catch(SQLException e) {
 				log.error("Unable to retrieve next record");
 				log.debug("Stacktrace:",e);
@@ -346,15 +744,41 @@ public class JDBCRecordHandler extends RecordHandler {
 		
 		@Override
 		public Record next() {
-			try {
-				return getRecord(this.rs.getString(JDBCRecordHandler.recordIdField));
-			} catch(SQLException e) {
-				log.debug(e.getMessage(), e);
-				throw new NoSuchElementException(e.getMessage());
-			} catch(IOException e) {
-				log.debug(e.getMessage(), e);
-				throw new NoSuchElementException(e.getMessage());
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Record rec = this.block.get(this.pos);
+			// let the block's records be collected as they are handed out
+			this.block.set(this.pos, null);
+			this.pos++;
+			return rec;
+		}
+		
+		/**
+		 * Read the metadata entry of the current row
+		 * @param rs the result set
+		 * @return the entry, null if the row has none or its operator class cannot be loaded
+		 * @throws SQLException error reading
+		 */
+		private RecordMetaData readMetaData(ResultSet rs) throws SQLException {
+			String cal = rs.getString(3);
+			if(cal == null) {
+				return null;
 			}
+			String operatorName = rs.getString(5);
+			Class<?> operator = this.operators.get(operatorName);
+			if(operator == null) {
+				try {
+					operator = Class.forName(operatorName);
+				} catch(ClassNotFoundException e) {
+					log.debug("Ignoring metadata from unknown operator " + operatorName);
+					return null;
+				}
+				this.operators.put(operatorName, operator);
+			}
+			Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
+			date.setTimeInMillis(Long.parseLong(cal));
+			return new RecordMetaData(date, operator, RecordMetaDataType.valueOf(rs.getString(4)), rs.getString(6));
 		}
 		
 		@Override
@@ -371,13 +795,27 @@ public class JDBCRecordHandler extends RecordHandler {
 		String dbPass = getParam(params, "dbPass", true);
 		String dbTable = getParam(params, "dbTable", false);
 		String dataFieldName = getParam(params, "dataFieldName", false);
+		String batchSizeParam = getParam(params, "batchSize", false);
 		initAll(dbClass, dbUrl, dbUser, dbPass, dbTable, dataFieldName);
+		if(batchSizeParam != null) {
+			try {
+				setBatchSize(Integer.parseInt(batchSizeParam.trim()));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("batchSize must be a number: " + batchSizeParam, e);
+			}
+		}
 	}
 	
 	@Override
 	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
 		try {
-			this.cursor.executeUpdate("insert into " + this.table + "_rmd (" + rmdRelField + ", " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + ") values ('" + rec.getID() + "', '" + rmd.getDate().getTimeInMillis() + "', '" + rmd.getOperation() + "', '" + rmd.getOperator().getName() + "', '" + rmd.getMD5() + "')");
+			PreparedStatement ps = prepare("insert into " + this.table + "_rmd (" + rmdRelField + ", " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + ") values (?, ?, ?, ?, ?)");
+			ps.setString(1, rec.getID());
+			ps.setString(2, String.valueOf(rmd.getDate().getTimeInMillis()));
+			ps.setString(3, rmd.getOperation().toString());
+			ps.setString(4, rmd.getOperator().getName());
+			ps.setString(5, rmd.getMD5());
+			write(ps, rec.getID());
 		} catch(SQLException e) {
 			throw new IOException(e);
 		}
@@ -385,8 +823,11 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	@Override
 	protected void delMetaData(String recID) throws IOException {
+		flush(recID);
 		try {
-			this.cursor.executeUpdate("delete from " + this.table + "_rmd where " + rmdRelField + "='" + recID + "'");
+			PreparedStatement ps = prepare("delete from " + this.table + "_rmd where " + rmdRelField + " = ?");
+			ps.setString(1, recID);
+			ps.executeUpdate();
 		} catch(SQLException e) {
 			throw new IOException(e);
 		}
@@ -394,9 +835,12 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	@Override
 	public SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		flush(recID);
 		SortedSet<RecordMetaData> retVal = new TreeSet<RecordMetaData>();
 		try {
-			ResultSet rs = this.cursor.executeQuery("select " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdRelField + "='" + recID + "' order by " + rmdCalField + " desc");
+			PreparedStatement ps = prepare("select " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdRelField + " = ? order by " + rmdCalField + " desc");
+			ps.setString(1, recID);
+			ResultSet rs = ps.executeQuery();
 			while(rs.next()) {
 				Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
 				cal.setTimeInMillis(Long.parseLong(rs.getString(rmdCalField)));
@@ -405,6 +849,7 @@ public class JDBCRecordHandler extends RecordHandler {
 				String md5 = rs.getString(rmdMD5Field);
 				retVal.add(new RecordMetaData(cal, operator, operation, md5));
 			}
+			rs.close();
 		} catch(SQLException e) {
 			throw new IOException(e);
 		} catch(ClassNotFoundException e) {
@@ -418,7 +863,12 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	@Override
 	public void close() throws IOException {
+		flush();
 		try {
+			for(PreparedStatement ps : this.statements.values()) {
+				ps.close();
+			}
+			this.statements.clear();
 			this.cursor.close();
 			this.db.close();
 		} catch(SQLException e) {
@@ -428,13 +878,17 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	@Override
 	public Set<String> find(String idText) throws IOException {
+		flush();
 		Set<String> retVal = new HashSet<String>();
-		String query = "SELECT " + recordIdField + " FROM " + this.table + " WHERE " + recordIdField + " LIKE '%" + idText + "%' ORDER BY " + recordIdField;
+		String query = "SELECT " + recordIdField + " FROM " + this.table + " WHERE " + recordIdField + " LIKE ? ORDER BY " + recordIdField;
 		try {
-			ResultSet rs = this.cursor.executeQuery(query);
+			PreparedStatement ps = prepare(query);
+			ps.setString(1, "%" + idText + "%");
+			ResultSet rs = ps.executeQuery();
 			while(rs.next()) {
 				retVal.add(rs.getString(1));
 			}
+			rs.close();
 		} catch(SQLException e) {
 			throw new IOException(e);
 		}
@@ -5,22 +5,38 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.ExternalSort;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.GraphFingerprint;
+import org.vivoweb.harvester.util.NTripleAide;
+import org.vivoweb.harvester.util.ParallelNTriplesReader;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
@@ -28,13 +44,18 @@ import org.vivoweb.harvester.util.args.UsageException;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
+import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.QuerySolutionMap;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.query.ResultSetFormatter;
@@ -44,10 +65,14 @@ import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.RDFWriter;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.listeners.ChangedListener;
 import com.hp.hpl.jena.shared.Lock;
 import com.hp.hpl.jena.sparql.resultset.ResultSetFormat;
 import com.hp.hpl.jena.update.UpdateAction;
 import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 /**
  * Connection Helper for Jena Models
@@ -66,6 +91,79 @@ public abstract class JenaConnect {
 	 * The modelname
 	 */
 	private String modelName;
+	/**
+	 * default number of statements written at once when loading from or removing another model
+	 */
+	public static final int DEFAULT_TRANSFER_BATCH_SIZE = 10000;
+	/**
+	 * number of batches the reader thread may get ahead of the writer in a parallel transfer
+	 */
+	private static final int TRANSFER_QUEUE_SIZE = 4;
+	/**
+	 * number of statements written at once when loading from or removing another model
+	 */
+	private int transferBatchSize = DEFAULT_TRANSFER_BATCH_SIZE;
+	/**
+	 * read the other model on a separate thread when loading from or removing another model
+	 */
+	private boolean parallelTransfer = false;
+	/**
+	 * number of statements in the model when last counted, -1 if not counted yet
+	 */
+	private int cachedSize = -1;
+	/**
+	 * fingerprint of the model when last computed, null if not computed yet
+	 */
+	private GraphFingerprint cachedFingerprint = null;
+	/**
+	 * number of parsed queries (and of parsed updates) kept for reuse by each thread
+	 */
+	private static final int QUERY_CACHE_SIZE = 256;
+	/**
+	 * buffer size for line based and compressed file output
+	 */
+	private static final int LINE_BUFFER_SIZE = 65536;
+	/**
+	 * name of the default graph, which is written to N-Quads without a graph name
+	 */
+	private static final String DEFAULT_GRAPH_NAME = "urn:x-arq:DefaultGraph";
+	/**
+	 * parsed queries by query string, for each thread (shared by all connections)
+	 */
+	private static final ThreadLocal<ParsedCache<Query>> queryCache = new ThreadLocal<ParsedCache<Query>>() {
+		@Override
+		protected ParsedCache<Query> initialValue() {
+			return new ParsedCache<Query>();
+		}
+	};
+	/**
+	 * parsed updates by update string, for each thread (shared by all connections)
+	 */
+	private static final ThreadLocal<ParsedCache<UpdateRequest>> updateCache = new ThreadLocal<ParsedCache<UpdateRequest>>() {
+		@Override
+		protected ParsedCache<UpdateRequest> initialValue() {
+			return new ParsedCache<UpdateRequest>();
+		}
+	};
+	/**
+	 * tracks whether the model has changed since it was last counted
+	 */
+	private final ChangedListener sizeListener = new ChangedListener() {
+		@Override
+		public void notifyEvent(Model m, Object event) {
+			// removeAll and sparql updates only announce themselves through events
+			setChanged();
+		}
+	};
+	/**
+	 * tracks whether the model has changed since its fingerprint was last computed
+	 */
+	private final ChangedListener fingerprintListener = new ChangedListener() {
+		@Override
+		public void notifyEvent(Model m, Object event) {
+			setChanged();
+		}
+	};
 	
 	/**
 	 * Factory (connects to the same jena triple store as another jena connect, but uses a different named model)
@@ -133,20 +231,30 @@ public abstract class JenaConnect {
 			return null;
 		}
 		if(!params.containsKey("type")) {
-			throw new IllegalArgumentException("Must specify 'type' parameter {'rdb','sdb','tdb','file','mem'}");
+			throw new IllegalArgumentException("Must specify 'type' parameter {'rdb','sdb','tdb','file','mem','compact'}");
 		}
 		String type = params.get("type");
 		JenaConnect jc;
 		if(type.equalsIgnoreCase("mem")) {
-			jc = new MemJenaConnect(params.get("modelName"));
+			long spillThreshold = 0;
+			if(params.containsKey("spillThreshold")) {
+				spillThreshold = Long.parseLong(params.get("spillThreshold"));
+			}
+			jc = new MemJenaConnect(params.get("modelName"), spillThreshold);
 		} else if(type.equalsIgnoreCase("rdb")) {
 			jc = new RDBJenaConnect(params.get("dbUrl"), params.get("dbUser"), params.get("dbPass"), params.get("dbType"), params.get("dbClass"), params.get("modelName"));
 		} else if(type.equalsIgnoreCase("sdb")) {
 			jc = new SDBJenaConnect(params.get("dbUrl"), params.get("dbUser"), params.get("dbPass"), params.get("dbType"), params.get("dbClass"), params.get("dbLayout"), params.get("modelName"));
 		} else if(type.equalsIgnoreCase("tdb")) {
-			jc = new TDBJenaConnect(params.get("dbDir"), params.get("modelName"));
+			TDBJenaConnect tdbJC = new TDBJenaConnect(params.get("dbDir"), params.get("modelName"));
+			if(params.containsKey("bulkLoad")) {
+				tdbJC.setBulkLoad(Boolean.valueOf(params.get("bulkLoad")));
+			}
+			jc = tdbJC;
 		} else if(type.equalsIgnoreCase("file")) {
 			jc = new FileJenaConnect(params.get("file"), params.get("rdfLang"));
+		} else if(type.equalsIgnoreCase("compact")) {
+			jc = new CompactJenaConnect(params.get("modelName"));
 		} else {
 			throw new IllegalArgumentException("unknown type: " + type);
 		}
@@ -154,7 +262,7 @@ public abstract class JenaConnect {
 			StringBuilder emptyWarn = new StringBuilder("jena model empty! ");
 			emptyWarn.append(type);
 			emptyWarn.append(": ");
-			if(!type.equalsIgnoreCase("mem")) {
+			if(!type.equalsIgnoreCase("mem") && !type.equalsIgnoreCase("compact")) {
 				if(type.equalsIgnoreCase("tdb")) {
 					emptyWarn.append("dbDir: ");
 					emptyWarn.append(params.get("dbDir"));
@@ -169,15 +277,44 @@ public abstract class JenaConnect {
 			emptyWarn.append(jc.getModelName());
 			JenaConnect.log.warn(emptyWarn.toString());
 		}
+		if(params.containsKey("transferBatchSize")) {
+			jc.setTransferBatchSize(Integer.parseInt(params.get("transferBatchSize")));
+		}
+		if(params.containsKey("parallelTransfer")) {
+			jc.setParallelTransfer(Boolean.parseBoolean(params.get("parallelTransfer")));
+		}
 		return jc;
 	}
 	
 	/**
-	 * Get the size of a jena model
+	 * Get the size of a jena model. The count is kept until the model is changed through this connection (or
+	 * {@link #invalidateSize()} is called), so changes made through other connections to the same store are not seen
+	 * until then.
 	 * @return the number of statement in this model
 	 * @throws IOException error connecting
 	 */
-	public int size() throws IOException {
+	public synchronized int size() throws IOException {
+		if(this.sizeListener.hasChanged() || (this.cachedSize < 0)) {
+			this.cachedSize = countStatements();
+		}
+		return this.cachedSize;
+	}
+	
+	/**
+	 * Forget the cached size and fingerprint, for changes made to the store without going through this connection's
+	 * model
+	 */
+	public synchronized void invalidateSize() {
+		this.cachedSize = -1;
+		this.cachedFingerprint = null;
+	}
+	
+	/**
+	 * Count the statements in the model, subclasses override this where the store can count faster than a query
+	 * @return the number of statements
+	 * @throws IOException error connecting
+	 */
+	protected int countStatements() throws IOException {
 		ResultSet resultSet = executeSelectQuery("SELECT (count(?s) as ?size) WHERE { ?s ?p ?o }");
 		// read first result
 		if(resultSet.hasNext()) {
@@ -187,6 +324,30 @@ public abstract class JenaConnect {
 		return 0;
 	}
 	
+	/**
+	 * Get an order independent fingerprint of the contents of this model. Models holding the same triples have the
+	 * same fingerprint, so comparing fingerprints tells whether two models differ without comparing their triples. The
+	 * fingerprint is kept, like the {@link #size() size}, until the model is changed through this connection. It is
+	 * not updated triple by triple from the change events, since jena announces adds of triples that were already
+	 * present and deletes of triples that were not, which would throw the sum off.
+	 * @return the fingerprint
+	 */
+	public synchronized GraphFingerprint getFingerprint() {
+		if(this.fingerprintListener.hasChanged() || (this.cachedFingerprint == null)) {
+			Model m = getJenaModel();
+			m.enterCriticalSection(Lock.READ);
+			try {
+				this.cachedFingerprint = GraphFingerprint.fingerprint(m.getGraph());
+			} finally {
+				m.leaveCriticalSection();
+			}
+		}
+		// hand out a copy, since fingerprints can be changed by their holder
+		GraphFingerprint fp = new GraphFingerprint();
+		fp.add(this.cachedFingerprint);
+		return fp;
+	}
+	
 	/**
 	 * Get the dataset for this connection Can be very expensive when using RDB connections (SDB, TDB, and Mem are fine)
 	 * @return the database connection's dataset
@@ -207,16 +368,74 @@ public abstract class JenaConnect {
 	}
 	
 	/**
-	 * Load the RDF from a file
+	 * Load the RDF from a file, decompressing it if the name ends in .gz
 	 * @param fileName the file to read from
 	 * @param namespace the base uri to use for imported uris
 	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 *        "TTL") and "N3". null picks the language from the file extension (see
+	 *        {@link #getFileLanguage(String, String)}). "RDF/XML-ABBREV" is a synonym for "RDF/XML"
 	 * @throws IOException error accessing file
 	 */
 	public void loadRdfFromFile(String fileName, String namespace, String language) throws IOException {
-		loadRdfFromStream(FileAide.getInputStream(fileName), namespace, language);
+		loadRdfFromStream(getFileInputStream(fileName), namespace, getFileLanguage(fileName, language));
+	}
+	
+	/**
+	 * Load an N-Triples file, parsing it on several threads while this thread writes the parsed statements a batch at a
+	 * time. Files that are not on the local filesystem (or are compressed) are loaded with
+	 * {@link #loadRdfFromFile(String, String, String)} instead.
+	 * @param fileName the file to read from
+	 * @param namespace the base uri to use for imported uris when the file is read on one thread
+	 * @param threads number of parser threads
+	 * @throws IOException error accessing file
+	 */
+	public void loadNTriplesFromFile(String fileName, String namespace, int threads) throws IOException {
+		transferNTriplesFromFile(fileName, namespace, threads, true);
+	}
+	
+	/**
+	 * Remove the statements in an N-Triples file, parsing it on several threads while this thread removes the parsed
+	 * statements a batch at a time. Files that are not on the local filesystem (or are compressed) are removed with
+	 * {@link #removeRdfFromFile(String, String, String)} instead.
+	 * @param fileName the file to read from
+	 * @param namespace the base uri to use for imported uris when the file is read on one thread
+	 * @param threads number of parser threads
+	 * @throws IOException error accessing file
+	 */
+	public void removeNTriplesFromFile(String fileName, String namespace, int threads) throws IOException {
+		transferNTriplesFromFile(fileName, namespace, threads, false);
+	}
+	
+	/**
+	 * Add or remove the statements of an N-Triples file, parsed on several threads
+	 * @param fileName the file to read from
+	 * @param namespace the base uri to use for imported uris when the file is read on one thread
+	 * @param threads number of parser threads
+	 * @param add true to add the statements, false to remove them
+	 * @throws IOException error accessing file
+	 */
+	private void transferNTriplesFromFile(String fileName, String namespace, int threads, boolean add) throws IOException {
+		File file = new File(fileName);
+		if(!file.isFile() || isGzipFile(fileName)) {
+			log.debug("Not a local uncompressed file, reading " + fileName + " on one thread");
+			if(add) {
+				loadRdfFromFile(fileName, namespace, "N-TRIPLE");
+			} else {
+				removeRdfFromFile(fileName, namespace, "N-TRIPLE");
+			}
+			return;
+		}
+		TransferProgress progress = new TransferProgress(add ? "Loaded" : "Removed");
+		ParallelNTriplesReader reader = new ParallelNTriplesReader(file, threads, this.transferBatchSize);
+		try {
+			reader.start();
+			for(List<Triple> batch = reader.next(); batch != null; batch = reader.next()) {
+				writeBatch(batch, add, progress);
+			}
+		} finally {
+			reader.close();
+		}
+		progress.finish();
 	}
 	
 	/**
@@ -231,12 +450,192 @@ public abstract class JenaConnect {
 		loadRdfFromStream(new ByteArrayInputStream(rdf.getBytes()), namespace, language);
 	}
 	
+	/**
+	 * Set the number of statements written at once when loading from or removing another model
+	 * @param transferBatchSize the number of statements per batch
+	 */
+	public void setTransferBatchSize(int transferBatchSize) {
+		if(transferBatchSize < 1) {
+			throw new IllegalArgumentException("transferBatchSize must be at least 1");
+		}
+		this.transferBatchSize = transferBatchSize;
+	}
+	
+	/**
+	 * Set whether the other model is read on a separate thread when loading from or removing another model. Only use
+	 * this when the two models do not share a database connection.
+	 * @param parallelTransfer true to read on a separate thread
+	 */
+	public void setParallelTransfer(boolean parallelTransfer) {
+		this.parallelTransfer = parallelTransfer;
+	}
+	
+	/**
+	 * Does this connection store its model in the same place as another, so reading one while writing the other is
+	 * unsafe
+	 * @param other the other connection
+	 * @return true if the store is shared
+	 */
+	public boolean sharesStoreWith(JenaConnect other) {
+		return other == this;
+	}
+	
 	/**
 	 * Load in RDF from a model
 	 * @param jc the model to load in
 	 */
 	public void loadRdfFromJC(JenaConnect jc) {
-		getJenaModel().add(jc.getJenaModel());
+		transferRdfFromJC(jc, true);
+	}
+	
+	/**
+	 * Add or remove the statements of another model, a batch at a time (each batch in its own transaction where
+	 * supported)
+	 * @param source the model to read statements from
+	 * @param add true to add the statements, false to remove them
+	 */
+	private void transferRdfFromJC(JenaConnect source, boolean add) {
+		TransferProgress progress = new TransferProgress(add ? "Loaded" : "Removed");
+		Graph sourceGraph = source.getJenaModel().getGraph();
+		if(sharesStoreWith(source)) {
+			// reading and writing the same store at once is unsafe, so copy everything to disk first
+			spilledTransfer(sourceGraph, add, progress);
+		} else if(this.parallelTransfer) {
+			parallelTransfer(sourceGraph, add, progress);
+		} else {
+			ExtendedIterator<Triple> tripleIt = sourceGraph.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				for(List<Triple> batch = readBatch(tripleIt); !batch.isEmpty(); batch = readBatch(tripleIt)) {
+					writeBatch(batch, add, progress);
+				}
+			} finally {
+				tripleIt.close();
+			}
+		}
+		progress.finish();
+	}
+	
+	/**
+	 * Write the statements of a graph to a temporary N-Triples file, then add or remove them from this model a batch at
+	 * a time, so the graph is never read while this model is being written
+	 * @param sourceGraph the graph to read
+	 * @param add true to add the statements, false to remove them
+	 * @param progress the progress to update
+	 */
+	private void spilledTransfer(Graph sourceGraph, boolean add, TransferProgress progress) {
+		try {
+			File spill = NTripleAide.export(sourceGraph, Triple.ANY);
+			try {
+				BufferedReader br = ExternalSort.openReader(spill);
+				try {
+					for(List<Triple> batch = NTripleAide.readBatch(br, this.transferBatchSize); !batch.isEmpty(); batch = NTripleAide.readBatch(br, this.transferBatchSize)) {
+						writeBatch(batch, add, progress);
+					}
+				} finally {
+					br.close();
+				}
+			} finally {
+				spill.delete();
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException("Could not stage statements in a temporary file", e);
+		}
+	}
+	
+	/**
+	 * Read the next batch of statements
+	 * @param tripleIt the statements
+	 * @return the batch, empty when there are no more statements
+	 */
+	private List<Triple> readBatch(ExtendedIterator<Triple> tripleIt) {
+		List<Triple> batch = new ArrayList<Triple>(this.transferBatchSize);
+		while((batch.size() < this.transferBatchSize) && tripleIt.hasNext()) {
+			batch.add(tripleIt.next());
+		}
+		return batch;
+	}
+	
+	/**
+	 * Add or remove a batch of statements, in a transaction where supported
+	 * @param batch the statements
+	 * @param add true to add the statements, false to remove them
+	 * @param progress the progress to update
+	 */
+	private void writeBatch(List<Triple> batch, boolean add, TransferProgress progress) {
+		Model m = getJenaModel();
+		boolean transactions = m.supportsTransactions();
+		if(transactions) {
+			m.begin();
+		}
+		try {
+			if(add) {
+				m.getGraph().getBulkUpdateHandler().add(batch);
+			} else {
+				m.getGraph().getBulkUpdateHandler().delete(batch);
+			}
+			if(transactions) {
+				m.commit();
+			}
+		} catch(RuntimeException e) {
+			if(transactions) {
+				m.abort();
+			}
+			throw e;
+		}
+		progress.add(batch.size());
+	}
+	
+	/**
+	 * Read statements on a separate thread, handing batches to this one through a bounded queue
+	 * @param sourceGraph the graph to read
+	 * @param add true to add the statements, false to remove them
+	 * @param progress the progress to update
+	 */
+	private void parallelTransfer(final Graph sourceGraph, boolean add, TransferProgress progress) {
+		final BlockingQueue<List<Triple>> queue = new ArrayBlockingQueue<List<Triple>>(TRANSFER_QUEUE_SIZE);
+		final RuntimeException[] readError = new RuntimeException[1];
+		Thread reader = new Thread("JenaConnect transfer reader") {
+			@Override
+			public void run() {
+				ExtendedIterator<Triple> tripleIt = sourceGraph.find(Node.ANY, Node.ANY, Node.ANY);
+				try {
+					for(List<Triple> batch = readBatch(tripleIt); !batch.isEmpty(); batch = readBatch(tripleIt)) {
+						queue.put(batch);
+					}
+				} catch(InterruptedException e) {
+					return;
+				} catch(RuntimeException e) {
+					readError[0] = e;
+				} finally {
+					tripleIt.close();
+				}
+				try {
+					// an empty batch marks the end
+					queue.put(new ArrayList<Triple>());
+				} catch(InterruptedException e) {
+					// writer has given up
+				}
+			}
+		};
+		reader.start();
+		try {
+			for(List<Triple> batch = queue.take(); !batch.isEmpty(); batch = queue.take()) {
+				writeBatch(batch, add, progress);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while transferring statements", e);
+		} finally {
+			reader.interrupt();
+			try {
+				reader.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(readError[0] != null) {
+			throw readError[0];
+		}
 	}
 	
 	/**
@@ -250,36 +649,181 @@ public abstract class JenaConnect {
 	
 	/**
 	 * Export all RDF
+	 * <p>
+	 * N-Triples and N-Quads are written a line at a time while iterating the model once, which takes constant memory
+	 * and is much faster than the RDF/XML writer on large models.
+	 * </p>
 	 * @param out output stream to write rdf to
-	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "N-QUADS",
+	 *        "TURTLE" (or "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a
+	 *        synonym for "RDF/XML"
 	 * @throws IOException error writing to stream
 	 */
 	public void exportRdfToStream(OutputStream out, String language) throws IOException {
-		exportRdfToStream(this.jenaModel, out, language);
+		exportRdfToStream(this.jenaModel, getGraphNode(), out, language);
 	}
 	
 	/**
 	 * Export all RDF
 	 * @param m the model to export from
+	 * @param graphName the name of the graph written to N-Quads, null for the default graph
 	 * @param out output stream to write rdf to
-	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "N-QUADS",
+	 *        "TURTLE" (or "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a
+	 *        synonym for "RDF/XML"
 	 * @throws IOException error writing to stream
 	 */
-	private static void exportRdfToStream(Model m, OutputStream out, String language) throws IOException {
+	private static void exportRdfToStream(Model m, Node graphName, OutputStream out, String language) throws IOException {
+		if(isNTriples(language) || isNQuads(language)) {
+			Writer w = createLineWriter(out);
+			ExtendedIterator<Triple> tripleIt = m.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				writeLines(tripleIt, isNQuads(language) ? graphName : null, w, Long.MAX_VALUE);
+			} finally {
+				tripleIt.close();
+			}
+			w.flush();
+			out.flush();
+			return;
+		}
 		RDFWriter fasterWriter = m.getWriter(language);
-		fasterWriter.setProperty("showXmlDeclaration", "true");
-		fasterWriter.setProperty("allowBadURIs", "true");
-		fasterWriter.setProperty("relativeURIs", "");
+		if((language == null) || language.toUpperCase().startsWith("RDF/XML")) {
+			// only the rdf/xml writers know these properties
+			fasterWriter.setProperty("showXmlDeclaration", "true");
+			fasterWriter.setProperty("allowBadURIs", "true");
+			fasterWriter.setProperty("relativeURIs", "");
+		}
 		OutputStreamWriter osw = new OutputStreamWriter(out, Charset.availableCharsets().get("UTF-8"));
 		fasterWriter.write(m, osw, "");
 		osw.flush();
 		out.flush();
 	}
 	
+	/**
+	 * Create a buffered UTF-8 writer for line based output
+	 * @param out the stream to write to
+	 * @return the writer
+	 */
+	private static Writer createLineWriter(OutputStream out) {
+		return new BufferedWriter(new OutputStreamWriter(out, Charset.availableCharsets().get("UTF-8")), LINE_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Write triples as N-Triples or N-Quads lines
+	 * @param tripleIt the triples to write
+	 * @param graphName the graph name to write N-Quads for, null for N-Triples
+	 * @param w the writer
+	 * @param max the maximum number of lines to write
+	 * @return the number of lines written
+	 * @throws IOException error writing
+	 */
+	private static long writeLines(Iterator<Triple> tripleIt, Node graphName, Writer w, long max) throws IOException {
+		long count = 0;
+		while((count < max) && tripleIt.hasNext()) {
+			w.write(NTripleAide.toQuadLine(tripleIt.next(), graphName));
+			w.write('\n');
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the graph name for N-Quads output
+	 * @return the model name, or null for the default graph
+	 */
+	private Node getGraphNode() {
+		if((this.modelName == null) || this.modelName.equals(DEFAULT_GRAPH_NAME)) {
+			return null;
+		}
+		return Node.createURI(this.modelName);
+	}
+	
+	/**
+	 * Is the language N-Triples
+	 * @param language the language
+	 * @return true if N-Triples
+	 */
+	public static boolean isNTriples(String language) {
+		return (language != null) && (language.equalsIgnoreCase("N-TRIPLE") || language.equalsIgnoreCase("N-TRIPLES") || language.equalsIgnoreCase("NT"));
+	}
+	
+	/**
+	 * Is the language N-Quads
+	 * @param language the language
+	 * @return true if N-Quads
+	 */
+	public static boolean isNQuads(String language) {
+		return (language != null) && (language.equalsIgnoreCase("N-QUADS") || language.equalsIgnoreCase("N-QUAD") || language.equalsIgnoreCase("NQ"));
+	}
+	
+	/**
+	 * Is the file gzip compressed, judged by its extension
+	 * @param fileName the file name
+	 * @return true if the name ends in .gz
+	 */
+	public static boolean isGzipFile(String fileName) {
+		return fileName.toLowerCase().endsWith(".gz");
+	}
+	
+	/**
+	 * Get the language to write a file in
+	 * @param fileName the file name
+	 * @param language the language asked for, null to pick one from the extension
+	 * @return the language asked for if any, otherwise "N-TRIPLE" for .nt files and compressed files other than
+	 *         .rdf.gz/.xml.gz/.owl.gz, "N-QUADS" for .nq files and null (RDF/XML) for anything else
+	 */
+	public static String getFileLanguage(String fileName, String language) {
+		if(language != null) {
+			return language;
+		}
+		String name = fileName.toLowerCase();
+		boolean gzip = isGzipFile(name);
+		if(gzip) {
+			name = name.substring(0, name.length() - 3);
+		}
+		if(name.endsWith(".nt")) {
+			return "N-TRIPLE";
+		}
+		if(name.endsWith(".nq")) {
+			return "N-QUADS";
+		}
+		if(gzip && !name.endsWith(".rdf") && !name.endsWith(".xml") && !name.endsWith(".owl")) {
+			// compressed dumps are for large models, which only the line based writer handles quickly
+			return "N-TRIPLE";
+		}
+		return null;
+	}
+	
+	/**
+	 * Open a file for writing rdf, compressing it if the name ends in .gz (appending to a compressed file adds a new
+	 * gzip member, which readers see as one continuous stream)
+	 * @param fileName the file to write to
+	 * @param append append to the file
+	 * @return the output stream
+	 * @throws IOException error opening file
+	 */
+	public static OutputStream getFileOutputStream(String fileName, boolean append) throws IOException {
+		OutputStream out = FileAide.getOutputStream(fileName, append);
+		if(isGzipFile(fileName)) {
+			out = new GZIPOutputStream(out, LINE_BUFFER_SIZE);
+		}
+		return out;
+	}
+	
+	/**
+	 * Open a file for reading rdf, decompressing it if the name ends in .gz
+	 * @param fileName the file to read
+	 * @return the input stream
+	 * @throws IOException error opening file
+	 */
+	public static InputStream getFileInputStream(String fileName) throws IOException {
+		InputStream in = FileAide.getInputStream(fileName);
+		if(isGzipFile(fileName)) {
+			in = new GZIPInputStream(in, LINE_BUFFER_SIZE);
+		}
+		return in;
+	}
+	
 	/**
 	 * Export all RDF
 	 * @return the rdf
@@ -315,9 +859,9 @@ public abstract class JenaConnect {
 	/**
 	 * Export the RDF to a file
 	 * @param fileName the file to write to
-	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "N-QUADS",
+	 *        "TURTLE" (or "TTL") and "N3". null picks the language from the file extension (see
+	 *        {@link #getFileLanguage(String, String)}). "RDF/XML-ABBREV" is a synonym for "RDF/XML"
 	 * @throws IOException error writing to file
 	 */
 	public void exportRdfToFile(String fileName, String language) throws IOException {
@@ -335,16 +879,110 @@ public abstract class JenaConnect {
 	}
 	
 	/**
-	 * Export the RDF to a file
+	 * Export the RDF to a file, compressed if the name ends in .gz
 	 * @param fileName the file to write to
-	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "N-QUADS",
+	 *        "TURTLE" (or "TTL") and "N3". null picks the language from the file extension (see
+	 *        {@link #getFileLanguage(String, String)}). "RDF/XML-ABBREV" is a synonym for "RDF/XML"
 	 * @param append append to the file
 	 * @throws IOException error writing to file
 	 */
 	public void exportRdfToFile(String fileName, String language, boolean append) throws IOException {
-		exportRdfToStream(FileAide.getOutputStream(fileName, append), language);
+		exportRdfToFile(this.jenaModel, getGraphNode(), fileName, language, append);
+	}
+	
+	/**
+	 * Export the RDF of a model to a file, compressed if the name ends in .gz
+	 * @param m the model to export from
+	 * @param fileName the file to write to
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "N-QUADS",
+	 *        "TURTLE" (or "TTL") and "N3". null picks the language from the file extension (see
+	 *        {@link #getFileLanguage(String, String)}). "RDF/XML-ABBREV" is a synonym for "RDF/XML"
+	 * @throws IOException error writing to file
+	 */
+	public static void exportRdfToFile(Model m, String fileName, String language) throws IOException {
+		exportRdfToFile(m, null, fileName, language, false);
+	}
+	
+	/**
+	 * Export the RDF of a model to a file, compressed if the name ends in .gz
+	 * @param m the model to export from
+	 * @param graphName the name of the graph written to N-Quads, null for the default graph
+	 * @param fileName the file to write to
+	 * @param language the language the rdf is in, null to pick from the file extension
+	 * @param append append to the file
+	 * @throws IOException error writing to file
+	 */
+	private static void exportRdfToFile(Model m, Node graphName, String fileName, String language, boolean append) throws IOException {
+		OutputStream out = getFileOutputStream(fileName, append);
+		try {
+			exportRdfToStream(m, graphName, out, getFileLanguage(fileName, language));
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Export the RDF as N-Triples or N-Quads split across several files of at most chunkSize statements each, iterating
+	 * the model once. The files are named by adding a chunk number before the extension, so "dump.nt.gz" becomes
+	 * "dump.00001.nt.gz", "dump.00002.nt.gz", etc. At least one file is always written.
+	 * @param fileName the file name to number the chunks from
+	 * @param language "N-TRIPLE" or "N-QUADS", null to pick from the file extension
+	 * @param chunkSize the maximum number of statements per file
+	 * @return the files written, in order
+	 * @throws IOException error writing to file
+	 */
+	public List<String> exportRdfToFiles(String fileName, String language, long chunkSize) throws IOException {
+		String lang = getFileLanguage(fileName, language);
+		if(!isNTriples(lang) && !isNQuads(lang)) {
+			throw new IllegalArgumentException("Only N-Triples and N-Quads can be split into chunks, not " + ((lang == null) ? "RDF/XML" : lang));
+		}
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be at least 1");
+		}
+		Node graphName = isNQuads(lang) ? getGraphNode() : null;
+		List<String> files = new ArrayList<String>();
+		ExtendedIterator<Triple> tripleIt = this.jenaModel.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			do {
+				String chunkName = getChunkFileName(fileName, files.size() + 1);
+				OutputStream out = getFileOutputStream(chunkName, false);
+				try {
+					Writer w = createLineWriter(out);
+					long count = writeLines(tripleIt, graphName, w, chunkSize);
+					w.flush();
+					log.debug("Exported " + count + " statements to " + chunkName);
+				} finally {
+					out.close();
+				}
+				files.add(chunkName);
+			} while(tripleIt.hasNext());
+		} finally {
+			tripleIt.close();
+		}
+		return files;
+	}
+	
+	/**
+	 * Get the name of a numbered chunk of a file
+	 * @param fileName the file name
+	 * @param chunk the chunk number
+	 * @return the name with the chunk number added before the extension
+	 */
+	private static String getChunkFileName(String fileName, int chunk) {
+		int nameStart = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1;
+		String ext = "";
+		String base = fileName;
+		if(isGzipFile(base)) {
+			ext = base.substring(base.length() - 3);
+			base = base.substring(0, base.length() - 3);
+		}
+		int dot = base.lastIndexOf('.');
+		if(dot > nameStart) {
+			ext = base.substring(dot) + ext;
+			base = base.substring(0, dot);
+		}
+		return base + "." + String.format("%05d", Integer.valueOf(chunk)) + ext;
 	}
 	
 	/**
@@ -352,7 +990,7 @@ public abstract class JenaConnect {
 	 * @param inputJC the Model to read from
 	 */
 	public void removeRdfFromJC(JenaConnect inputJC) {
-		this.jenaModel.remove(inputJC.getJenaModel());
+		transferRdfFromJC(inputJC, false);
 	}
 	
 	/**
@@ -368,16 +1006,16 @@ public abstract class JenaConnect {
 	}
 	
 	/**
-	 * Remove the RDF from a file
+	 * Remove the RDF from a file, decompressing it if the name ends in .gz
 	 * @param fileName the file to read from
 	 * @param namespace the base uri to use for imported uris
 	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
-	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 *        "TTL") and "N3". null picks the language from the file extension (see
+	 *        {@link #getFileLanguage(String, String)}). "RDF/XML-ABBREV" is a synonym for "RDF/XML"
 	 * @throws IOException error connecting
 	 */
 	public void removeRdfFromFile(String fileName, String namespace, String language) throws IOException {
-		removeRdfFromStream(FileAide.getInputStream(fileName), namespace, language);
+		removeRdfFromStream(getFileInputStream(fileName), namespace, getFileLanguage(fileName, language));
 	}
 	
 	/**
@@ -444,19 +1082,87 @@ public abstract class JenaConnect {
 	 */
 	public abstract void sync();
 	
+	/**
+	 * Parse a query, reusing the parsed form of query strings recently used by this thread
+	 * <p>
+	 * Query execution may fill in parts of a parsed query, so parsed queries are never shared between threads, and
+	 * must be treated as read only. Queries that are run many times with different values should be written as a
+	 * fixed template with the values supplied as bindings, so the template is parsed once.
+	 * </p>
+	 * @param queryString the query
+	 * @return the parsed query
+	 */
+	private static Query parseQuery(String queryString) {
+		ParsedCache<Query> cache = queryCache.get();
+		Query query = cache.get(queryString);
+		if(query == null) {
+			query = QueryFactory.create(queryString, Syntax.syntaxARQ);
+			cache.put(queryString, query);
+		}
+		return query;
+	}
+	
+	/**
+	 * Parse an update, reusing the parsed form of update strings recently used by this thread
+	 * @param updateString the update
+	 * @return the parsed update
+	 */
+	private static UpdateRequest parseUpdate(String updateString) {
+		ParsedCache<UpdateRequest> cache = updateCache.get();
+		UpdateRequest update = cache.get(updateString);
+		if(update == null) {
+			update = UpdateFactory.create(updateString);
+			cache.put(updateString, update);
+		}
+		return update;
+	}
+	
+	/**
+	 * Parsed queries or updates by their string, least recently used first
+	 * @param <T> the parsed type
+	 */
+	private static class ParsedCache<T> extends LinkedHashMap<String, T> {
+		/**
+		 * serialVersionUID
+		 */
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Constructor
+		 */
+		protected ParsedCache() {
+			super(QUERY_CACHE_SIZE, 0.75f, true);
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+			return size() > QUERY_CACHE_SIZE;
+		}
+	}
+	
 	/**
 	 * Build a QueryExecution from a queryString
 	 * @param queryString the query to build execution for
+	 * @param bindings values for variables in the query, null for none
 	 * @param datasetMode execute against dataset
 	 * @return the QueryExecution
 	 * @throws IOException error connecting
 	 */
-	private QueryExecution buildQueryExec(String queryString, boolean datasetMode) throws IOException {
+	private QueryExecution buildQueryExec(String queryString, QuerySolution bindings, boolean datasetMode) throws IOException {
+		Query query = parseQuery(queryString);
 		QueryExecution qe;
 		if(datasetMode) {
-			qe = QueryExecutionFactory.create(QueryFactory.create(queryString, Syntax.syntaxARQ), getDataset());
+			if(bindings == null) {
+				qe = QueryExecutionFactory.create(query, getDataset());
+			} else {
+				qe = QueryExecutionFactory.create(query, getDataset(), bindings);
+			}
 		} else {
-			qe = QueryExecutionFactory.create(QueryFactory.create(queryString, Syntax.syntaxARQ), getJenaModel());
+			if(bindings == null) {
+				qe = QueryExecutionFactory.create(query, getJenaModel());
+			} else {
+				qe = QueryExecutionFactory.create(query, getJenaModel(), bindings);
+			}
 		}
 		return qe;
 	}
@@ -491,7 +1197,20 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public ResultSet executeSelectQuery(String queryString, boolean copyResultSet, boolean datasetMode) throws IOException {
-		QueryExecution qexec = buildQueryExec(queryString, datasetMode);
+		return executeSelectQuery(queryString, null, copyResultSet, datasetMode);
+	}
+	
+	/**
+	 * Executes a parameterized sparql select query against the JENA model and returns the selected result set
+	 * @param queryTemplate the query to execute against the model
+	 * @param bindings values for variables in the query, null for none
+	 * @param copyResultSet copy the resultset
+	 * @param datasetMode execute against dataset
+	 * @return the executed query result set
+	 * @throws IOException error connecting
+	 */
+	public ResultSet executeSelectQuery(String queryTemplate, QuerySolution bindings, boolean copyResultSet, boolean datasetMode) throws IOException {
+		QueryExecution qexec = buildQueryExec(queryTemplate, bindings, datasetMode);
 		ResultSet rs = qexec.execSelect();
 		if(copyResultSet) {
 			rs = ResultSetFactory.copyResults(rs);
@@ -519,7 +1238,7 @@ public abstract class JenaConnect {
 	 */
 	public JenaConnect executeConstructQuery(String queryString, boolean datasetMode) throws IOException {
 		JenaConnect jc = new MemJenaConnect();
-		jc.getJenaModel().add(buildQueryExec(queryString, datasetMode).execConstruct());
+		jc.getJenaModel().add(buildQueryExec(queryString, null, datasetMode).execConstruct());
 		return jc;
 	}
 	
@@ -542,7 +1261,7 @@ public abstract class JenaConnect {
 	 */
 	public JenaConnect executeDescribeQuery(String queryString, boolean datasetMode) throws IOException {
 		JenaConnect jc = new MemJenaConnect();
-		jc.getJenaModel().add(buildQueryExec(queryString, datasetMode).execDescribe());
+		jc.getJenaModel().add(buildQueryExec(queryString, null, datasetMode).execDescribe());
 		return jc;
 	}
 	
@@ -564,7 +1283,24 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public boolean executeAskQuery(String queryString, boolean datasetMode) throws IOException {
-		return buildQueryExec(queryString, datasetMode).execAsk();
+		return executeAskQuery(queryString, null, datasetMode);
+	}
+	
+	/**
+	 * Executes a parameterized sparql ask query against the JENA model
+	 * @param queryTemplate the query to execute against the model
+	 * @param bindings values for variables in the query, null for none
+	 * @param datasetMode execute against dataset
+	 * @return the result of the ask
+	 * @throws IOException error connecting
+	 */
+	public boolean executeAskQuery(String queryTemplate, QuerySolution bindings, boolean datasetMode) throws IOException {
+		QueryExecution qexec = buildQueryExec(queryTemplate, bindings, datasetMode);
+		try {
+			return qexec.execAsk();
+		} finally {
+			qexec.close();
+		}
 	}
 	
 	/**
@@ -583,16 +1319,27 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public void executeUpdateQuery(String queryString, boolean datasetMode) throws IOException {
+		executeUpdateQuery(queryString, null, datasetMode);
+	}
+	
+	/**
+	 * Executes a parameterized sparql update query against the JENA model
+	 * @param queryTemplate the query to execute against the model
+	 * @param bindings values for variables in the query, null for none
+	 * @param datasetMode execute against dataset
+	 * @throws IOException error connecting
+	 */
+	public void executeUpdateQuery(String queryTemplate, QuerySolution bindings, boolean datasetMode) throws IOException {
 		this.jenaModel.begin();
 		this.jenaModel.notifyEvent(GraphEvents.startRead);
 		try {
-//			log.debug("query:\n" + queryString);
+//			log.debug("query:\n" + queryTemplate);
 			if(datasetMode) {
 //				log.trace("Executing query against dataset");
-				UpdateAction.execute(UpdateFactory.create(queryString), getDataset());
+				UpdateAction.execute(parseUpdate(queryTemplate), getDataset(), bindings);
 			} else {
 //				log.trace("Executing query against model");
-				UpdateAction.execute(UpdateFactory.create(queryString), getJenaModel());
+				UpdateAction.execute(parseUpdate(queryTemplate), getJenaModel(), bindings);
 			}
 		} finally {
 			this.jenaModel.notifyEvent(GraphEvents.finishRead);
@@ -644,7 +1391,7 @@ public abstract class JenaConnect {
 		}
 		QueryExecution qe = null;
 		try {
-			Query query = QueryFactory.create(queryParam, Syntax.syntaxARQ);
+			Query query = parseQuery(queryParam);
 			if(datasetMode) {
 //				log.trace("Executing query against dataset");
 				qe = QueryExecutionFactory.create(query, getDataset());
@@ -701,7 +1448,14 @@ public abstract class JenaConnect {
 	 * @param jena the new model
 	 */
 	protected void setJenaModel(Model jena) {
+		if(this.jenaModel != null) {
+			this.jenaModel.unregister(this.sizeListener);
+			this.jenaModel.unregister(this.fingerprintListener);
+		}
 		this.jenaModel = jena;
+		this.jenaModel.register(this.sizeListener);
+		this.jenaModel.register(this.fingerprintListener);
+		invalidateSize();
 	}
 	
 	/**
@@ -711,7 +1465,9 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public boolean containsURI(String uri) throws IOException {
-		return executeAskQuery("ASK { <" + uri + "> ?p ?o }");
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		bindings.add("uri", ResourceFactory.createResource(uri));
+		return executeAskQuery("ASK { ?uri ?p ?o }", bindings, false);
 	}
 	
 	/**
@@ -730,6 +1486,59 @@ public abstract class JenaConnect {
 		return parser;
 	}
 	
+	/**
+	 * Counts statements moved between models and logs the rate
+	 */
+	private static class TransferProgress {
+		/**
+		 * what is being done to the statements, for the log
+		 */
+		private final String action;
+		/**
+		 * time the transfer started
+		 */
+		private final long start;
+		/**
+		 * number of statements moved so far
+		 */
+		private long count;
+		
+		/**
+		 * Constructor
+		 * @param action what is being done to the statements, for the log
+		 */
+		protected TransferProgress(String action) {
+			this.action = action;
+			this.start = System.currentTimeMillis();
+			this.count = 0;
+		}
+		
+		/**
+		 * Count a batch
+		 * @param batchSize number of statements in the batch
+		 */
+		protected void add(int batchSize) {
+			this.count += batchSize;
+			log.debug(this.action + " " + this.count + " statements (" + getRate() + " statements/sec)");
+		}
+		
+		/**
+		 * Log the final count
+		 */
+		protected void finish() {
+			log.trace(this.action + " " + this.count + " statements in " + (System.currentTimeMillis() - this.start) + "ms (" + getRate() + " statements/sec)");
+		}
+		
+		/**
+		 * Get the average rate so far
+		 * @return statements per second
+		 */
+		private long getRate() {
+			long elapsed = Math.max(1, System.currentTimeMillis() - this.start);
+			return (this.count * 1000) / elapsed;
+		}
+	}
+	
 	/**
 	 * Config parser for Jena Models
 	 * @author Christopher Haines (hainesc@ctrip.ufl.edu)
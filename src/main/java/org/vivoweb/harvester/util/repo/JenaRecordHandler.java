@@ -12,7 +12,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TimeZone;
@@ -23,7 +22,9 @@ import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.IterableAdaptor;
 import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
 import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.QuerySolutionMap;
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
@@ -31,6 +32,10 @@ import com.hp.hpl.jena.shared.PropertyNotFoundException;
 
 /**
  * RecordHandler that stores data in a Jena Model
+ * <p>
+ * {@link #addRecords(Iterable, Class, boolean)} adds all the records in one transaction, where the model supports
+ * transactions.
+ * </p>
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
 public class JenaRecordHandler extends RecordHandler {
@@ -148,6 +153,9 @@ public class JenaRecordHandler extends RecordHandler {
 			throw new IOException("Record '" + rec.getID() + "' already exists!");
 		} else if(record == null) {
 			record = this.model.getJenaModel().createResource();
+		} else {
+			// replace the old data rather than adding a second value
+			record.removeAll(this.dataType);
 		}
 		this.model.getJenaModel().add(this.model.getJenaModel().createStatement(record, this.isA, this.recType));
 		this.model.getJenaModel().add(this.model.getJenaModel().createStatement(record, this.idType, rec.getID()));
@@ -156,6 +164,37 @@ public class JenaRecordHandler extends RecordHandler {
 		return true;
 	}
 	
+	@Override
+	public int addRecords(Iterable<Record> recs, Class<?> creator, boolean overwrite) throws IOException {
+		Model m = this.model.getJenaModel();
+		boolean transactions = m.supportsTransactions();
+		if(transactions) {
+			m.begin();
+		}
+		try {
+			int count = 0;
+			for(Record rec : recs) {
+				if(addRecord(rec, creator, overwrite)) {
+					count++;
+				}
+			}
+			if(transactions) {
+				m.commit();
+			}
+			return count;
+		} catch(IOException e) {
+			if(transactions) {
+				m.abort();
+			}
+			throw e;
+		} catch(RuntimeException e) {
+			if(transactions) {
+				m.abort();
+			}
+			throw e;
+		}
+	}
+	
 	@Override
 	public void delRecord(String recID) throws IOException {
 		delMetaData(recID);
@@ -176,11 +215,14 @@ public class JenaRecordHandler extends RecordHandler {
 			"Select ?dataField \n" +
 			"WHERE { \n" +
 			"  ?record rdf:type rhns:" + this.recType.getLocalName() + " . \n" +
-			"  ?record rhns:" + this.idType.getLocalName() + " \"" + recID + "\" . \n" +
+			"  ?record rhns:" + this.idType.getLocalName() + " ?recID . \n" +
 			"  ?record lns:" + this.dataType.getLocalName() + " ?dataField . \n" +
 			"}";
+		// the id is bound rather than written into the query, so the query is only parsed once
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		bindings.add("recID", this.model.getJenaModel().createLiteral(recID));
 		
-		ResultSet resultSet = this.model.executeSelectQuery(sQuery);
+		ResultSet resultSet = this.model.executeSelectQuery(sQuery, bindings, false, false);
 		// read first result
 		String data = null;
 		if(resultSet.hasNext()) {
@@ -252,11 +294,7 @@ public class JenaRecordHandler extends RecordHandler {
 		
 		@Override
 		public Record next() {
-			try {
-				return getRecord(this.resultSet.next().getLiteral("idField").getString());
-			} catch(IOException e) {
-				throw new NoSuchElementException(e.getMessage());
-			}
+			return new Record(this.resultSet.next().getLiteral("idField").getString(), JenaRecordHandler.this);
 		}
 		
 		@Override
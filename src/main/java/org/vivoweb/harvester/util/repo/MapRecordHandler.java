@@ -92,9 +92,7 @@ public class MapRecordHandler extends RecordHandler {
 		
 		@Override
 		public Record next() {
-			String key = this.keyIter.next();
-			String data = MapRecordHandler.this.map.get(key);
-			return new Record(key, data, MapRecordHandler.this);
+			return new Record(this.keyIter.next(), MapRecordHandler.this);
 		}
 		
 		@Override
@@ -5,29 +5,49 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
-import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Random;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.vivoweb.harvester.util.FileAide;
-import org.vivoweb.harvester.util.SpecialEntities;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.query.DataSource;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 
 /**
  * Connection Helper for Memory Based Jena Models
+ * <p>
+ * Models are held on the heap. If a spill threshold is given, a model that grows past that many triples is moved to a
+ * temporary TDB directory, which is deleted when the model is closed. As with TDB, the model named
+ * "urn:x-arq:DefaultGraph" is the default graph and "urn:x-arq:UnionGraph" is the union of all named models sharing
+ * the dataset (see {@link #neighborConnectClone(String)}).
+ * </p>
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
-public class MemJenaConnect extends TDBJenaConnect {
+public class MemJenaConnect extends JenaConnect {
 	/**
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(MemJenaConnect.class);
 	/**
-	 * Map of already used memory model names to directories
+	 * name of the default graph
 	 */
-	private static HashMap<String, String> usedModelNames = new HashMap<String, String>();
+	private static final String DEFAULT_GRAPH = "urn:x-arq:DefaultGraph";
+	/**
+	 * name of the union of all named graphs
+	 */
+	private static final String UNION_GRAPH = "urn:x-arq:UnionGraph";
+	/**
+	 * Map of already used memory model names to datasets
+	 */
+	private static HashMap<String, MemDataset> usedModelNames = new HashMap<String, MemDataset>();
+	/**
+	 * the dataset this model belongs to
+	 */
+	private final MemDataset memDataset;
 	
 	/**
 	 * Constructor (Memory Default Model)
@@ -41,7 +61,17 @@ public class MemJenaConnect extends TDBJenaConnect {
 	 * @param modelName the model name to use
 	 */
 	public MemJenaConnect(String modelName) {
-		super(getDir(modelName), modelName);
+		this(modelName, 0);
+	}
+	
+	/**
+	 * Constructor (Memory Named Model)
+	 * @param modelName the model name to use
+	 * @param spillThreshold number of triples after which a model is moved to a temporary TDB directory, 0 to always
+	 *        stay in memory
+	 */
+	public MemJenaConnect(String modelName, long spillThreshold) {
+		this(getMemDataset(modelName, spillThreshold), modelName);
 	}
 	
 	/**
@@ -58,42 +88,192 @@ public class MemJenaConnect extends TDBJenaConnect {
 	}
 	
 	/**
-	 * Get the directory in which the model named is held
+	 * Constructor (Named Model in existing Dataset)
+	 * @param memDataset the dataset
+	 * @param modelName the model name to use
+	 */
+	private MemJenaConnect(MemDataset memDataset, String modelName) {
+		this.memDataset = memDataset;
+		if(modelName != null) {
+			setModelName(modelName);
+		} else {
+			setModelName(DEFAULT_GRAPH);
+		}
+		setJenaModel(this.memDataset.acquire(getModelName()));
+	}
+	
+	/**
+	 * Get the dataset in which the model named is held, unnamed models always get a new dataset
 	 * @param modelName the model name
-	 * @return the directory path
+	 * @param spillThreshold number of triples after which a model is moved to a temporary TDB directory
+	 * @return the dataset
 	 */
-	private static String getDir(String modelName) {
-		String mod = (modelName != null) ? modelName : generateUnusedModelName();
-		mod = SpecialEntities.xmlEncode(mod, '/', ':');
-		if(!usedModelNames.containsKey(mod)) {
-			log.trace("attempting to create temp file for: " + mod);
-			File f;
-			try {
-				f = FileAide.createTempFile(mod, ".tdb");
-			} catch(IOException e) {
-				throw new IllegalArgumentException(e);
-			}
-			log.trace("created: " + f.getAbsolutePath());
-			f.delete();
-			f.mkdir();
-			usedModelNames.put(mod, f.getAbsolutePath());
+	private static synchronized MemDataset getMemDataset(String modelName, long spillThreshold) {
+		if(modelName == null) {
+			return new MemDataset(null, spillThreshold);
+		}
+		if(!usedModelNames.containsKey(modelName)) {
+			log.trace("creating memory dataset for: " + modelName);
+			usedModelNames.put(modelName, new MemDataset(modelName, spillThreshold));
+		}
+		return usedModelNames.get(modelName);
+	}
+	
+	/**
+	 * Forget a dataset once its last model is closed
+	 * @param memDataset the dataset
+	 */
+	protected static synchronized void releaseMemDataset(MemDataset memDataset) {
+		if((memDataset.getName() != null) && (usedModelNames.get(memDataset.getName()) == memDataset)) {
+			usedModelNames.remove(memDataset.getName());
 		}
-		return usedModelNames.get(mod);
+	}
+	
+	@Override
+	public Dataset getDataset() {
+		return this.memDataset.getDataSource();
+	}
+	
+	@Override
+	protected int countStatements() {
+		return getJenaModel().getGraph().size();
+	}
+	
+	@Override
+	public boolean sharesStoreWith(JenaConnect other) {
+		// the union graph reads the other models of the dataset
+		return (other instanceof MemJenaConnect) && (((MemJenaConnect)other).memDataset == this.memDataset);
+	}
+	
+	@Override
+	public JenaConnect neighborConnectClone(String modelName) {
+		return new MemJenaConnect(this.memDataset, modelName);
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		this.memDataset.release(getModelName());
+	}
+	
+	@Override
+	public void printParameters() {
+		super.printParameters();
+		log.trace("type: 'mem'");
+	}
+	
+	@Override
+	public void sync() {
+		// Do Nothing
 	}
 	
 	/**
-	 * Get an unused memory model name
-	 * @return the name
+	 * Set of memory models that can see each other, equivalent to a single TDB directory
 	 */
-	private static String generateUnusedModelName() {
-		Random random = new Random();
-		String name = null;
-		while(name == null) {
-			name = "DEFAULT" + random.nextInt(Integer.MAX_VALUE);
-			if(usedModelNames.containsKey(name)) {
-				name = null;
+	private static class MemDataset {
+		/**
+		 * the name the dataset is registered under, null if unregistered
+		 */
+		private final String name;
+		/**
+		 * number of triples after which a model is moved to a temporary TDB directory
+		 */
+		private final long spillThreshold;
+		/**
+		 * the dataset for queries
+		 */
+		private final DataSource dataSource;
+		/**
+		 * union of the named models
+		 */
+		private final MultiUnion union;
+		/**
+		 * models by name
+		 */
+		private final Map<String, Model> models;
+		/**
+		 * number of open connections by model name
+		 */
+		private final Map<String, Integer> openCounts;
+		
+		/**
+		 * Constructor
+		 * @param name the name the dataset is registered under, null if unregistered
+		 * @param spillThreshold number of triples after which a model is moved to a temporary TDB directory
+		 */
+		protected MemDataset(String name, long spillThreshold) {
+			this.name = name;
+			this.spillThreshold = spillThreshold;
+			this.union = new MultiUnion();
+			this.models = new HashMap<String, Model>();
+			this.openCounts = new HashMap<String, Integer>();
+			Model defaultModel = ModelFactory.createModelForGraph(new SpillingGraph(spillThreshold));
+			this.models.put(DEFAULT_GRAPH, defaultModel);
+			this.models.put(UNION_GRAPH, ModelFactory.createModelForGraph(this.union));
+			this.dataSource = DatasetFactory.create(defaultModel);
+		}
+		
+		/**
+		 * Get the name the dataset is registered under
+		 * @return the name, null if unregistered
+		 */
+		protected String getName() {
+			return this.name;
+		}
+		
+		/**
+		 * Get the dataset for queries
+		 * @return the dataset
+		 */
+		protected DataSource getDataSource() {
+			return this.dataSource;
+		}
+		
+		/**
+		 * Open a model, creating it if needed
+		 * @param modelName the model name
+		 * @return the model
+		 */
+		protected synchronized Model acquire(String modelName) {
+			Model m = this.models.get(modelName);
+			if(m == null) {
+				SpillingGraph g = new SpillingGraph(this.spillThreshold);
+				m = ModelFactory.createModelForGraph(g);
+				this.models.put(modelName, m);
+				this.dataSource.addNamedModel(modelName, m);
+				this.union.addGraph(g);
+			}
+			Integer count = this.openCounts.get(modelName);
+			this.openCounts.put(modelName, Integer.valueOf((count == null) ? 1 : (count.intValue() + 1)));
+			return m;
+		}
+		
+		/**
+		 * Close a model, freeing it (and any temporary TDB directory) once no connection has it open
+		 * @param modelName the model name
+		 */
+		protected synchronized void release(String modelName) {
+			Integer count = this.openCounts.get(modelName);
+			if((count == null) || (count.intValue() > 1)) {
+				if(count != null) {
+					this.openCounts.put(modelName, Integer.valueOf(count.intValue() - 1));
+				}
+				return;
+			}
+			this.openCounts.remove(modelName);
+			if(!modelName.equals(DEFAULT_GRAPH) && !modelName.equals(UNION_GRAPH)) {
+				Model m = this.models.remove(modelName);
+				this.dataSource.removeNamedModel(modelName);
+				this.union.removeGraph(m.getGraph());
+				m.close();
+			}
+			if(this.openCounts.isEmpty()) {
+				for(Model m : this.models.values()) {
+					m.close();
+				}
+				this.models.clear();
+				releaseMemDataset(this);
 			}
 		}
-		return name;
 	}
 }
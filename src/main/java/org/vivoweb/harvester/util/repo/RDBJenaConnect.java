@@ -7,16 +7,25 @@ package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.IterableAdaptor;
 import com.hp.hpl.jena.db.DBConnection;
 import com.hp.hpl.jena.db.GraphRDB;
 import com.hp.hpl.jena.db.IDBConnection;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.ModelMaker;
-import com.hp.hpl.jena.sparql.core.DataSourceImpl;
+import com.hp.hpl.jena.sparql.core.DatasetGraphCollection;
 
 /**
  * Connection Helper for RDB Jena Models
@@ -31,6 +40,14 @@ public class RDBJenaConnect extends DBJenaConnect {
 	 * The jdbc connection
 	 */
 	private IDBConnection conn;
+	/**
+	 * The dataset for queries, created on first use
+	 */
+	private Dataset dataset;
+	/**
+	 * The named graphs of the dataset
+	 */
+	private LazyDatasetGraph datasetGraph;
 	
 	/**
 	 * Constructor (Default Model)
@@ -90,6 +107,11 @@ public class RDBJenaConnect extends DBJenaConnect {
 	@Override
 	public void close() {
 		super.close();
+		if(this.datasetGraph != null) {
+			this.datasetGraph.close();
+			this.datasetGraph = null;
+			this.dataset = null;
+		}
 		getJenaModel().close();
 		try {
 			this.conn.close();
@@ -124,12 +146,12 @@ public class RDBJenaConnect extends DBJenaConnect {
 	}
 	
 	@Override
-	public Dataset getDataset() throws IOException {
-		DataSourceImpl ds = new DataSourceImpl(getJenaModel());
-		for(String name : IterableAdaptor.adapt(this.conn.getAllModelNames())) {
-			ds.addNamedModel(name, neighborConnectClone(name).getJenaModel());
+	public synchronized Dataset getDataset() throws IOException {
+		if(this.dataset == null) {
+			this.datasetGraph = new LazyDatasetGraph(this.conn, getJenaModel(), getModelName());
+			this.dataset = DatasetFactory.create(this.datasetGraph);
 		}
-		return ds;
+		return this.dataset;
 	}
 	
 	@Override
@@ -137,4 +159,100 @@ public class RDBJenaConnect extends DBJenaConnect {
 		super.printParameters();
 		log.trace("type: 'rdb'");
 	}
+	
+	/**
+	 * Dataset over the models of an RDB database, opening named models only when a query uses them
+	 * <p>
+	 * Named models are opened on this connection's own jdbc connection and kept open until the dataset is closed, so
+	 * a query naming one graph touches only that model, and later queries reuse it.
+	 * </p>
+	 */
+	private static class LazyDatasetGraph extends DatasetGraphCollection {
+		/**
+		 * the database connection
+		 */
+		private final IDBConnection dbConn;
+		/**
+		 * opens named models on the database connection
+		 */
+		private final ModelMaker maker;
+		/**
+		 * the default graph
+		 */
+		private final Model defaultModel;
+		/**
+		 * name of the default graph's model, which is not opened again
+		 */
+		private final String defaultModelName;
+		/**
+		 * models opened so far by name
+		 */
+		private final Map<String, Model> models;
+		
+		/**
+		 * Constructor
+		 * @param dbConn the database connection
+		 * @param defaultModel the default graph
+		 * @param defaultModelName name of the default graph's model
+		 */
+		protected LazyDatasetGraph(IDBConnection dbConn, Model defaultModel, String defaultModelName) {
+			this.dbConn = dbConn;
+			this.maker = ModelFactory.createModelRDBMaker(dbConn);
+			this.defaultModel = defaultModel;
+			this.defaultModelName = defaultModelName;
+			this.models = new HashMap<String, Model>();
+		}
+		
+		@Override
+		public Graph getDefaultGraph() {
+			return this.defaultModel.getGraph();
+		}
+		
+		@Override
+		public synchronized Graph getGraph(Node graphNode) {
+			if(!graphNode.isURI()) {
+				return null;
+			}
+			String name = graphNode.getURI();
+			if(name.equals(this.defaultModelName)) {
+				return this.defaultModel.getGraph();
+			}
+			Model m = this.models.get(name);
+			if(m == null) {
+				if(!this.dbConn.containsModel(name)) {
+					return null;
+				}
+				log.trace("Opening dataset model: " + name);
+				m = this.maker.openModel(name, true);
+				this.models.put(name, m);
+			}
+			return m.getGraph();
+		}
+		
+		@Override
+		public synchronized boolean containsGraph(Node graphNode) {
+			if(!graphNode.isURI()) {
+				return false;
+			}
+			String name = graphNode.getURI();
+			return this.models.containsKey(name) || name.equals(this.defaultModelName) || this.dbConn.containsModel(name);
+		}
+		
+		@Override
+		public Iterator<Node> listGraphNodes() {
+			List<Node> nodes = new ArrayList<Node>();
+			for(String name : IterableAdaptor.adapt(this.dbConn.getAllModelNames())) {
+				nodes.add(Node.createURI(name));
+			}
+			return nodes.iterator();
+		}
+		
+		@Override
+		public synchronized void close() {
+			for(Model m : this.models.values()) {
+				m.close();
+			}
+			this.models.clear();
+		}
+	}
 }
@@ -6,6 +6,7 @@
 package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
+import java.util.SortedSet;
 
 /**
  * Individual record
@@ -17,13 +18,18 @@ public class Record {
 	 */
 	private String id;
 	/**
-	 * Data for this record
+	 * Data for this record, null until read for records built without it (and after reading, if the recordhandler does
+	 * not cache record data)
 	 */
 	private String data;
 	/**
 	 * the recordhandler this record came from
 	 */
 	private RecordHandler rh;
+	/**
+	 * Metadata read along with this record, null to ask the recordhandler
+	 */
+	private SortedSet<RecordMetaData> metaData;
 	
 	/**
 	 * Constructor
@@ -32,9 +38,30 @@ public class Record {
 	 * @param recordhandler the recordhandler this record came from
 	 */
 	protected Record(String recID, String recData, RecordHandler recordhandler) {
+		this(recID, recData, recordhandler, null);
+	}
+	
+	/**
+	 * Constructor (metadata already read by the recordhandler)
+	 * @param recID records id
+	 * @param recData records data
+	 * @param recordhandler the recordhandler this record came from
+	 * @param recMetaData the records metadata, newest first, null to ask the recordhandler when needed
+	 */
+	protected Record(String recID, String recData, RecordHandler recordhandler, SortedSet<RecordMetaData> recMetaData) {
 		this.id = recID;
 		this.data = recData;
 		this.rh = recordhandler;
+		this.metaData = recMetaData;
+	}
+	
+	/**
+	 * Constructor (data is read from the recordhandler the first time it is needed)
+	 * @param recID records id
+	 * @param recordhandler the recordhandler this record came from
+	 */
+	protected Record(String recID, RecordHandler recordhandler) {
+		this(recID, null, recordhandler);
 	}
 	
 	/**
@@ -53,15 +80,29 @@ public class Record {
 	 */
 	public void setData(String newData, Class<?> operator) throws IOException {
 		this.data = newData;
+		this.metaData = null;
 		this.rh.addRecord(this, operator, true);
 	}
 	
 	/**
-	 * Getter for Data
+	 * Getter for Data, reading it from the recordhandler if this record was built without it
 	 * @return the records data
+	 * @throws IllegalStateException error reading data from the recordhandler
 	 */
 	public String getData() {
-		return this.data;
+		if(this.data != null) {
+			return this.data;
+		}
+		String recData;
+		try {
+			recData = this.rh.getRecordData(this.id);
+		} catch(IOException e) {
+			throw new IllegalStateException("Error reading data for record " + this.id + ": " + e.getMessage(), e);
+		}
+		if(this.rh.isCacheRecordData()) {
+			this.data = recData;
+		}
+		return recData;
 	}
 	
 	/**
@@ -70,6 +111,7 @@ public class Record {
 	 * @throws IOException error setting processed
 	 */
 	public void setProcessed(Class<?> operator) throws IOException {
+		this.metaData = null;
 		this.rh.setProcessed(this, operator);
 	}
 	
@@ -79,6 +121,9 @@ public class Record {
 	 * @return true if written since last processed by operator or if never been processed by operator
 	 */
 	public boolean needsProcessed(Class<?> operator) {
+		if(this.metaData != null) {
+			return this.rh.needsProcessed(this.metaData, operator);
+		}
 		return this.rh.needsProcessed(getID(), operator);
 	}
 }
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects records for a RecordHandler and adds them a batch at a time with
+ * {@link RecordHandler#addRecords(Iterable, Class, boolean)}
+ * <p>
+ * Records are not in the recordhandler until their batch is written, so call {@link #flush()} before reading them
+ * back and when done. Closing a batch does not close the recordhandler. Translators can pass the record each output
+ * record was made from, which is then set processed once the output record has been written, so a failed run does
+ * not leave input records processed whose output was never written.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class RecordBatch {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RecordBatch.class);
+	/**
+	 * default number of records per batch
+	 */
+	public static final int DEFAULT_SIZE = 500;
+	/**
+	 * the recordhandler to add records to
+	 */
+	private final RecordHandler rh;
+	/**
+	 * the creator of the records
+	 */
+	private final Class<?> creator;
+	/**
+	 * number of records per batch
+	 */
+	private final int size;
+	/**
+	 * records waiting to be added
+	 */
+	private final List<Record> records;
+	/**
+	 * records to set processed once the batch is written
+	 */
+	private final List<Record> sources;
+	/**
+	 * number of records added so far
+	 */
+	private int added;
+	
+	/**
+	 * Constructor
+	 * @param rh the recordhandler to add records to
+	 * @param creator the creator of the records
+	 */
+	public RecordBatch(RecordHandler rh, Class<?> creator) {
+		this(rh, creator, DEFAULT_SIZE);
+	}
+	
+	/**
+	 * Constructor
+	 * @param rh the recordhandler to add records to
+	 * @param creator the creator of the records
+	 * @param size number of records per batch
+	 */
+	public RecordBatch(RecordHandler rh, Class<?> creator, int size) {
+		if(size < 1) {
+			throw new IllegalArgumentException("size must be at least 1");
+		}
+		this.rh = rh;
+		this.creator = creator;
+		this.size = size;
+		this.records = new ArrayList<Record>(size);
+		this.sources = new ArrayList<Record>(size);
+		this.added = 0;
+	}
+	
+	/**
+	 * Add a record, writing the batch if it is full. If overwriteDefault is set to true on the recordhandler, will
+	 * automatically overwrite existing records
+	 * @param recID record id to add
+	 * @param recData record data to add
+	 * @throws IOException error writing the batch
+	 */
+	public void add(String recID, String recData) throws IOException {
+		add(recID, recData, null);
+	}
+	
+	/**
+	 * Add a record made from another record, writing the batch if it is full. If overwriteDefault is set to true on the
+	 * recordhandler, will automatically overwrite existing records
+	 * @param recID record id to add
+	 * @param recData record data to add
+	 * @param source the record this one was made from, set processed by the creator once the batch is written, null
+	 *        for none
+	 * @throws IOException error writing the batch
+	 */
+	public void add(String recID, String recData, Record source) throws IOException {
+		this.records.add(new Record(recID, recData, this.rh));
+		if(source != null) {
+			this.sources.add(source);
+		}
+		if(this.records.size() >= this.size) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Write the records waiting to be added
+	 * @throws IOException error writing the batch
+	 */
+	public void flush() throws IOException {
+		if(this.records.isEmpty()) {
+			return;
+		}
+		int count = this.rh.addRecords(this.records, this.creator);
+		log.trace("Added " + count + " of a batch of " + this.records.size() + " records");
+		this.added += count;
+		this.records.clear();
+		for(Record source : this.sources) {
+			source.setProcessed(this.creator);
+		}
+		this.sources.clear();
+	}
+	
+	/**
+	 * Get the number of records added so far, not counting records that already existed and were the same
+	 * @return the number of records
+	 */
+	public int getAdded() {
+		return this.added;
+	}
+	
+	/**
+	 * Write the records waiting to be added
+	 * @throws IOException error writing the batch
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+}
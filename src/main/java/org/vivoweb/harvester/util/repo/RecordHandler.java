@@ -42,6 +42,10 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 * Do we overwrite existing records by default
 	 */
 	private boolean overwriteDefault = true;
+	/**
+	 * Do records returned by iterators keep their data once read
+	 */
+	private boolean cacheRecordData = true;
 	
 	/**
 	 * Sets parameters from param list
@@ -99,6 +103,38 @@ public abstract class RecordHandler implements Iterable<Record> {
 		return addRecord(new Record(recID, recData, this), creator);
 	}
 	
+	/**
+	 * Adds several records to the RecordHandler, writing them together where the recordhandler supports it. The
+	 * records are written by the time this returns.
+	 * @param recs records to add
+	 * @param creator the creator
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @return the number of records added, records that already existed and were the same are not counted
+	 * @throws IOException error adding
+	 */
+	public int addRecords(Iterable<Record> recs, Class<?> creator, boolean overwrite) throws IOException {
+		int count = 0;
+		for(Record rec : recs) {
+			if(addRecord(rec, creator, overwrite)) {
+				count++;
+			}
+		}
+		flush();
+		return count;
+	}
+	
+	/**
+	 * Adds several records to the RecordHandler If overwriteDefault is set to true, will automatically overwrite
+	 * existing records
+	 * @param recs records to add
+	 * @param creator the creator
+	 * @return the number of records added, records that already existed and were the same are not counted
+	 * @throws IOException error adding
+	 */
+	public int addRecords(Iterable<Record> recs, Class<?> creator) throws IOException {
+		return addRecords(recs, creator, isOverwriteDefault());
+	}
+	
 	/**
 	 * Get a record
 	 * @param recID record id to get
@@ -136,7 +172,18 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 * @throws IOException error retrieving record metadata
 	 */
 	protected RecordMetaData getLastMetaData(String recID, RecordMetaData.RecordMetaDataType type, Class<?> operator) throws IOException {
-		for(RecordMetaData rmd : getRecordMetaData(recID)) {
+		return getLastMetaData(getRecordMetaData(recID), type, operator);
+	}
+	
+	/**
+	 * Get the last RecordMetaData of a given type by a given operator from a set of metadata
+	 * @param rmds the metadata, newest first
+	 * @param type the type of metadata, null for any type
+	 * @param operator the operator to get for, null for any type
+	 * @return the last metadata of the specified type
+	 */
+	protected static RecordMetaData getLastMetaData(SortedSet<RecordMetaData> rmds, RecordMetaData.RecordMetaDataType type, Class<?> operator) {
+		for(RecordMetaData rmd : rmds) {
 			if(((type == null) || (rmd.getOperation() == type)) && ((operator == null) || rmd.getOperator().equals(operator))) {
 				return rmd;
 			}
@@ -313,6 +360,31 @@ public abstract class RecordHandler implements Iterable<Record> {
 		return this.overwriteDefault;
 	}
 	
+	/**
+	 * Setter for cacheRecordData. Records returned by iterators only read their data when {@link Record#getData()} is
+	 * first called; when this is false they read it on every call rather than holding on to it.
+	 * @param cache the new value for cacheRecordData
+	 */
+	public void setCacheRecordData(boolean cache) {
+		this.cacheRecordData = cache;
+	}
+	
+	/**
+	 * Getter for cacheRecordData
+	 * @return the cacheRecordData
+	 */
+	public boolean isCacheRecordData() {
+		return this.cacheRecordData;
+	}
+	
+	/**
+	 * Write out any changes the recordhandler has buffered, does nothing for recordhandlers that write immediately
+	 * @throws IOException error writing
+	 */
+	public void flush() throws IOException {
+		// Nothing buffered by default
+	}
+	
 	/**
 	 * Closes the recordhandler
 	 * @throws IOException error closing
@@ -403,16 +475,7 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 */
 	public boolean needsProcessed(String id, Class<?> operator) {
 		try {
-			RecordMetaData rmdWrite = getLastMetaData(id, RecordMetaDataType.written, null);
-			Calendar write = rmdWrite.getDate();
-			RecordMetaData rmdProcess = getLastMetaData(id, RecordMetaDataType.processed, operator);
-			// log.debug("rmdWrite: "+rmdWrite);
-			// log.debug("rmdProcess: "+rmdProcess);
-			if(rmdProcess == null) {
-				return true;
-			}
-			Calendar processed = rmdProcess.getDate();
-			return (processed.compareTo(write) < 0);
+			return needsProcessed(getRecordMetaData(id), operator);
 		} catch(IOException e) {
 			// error getting metadata file... assume it does not exist
 			//			log.debug("Record "+id+" has no metadata... need to update.");
@@ -420,6 +483,25 @@ public abstract class RecordHandler implements Iterable<Record> {
 		}
 	}
 	
+	/**
+	 * Has a record been written since last processed by operator?
+	 * @param rmds the record's metadata, newest first
+	 * @param operator the class to check for
+	 * @return true if written since last processed by operator or if never been processed by operator
+	 */
+	protected boolean needsProcessed(SortedSet<RecordMetaData> rmds, Class<?> operator) {
+		RecordMetaData rmdWrite = getLastMetaData(rmds, RecordMetaDataType.written, null);
+		RecordMetaData rmdProcess = getLastMetaData(rmds, RecordMetaDataType.processed, operator);
+		// log.debug("rmdWrite: "+rmdWrite);
+		// log.debug("rmdProcess: "+rmdProcess);
+		if((rmdWrite == null) || (rmdProcess == null)) {
+			return true;
+		}
+		Calendar write = rmdWrite.getDate();
+		Calendar processed = rmdProcess.getDate();
+		return (processed.compareTo(write) < 0);
+	}
+	
 	/**
 	 * Does the given record contain updated information compared to existing record data
 	 * @param rec the record
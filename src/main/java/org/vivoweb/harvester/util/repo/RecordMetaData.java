@@ -114,7 +114,20 @@ public class RecordMetaData implements Comparable<RecordMetaData> {
 	
 	@Override
 	public int compareTo(RecordMetaData o) {
-		return (this.date.compareTo(o.date) * -1);
+		int c = (this.date.compareTo(o.date) * -1);
+		if(c != 0) {
+			return c;
+		}
+		// entries made in the same millisecond are distinct, so a set must keep both
+		c = this.operation.compareTo(o.operation);
+		if(c != 0) {
+			return c;
+		}
+		c = this.operator.getName().compareTo(o.operator.getName());
+		if(c != 0) {
+			return c;
+		}
+		return String.valueOf(this.md5hash).compareTo(String.valueOf(o.md5hash));
 	}
 	
 	/**
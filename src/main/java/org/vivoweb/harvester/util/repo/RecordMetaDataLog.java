@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
+
+/**
+ * Record metadata kept in a single append-only log file
+ * <p>
+ * Each line is one metadata entry: record id, date in ms, operation, operator class and md5, separated by tabs. A line
+ * holding only a record id and "-" deletes the metadata for that record. The whole log is read into memory the first
+ * time it is used, keeping only the latest entry for each operation and operator of a record, since that is all
+ * {@link RecordHandler#getLastMetaData(String, RecordMetaDataType, Class)} needs. Entries are held compactly (date as
+ * a long, operator as an index into a table of operators, md5 as two longs) and only become {@link RecordMetaData}
+ * objects when asked for, so a store of millions of records needs tens of bytes per entry. When most lines of the log
+ * have been superseded it is rewritten with just the live entries.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class RecordMetaDataLog {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RecordMetaDataLog.class);
+	/**
+	 * logs with fewer lines than this are never compacted
+	 */
+	private static final long MIN_COMPACT_LINES = 10000;
+	/**
+	 * marks a line that deletes a record's metadata
+	 */
+	private static final String DELETED = "-";
+	/**
+	 * the log file
+	 */
+	private final String path;
+	/**
+	 * latest entries by record id (each chained to the record's other entries), null until the log is read
+	 */
+	private Map<String, Entry> entries;
+	/**
+	 * operator ids by class name
+	 */
+	private final Map<String, Integer> operatorIds;
+	/**
+	 * operator classes by id
+	 */
+	private final List<Class<?>> operators;
+	/**
+	 * operator class names that could not be loaded, so they are only reported once
+	 */
+	private final Set<String> unknownOperators;
+	/**
+	 * writer appending to the log, null until first needed
+	 */
+	private Writer out;
+	
+	/**
+	 * Constructor
+	 * @param path the log file
+	 */
+	public RecordMetaDataLog(String path) {
+		this.path = path;
+		this.operatorIds = new HashMap<String, Integer>();
+		this.operators = new ArrayList<Class<?>>();
+		this.unknownOperators = new HashSet<String>();
+	}
+	
+	/**
+	 * Get the metadata of a record
+	 * @param recID the record id
+	 * @return the latest entry for each operation and operator, null if the record has no metadata
+	 * @throws IOException error reading the log
+	 */
+	public synchronized SortedSet<RecordMetaData> get(String recID) throws IOException {
+		Entry entry = getEntries().get(recID);
+		if(entry == null) {
+			return null;
+		}
+		SortedSet<RecordMetaData> rmds = new TreeSet<RecordMetaData>();
+		for(; entry != null; entry = entry.next) {
+			rmds.add(entry.toRecordMetaData(this.operators));
+		}
+		return rmds;
+	}
+	
+	/**
+	 * Add a metadata entry for a record
+	 * @param recID the record id
+	 * @param rmd the metadata entry
+	 * @throws IOException error writing the log
+	 */
+	public synchronized void add(String recID, RecordMetaData rmd) throws IOException {
+		merge(getEntries(), recID, toEntry(rmd.getDate().getTimeInMillis(), getOperatorId(rmd.getOperator()), rmd.getOperation(), rmd.getMD5()));
+		append(toLine(recID, rmd), true);
+	}
+	
+	/**
+	 * Add a metadata entry for each of several records, flushing the log once
+	 * @param rmds the metadata entries by record id
+	 * @throws IOException error writing the log
+	 */
+	public synchronized void add(Map<String, RecordMetaData> rmds) throws IOException {
+		Map<String, Entry> map = getEntries();
+		for(Map.Entry<String, RecordMetaData> entry : rmds.entrySet()) {
+			RecordMetaData rmd = entry.getValue();
+			merge(map, entry.getKey(), toEntry(rmd.getDate().getTimeInMillis(), getOperatorId(rmd.getOperator()), rmd.getOperation(), rmd.getMD5()));
+			append(toLine(entry.getKey(), entry.getValue()), false);
+		}
+		if(this.out != null) {
+			this.out.flush();
+		}
+	}
+	
+	/**
+	 * Delete the metadata of a record
+	 * @param recID the record id
+	 * @return true if the record had metadata
+	 * @throws IOException error writing the log
+	 */
+	public synchronized boolean delete(String recID) throws IOException {
+		if(getEntries().remove(recID) == null) {
+			return false;
+		}
+		append(recID + "\t" + DELETED, true);
+		return true;
+	}
+	
+	/**
+	 * Does the log file exist
+	 * @return true if it exists
+	 * @throws IOException error resolving the log file
+	 */
+	public boolean exists() throws IOException {
+		return FileAide.exists(this.path);
+	}
+	
+	/**
+	 * Close the log file, it is read again if used after this
+	 * @throws IOException error closing the log file
+	 */
+	public synchronized void close() throws IOException {
+		if(this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+		this.entries = null;
+	}
+	
+	/**
+	 * Write a line to the end of the log
+	 * @param line the line
+	 * @param flush flush the log after writing the line
+	 * @throws IOException error writing the log
+	 */
+	private void append(String line, boolean flush) throws IOException {
+		if(this.out == null) {
+			this.out = new BufferedWriter(new OutputStreamWriter(FileAide.getOutputStream(this.path, true), "UTF-8"));
+		}
+		this.out.write(line);
+		this.out.write('\n');
+		if(flush) {
+			// flushed per entry, since tools do not always close their recordhandlers
+			this.out.flush();
+		}
+	}
+	
+	/**
+	 * Format a metadata entry as a log line
+	 * @param recID the record id
+	 * @param rmd the entry
+	 * @return the line, without a line break
+	 */
+	private static String toLine(String recID, RecordMetaData rmd) {
+		return toLine(recID, rmd.getDate().getTimeInMillis(), rmd.getOperation(), rmd.getOperator(), rmd.getMD5());
+	}
+	
+	/**
+	 * Format the fields of a metadata entry as a log line
+	 * @param recID the record id
+	 * @param date the date in ms
+	 * @param operation the operation
+	 * @param operator the operator class
+	 * @param md5 the md5
+	 * @return the line, without a line break
+	 */
+	private static String toLine(String recID, long date, RecordMetaDataType operation, Class<?> operator, String md5) {
+		return recID + "\t" + date + "\t" + operation + "\t" + operator.getName() + "\t" + md5;
+	}
+	
+	/**
+	 * Get the latest entries by record id, reading the log if needed
+	 * @return the entries
+	 * @throws IOException error reading the log
+	 */
+	private Map<String, Entry> getEntries() throws IOException {
+		if(this.entries == null) {
+			Map<String, Entry> map = new HashMap<String, Entry>();
+			long lines = 0;
+			if(FileAide.exists(this.path)) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(FileAide.getInputStream(this.path), "UTF-8"));
+				try {
+					String line;
+					while((line = br.readLine()) != null) {
+						lines++;
+						readLine(map, line);
+					}
+				} finally {
+					br.close();
+				}
+			}
+			this.entries = map;
+			long live = 0;
+			for(Entry entry : map.values()) {
+				for(; entry != null; entry = entry.next) {
+					live++;
+				}
+			}
+			log.debug("Read " + live + " metadata entries for " + map.size() + " records from " + lines + " lines of " + this.path);
+			if((lines > MIN_COMPACT_LINES) && (lines > (2 * live))) {
+				compact();
+			}
+		}
+		return this.entries;
+	}
+	
+	/**
+	 * Apply one line of the log
+	 * @param map the entries read so far
+	 * @param line the line
+	 */
+	private void readLine(Map<String, Entry> map, String line) {
+		String[] fields = line.split("\t", -1);
+		if((fields.length == 2) && fields[1].equals(DELETED)) {
+			map.remove(fields[0]);
+			return;
+		}
+		if(fields.length != 5) {
+			// most likely a line cut short by a crash
+			log.warn("Skipping malformed line in metadata log " + this.path + ": " + line);
+			return;
+		}
+		int operator = getOperatorId(fields[3]);
+		if(operator < 0) {
+			return;
+		}
+		RecordMetaDataType operation;
+		long date;
+		try {
+			operation = RecordMetaDataType.valueOf(fields[2]);
+			date = Long.parseLong(fields[1]);
+		} catch(IllegalArgumentException e) {
+			log.warn("Skipping malformed line in metadata log " + this.path + ": " + line);
+			return;
+		}
+		merge(map, fields[0], toEntry(date, operator, operation, fields[4]));
+	}
+	
+	/**
+	 * Get the id of an operator class, adding it to the table of operators if needed
+	 * @param operator the class
+	 * @return the id
+	 */
+	private int getOperatorId(Class<?> operator) {
+		Integer id = this.operatorIds.get(operator.getName());
+		if(id == null) {
+			id = Integer.valueOf(this.operators.size());
+			this.operators.add(operator);
+			this.operatorIds.put(operator.getName(), id);
+		}
+		return id.intValue();
+	}
+	
+	/**
+	 * Get the id of an operator class by name, loading the class if needed
+	 * @param name the class name
+	 * @return the id, -1 if the class cannot be loaded
+	 */
+	private int getOperatorId(String name) {
+		Integer id = this.operatorIds.get(name);
+		if(id != null) {
+			return id.intValue();
+		}
+		try {
+			return getOperatorId(Class.forName(name));
+		} catch(ClassNotFoundException e) {
+			if(this.unknownOperators.add(name)) {
+				log.warn("Skipping metadata from unknown operator " + name + " in " + this.path);
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * Build a compact entry
+	 * @param date the date in ms
+	 * @param operator the operator id
+	 * @param operation the operation
+	 * @param md5 the md5
+	 * @return the entry
+	 */
+	private static Entry toEntry(long date, int operator, RecordMetaDataType operation, String md5) {
+		if((md5 != null) && (md5.length() == 32)) {
+			try {
+				long high = parseHex(md5, 0);
+				long low = parseHex(md5, 16);
+				// only lower case hex round trips through Long.toHexString
+				if(md5.equals(toHex(high, low))) {
+					return new Entry(date, operator, operation, true, high, low, null);
+				}
+			} catch(NumberFormatException e) {
+				// not hex, kept as it is below
+			}
+		}
+		return new Entry(date, operator, operation, false, 0, 0, md5);
+	}
+	
+	/**
+	 * Parse 16 hex digits as a long
+	 * @param s the string
+	 * @param start index of the first digit
+	 * @return the value
+	 */
+	private static long parseHex(String s, int start) {
+		return (Long.parseLong(s.substring(start, start + 8), 16) << 32) | Long.parseLong(s.substring(start + 8, start + 16), 16);
+	}
+	
+	/**
+	 * Format a 128-bit value as 32 lower case hex digits
+	 * @param high high 64 bits
+	 * @param low low 64 bits
+	 * @return the hex
+	 */
+	private static String toHex(long high, long low) {
+		StringBuilder sb = new StringBuilder(32);
+		String h = Long.toHexString(high);
+		for(int x = h.length(); x < 16; x++) {
+			sb.append('0');
+		}
+		sb.append(h);
+		String l = Long.toHexString(low);
+		for(int x = l.length(); x < 16; x++) {
+			sb.append('0');
+		}
+		sb.append(l);
+		return sb.toString();
+	}
+	
+	/**
+	 * Add an entry, replacing any older entry with the same operation and operator
+	 * @param map the entries
+	 * @param recID the record id
+	 * @param entry the entry
+	 */
+	private static void merge(Map<String, Entry> map, String recID, Entry entry) {
+		Entry first = map.get(recID);
+		Entry prev = null;
+		for(Entry old = first; old != null; old = old.next) {
+			if((old.operation == entry.operation) && (old.operator == entry.operator)) {
+				if(old.date > entry.date) {
+					return;
+				}
+				if(prev == null) {
+					first = old.next;
+				} else {
+					prev.next = old.next;
+				}
+				break;
+			}
+			prev = old;
+		}
+		entry.next = first;
+		map.put(recID, entry);
+	}
+	
+	/**
+	 * Rewrite the log with only the live entries
+	 * @throws IOException error writing the log
+	 */
+	private void compact() throws IOException {
+		log.debug("Compacting metadata log " + this.path);
+		if(this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+		String tempPath = this.path + ".tmp";
+		Writer w = new BufferedWriter(new OutputStreamWriter(FileAide.getOutputStream(tempPath), "UTF-8"));
+		try {
+			for(Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+				for(Entry entry = mapEntry.getValue(); entry != null; entry = entry.next) {
+					w.write(toLine(mapEntry.getKey(), entry.date, entry.getOperation(), this.operators.get(entry.operator), entry.getMD5()));
+					w.write('\n');
+				}
+			}
+		} finally {
+			w.close();
+		}
+		FileAide.move(tempPath, this.path);
+	}
+	
+	/**
+	 * One metadata entry of a record, held compactly
+	 */
+	private static class Entry {
+		/**
+		 * the date in ms
+		 */
+		protected final long date;
+		/**
+		 * the operator id
+		 */
+		protected final int operator;
+		/**
+		 * the operation, as its ordinal
+		 */
+		protected final byte operation;
+		/**
+		 * is the md5 held as two longs rather than as it was given
+		 */
+		private final boolean hex;
+		/**
+		 * high 64 bits of the md5
+		 */
+		private final long md5High;
+		/**
+		 * low 64 bits of the md5
+		 */
+		private final long md5Low;
+		/**
+		 * the md5 as it was given, when it is not 32 lower case hex digits
+		 */
+		private final String rawMD5;
+		/**
+		 * the record's next entry, null if this is the last
+		 */
+		protected Entry next;
+		
+		/**
+		 * Constructor
+		 * @param date the date in ms
+		 * @param operator the operator id
+		 * @param operation the operation
+		 * @param hex is the md5 given as two longs rather than as rawMD5
+		 * @param md5High high 64 bits of the md5
+		 * @param md5Low low 64 bits of the md5
+		 * @param rawMD5 the md5 as it was given, when it is not 32 lower case hex digits
+		 */
+		protected Entry(long date, int operator, RecordMetaDataType operation, boolean hex, long md5High, long md5Low, String rawMD5) {
+			this.date = date;
+			this.operator = operator;
+			this.operation = (byte)operation.ordinal();
+			this.hex = hex;
+			this.md5High = md5High;
+			this.md5Low = md5Low;
+			this.rawMD5 = rawMD5;
+			this.next = null;
+		}
+		
+		/**
+		 * Get the operation
+		 * @return the operation
+		 */
+		protected RecordMetaDataType getOperation() {
+			return RecordMetaDataType.values()[this.operation];
+		}
+		
+		/**
+		 * Get the md5
+		 * @return the md5
+		 */
+		protected String getMD5() {
+			return this.hex ? toHex(this.md5High, this.md5Low) : this.rawMD5;
+		}
+		
+		/**
+		 * Expand to a metadata object
+		 * @param operators operator classes by id
+		 * @return the metadata
+		 */
+		protected RecordMetaData toRecordMetaData(List<Class<?>> operators) {
+			Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
+			cal.setTimeInMillis(this.date);
+			return new RecordMetaData(cal, operators.get(this.operator), getOperation(), getMD5());
+		}
+	}
+}
@@ -113,6 +113,21 @@ public class SDBJenaConnect extends DBJenaConnect {
 		return SDBFactory.connectDataset(this.store);
 	}
 	
+	@Override
+	protected int countStatements() throws IOException {
+		if(getModelName().equals(Quad.unionGraph.getURI())) {
+			// the union is only understood by queries
+			return super.countStatements();
+		}
+		// sdb counts the rows of the triples or quads table directly
+		return getJenaModel().getGraph().size();
+	}
+	
+	@Override
+	public boolean sharesStoreWith(JenaConnect other) {
+		return super.sharesStoreWith(other) && this.dbLayout.equals(((SDBJenaConnect)other).dbLayout);
+	}
+	
 	@Override
 	public JenaConnect neighborConnectClone(String modelName) throws IOException {
 		return new SDBJenaConnect(this, modelName);
@@ -0,0 +1,1172 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
+
+/**
+ * Record Handler that stores records in a few large append-only segment files in a local directory
+ * <p>
+ * Every add or delete appends an entry (id, md5 and data, or a delete marker) to the current segment, and a new segment
+ * is started once the current one reaches the {@link #setSegmentSize(long) segment size}. The location of each
+ * record's latest data is kept in an index file sorted by record id, which is memory mapped and searched in place, so
+ * the index of a large store is not loaded into the heap. Only the locations of records written or deleted since the
+ * index was last saved are held in memory, and they are merged into a new index file on close. Entries appended after
+ * the index was last saved, for example by a run that did not close the recordhandler, are read back from the
+ * segments, and a torn entry at the end of a segment is cut off. If the index file is missing or does not match the
+ * segments, all entries are read back this way and held in memory until the next close. Sealed segments are read
+ * through memory maps. Record metadata is kept in a {@link RecordMetaDataLog}.
+ * </p>
+ * <p>
+ * Overwritten and deleted records leave dead entries behind. {@link #compact()} copies the live records into new
+ * segments and removes the old ones, and is done automatically on close once most of the stored bytes are dead.
+ * </p>
+ * @author VIVO Harvester Team
+ */
+public class SegmentFileRecordHandler extends RecordHandler {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(SegmentFileRecordHandler.class);
+	/**
+	 * default size in bytes a segment may grow to before a new one is started
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	/**
+	 * largest segment size allowed, so a segment can be memory mapped
+	 */
+	private static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+	/**
+	 * stores smaller than this are never compacted automatically
+	 */
+	private static final long MIN_COMPACT_BYTES = 16L * 1024 * 1024;
+	/**
+	 * marks the start of an index file
+	 */
+	private static final int INDEX_MAGIC = 0x56485349;
+	/**
+	 * index file format version
+	 */
+	private static final int INDEX_VERSION = 2;
+	/**
+	 * length of the footer at the end of an index file
+	 */
+	private static final int INDEX_FOOTER_LENGTH = 20;
+	/**
+	 * index file name
+	 */
+	private static final String INDEX_FILE = "records.index";
+	/**
+	 * metadata log file name
+	 */
+	private static final String METADATA_FILE = "metadata.log";
+	/**
+	 * segment file name prefix
+	 */
+	private static final String SEGMENT_PREFIX = "segment-";
+	/**
+	 * segment file name suffix
+	 */
+	private static final String SEGMENT_SUFFIX = ".dat";
+	/**
+	 * length of an md5 in bytes
+	 */
+	private static final int MD5_LENGTH = 16;
+	/**
+	 * encoding of record ids in the segments and the index
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * overlay value of a record deleted since the index was saved
+	 */
+	private static final IndexEntry DELETED = new IndexEntry(-1, 0, 0, null, 0);
+	/**
+	 * the directory holding the segments
+	 */
+	private File dir;
+	/**
+	 * size in bytes a segment may grow to before a new one is started
+	 */
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+	/**
+	 * the saved index, null if there is none
+	 */
+	private MappedIndex savedIndex;
+	/**
+	 * location of the latest data of each record written since the index was saved, {@link #DELETED} for records
+	 * deleted since then
+	 */
+	private TreeMap<String, IndexEntry> overlay;
+	/**
+	 * number of records
+	 */
+	private int recordCount;
+	/**
+	 * lengths of the segments in use, by segment number
+	 */
+	private TreeMap<Integer, Long> segmentLengths;
+	/**
+	 * memory maps of sealed segments, by segment number
+	 */
+	private Map<Integer, MappedByteBuffer> mappedSegments;
+	/**
+	 * number of the segment being appended to
+	 */
+	private int activeSegment;
+	/**
+	 * the segment being appended to
+	 */
+	private RandomAccessFile activeFile;
+	/**
+	 * total size of the entries of the records in the index
+	 */
+	private long liveBytes;
+	/**
+	 * the record metadata
+	 */
+	private RecordMetaDataLog metaDataLog;
+	
+	/**
+	 * Default Constructor
+	 */
+	protected SegmentFileRecordHandler() {
+		// Nothing to do here
+		// Used by config construction
+		// Should only be used in conjunction with setParams()
+	}
+	
+	/**
+	 * Constructor
+	 * @param directory the local directory to store segments in, created if it does not exist
+	 * @throws IOException error opening the segments
+	 */
+	public SegmentFileRecordHandler(String directory) throws IOException {
+		open(directory);
+	}
+	
+	@Override
+	public void setParams(Map<String, String> params) throws IllegalArgumentException, IOException {
+		String directory = getParam(params, "fileDir", true);
+		String segmentSizeParam = getParam(params, "segmentSize", false);
+		if(segmentSizeParam != null) {
+			try {
+				setSegmentSize(Long.parseLong(segmentSizeParam.trim()));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("segmentSize must be a number: " + segmentSizeParam, e);
+			}
+		}
+		open(directory);
+	}
+	
+	/**
+	 * Set the size a segment may grow to before a new one is started. A record larger than this gets a segment of its
+	 * own.
+	 * @param size the size in bytes
+	 */
+	public void setSegmentSize(long size) {
+		if((size < 1) || (size > MAX_SEGMENT_SIZE)) {
+			throw new IllegalArgumentException("segmentSize must be between 1 and " + MAX_SEGMENT_SIZE);
+		}
+		this.segmentSize = size;
+	}
+	
+	/**
+	 * Open the segments in a directory, reading the saved index and any entries appended after it was saved
+	 * @param directory the directory
+	 * @throws IOException error reading the segments
+	 */
+	private synchronized void open(String directory) throws IOException {
+		this.dir = new File(directory);
+		if(!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("Unable to create directory " + directory);
+		}
+		this.overlay = new TreeMap<String, IndexEntry>();
+		this.segmentLengths = new TreeMap<Integer, Long>();
+		this.mappedSegments = new HashMap<Integer, MappedByteBuffer>();
+		this.savedIndex = loadIndex();
+		Map<Integer, Long> indexed = new HashMap<Integer, Long>();
+		int firstSegment = 0;
+		if(this.savedIndex != null) {
+			indexed.putAll(this.savedIndex.segmentLengths);
+			firstSegment = this.savedIndex.firstSegment;
+			for(Map.Entry<Integer, Long> segment : indexed.entrySet()) {
+				if(segment.getValue().longValue() > getSegmentFile(segment.getKey().intValue()).length()) {
+					log.warn("Segment " + segment.getKey() + " is shorter than its index says, rebuilding the index of " + this.dir);
+					this.savedIndex = null;
+					indexed.clear();
+					firstSegment = 0;
+					break;
+				}
+			}
+		}
+		this.recordCount = (this.savedIndex == null) ? 0 : this.savedIndex.count;
+		this.liveBytes = (this.savedIndex == null) ? 0 : this.savedIndex.liveBytes;
+		SortedSet<Integer> segments = listSegments();
+		for(Integer segment : segments) {
+			if(segment.intValue() < firstSegment) {
+				// left over from a compaction
+				if(!getSegmentFile(segment.intValue()).delete()) {
+					log.warn("Unable to delete old segment " + getSegmentFile(segment.intValue()));
+				}
+				continue;
+			}
+			Long from = indexed.get(segment);
+			replay(segment.intValue(), (from == null) ? 0 : from.longValue());
+		}
+		this.activeSegment = this.segmentLengths.isEmpty() ? firstSegment : this.segmentLengths.lastKey().intValue();
+		openActiveSegment();
+		this.metaDataLog = new RecordMetaDataLog(new File(this.dir, METADATA_FILE).getAbsolutePath());
+		log.debug("Opened " + this.recordCount + " records in " + this.segmentLengths.size() + " segments of " + this.dir);
+	}
+	
+	/**
+	 * List the segment files in the directory
+	 * @return the segment numbers
+	 */
+	private SortedSet<Integer> listSegments() {
+		SortedSet<Integer> segments = new TreeSet<Integer>();
+		String[] names = this.dir.list();
+		if(names != null) {
+			for(String name : names) {
+				if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.add(Integer.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+					} catch(NumberFormatException e) {
+						log.warn("Ignoring unexpected file " + name + " in " + this.dir);
+					}
+				}
+			}
+		}
+		return segments;
+	}
+	
+	/**
+	 * Get the file of a segment
+	 * @param segment the segment number
+	 * @return the file
+	 */
+	private File getSegmentFile(int segment) {
+		return new File(this.dir, SEGMENT_PREFIX + String.format("%08d", Integer.valueOf(segment)) + SEGMENT_SUFFIX);
+	}
+	
+	/**
+	 * Map the saved index, if there is a readable one
+	 * @return the index, null if there is none
+	 * @throws IOException error reading the index
+	 */
+	private MappedIndex loadIndex() throws IOException {
+		File indexFile = new File(this.dir, INDEX_FILE);
+		if(!indexFile.exists()) {
+			return null;
+		}
+		try {
+			return new MappedIndex(indexFile);
+		} catch(IOException e) {
+			log.warn("Unreadable index " + indexFile + ", rebuilding it: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Save the index, merging the records written since it was last saved into a new index file
+	 * @throws IOException error writing the index
+	 */
+	private void saveIndex() throws IOException {
+		File tmpFile = new File(this.dir, INDEX_FILE + ".tmp");
+		IndexWriter writer = new IndexWriter(tmpFile, this.recordCount);
+		try {
+			IndexIterator iter = new IndexIterator();
+			while(iter.hasNext()) {
+				String recID = iter.next();
+				writer.add(recID, iter.getEntry());
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+		replaceIndex(tmpFile);
+	}
+	
+	/**
+	 * Replace the index file with a newly written one and map it in place of the saved index
+	 * @param tmpFile the new index file
+	 * @throws IOException error replacing the index
+	 */
+	private void replaceIndex(File tmpFile) throws IOException {
+		File indexFile = new File(this.dir, INDEX_FILE);
+		if(indexFile.exists() && !indexFile.delete()) {
+			throw new IOException("Unable to replace index " + indexFile);
+		}
+		if(!tmpFile.renameTo(indexFile)) {
+			throw new IOException("Unable to replace index " + indexFile);
+		}
+		this.savedIndex = new MappedIndex(indexFile);
+		this.overlay.clear();
+	}
+	
+	/**
+	 * Read the entries of a segment into the index, cutting off a torn entry at the end
+	 * @param segment the segment number
+	 * @param from the position to start reading at
+	 * @throws IOException error reading the segment
+	 */
+	private void replay(int segment, long from) throws IOException {
+		File file = getSegmentFile(segment);
+		long length = file.length();
+		long pos = from;
+		if(pos < length) {
+			log.debug("Reading entries of segment " + segment + " from " + pos);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				long skipped = 0;
+				while(skipped < pos) {
+					skipped += in.skip(pos - skipped);
+				}
+				while(pos < length) {
+					int idLength = in.readInt();
+					if((idLength < 0) || ((pos + 8 + idLength) > length)) {
+						throw new EOFException();
+					}
+					byte[] id = new byte[idLength];
+					in.readFully(id);
+					int dataLength = in.readInt();
+					String recID = new String(id, "UTF-8");
+					if(dataLength < 0) {
+						removeFromIndex(recID);
+						pos += 8 + id.length;
+						continue;
+					}
+					byte[] md5 = new byte[MD5_LENGTH];
+					in.readFully(md5);
+					long dataOffset = pos + 8 + id.length + MD5_LENGTH;
+					if((dataOffset + dataLength) > length) {
+						throw new EOFException();
+					}
+					long skippedData = 0;
+					while(skippedData < dataLength) {
+						skippedData += in.skip(dataLength - skippedData);
+					}
+					putInIndex(recID, new IndexEntry(segment, dataOffset, dataLength, md5, id.length));
+					pos = dataOffset + dataLength;
+				}
+			} catch(EOFException e) {
+				log.warn("Cutting off torn entry at " + pos + " of segment " + file);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(pos);
+				} finally {
+					raf.close();
+				}
+			} finally {
+				in.close();
+			}
+		}
+		this.segmentLengths.put(Integer.valueOf(segment), Long.valueOf(pos));
+	}
+	
+	/**
+	 * Open the active segment for appending
+	 * @throws IOException error opening the segment
+	 */
+	private void openActiveSegment() throws IOException {
+		this.activeFile = new RandomAccessFile(getSegmentFile(this.activeSegment), "rw");
+		long length = this.activeFile.length();
+		this.activeFile.seek(length);
+		this.segmentLengths.put(Integer.valueOf(this.activeSegment), Long.valueOf(length));
+	}
+	
+	/**
+	 * Put a record's location in the index
+	 * @param recID the record id
+	 * @param entry the location
+	 */
+	private void putInIndex(String recID, IndexEntry entry) {
+		IndexEntry old = getFromIndex(recID);
+		if(old == null) {
+			this.recordCount++;
+		} else {
+			this.liveBytes -= old.size;
+		}
+		this.overlay.put(recID, entry);
+		this.liveBytes += entry.size;
+	}
+	
+	/**
+	 * Remove a record's location from the index
+	 * @param recID the record id
+	 * @return true if the record was in the index
+	 */
+	private boolean removeFromIndex(String recID) {
+		IndexEntry old = getFromIndex(recID);
+		if(old == null) {
+			return false;
+		}
+		this.recordCount--;
+		this.liveBytes -= old.size;
+		if((this.savedIndex != null) && (this.savedIndex.get(recID) != null)) {
+			this.overlay.put(recID, DELETED);
+		} else {
+			this.overlay.remove(recID);
+		}
+		return true;
+	}
+	
+	/**
+	 * Get a record's location from the records written since the index was saved, or else from the saved index
+	 * @param recID the record id
+	 * @return the location, null if the record does not exist
+	 */
+	private IndexEntry getFromIndex(String recID) {
+		IndexEntry entry = this.overlay.get(recID);
+		if(entry != null) {
+			return (entry == DELETED) ? null : entry;
+		}
+		return (this.savedIndex == null) ? null : this.savedIndex.get(recID);
+	}
+	
+	/**
+	 * Append an entry to the active segment, starting a new segment if it is full
+	 * @param recID the record id
+	 * @param data the record data, null to append a delete marker
+	 * @param md5 the md5 of the data, null for a delete marker
+	 * @return the location of the data, null for a delete marker
+	 * @throws IOException error writing the segment
+	 */
+	private IndexEntry append(String recID, byte[] data, byte[] md5) throws IOException {
+		byte[] id = recID.getBytes("UTF-8");
+		int size = 8 + id.length + ((data == null) ? 0 : (MD5_LENGTH + data.length));
+		long length = this.segmentLengths.get(Integer.valueOf(this.activeSegment)).longValue();
+		if((length > 0) && ((length + size) > this.segmentSize)) {
+			this.activeFile.getFD().sync();
+			this.activeFile.close();
+			this.activeSegment++;
+			openActiveSegment();
+			length = 0;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(id.length);
+		buf.put(id);
+		if(data == null) {
+			buf.putInt(-1);
+		} else {
+			buf.putInt(data.length);
+			buf.put(md5);
+			buf.put(data);
+		}
+		this.activeFile.write(buf.array());
+		this.segmentLengths.put(Integer.valueOf(this.activeSegment), Long.valueOf(length + size));
+		if(data == null) {
+			return null;
+		}
+		return new IndexEntry(this.activeSegment, length + size - data.length, data.length, md5, id.length);
+	}
+	
+	/**
+	 * Read the data at a location
+	 * @param entry the location
+	 * @return the data
+	 * @throws IOException error reading the segment
+	 */
+	private byte[] read(IndexEntry entry) throws IOException {
+		byte[] data = new byte[entry.length];
+		if(entry.segment == this.activeSegment) {
+			// the active segment is still growing, so it is read directly rather than mapped
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			FileChannel channel = this.activeFile.getChannel();
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, entry.offset + buf.position()) < 0) {
+					throw new EOFException("Unexpected end of segment " + entry.segment);
+				}
+			}
+			return data;
+		}
+		MappedByteBuffer mapped = this.mappedSegments.get(Integer.valueOf(entry.segment));
+		if(mapped == null) {
+			RandomAccessFile raf = new RandomAccessFile(getSegmentFile(entry.segment), "r");
+			try {
+				mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			this.mappedSegments.put(Integer.valueOf(entry.segment), mapped);
+		}
+		ByteBuffer buf = mapped.duplicate();
+		buf.position((int)entry.offset);
+		buf.get(data);
+		return data;
+	}
+	
+	/**
+	 * Write a record's data, unless it is unchanged
+	 * @param rec the record
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @return the md5 of the data, null if unchanged
+	 * @throws IOException error writing, or record exists and overwrite is false
+	 */
+	private String write(Record rec, boolean overwrite) throws IOException {
+		String md5 = RecordMetaData.md5hex(rec.getData());
+		IndexEntry old = getFromIndex(rec.getID());
+		if(old != null) {
+			if(md5.equals(old.getMD5())) {
+				return null;
+			}
+			if(!overwrite) {
+				throw new IOException("Record '" + rec.getID() + "' already exists!");
+			}
+		}
+		putInIndex(rec.getID(), append(rec.getID(), rec.getData().getBytes("UTF-8"), fromHex(md5)));
+		return md5;
+	}
+	
+	@Override
+	public synchronized boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
+		String md5 = write(rec, overwrite);
+		if(md5 == null) {
+			return false;
+		}
+		addMetaData(rec, new RecordMetaData(creator, RecordMetaDataType.written, md5));
+		return true;
+	}
+	
+	@Override
+	public synchronized int addRecords(Iterable<Record> recs, Class<?> creator, boolean overwrite) throws IOException {
+		Map<String, RecordMetaData> rmds = new LinkedHashMap<String, RecordMetaData>();
+		for(Record rec : recs) {
+			String md5 = write(rec, overwrite);
+			if(md5 != null) {
+				rmds.put(rec.getID(), new RecordMetaData(creator, RecordMetaDataType.written, md5));
+			}
+		}
+		this.metaDataLog.add(rmds);
+		return rmds.size();
+	}
+	
+	@Override
+	protected boolean needsUpdated(Record rec) {
+		IndexEntry entry;
+		synchronized(this) {
+			entry = getFromIndex(rec.getID());
+		}
+		return (entry == null) || !entry.getMD5().equals(RecordMetaData.md5hex(rec.getData()));
+	}
+	
+	@Override
+	public synchronized void delRecord(String recID) throws IOException {
+		if(removeFromIndex(recID)) {
+			append(recID, null, null);
+		} else {
+			log.warn("Attempted to delete record " + recID + ", but it did not exist.");
+		}
+		delMetaData(recID);
+	}
+	
+	@Override
+	public synchronized String getRecordData(String recID) throws IllegalArgumentException, IOException {
+		IndexEntry entry = getFromIndex(recID);
+		if(entry == null) {
+			throw new IllegalArgumentException("Record " + recID + " does not exist!");
+		}
+		return new String(read(entry), "UTF-8");
+	}
+	
+	@Override
+	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
+		this.metaDataLog.add(rec.getID(), rmd);
+	}
+	
+	@Override
+	protected void delMetaData(String recID) throws IOException {
+		this.metaDataLog.delete(recID);
+	}
+	
+	@Override
+	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		SortedSet<RecordMetaData> rmds = this.metaDataLog.get(recID);
+		if((rmds == null) || rmds.isEmpty()) {
+			throw new IOException("No Matching MetaData Found");
+		}
+		return rmds;
+	}
+	
+	@Override
+	public synchronized Set<String> find(String idText) {
+		Set<String> retVal = new TreeSet<String>();
+		IndexIterator iter = new IndexIterator();
+		while(iter.hasNext()) {
+			String id = iter.next();
+			if(id.contains(idText)) {
+				retVal.add(id);
+			}
+		}
+		return retVal;
+	}
+	
+	@Override
+	public Iterator<Record> iterator() {
+		return new SegmentFileRecordIterator();
+	}
+	
+	/**
+	 * Iterator for SegmentFileRecordHandler
+	 */
+	private class SegmentFileRecordIterator implements Iterator<Record> {
+		/**
+		 * Iterator for the record ids, as they were when the iterator was created
+		 */
+		private IndexIterator idIter;
+		
+		/**
+		 * Default Constructor
+		 */
+		protected SegmentFileRecordIterator() {
+			synchronized(SegmentFileRecordHandler.this) {
+				this.idIter = new IndexIterator();
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.idIter.hasNext();
+		}
+		
+		@Override
+		public Record next() {
+			return new Record(this.idIter.next(), SegmentFileRecordHandler.this);
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Get the total size of the segments
+	 * @return the size in bytes
+	 */
+	private long getStoredBytes() {
+		long stored = 0;
+		for(Long length : this.segmentLengths.values()) {
+			stored += length.longValue();
+		}
+		return stored;
+	}
+	
+	/**
+	 * Copy the live records into new segments and delete the old segments
+	 * @throws IOException error writing the new segments
+	 */
+	public synchronized void compact() throws IOException {
+		long stored = getStoredBytes();
+		log.info("Compacting " + this.recordCount + " records (" + this.liveBytes + " of " + stored + " bytes live) in " + this.dir);
+		Set<Integer> oldSegments = new TreeSet<Integer>(this.segmentLengths.keySet());
+		this.activeFile.close();
+		this.activeSegment++;
+		openActiveSegment();
+		// the copies are written in id order, so the new index is written as they are made
+		File tmpFile = new File(this.dir, INDEX_FILE + ".tmp");
+		IndexWriter writer = new IndexWriter(tmpFile, this.recordCount);
+		try {
+			IndexIterator iter = new IndexIterator();
+			while(iter.hasNext()) {
+				String recID = iter.next();
+				IndexEntry entry = iter.getEntry();
+				writer.add(recID, append(recID, read(entry), entry.md5));
+			}
+			this.activeFile.getFD().sync();
+			for(Integer segment : oldSegments) {
+				this.segmentLengths.remove(segment);
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+		// once the index no longer refers to them, the old segments are deleted on open if not here
+		replaceIndex(tmpFile);
+		this.mappedSegments.clear();
+		for(Integer segment : oldSegments) {
+			if(!getSegmentFile(segment.intValue()).delete()) {
+				log.warn("Unable to delete old segment " + getSegmentFile(segment.intValue()));
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void flush() throws IOException {
+		this.activeFile.getFD().sync();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		long stored = getStoredBytes();
+		if((stored > MIN_COMPACT_BYTES) && (stored > (2 * this.liveBytes))) {
+			compact();
+		} else {
+			this.activeFile.getFD().sync();
+			saveIndex();
+		}
+		this.activeFile.close();
+		this.mappedSegments.clear();
+		this.metaDataLog.close();
+	}
+	
+	/**
+	 * A saved index file, mapped into memory and searched in place
+	 * <p>
+	 * The file holds the entries sorted by record id (id length, id, segment, offset, length and md5 of each), then a
+	 * table of the position of each entry, then the number and length of each segment covered, and lastly a fixed
+	 * length footer giving the positions of the two tables, the number of records and their total size.
+	 * </p>
+	 */
+	private static class MappedIndex {
+		/**
+		 * the mapped file
+		 */
+		private final ByteBuffer buf;
+		/**
+		 * position of the table of entry positions
+		 */
+		private final int slotsPos;
+		/**
+		 * number of records
+		 */
+		protected final int count;
+		/**
+		 * total size of the entries of the records in the segments
+		 */
+		protected final long liveBytes;
+		/**
+		 * number of the first segment in use
+		 */
+		protected final int firstSegment;
+		/**
+		 * length of each segment covered by the index, by segment number
+		 */
+		protected final Map<Integer, Long> segmentLengths;
+		
+		/**
+		 * Constructor
+		 * @param file the index file
+		 * @throws IOException error reading the file, or it is not a complete index
+		 */
+		protected MappedIndex(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				if(raf.length() > Integer.MAX_VALUE) {
+					throw new IOException("index is too large to map");
+				}
+				this.buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			try {
+				if((this.buf.getInt(0) != INDEX_MAGIC) || (this.buf.getInt(4) != INDEX_VERSION)) {
+					throw new IOException("unrecognized index format");
+				}
+				int footer = this.buf.limit() - INDEX_FOOTER_LENGTH;
+				this.slotsPos = this.buf.getInt(footer);
+				int segmentsPos = this.buf.getInt(footer + 4);
+				this.count = this.buf.getInt(footer + 8);
+				this.liveBytes = this.buf.getLong(footer + 12);
+				if((this.count < 0) || (this.slotsPos < 8) || (((long)this.slotsPos + (4L * this.count)) != segmentsPos)) {
+					throw new IOException("corrupt index footer");
+				}
+				ByteBuffer segments = this.buf.duplicate();
+				segments.position(segmentsPos);
+				segments.limit(footer);
+				this.firstSegment = segments.getInt();
+				int segmentCount = segments.getInt();
+				this.segmentLengths = new HashMap<Integer, Long>();
+				for(int x = 0; x < segmentCount; x++) {
+					this.segmentLengths.put(Integer.valueOf(segments.getInt()), Long.valueOf(segments.getLong()));
+				}
+			} catch(IndexOutOfBoundsException e) {
+				throw new IOException("truncated index");
+			} catch(BufferUnderflowException e) {
+				throw new IOException("truncated index");
+			}
+		}
+		
+		/**
+		 * Get a view of the entry at a position in the sorted order
+		 * @param x the position
+		 * @return the view, positioned at the length of the id
+		 */
+		private ByteBuffer entryAt(int x) {
+			ByteBuffer entry = this.buf.duplicate();
+			entry.position(this.buf.getInt(this.slotsPos + (4 * x)));
+			return entry;
+		}
+		
+		/**
+		 * Get the record id at a position in the sorted order
+		 * @param x the position
+		 * @return the record id
+		 */
+		protected String getID(int x) {
+			ByteBuffer entry = entryAt(x);
+			byte[] id = new byte[entry.getInt()];
+			entry.get(id);
+			return new String(id, UTF8);
+		}
+		
+		/**
+		 * Get the location of the record at a position in the sorted order
+		 * @param x the position
+		 * @return the location
+		 */
+		protected IndexEntry getEntry(int x) {
+			ByteBuffer entry = entryAt(x);
+			int idLength = entry.getInt();
+			entry.position(entry.position() + idLength);
+			int segment = entry.getInt();
+			long offset = entry.getLong();
+			int length = entry.getInt();
+			byte[] md5 = new byte[MD5_LENGTH];
+			entry.get(md5);
+			return new IndexEntry(segment, offset, length, md5, idLength);
+		}
+		
+		/**
+		 * Find the location of a record
+		 * @param recID the record id
+		 * @return the location, null if the record is not in the index
+		 */
+		protected IndexEntry get(String recID) {
+			int low = 0;
+			int high = this.count - 1;
+			while(low <= high) {
+				int mid = (low + high) >>> 1;
+				int cmp = getID(mid).compareTo(recID);
+				if(cmp < 0) {
+					low = mid + 1;
+				} else if(cmp > 0) {
+					high = mid - 1;
+				} else {
+					return getEntry(mid);
+				}
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes a new index file, given the records in id order
+	 */
+	private class IndexWriter {
+		/**
+		 * the file being written
+		 */
+		private final DataOutputStream out;
+		/**
+		 * number of bytes written
+		 */
+		private long pos;
+		/**
+		 * position of each entry written
+		 */
+		private int[] slots;
+		/**
+		 * number of entries written
+		 */
+		private int count;
+		
+		/**
+		 * Constructor
+		 * @param file the file to write
+		 * @param expected the number of records expected
+		 * @throws IOException error opening the file
+		 */
+		protected IndexWriter(File file, int expected) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			this.slots = new int[Math.max(expected, 16)];
+			this.count = 0;
+			this.out.writeInt(INDEX_MAGIC);
+			this.out.writeInt(INDEX_VERSION);
+			this.pos = 8;
+		}
+		
+		/**
+		 * Write the entry of the next record
+		 * @param recID the record id, which must sort after the previous one
+		 * @param entry the location of the record
+		 * @throws IOException error writing
+		 */
+		protected void add(String recID, IndexEntry entry) throws IOException {
+			if(this.count == this.slots.length) {
+				this.slots = Arrays.copyOf(this.slots, 2 * this.slots.length);
+			}
+			this.slots[this.count++] = checkPosition(this.pos);
+			byte[] id = recID.getBytes(UTF8);
+			this.out.writeInt(id.length);
+			this.out.write(id);
+			this.out.writeInt(entry.segment);
+			this.out.writeLong(entry.offset);
+			this.out.writeInt(entry.length);
+			this.out.write(entry.md5);
+			this.pos += 20 + id.length + MD5_LENGTH;
+		}
+		
+		/**
+		 * Write the tables and footer that follow the entries
+		 * @throws IOException error writing
+		 */
+		protected void finish() throws IOException {
+			int slotsPos = checkPosition(this.pos);
+			for(int x = 0; x < this.count; x++) {
+				this.out.writeInt(this.slots[x]);
+			}
+			this.pos += 4L * this.count;
+			int segmentsPos = checkPosition(this.pos);
+			TreeMap<Integer, Long> lengths = SegmentFileRecordHandler.this.segmentLengths;
+			this.out.writeInt(lengths.isEmpty() ? SegmentFileRecordHandler.this.activeSegment : lengths.firstKey().intValue());
+			this.out.writeInt(lengths.size());
+			for(Map.Entry<Integer, Long> segment : lengths.entrySet()) {
+				this.out.writeInt(segment.getKey().intValue());
+				this.out.writeLong(segment.getValue().longValue());
+			}
+			this.pos += 8 + (12L * lengths.size());
+			checkPosition(this.pos + INDEX_FOOTER_LENGTH);
+			this.out.writeInt(slotsPos);
+			this.out.writeInt(segmentsPos);
+			this.out.writeInt(this.count);
+			this.out.writeLong(SegmentFileRecordHandler.this.liveBytes);
+		}
+		
+		/**
+		 * Check a position fits in a mapped index
+		 * @param position the position
+		 * @return the position
+		 * @throws IOException the index has grown too large to map
+		 */
+		private int checkPosition(long position) throws IOException {
+			if(position > Integer.MAX_VALUE) {
+				throw new IOException("Index of " + SegmentFileRecordHandler.this.dir + " is too large to map");
+			}
+			return (int)position;
+		}
+		
+		/**
+		 * Close the file
+		 * @throws IOException error closing
+		 */
+		protected void close() throws IOException {
+			this.out.close();
+		}
+	}
+	
+	/**
+	 * Iterates over the ids of the records in order, merging the saved index with the records written since it was
+	 * saved, as they were when the iterator was created
+	 */
+	private class IndexIterator implements Iterator<String> {
+		/**
+		 * the saved index, null if there is none
+		 */
+		private final MappedIndex saved;
+		/**
+		 * position of the next record in the saved index
+		 */
+		private int savedPos;
+		/**
+		 * the next record id of the saved index, null if not yet read
+		 */
+		private String savedID;
+		/**
+		 * records written since the index was saved
+		 */
+		private final Iterator<Map.Entry<String, IndexEntry>> written;
+		/**
+		 * the next record written since the index was saved, null if not yet read
+		 */
+		private Map.Entry<String, IndexEntry> writtenNext;
+		/**
+		 * the next record id, null at the end
+		 */
+		private String nextID;
+		/**
+		 * location of the next record
+		 */
+		private IndexEntry nextEntry;
+		/**
+		 * location of the record last returned
+		 */
+		private IndexEntry entry;
+		
+		/**
+		 * Constructor, to be called while holding the recordhandler's lock
+		 */
+		protected IndexIterator() {
+			this.saved = SegmentFileRecordHandler.this.savedIndex;
+			this.savedPos = 0;
+			this.written = new TreeMap<String, IndexEntry>(SegmentFileRecordHandler.this.overlay).entrySet().iterator();
+			advance();
+		}
+		
+		/**
+		 * Find the next record id
+		 */
+		private void advance() {
+			while(true) {
+				if((this.savedID == null) && (this.saved != null) && (this.savedPos < this.saved.count)) {
+					this.savedID = this.saved.getID(this.savedPos);
+				}
+				if((this.writtenNext == null) && this.written.hasNext()) {
+					this.writtenNext = this.written.next();
+				}
+				if((this.savedID == null) && (this.writtenNext == null)) {
+					this.nextID = null;
+					this.nextEntry = null;
+					return;
+				}
+				int cmp = (this.savedID == null) ? -1 : ((this.writtenNext == null) ? 1 : this.writtenNext.getKey().compareTo(this.savedID));
+				if(cmp > 0) {
+					this.nextID = this.savedID;
+					this.nextEntry = this.saved.getEntry(this.savedPos);
+					this.savedID = null;
+					this.savedPos++;
+					return;
+				}
+				if(cmp == 0) {
+					// written since the index was saved, so the saved location is out of date
+					this.savedID = null;
+					this.savedPos++;
+				}
+				Map.Entry<String, IndexEntry> next = this.writtenNext;
+				this.writtenNext = null;
+				if(next.getValue() != DELETED) {
+					this.nextID = next.getKey();
+					this.nextEntry = next.getValue();
+					return;
+				}
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.nextID != null;
+		}
+		
+		@Override
+		public String next() {
+			if(this.nextID == null) {
+				throw new NoSuchElementException();
+			}
+			String recID = this.nextID;
+			this.entry = this.nextEntry;
+			advance();
+			return recID;
+		}
+		
+		/**
+		 * Get the location of the record last returned by {@link #next()}
+		 * @return the location
+		 */
+		protected IndexEntry getEntry() {
+			return this.entry;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Convert an md5 from hex to bytes
+	 * @param hex the md5 in hex
+	 * @return the bytes
+	 */
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int x = 0; x < bytes.length; x++) {
+			bytes[x] = (byte)Integer.parseInt(hex.substring(2 * x, (2 * x) + 2), 16);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Location of a record's latest data
+	 */
+	private static class IndexEntry {
+		/**
+		 * the segment number
+		 */
+		protected final int segment;
+		/**
+		 * position of the data in the segment
+		 */
+		protected final long offset;
+		/**
+		 * length of the data
+		 */
+		protected final int length;
+		/**
+		 * md5 of the data
+		 */
+		protected final byte[] md5;
+		/**
+		 * size of the whole entry in the segment
+		 */
+		protected final long size;
+		
+		/**
+		 * Constructor
+		 * @param segment the segment number
+		 * @param offset position of the data in the segment
+		 * @param length length of the data
+		 * @param md5 md5 of the data
+		 * @param idLength length of the encoded record id
+		 */
+		protected IndexEntry(int segment, long offset, int length, byte[] md5, int idLength) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.md5 = md5;
+			this.size = 8 + idLength + MD5_LENGTH + length;
+		}
+		
+		/**
+		 * Get the md5 of the data in hex, as {@link RecordMetaData#md5hex(String)} gives it
+		 * @return the md5
+		 */
+		protected String getMD5() {
+			StringBuilder sb = new StringBuilder(2 * this.md5.length);
+			for(byte b : this.md5) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		}
+	}
+}
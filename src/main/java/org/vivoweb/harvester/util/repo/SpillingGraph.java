@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.TransactionHandler;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.graph.impl.TransactionHandlerBase;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.sys.TDBMaker;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Graph held on the heap until it grows past a threshold, at which point its contents are moved to a temporary TDB
+ * directory and it continues from there. The move is invisible to anyone holding the graph. The temporary directory
+ * is deleted when the graph is closed, after the tdb dataset has been closed and dropped from tdb's own cache.
+ * @author VIVO Harvester Team
+ */
+public class SpillingGraph extends GraphBase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(SpillingGraph.class);
+	/**
+	 * number of triples to copy to the tdb graph at once when spilling
+	 */
+	private static final int BATCH_SIZE = 5000;
+	/**
+	 * number of triples after which the graph is moved to tdb, 0 to never spill
+	 */
+	private final long spillThreshold;
+	/**
+	 * the graph currently holding the triples
+	 */
+	private Graph graph;
+	/**
+	 * temporary tdb directory, null while on the heap
+	 */
+	private File tdbDir;
+	/**
+	 * the temporary tdb dataset, null while on the heap
+	 */
+	private DatasetGraphTDB tdbDataset;
+	
+	/**
+	 * Constructor
+	 * @param spillThreshold number of triples after which the graph is moved to tdb, 0 to never spill
+	 */
+	public SpillingGraph(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+		this.graph = Factory.createGraphMem();
+		this.tdbDir = null;
+		this.tdbDataset = null;
+	}
+	
+	/**
+	 * Has this graph been moved to tdb
+	 * @return true if spilled
+	 */
+	public boolean isSpilled() {
+		return this.tdbDir != null;
+	}
+	
+	/**
+	 * Get the temporary tdb directory
+	 * @return the directory, null if the graph has not been moved to tdb
+	 */
+	public File getSpillDirectory() {
+		return this.tdbDir;
+	}
+	
+	/**
+	 * Move the contents of the heap graph to a temporary tdb graph
+	 */
+	private void spill() {
+		try {
+			File dir = FileAide.createTempFile("spill", ".tdb");
+			dir.delete();
+			dir.mkdir();
+			log.debug("Graph exceeded " + this.spillThreshold + " triples, moving to temporary TDB directory " + dir.getAbsolutePath());
+			DatasetGraphTDB dsg = TDBFactory.createDatasetGraph(dir.getAbsolutePath());
+			Graph tdb = dsg.getDefaultGraph();
+			List<Triple> batch = new ArrayList<Triple>();
+			ExtendedIterator<Triple> tripleIt = this.graph.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				while(tripleIt.hasNext()) {
+					batch.add(tripleIt.next());
+					if(batch.size() >= BATCH_SIZE) {
+						tdb.getBulkUpdateHandler().add(batch);
+						batch.clear();
+					}
+				}
+			} finally {
+				tripleIt.close();
+			}
+			tdb.getBulkUpdateHandler().add(batch);
+			this.graph.close();
+			this.graph = tdb;
+			this.tdbDataset = dsg;
+			this.tdbDir = dir;
+		} catch(IOException e) {
+			throw new IllegalStateException("Unable to create temporary TDB directory", e);
+		}
+	}
+	
+	@Override
+	public void performAdd(Triple t) {
+		this.graph.add(t);
+		if((this.spillThreshold > 0) && (this.tdbDir == null) && (this.graph.size() > this.spillThreshold)) {
+			spill();
+		}
+	}
+	
+	@Override
+	public void performDelete(Triple t) {
+		this.graph.delete(t);
+	}
+	
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		return this.graph.find(m);
+	}
+	
+	@Override
+	protected boolean graphBaseContains(Triple t) {
+		return this.graph.contains(t);
+	}
+	
+	@Override
+	protected int graphBaseSize() {
+		return this.graph.size();
+	}
+	
+	@Override
+	public TransactionHandler getTransactionHandler() {
+		return new TransactionHandlerBase() {
+			@Override
+			public boolean transactionsSupported() {
+				return getDelegateHandler().transactionsSupported();
+			}
+			
+			@Override
+			public void begin() {
+				if(transactionsSupported()) {
+					getDelegateHandler().begin();
+				}
+			}
+			
+			@Override
+			public void commit() {
+				if(transactionsSupported()) {
+					getDelegateHandler().commit();
+				}
+			}
+			
+			@Override
+			public void abort() {
+				if(transactionsSupported()) {
+					getDelegateHandler().abort();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Get the transaction handler of the graph currently holding the triples
+	 * @return the transaction handler
+	 */
+	protected TransactionHandler getDelegateHandler() {
+		return this.graph.getTransactionHandler();
+	}
+	
+	@Override
+	public void close() {
+		if(!this.closed) {
+			this.graph.close();
+			if(this.tdbDataset != null) {
+				// tdb caches datasets by location, so drop it from the cache to release its files before deleting them
+				TDB.sync(this.tdbDataset);
+				TDBMaker.releaseDataset(this.tdbDataset);
+				this.tdbDataset.close();
+				this.tdbDataset = null;
+			}
+			if(this.tdbDir != null) {
+				log.trace("Deleting temporary TDB directory " + this.tdbDir.getAbsolutePath());
+				try {
+					FileAide.delete(this.tdbDir.getAbsolutePath());
+				} catch(IOException e) {
+					log.warn("Failed to delete temporary TDB directory " + this.tdbDir.getAbsolutePath() + ", please remove manually");
+				}
+			}
+		}
+		super.close();
+	}
+}
@@ -5,16 +5,49 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.NTripleAide;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
 import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.tdb.TDB;
 import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.store.bulkloader.BulkLoader;
+import com.hp.hpl.jena.tdb.sys.TDBMaker;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
 
 /**
  * Connection Helper for TDB Jena Models
+ * <p>
+ * Each directory is opened once and shared by every connection to it. The dataset is closed when the last connection
+ * using it is closed, or, if an idle timeout is set (see {@link #setIdleTimeout(long)}), once it has been unused for
+ * that long, so a pipeline that reopens the same directory soon after closing it does not pay to open it again.
+ * </p>
+ * <p>
+ * Loading rdf into an empty model, or from a file larger than {@link #BULK_LOAD_SIZE}, goes through TDB's bulk loader
+ * rather than adding one triple at a time (see {@link #setBulkLoad(Boolean)}).
+ * </p>
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
 public class TDBJenaConnect extends JenaConnect {
@@ -23,13 +56,37 @@ public class TDBJenaConnect extends JenaConnect {
 	 */
 	private static Logger log = LoggerFactory.getLogger(TDBJenaConnect.class);
 	/**
-	 * Mapping of directory to Dataset
+	 * Mapping of canonical directory path to open Dataset
 	 */
-	private static HashMap<String, Dataset> dirDatasets = new HashMap<String, Dataset>();
+	private static Map<String, PooledDataset> dirDatasets = new HashMap<String, PooledDataset>();
 	/**
-	 * the TDB directory name
+	 * milliseconds an unused dataset stays open, 0 to close as soon as it is unused
+	 */
+	private static long idleTimeout = 0;
+	/**
+	 * file size in bytes from which loads always use the bulk loader
+	 */
+	public static final long BULK_LOAD_SIZE = 64L * 1024 * 1024;
+	/**
+	 * size of the buffer between the rdf parser and the bulk loader
+	 */
+	private static final int PIPE_SIZE = 1024 * 1024;
+	/**
+	 * the TDB directory, as a canonical path
 	 */
 	private final String dbDir;
+	/**
+	 * the dataset for the directory
+	 */
+	private final Dataset dataset;
+	/**
+	 * has this connection been closed
+	 */
+	private boolean closed;
+	/**
+	 * use the bulk loader: true always, false never, null when the model is empty or the input is large
+	 */
+	private Boolean bulkLoad;
 	
 	/**
 	 * Clone Constructor
@@ -54,9 +111,10 @@ public class TDBJenaConnect extends JenaConnect {
 	 * @param modelName the model to connect to
 	 */
 	public TDBJenaConnect(String dbDir, String modelName) {
-		this.dbDir = dbDir;
 		try {
-			FileAide.createFolder(this.dbDir);
+			FileAide.createFolder(dbDir);
+			// tdb caches datasets by location, so every spelling of a directory must share one pooled dataset
+			this.dbDir = new File(dbDir).getCanonicalPath();
 		} catch(IOException e) {
 			throw new IllegalArgumentException("Invalid Directory", e);
 		}
@@ -65,15 +123,256 @@ public class TDBJenaConnect extends JenaConnect {
 		} else {
 			setModelName("urn:x-arq:DefaultGraph");
 		}
-		setJenaModel(getDataset().getNamedModel(getModelName()));
+		this.dataset = acquireDataset(this.dbDir);
+		this.closed = false;
+		this.bulkLoad = null;
+		setJenaModel(this.dataset.getNamedModel(getModelName()));
+	}
+	
+	/**
+	 * Set how long a dataset no connection is using stays open
+	 * @param millis milliseconds to keep an unused dataset open, 0 to close it as soon as it is unused
+	 */
+	public static synchronized void setIdleTimeout(long millis) {
+		idleTimeout = millis;
+		closeIdleDatasets(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Close every dataset no connection is using, regardless of the idle timeout
+	 */
+	public static synchronized void closeIdleDatasets() {
+		closeIdleDatasets(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Close the datasets that have been unused past the idle timeout
+	 * @param now the current time in milliseconds
+	 */
+	private static synchronized void closeIdleDatasets(long now) {
+		Iterator<Map.Entry<String, PooledDataset>> entryIt = dirDatasets.entrySet().iterator();
+		while(entryIt.hasNext()) {
+			Map.Entry<String, PooledDataset> entry = entryIt.next();
+			PooledDataset pd = entry.getValue();
+			if((pd.getOpenCount() == 0) && ((now == Long.MAX_VALUE) || ((now - pd.getIdleSince()) >= idleTimeout))) {
+				log.trace("closing tdb dataset: " + entry.getKey());
+				pd.close();
+				entryIt.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Get the dataset for a directory, opening it if needed, and count this connection as using it
+	 * @param dir the tdb directory name
+	 * @return the dataset
+	 */
+	private static synchronized Dataset acquireDataset(String dir) {
+		PooledDataset pd = dirDatasets.get(dir);
+		if(pd == null) {
+			log.trace("opening tdb dataset: " + dir);
+			pd = new PooledDataset(TDBFactory.createDataset(dir));
+			dirDatasets.put(dir, pd);
+		}
+		pd.acquire();
+		closeIdleDatasets(System.currentTimeMillis());
+		return pd.getDataset();
+	}
+	
+	/**
+	 * Count one less connection as using a directory's dataset, closing it if unused and no idle timeout is set
+	 * @param dir the tdb directory name
+	 */
+	private static synchronized void releaseDataset(String dir) {
+		PooledDataset pd = dirDatasets.get(dir);
+		if(pd != null) {
+			pd.release(System.currentTimeMillis());
+		}
+		closeIdleDatasets(System.currentTimeMillis());
 	}
 	
 	@Override
 	public Dataset getDataset() {
-		if(!dirDatasets.containsKey(this.dbDir)) {
-			dirDatasets.put(this.dbDir, TDBFactory.createDataset(this.dbDir));
+		return this.dataset;
+	}
+	
+	/**
+	 * Set when loads use TDB's bulk loader
+	 * @param bulkLoad true to always bulk load, false to never bulk load, null to bulk load when the model is empty or
+	 *        the input is larger than {@link #BULK_LOAD_SIZE}
+	 */
+	public void setBulkLoad(Boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+	
+	/**
+	 * Should a load use the bulk loader
+	 * @param size size in bytes of the input, -1 if unknown
+	 * @return true if the bulk loader should be used
+	 */
+	private boolean useBulkLoad(long size) {
+		if((this.bulkLoad != null) && !this.bulkLoad.booleanValue()) {
+			return false;
+		}
+		if(!(this.dataset.asDatasetGraph() instanceof DatasetGraphTDB) || getModelName().equals("urn:x-arq:UnionGraph")) {
+			return false;
+		}
+		if((this.bulkLoad != null) || (size >= BULK_LOAD_SIZE)) {
+			return true;
+		}
+		try {
+			return isEmpty();
+		} catch(IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Run the bulk loader over N-Triples into this model
+	 * @param in the N-Triples
+	 */
+	private void bulkLoadNTriples(InputStream in) {
+		DatasetGraphTDB dsg = (DatasetGraphTDB)this.dataset.asDatasetGraph();
+		long start = System.currentTimeMillis();
+		if(getModelName().equals("urn:x-arq:DefaultGraph")) {
+			BulkLoader.loadDefaultGraph(dsg, in, false);
+		} else {
+			BulkLoader.loadNamedGraph(dsg, Node.createURI(getModelName()), in, false);
+		}
+		TDB.sync(dsg);
+		invalidateSize();
+		log.debug("Bulk loaded into " + getModelName() + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+	
+	/**
+	 * Run the bulk loader over the triples a feeder produces, parsing on one thread and loading on this one
+	 * @param feeder the feeder
+	 */
+	private void bulkLoad(final BulkLoadFeeder feeder) {
+		final PipedOutputStream pipeOut = new PipedOutputStream();
+		PipedInputStream pipeIn;
+		try {
+			pipeIn = new PipedInputStream(pipeOut, PIPE_SIZE);
+		} catch(IOException e) {
+			throw new IllegalStateException("Unable to create bulk load pipe", e);
+		}
+		final Throwable[] feedError = new Throwable[1];
+		Thread feedThread = new Thread("TDB bulk load parser") {
+			@Override
+			public void run() {
+				try {
+					Writer w = new BufferedWriter(new OutputStreamWriter(pipeOut, "UTF-8"));
+					try {
+						feeder.feed(ModelFactory.createModelForGraph(new NTriplesWriterGraph(w)));
+					} finally {
+						w.close();
+					}
+				} catch(Throwable e) {
+					feedError[0] = e;
+					try {
+						pipeOut.close();
+					} catch(IOException e1) {
+						// ignore
+					}
+				}
+			}
+		};
+		feedThread.start();
+		try {
+			bulkLoadNTriples(pipeIn);
+		} finally {
+			try {
+				pipeIn.close();
+			} catch(IOException e) {
+				// ignore
+			}
+			try {
+				feedThread.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(feedError[0] instanceof RuntimeException) {
+			throw (RuntimeException)feedError[0];
+		}
+		if(feedError[0] != null) {
+			throw new IllegalStateException("Error parsing rdf for bulk load", feedError[0]);
+		}
+	}
+	
+	@Override
+	public void loadRdfFromStream(InputStream in, String namespace, String language) {
+		loadRdfFromStream(in, namespace, language, -1);
+	}
+	
+	/**
+	 * Load in RDF from a stream, using the bulk loader if appropriate
+	 * @param in input stream to read rdf from
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the language the rdf is in
+	 * @param size size in bytes of the input, -1 if unknown
+	 */
+	private void loadRdfFromStream(final InputStream in, final String namespace, final String language, long size) {
+		if(!useBulkLoad(size)) {
+			super.loadRdfFromStream(in, namespace, language);
+		} else if(isNTriples(language)) {
+			bulkLoadNTriples(in);
+		} else {
+			bulkLoad(new BulkLoadFeeder() {
+				@Override
+				public void feed(Model sink) {
+					sink.read(in, namespace, language);
+				}
+			});
+		}
+	}
+	
+	@Override
+	public void loadRdfFromFile(String fileName, String namespace, String language) throws IOException {
+		loadRdfFromStream(getFileInputStream(fileName), namespace, getFileLanguage(fileName, language), FileAide.getSize(fileName));
+	}
+	
+	@Override
+	public void loadNTriplesFromFile(String fileName, String namespace, int threads) throws IOException {
+		if(useBulkLoad(FileAide.getSize(fileName))) {
+			// the bulk loader builds the indexes faster than parallel parsing can feed single adds
+			loadRdfFromFile(fileName, namespace, "N-TRIPLE");
+		} else {
+			super.loadNTriplesFromFile(fileName, namespace, threads);
+		}
+	}
+	
+	@Override
+	public int loadRdfFromRH(final RecordHandler rh, final String namespace, final String language) {
+		if(!useBulkLoad(-1)) {
+			return super.loadRdfFromRH(rh, namespace, language);
+		}
+		final int[] processCount = new int[1];
+		bulkLoad(new BulkLoadFeeder() {
+			@Override
+			public void feed(Model sink) {
+				for(Record r : rh) {
+					log.trace("loading record: " + r.getID());
+					sink.read(new ByteArrayInputStream(r.getData().getBytes()), namespace, language);
+					processCount[0]++;
+				}
+			}
+		});
+		return processCount[0];
+	}
+	
+	@Override
+	protected int countStatements() throws IOException {
+		if(getModelName().equals("urn:x-arq:UnionGraph")) {
+			// the union is only understood by queries
+			return super.countStatements();
 		}
-		return dirDatasets.get(this.dbDir);
+		return getJenaModel().getGraph().size();
+	}
+	
+	@Override
+	public boolean sharesStoreWith(JenaConnect other) {
+		return (other instanceof TDBJenaConnect) && (((TDBJenaConnect)other).dataset == this.dataset);
 	}
 	
 	@Override
@@ -83,8 +382,13 @@ public class TDBJenaConnect extends JenaConnect {
 	
 	@Override
 	public void close() {
+		if(this.closed) {
+			return;
+		}
+		this.closed = true;
 		super.close();
 		getJenaModel().close();
+		releaseDataset(this.dbDir);
 	}
 	
 	@Override
@@ -98,4 +402,133 @@ public class TDBJenaConnect extends JenaConnect {
 	public void sync() {
 		// Do Nothing
 	}
+	
+	/**
+	 * An open dataset and the number of connections using it
+	 */
+	private static class PooledDataset {
+		/**
+		 * the dataset
+		 */
+		private final Dataset dataset;
+		/**
+		 * number of open connections using the dataset
+		 */
+		private int openCount;
+		/**
+		 * time the last connection using the dataset was closed
+		 */
+		private long idleSince;
+		
+		/**
+		 * Constructor
+		 * @param dataset the dataset
+		 */
+		protected PooledDataset(Dataset dataset) {
+			this.dataset = dataset;
+			this.openCount = 0;
+			this.idleSince = 0;
+		}
+		
+		/**
+		 * Get the dataset
+		 * @return the dataset
+		 */
+		protected Dataset getDataset() {
+			return this.dataset;
+		}
+		
+		/**
+		 * Get the number of open connections using the dataset
+		 * @return the number of connections
+		 */
+		protected int getOpenCount() {
+			return this.openCount;
+		}
+		
+		/**
+		 * Get the time the last connection using the dataset was closed
+		 * @return the time in milliseconds
+		 */
+		protected long getIdleSince() {
+			return this.idleSince;
+		}
+		
+		/**
+		 * Count a connection as using the dataset
+		 */
+		protected void acquire() {
+			this.openCount++;
+		}
+		
+		/**
+		 * Count one less connection as using the dataset
+		 * @param now the current time in milliseconds
+		 */
+		protected void release(long now) {
+			if(this.openCount > 0) {
+				this.openCount--;
+				if(this.openCount == 0) {
+					this.idleSince = now;
+				}
+			}
+		}
+		
+		/**
+		 * Flush and close the dataset, dropping it from tdb's own cache so the directory can be reopened
+		 */
+		protected void close() {
+			TDB.sync(this.dataset);
+			DatasetGraph dsg = this.dataset.asDatasetGraph();
+			if(dsg instanceof DatasetGraphTDB) {
+				TDBMaker.releaseDataset((DatasetGraphTDB)dsg);
+			}
+			this.dataset.close();
+		}
+	}
+	
+	/**
+	 * Produces the triples for a bulk load
+	 */
+	private interface BulkLoadFeeder {
+		/**
+		 * Add every triple to be loaded to the sink
+		 * @param sink the model to add triples to
+		 * @throws IOException error reading input
+		 */
+		void feed(Model sink) throws IOException;
+	}
+	
+	/**
+	 * Write only graph that writes each added triple as an N-Triples line
+	 */
+	private static class NTriplesWriterGraph extends GraphBase {
+		/**
+		 * the writer
+		 */
+		private final Writer out;
+		
+		/**
+		 * Constructor
+		 * @param out the writer
+		 */
+		protected NTriplesWriterGraph(Writer out) {
+			this.out = out;
+		}
+		
+		@Override
+		public void performAdd(Triple t) {
+			try {
+				this.out.write(NTripleAide.toLine(t));
+				this.out.write('\n');
+			} catch(IOException e) {
+				throw new IllegalStateException("Error writing triple for bulk load", e);
+			}
+		}
+		
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+			return NiceIterator.emptyIterator();
+		}
+	}
 }
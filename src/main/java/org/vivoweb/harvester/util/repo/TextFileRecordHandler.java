@@ -13,11 +13,13 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TimeZone;
@@ -44,6 +46,13 @@ import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Record Handler that stores each record as a file in a directory
+ * <p>
+ * Record metadata is kept either in one xml file per record under .metadata (the default), or, with the
+ * metaDataStore param set to "log", in a single {@link RecordMetaDataLog} file, which is much cheaper to check for
+ * large record sets. Switching to the log moves any existing xml metadata into it, after which the directory always
+ * uses the log: opening it without asking for the log still uses the log, and asking for xml explicitly is refused.
+ * {@link #addRecords(Iterable, Class, boolean)} writes the log entries of all the records added at once.
+ * </p>
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
 public class TextFileRecordHandler extends RecordHandler {
@@ -59,6 +68,22 @@ public class TextFileRecordHandler extends RecordHandler {
 	 * The directory to store record metadata files in
 	 */
 	private String metaDir;
+	/**
+	 * The file the sorted record id index is saved in
+	 */
+	private String indexFile;
+	/**
+	 * Sorted ids of the records in fileDir, null until first needed
+	 */
+	private SortedSet<String> idIndex;
+	/**
+	 * Has the id index changed since it was saved
+	 */
+	private boolean idIndexChanged;
+	/**
+	 * The metadata log, null when metadata is kept in one xml file per record
+	 */
+	private RecordMetaDataLog metaDataLog;
 	
 	/**
 	 * Default Constructor
@@ -70,20 +95,32 @@ public class TextFileRecordHandler extends RecordHandler {
 	}
 	
 	/**
-	 * Constructor
+	 * Constructor, keeping metadata in one xml file per record unless the directory already has a metadata log
 	 * @param fileDir directory to store records in
 	 * @throws IOException error accessing directory
 	 */
 	public TextFileRecordHandler(String fileDir) throws IOException {
-		setFileDirObj(fileDir);
+		this(fileDir, false);
+	}
+	
+	/**
+	 * Constructor
+	 * @param fileDir directory to store records in
+	 * @param useMetaDataLog keep record metadata in a single log file rather than one xml file per record, migrating
+	 *        any existing xml metadata files into the log (the log is used anyway if the directory already has one)
+	 * @throws IOException error accessing directory
+	 */
+	public TextFileRecordHandler(String fileDir, boolean useMetaDataLog) throws IOException {
+		setFileDirObj(fileDir, useMetaDataLog);
 	}
 	
 	/**
 	 * Setter for fileDir
 	 * @param fileDir the directory path String
+	 * @param useMetaDataLog keep record metadata in a single log file, also done if the directory already has one
 	 * @throws IOException unable to connect
 	 */
-	private void setFileDirObj(String fileDir) throws IOException {
+	private void setFileDirObj(String fileDir, boolean useMetaDataLog) throws IOException {
 		if(!FileAide.exists(fileDir)) {
 			log.debug("Directory '" + fileDir + "' Does Not Exist, attempting to create");
 			FileAide.createFolder(fileDir);
@@ -94,11 +131,133 @@ public class TextFileRecordHandler extends RecordHandler {
 			log.debug("Directory '" + fileDir + "/.metadata' Does Not Exist, attempting to create");
 			FileAide.createFolder(this.metaDir);
 		}
+		this.indexFile = this.metaDir+"/.index";
+		this.idIndex = null;
+		this.idIndexChanged = false;
+		if(!useMetaDataLog && FileAide.exists(this.metaDir+"/.log")) {
+			log.info("Directory '" + fileDir + "' keeps its metadata in " + this.metaDir + "/.log, using it");
+			useMetaDataLog = true;
+		}
+		if(useMetaDataLog) {
+			this.metaDataLog = new RecordMetaDataLog(this.metaDir+"/.log");
+			migrateMetaDataFiles();
+		} else {
+			this.metaDataLog = null;
+		}
+	}
+	
+	/**
+	 * Move the contents of any xml metadata files into the metadata log and delete them
+	 * @throws IOException error reading metadata files or writing the log
+	 */
+	private void migrateMetaDataFiles() throws IOException {
+		Set<String> ids = FileAide.getNonHiddenChildren(this.metaDir);
+		if(ids.isEmpty()) {
+			return;
+		}
+		log.info("Migrating metadata of " + ids.size() + " records to " + this.metaDir + "/.log");
+		for(String recID : ids) {
+			String fmo = this.metaDir+"/"+recID;
+			SortedSet<RecordMetaData> rmds;
+			try {
+				rmds = new TextFileMetaDataParser().parseMetaData(fmo);
+			} catch(ParserConfigurationException e) {
+				throw new IOException(e);
+			} catch(SAXException e) {
+				log.warn("Skipping unreadable metadata file " + fmo + ": " + e.getMessage());
+				continue;
+			}
+			for(RecordMetaData rmd : rmds) {
+				this.metaDataLog.add(recID, rmd);
+			}
+			FileAide.delete(fmo);
+		}
+	}
+	
+	/**
+	 * Get the sorted ids of the records, loading the saved index if it is strictly newer than the last change to fileDir
+	 * and otherwise rebuilding (and saving) it from the directory listing. An index saved in the same timestamp tick as
+	 * the last change is not trusted, since on filesystems with coarse timestamps a record could have been added later
+	 * in that same tick.
+	 * @return the id index
+	 * @throws IOException error reading the index or listing the directory
+	 */
+	private synchronized SortedSet<String> getIdIndex() throws IOException {
+		if(this.idIndex == null) {
+			if(FileAide.exists(this.indexFile) && (FileAide.getLastModified(this.indexFile) > FileAide.getLastModified(this.fileDir))) {
+				log.debug("Loading record id index");
+				this.idIndex = new TreeSet<String>();
+				BufferedReader br = new BufferedReader(new InputStreamReader(FileAide.getInputStream(this.indexFile), "UTF-8"));
+				try {
+					String line;
+					while((line = br.readLine()) != null) {
+						if(line.length() > 0) {
+							this.idIndex.add(line);
+						}
+					}
+				} finally {
+					br.close();
+				}
+			} else {
+				log.debug("Compiling list of records");
+				this.idIndex = new TreeSet<String>(FileAide.getNonHiddenChildren(this.fileDir));
+				this.idIndexChanged = true;
+				saveIdIndex();
+			}
+		}
+		return this.idIndex;
+	}
+	
+	/**
+	 * Save the id index if it has changed
+	 * @throws IOException error writing the index
+	 */
+	private synchronized void saveIdIndex() throws IOException {
+		if((this.idIndex == null) || !this.idIndexChanged) {
+			return;
+		}
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(FileAide.getOutputStream(this.indexFile), "UTF-8"));
+		try {
+			for(String id : this.idIndex) {
+				bw.write(id);
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
+		this.idIndexChanged = false;
+	}
+	
+	/**
+	 * Add or remove an id in the index, if it has been loaded
+	 * @param recID the record id
+	 * @param present true if the record now exists
+	 */
+	private synchronized void updateIdIndex(String recID, boolean present) {
+		if(this.idIndex != null) {
+			boolean changed = present ? this.idIndex.add(recID) : this.idIndex.remove(recID);
+			this.idIndexChanged |= changed;
+		}
 	}
 	
 	@Override
 	public void setParams(Map<String, String> params) throws IllegalArgumentException, IOException {
-		setFileDirObj(getParam(params, "fileDir", true));
+		String fileDirParam = getParam(params, "fileDir", true);
+		String metaDataStore = getParam(params, "metaDataStore", false);
+		boolean useMetaDataLog;
+		if(metaDataStore == null) {
+			useMetaDataLog = false;
+		} else if(metaDataStore.equalsIgnoreCase("xml")) {
+			if(FileAide.exists(fileDirParam+"/.metadata/.log")) {
+				throw new IllegalArgumentException("metaDataStore 'xml' requested, but the metadata of '" + fileDirParam + "' has been moved to its metadata log");
+			}
+			useMetaDataLog = false;
+		} else if(metaDataStore.equalsIgnoreCase("log")) {
+			useMetaDataLog = true;
+		} else {
+			throw new IllegalArgumentException("Unknown metaDataStore '" + metaDataStore + "', must be 'xml' or 'log'");
+		}
+		setFileDirObj(fileDirParam, useMetaDataLog);
 	}
 	
 	/**
@@ -117,22 +276,68 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	public boolean addRecord(Record rec, Class<?> operator, boolean overwrite) throws IOException {
-		String newID = sanitizeID(rec.getID());
-		Record cleanRec;
-		if(newID == null) {
-			cleanRec = rec;
-		} else {
-			cleanRec = new Record(newID, rec.getData(), this);
-		}
+		Record cleanRec = cleanRecord(rec);
 		if(!needsUpdated(cleanRec)) {
 			return false;
 		}
+		writeRecordFile(cleanRec, overwrite);
+		setWritten(cleanRec, operator);
+		return true;
+	}
+	
+	@Override
+	public int addRecords(Iterable<Record> recs, Class<?> creator, boolean overwrite) throws IOException {
+		// only the last version of a record added twice is written
+		Map<String, Record> changed = new LinkedHashMap<String, Record>();
+		for(Record rec : recs) {
+			Record cleanRec = cleanRecord(rec);
+			changed.remove(cleanRec.getID());
+			if(needsUpdated(cleanRec)) {
+				changed.put(cleanRec.getID(), cleanRec);
+			}
+		}
+		Map<String, RecordMetaData> rmds = new LinkedHashMap<String, RecordMetaData>();
+		for(Record cleanRec : changed.values()) {
+			writeRecordFile(cleanRec, overwrite);
+			if(this.metaDataLog == null) {
+				setWritten(cleanRec, creator);
+			} else {
+				rmds.put(cleanRec.getID(), new RecordMetaData(creator, RecordMetaDataType.written, RecordMetaData.md5hex(cleanRec.getData())));
+			}
+		}
+		if(!rmds.isEmpty()) {
+			this.metaDataLog.add(rmds);
+		}
+		return changed.size();
+	}
+	
+	/**
+	 * Get a record with a sanitized id
+	 * @param rec the record
+	 * @return the record, or a copy with the sanitized id if it needed sanitizing
+	 */
+	private Record cleanRecord(Record rec) {
+		String newID = sanitizeID(rec.getID());
+		if(newID == null) {
+			return rec;
+		}
+		return new Record(newID, rec.getData(), this);
+	}
+	
+	/**
+	 * Write the file for a record, creating its metadata file if needed
+	 * @param cleanRec the record, with a sanitized id
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @throws IOException error writing
+	 */
+	private void writeRecordFile(Record cleanRec, boolean overwrite) throws IOException {
 		// log.debug("Resolving file for record: " + cleanRec.getID());
 		String fo = this.fileDir+"/"+cleanRec.getID();
 		FileAide.setTextContent(fo, cleanRec.getData(), overwrite);
-		createMetaDataFile(cleanRec.getID());
-		setWritten(cleanRec, operator);
-		return true;
+		updateIdIndex(cleanRec.getID(), true);
+		if(this.metaDataLog == null) {
+			createMetaDataFile(cleanRec.getID());
+		}
 	}
 	
 	/**
@@ -187,6 +392,7 @@ public class TextFileRecordHandler extends RecordHandler {
 		} else if(!FileAide.delete(fo)) {
 			throw new IOException("Failed to delete record " + recID + " from file " + fo);
 		}
+		updateIdIndex(recID, false);
 		delMetaData(recID);
 	}
 	
@@ -230,6 +436,12 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	protected void delMetaData(String recID) throws IOException {
+		if(this.metaDataLog != null) {
+			if(!this.metaDataLog.delete(recID)) {
+				log.warn("Attempted to delete record " + recID + " metadata, but it had none.");
+			}
+			return;
+		}
 		String fmo = this.metaDir+"/"+recID;
 		if(!FileAide.exists(fmo)) {
 			log.warn("Attempted to delete record " + recID + " metadata, but file " + fmo + " did not exist.");
@@ -242,6 +454,10 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
+		if(this.metaDataLog != null) {
+			this.metaDataLog.add(rec.getID(), rmd);
+			return;
+		}
 		String fmo = this.metaDir+"/"+rec.getID();
 		if(!FileAide.exists(fmo)) {
 			log.debug("Attempted to add record " + rec.getID() + " metadata, but file " + fmo + " did not exist. Initializing record metadata.");
@@ -321,6 +537,13 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		if(this.metaDataLog != null) {
+			SortedSet<RecordMetaData> rmds = this.metaDataLog.get(recID);
+			if(rmds == null) {
+				throw new IOException("Attempted to retrieve record " + recID + " metadata, but there is none");
+			}
+			return rmds;
+		}
 		try {
 			String fmo = this.metaDir+"/"+recID;
 			if(!FileAide.exists(fmo)) {
@@ -342,7 +565,7 @@ public class TextFileRecordHandler extends RecordHandler {
 	}
 	
 	/**
-	 * Iterator for TextFileRecordHandler
+	 * Iterator for TextFileRecordHandler, the records read their data from disk only when it is asked for
 	 * @author cah
 	 */
 	private class TextFileRecordIterator implements Iterator<Record> {
@@ -355,16 +578,17 @@ public class TextFileRecordHandler extends RecordHandler {
 		 * Default Constructor
 		 */
 		protected TextFileRecordIterator() {
-			Set<String> allFileListing = new TreeSet<String>();
-			log.debug("Compiling list of records");
+			List<String> allFileListing = new ArrayList<String>();
 			try {
-				allFileListing.addAll(FileAide.getNonHiddenChildren(TextFileRecordHandler.this.fileDir));
+				synchronized(TextFileRecordHandler.this) {
+					// copy, so records can be added or deleted while iterating
+					allFileListing.addAll(getIdIndex());
+				}
 			} catch(IOException e) {
 				log.error(e.getMessage());
 				log.debug("Stacktrace:",e);
 			}
 			this.fileNameIter = allFileListing.iterator();
-			log.debug("List compiled");
 		}
 		
 		@Override
@@ -374,11 +598,7 @@ public class TextFileRecordHandler extends RecordHandler {
 		
 		@Override
 		public Record next() {
-			try {
-				return getRecord(this.fileNameIter.next());
-			} catch(IOException e) {
-				throw new NoSuchElementException(e.getMessage());
-			}
+			return new Record(this.fileNameIter.next(), TextFileRecordHandler.this);
 		}
 		
 		@Override
@@ -439,8 +659,12 @@ public class TextFileRecordHandler extends RecordHandler {
 		protected SortedSet<RecordMetaData> parseMetaData(String fmo) throws ParserConfigurationException, SAXException, IOException {
 			SAXParserFactory spf = SAXParserFactory.newInstance(); // get a factory
 			SAXParser sp = spf.newSAXParser(); // get a new instance of parser
-			sp.parse(FileAide.getInputStream(fmo), this); // parse the file and also register this class for call
-			// backs
+			InputStream is = FileAide.getInputStream(fmo);
+			try {
+				sp.parse(is, this); // parse the file and also register this class for call backs
+			} finally {
+				is.close();
+			}
 			return this.rmdSet;
 		}
 		
@@ -503,15 +727,18 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	public void close() throws IOException {
-		// Do nothing
+		saveIdIndex();
+		if(this.metaDataLog != null) {
+			this.metaDataLog.close();
+		}
 	}
 	
 	@Override
-	public Set<String> find(String idText) {
+	public synchronized Set<String> find(String idText) throws IOException {
 		Set<String> retVal = new TreeSet<String>();
-		for(Record r : this) {
-			if(r.getID().contains(idText)) {
-				retVal.add(r.getID());
+		for(String id : getIdIndex()) {
+			if(id.contains(idText)) {
+				retVal.add(id);
 			}
 		}
 		return retVal;
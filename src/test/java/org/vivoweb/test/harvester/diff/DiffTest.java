@@ -5,15 +5,22 @@
  ******************************************************************************/
 package org.vivoweb.test.harvester.diff;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.diff.Diff;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
@@ -157,6 +164,184 @@ public class DiffTest extends TestCase {
 		log.info("END testDiffSame");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.diff.Diff#streamingDiff(JenaConnect, JenaConnect, JenaConnect, java.util.Map, java.util.Map, int)}.
+	 * @throws IOException error
+	 */
+	public final void testStreamingDiffAdds() throws IOException {
+		log.info("BEGIN testStreamingDiffAdds");
+		Resource bnode = this.incomming.getJenaModel().createResource();
+		Property prop = ResourceFactory.createProperty("http://test.vivoweb.org/harvester/test/diff/propE");
+		Statement bnodeStmt = new StatementImpl(bnode, prop, this.incomming.getJenaModel().createLiteral("caf\u00e9 \"quoted\"\nline", "fr"));
+		this.incomming.getJenaModel().add(bnodeStmt);
+		this.addStatements.add(bnodeStmt);
+		Diff.streamingDiff(this.incomming, this.original, this.output, null, null, 2);
+		assertFalse(this.output.isEmpty());
+		for(Statement sub : this.subStatements) {
+			assertFalse(this.output.getJenaModel().contains(sub));
+		}
+		for(Statement add : this.addStatements) {
+			assertTrue(this.output.getJenaModel().contains(add));
+		}
+		for(Statement shared : this.shareStatements) {
+			assertFalse(this.output.getJenaModel().contains(shared));
+		}
+		log.info("END testStreamingDiffAdds");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.diff.Diff#streamingDiff(JenaConnect, JenaConnect, JenaConnect, java.util.Map, java.util.Map, int)}.
+	 * @throws IOException error
+	 */
+	public final void testStreamingDiffSubs() throws IOException {
+		log.info("BEGIN testStreamingDiffSubs");
+		Diff.streamingDiff(this.original, this.incomming, this.output, null, null, 2);
+		assertFalse(this.output.isEmpty());
+		for(Statement sub : this.subStatements) {
+			assertTrue(this.output.getJenaModel().contains(sub));
+		}
+		for(Statement add : this.addStatements) {
+			assertFalse(this.output.getJenaModel().contains(add));
+		}
+		for(Statement shared : this.shareStatements) {
+			assertFalse(this.output.getJenaModel().contains(shared));
+		}
+		log.info("END testStreamingDiffSubs");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.diff.Diff#diffBothDirections(JenaConnect, JenaConnect, JenaConnect, java.util.Map, JenaConnect, java.util.Map, java.util.Map)}.
+	 * @throws IOException error
+	 */
+	public final void testDiffBothDirections() throws IOException {
+		log.info("BEGIN testDiffBothDirections");
+		JenaConnect reverse = new MemJenaConnect("reverse");
+		try {
+			Diff.diffBothDirections(this.incomming, this.original, this.output, null, reverse, null, null);
+			assertBothDirections(reverse);
+		} finally {
+			reverse.truncate();
+			reverse.close();
+		}
+		log.info("END testDiffBothDirections");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.diff.Diff#streamingDiffBothDirections(JenaConnect, JenaConnect, JenaConnect, java.util.Map, JenaConnect, java.util.Map, java.util.Map, int)}.
+	 * @throws IOException error
+	 */
+	public final void testStreamingDiffBothDirections() throws IOException {
+		log.info("BEGIN testStreamingDiffBothDirections");
+		JenaConnect reverse = new MemJenaConnect("reverse");
+		try {
+			Diff.streamingDiffBothDirections(this.incomming, this.original, this.output, null, reverse, null, null, 2);
+			assertBothDirections(reverse);
+		} finally {
+			reverse.truncate();
+			reverse.close();
+		}
+		log.info("END testStreamingDiffBothDirections");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.diff.Diff#diffBothDirections(JenaConnect, JenaConnect, JenaConnect, java.util.Map, JenaConnect, java.util.Map, java.util.Map)}
+	 * with subjects and blank nodes found in only one model.
+	 * @throws IOException error
+	 */
+	public final void testDiffSubjectsInOneModel() throws IOException {
+		log.info("BEGIN testDiffSubjectsInOneModel");
+		Property prop = ResourceFactory.createProperty("http://test.vivoweb.org/harvester/test/diff/propE");
+		Resource resE = ResourceFactory.createResource("http://test.vivoweb.org/harvester/test/diff/resE");
+		Statement removed = new StatementImpl(resE, prop, ResourceFactory.createTypedLiteral("resEpropEold"));
+		this.original.getJenaModel().add(removed);
+		this.subStatements.add(removed);
+		Resource bnode = this.incomming.getJenaModel().createResource();
+		Statement added = new StatementImpl(bnode, prop, ResourceFactory.createTypedLiteral("bnodepropEnew"));
+		this.incomming.getJenaModel().add(added);
+		this.addStatements.add(added);
+		JenaConnect reverse = new MemJenaConnect("reverse");
+		try {
+			Diff.diffBothDirections(this.incomming, this.original, this.output, null, reverse, null, null);
+			assertBothDirections(reverse);
+			assertEquals(this.addStatements.size(), this.output.getJenaModel().size());
+			assertEquals(this.subStatements.size(), reverse.getJenaModel().size());
+		} finally {
+			reverse.truncate();
+			reverse.close();
+		}
+		log.info("END testDiffSubjectsInOneModel");
+	}
+	
+	/**
+	 * Check that output holds the additions and reverse holds the subtractions
+	 * @param reverse the reverse output
+	 */
+	private void assertBothDirections(JenaConnect reverse) {
+		for(Statement sub : this.subStatements) {
+			assertFalse(this.output.getJenaModel().contains(sub));
+			assertTrue(reverse.getJenaModel().contains(sub));
+		}
+		for(Statement add : this.addStatements) {
+			assertTrue(this.output.getJenaModel().contains(add));
+			assertFalse(reverse.getJenaModel().contains(add));
+		}
+		for(Statement shared : this.shareStatements) {
+			assertFalse(this.output.getJenaModel().contains(shared));
+			assertFalse(reverse.getJenaModel().contains(shared));
+		}
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.diff.Diff#streamingDiff(JenaConnect, JenaConnect, JenaConnect, java.util.Map, java.util.Map, int)}
+	 * writing RDF/XML and Turtle dump files.
+	 * @throws IOException error
+	 */
+	public final void testStreamingDiffDumpLanguages() throws IOException {
+		log.info("BEGIN testStreamingDiffDumpLanguages");
+		Model extra = this.incomming.getJenaModel();
+		Resource blank = extra.createResource();
+		Property propE = extra.createProperty("http://test.vivoweb.org/harvester/test/diff/propE");
+		Property propF = extra.createProperty("http://test.vivoweb.org/harvester/test/other#propF");
+		extra.add(blank, propE, "caf\u00e9 & <tag> \"quoted\"", "fr");
+		extra.add(blank, propF, extra.createResource("http://test.vivoweb.org/harvester/test/diff/resA?x=1&y=2"));
+		extra.add(extra.createResource("http://test.vivoweb.org/harvester/test/diff/resA"), propF, blank);
+		extra.add(blank, propE, extra.createTypedLiteral(Integer.valueOf(42)));
+		Model expected = ModelFactory.createDefaultModel();
+		expected.add(this.addStatements);
+		expected.add(blank.listProperties());
+		expected.add(extra.listStatements(null, null, blank));
+		File xmlFile = File.createTempFile("diffDump", ".rdf");
+		File ttlFile = File.createTempFile("diffDump", ".ttl");
+		try {
+			Map<String, String> dF = new HashMap<String, String>();
+			dF.put("xml", xmlFile.getPath());
+			dF.put("ttl", ttlFile.getPath());
+			Map<String, String> dL = new HashMap<String, String>();
+			dL.put("ttl", "TTL");
+			Diff.streamingDiff(this.incomming, this.original, this.output, dF, dL, 2);
+			Model xml = ModelFactory.createDefaultModel();
+			InputStream in = new FileInputStream(xmlFile);
+			try {
+				xml.read(in, null, "RDF/XML");
+			} finally {
+				in.close();
+			}
+			assertTrue(expected.isIsomorphicWith(xml));
+			Model ttl = ModelFactory.createDefaultModel();
+			in = new FileInputStream(ttlFile);
+			try {
+				ttl.read(in, null, "TTL");
+			} finally {
+				in.close();
+			}
+			assertTrue(expected.isIsomorphicWith(ttl));
+		} finally {
+			xmlFile.delete();
+			ttlFile.delete();
+		}
+		log.info("END testStreamingDiffDumpLanguages");
+	}
+	
 	/**
 	 * Testing Output to XML/RDF
 	 * @throws IOException
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.qualify;
+
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.qualify.RenameBlankNodes;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.IterableAdaptor;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * Test Rename Blank Nodes
+ * @author VIVO Harvester Team
+ */
+public class RenameBlankNodesTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RenameBlankNodesTest.class);
+	/** */
+	private static final String namespace = "http://harvester.vivoweb.org/testRenameBlankNodes/";
+	/** */
+	private JenaConnect inJC;
+	/** */
+	private JenaConnect outJC;
+	/** */
+	private Property idProp;
+	/** */
+	private Property linkProp;
+	
+	@Override
+	public void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.inJC = new MemJenaConnect();
+		this.outJC = new MemJenaConnect();
+		Model in = this.inJC.getJenaModel();
+		this.idProp = in.createProperty(namespace + "id");
+		this.linkProp = in.createProperty(namespace + "link");
+		Resource person = in.createResource(namespace + "person1");
+		Resource bnode1 = in.createResource();
+		Resource bnode2 = in.createResource();
+		in.add(bnode1, this.idProp, "1");
+		in.add(bnode2, this.idProp, "2");
+		in.add(bnode1, this.linkProp, bnode2);
+		in.add(person, this.linkProp, bnode1);
+	}
+	
+	@Override
+	public void tearDown() throws Exception {
+		this.inJC.close();
+		this.inJC = null;
+		this.outJC.close();
+		this.outJC = null;
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.RenameBlankNodes#renameBNodes(JenaConnect, JenaConnect, String, JenaConnect, String, String) renameBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, JenaConnect dedupJC, String pattern, String property)}
+	 * @throws Exception error
+	 */
+	public final void testRenameBNodes() throws Exception {
+		log.info("BEGIN testRenameBNodes");
+		RenameBlankNodes.renameBNodes(this.inJC, this.outJC, namespace, null, "node", this.idProp.getURI());
+		log.debug("Output:\n" + this.outJC.exportRdfToString());
+		assertRenamed(this.outJC.getJenaModel());
+		log.info("END testRenameBNodes");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.RenameBlankNodes#renameBNodes(JenaConnect, JenaConnect, String, JenaConnect, String, String) renameBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, JenaConnect dedupJC, String pattern, String property)}
+	 * @throws Exception error
+	 */
+	public final void testRenameBNodesInPlace() throws Exception {
+		log.info("BEGIN testRenameBNodesInPlace");
+		RenameBlankNodes.renameBNodes(this.inJC, this.inJC, namespace, this.outJC, "node", this.idProp.getURI());
+		log.debug("Output:\n" + this.inJC.exportRdfToString());
+		assertRenamed(this.inJC.getJenaModel());
+		log.info("END testRenameBNodesInPlace");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.RenameBlankNodes#renameBNodes(JenaConnect, JenaConnect, String, JenaConnect, String, String) renameBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, JenaConnect dedupJC, String pattern, String property)}
+	 * with separate connections to the same store
+	 * @throws Exception error
+	 */
+	public final void testRenameBNodesSameStore() throws Exception {
+		log.info("BEGIN testRenameBNodesSameStore");
+		JenaConnect otherModelJC = this.inJC.neighborConnectClone(namespace + "renamed");
+		RenameBlankNodes.renameBNodes(this.inJC, otherModelJC, namespace, null, "node", this.idProp.getURI());
+		assertRenamed(otherModelJC.getJenaModel());
+		// the input model is left as it was
+		assertEquals(4, this.inJC.getJenaModel().listStatements().toList().size());
+		assertFalse(this.inJC.getJenaModel().containsResource(this.inJC.getJenaModel().createResource(namespace + "node_1")));
+		JenaConnect sameModelJC = this.inJC.neighborConnectClone(this.inJC.getModelName());
+		assertNotSame(this.inJC, sameModelJC);
+		RenameBlankNodes.renameBNodes(this.inJC, sameModelJC, namespace, null, "node", this.idProp.getURI());
+		assertRenamed(this.inJC.getJenaModel());
+		otherModelJC.close();
+		sameModelJC.close();
+		log.info("END testRenameBNodesSameStore");
+	}
+	
+	/**
+	 * Check that the blank nodes were renamed in the given model
+	 * @param m the model
+	 */
+	private void assertRenamed(Model m) {
+		Resource node1 = m.createResource(namespace + "node_1");
+		Resource node2 = m.createResource(namespace + "node_2");
+		assertEquals(4, m.listStatements().toList().size());
+		assertTrue(m.contains(node1, this.idProp, "1"));
+		assertTrue(m.contains(node2, this.idProp, "2"));
+		assertTrue(m.contains(node1, this.linkProp, node2));
+		assertTrue(m.contains(m.createResource(namespace + "person1"), this.linkProp, node1));
+		for(Resource subj : IterableAdaptor.adapt(m.listSubjects())) {
+			assertFalse(subj.isAnon());
+		}
+	}
+}
@@ -99,4 +99,55 @@ public class SplitPropertyTest extends TestCase {
 		log.info("END testSplitPropertyValues");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.SplitProperty#splitPropertyValuesInPlace(org.vivoweb.harvester.util.repo.JenaConnect, java.lang.String, java.lang.String, java.lang.String, boolean, boolean, int) splitPropertyValuesInPlace(JenaConnect model, String oldPropertyURI, String splitRegex, String newPropertyURI, boolean trim, boolean removeOriginal, int batchSize)}
+	 * @throws Exception error
+	 */
+	public final void testSplitPropertyValuesInPlace() throws Exception{
+		log.info("BEGIN testSplitPropertyValuesInPlace");
+		String searchValue = ";";
+		for(int x = 1; x <= 5; x++) {
+			Resource res = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSplitPropertyValuesInPlace/item#" + x);
+			this.jena.getJenaModel().add(res, this.label, "part" + x + "-1" + searchValue + " part" + x + "-2");
+		}
+		log.debug("Pre-Split:\n" + this.jena.exportRdfToString());
+		int added = SplitProperty.splitPropertyValuesInPlace(this.jena, this.label.getURI(), searchValue, this.scoreLabelParts.getURI(), true, true, 2);
+		log.debug("Post-Split:\n" + this.jena.exportRdfToString());
+		assertEquals(10, added);
+		assertFalse(this.jena.getJenaModel().contains((Resource)null, this.label, (RDFNode)null));
+		for(int x = 1; x <= 5; x++) {
+			Resource res = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSplitPropertyValuesInPlace/item#" + x);
+			Set<String> parts = new HashSet<String>();
+			parts.add("part" + x + "-1");
+			parts.add("part" + x + "-2");
+			Set<String> resParts = new HashSet<String>();
+			for(Statement s : IterableAdaptor.adapt(this.jena.getJenaModel().listStatements(res, this.scoreLabelParts, (RDFNode)null))) {
+				resParts.add(s.getString());
+			}
+			assertEquals(parts, resParts);
+		}
+		log.info("END testSplitPropertyValuesInPlace");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.SplitProperty#splitPropertyValuesInPlace(org.vivoweb.harvester.util.repo.JenaConnect, java.lang.String, java.lang.String, java.lang.String, boolean, boolean, int) splitPropertyValuesInPlace(JenaConnect model, String oldPropertyURI, String splitRegex, String newPropertyURI, boolean trim, boolean removeOriginal, int batchSize)}
+	 * keeping the original statements
+	 * @throws Exception error
+	 */
+	public final void testSplitPropertyValuesInPlaceKeepOriginal() throws Exception{
+		log.info("BEGIN testSplitPropertyValuesInPlaceKeepOriginal");
+		Resource linked = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSplitPropertyValuesInPlace/linked");
+		for(int x = 1; x <= 5; x++) {
+			Resource res = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSplitPropertyValuesInPlace/item#" + x);
+			this.jena.getJenaModel().add(res, this.label, "part" + x + "-1; part" + x + "-2");
+			this.jena.getJenaModel().add(res, this.label, linked);
+		}
+		int added = SplitProperty.splitPropertyValuesInPlace(this.jena, this.label.getURI(), ";", this.scoreLabelParts.getURI(), true, false, 2);
+		// each value is split exactly once, and the originals and non-literal values are kept
+		assertEquals(10, added);
+		assertEquals(10, this.jena.getJenaModel().listStatements((Resource)null, this.scoreLabelParts, (RDFNode)null).toList().size());
+		assertEquals(10, this.jena.getJenaModel().listStatements((Resource)null, this.label, (RDFNode)null).toList().size());
+		log.info("END testSplitPropertyValuesInPlaceKeepOriginal");
+	}
+	
 }
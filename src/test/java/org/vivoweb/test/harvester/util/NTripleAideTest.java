@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.ExternalSort;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.NTripleAide;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+
+/**
+ * @author VIVO Harvester Team
+ */
+public class NTripleAideTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(NTripleAideTest.class);
+	/** */
+	private static final String pred = "<http://harvester.vivoweb.org/test/util/NTripleAide#p>";
+	
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.NTripleAide#parseLine(java.lang.String) parseLine(String
+	 * line)}.
+	 */
+	public final void testCanonicalBlankNodes() {
+		log.info("BEGIN testCanonicalBlankNodes");
+		String[] ids = {"ob", "bob", "x", "-3f1a:12cd3:-7ffe", "a_b.c"};
+		for(String id : ids) {
+			Triple t = Triple.create(Node.createAnon(new AnonId(id)), Node.createURI("http://harvester.vivoweb.org/test/util/NTripleAide#p"), Node.createLiteral("o"));
+			Triple back = NTripleAide.parseLine(NTripleAide.toLine(t));
+			assertEquals(id, back.getSubject().getBlankNodeLabel());
+		}
+		// labels that toLine does not write are refused rather than guessed at
+		String[] foreign = {"ob", "bx0061", "bx00e9", "b-1"};
+		for(String label : foreign) {
+			try {
+				NTripleAide.parseLine("_:" + label + " " + pred + " \"o\" .");
+				fail("foreign label accepted as canonical: " + label);
+			} catch(IllegalArgumentException e) {
+				// expected
+			}
+		}
+		log.info("END testCanonicalBlankNodes");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.NTripleAide#parseLine(java.lang.String, java.lang.String)
+	 * parseLine(String line, String blankPrefix)}.
+	 */
+	public final void testScopedBlankNodes() {
+		log.info("BEGIN testScopedBlankNodes");
+		String[] labels = {"bob", "ob", "node-1", "node_1", "a.b", "genid:1"};
+		TreeSet<String> ids = new TreeSet<String>();
+		for(String label : labels) {
+			Triple t = NTripleAide.parseLine("_:" + label + " " + pred + " _:" + label + ".", "f1x");
+			assertEquals("f1x" + label, t.getSubject().getBlankNodeLabel());
+			assertEquals(t.getSubject(), t.getObject());
+			ids.add(t.getSubject().getBlankNodeLabel());
+		}
+		assertEquals(labels.length, ids.size());
+		log.info("END testScopedBlankNodes");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.ExternalSort#sort() sort()} with more chunks than are merged at
+	 * once.
+	 * @throws IOException error
+	 */
+	public final void testExternalSortMultiPass() throws IOException {
+		log.info("BEGIN testExternalSortMultiPass");
+		ExternalSort sort = new ExternalSort(3);
+		TreeSet<String> expected = new TreeSet<String>();
+		for(int x = 0; x < 1000; x++) {
+			String line = "line " + ((x * 7919) % 600);
+			sort.add(line);
+			expected.add(line);
+		}
+		File sorted = sort.sort();
+		List<String> lines = new ArrayList<String>();
+		BufferedReader br = ExternalSort.openReader(sorted);
+		try {
+			for(String line = br.readLine(); line != null; line = br.readLine()) {
+				lines.add(line);
+			}
+		} finally {
+			br.close();
+		}
+		sorted.delete();
+		assertEquals(new ArrayList<String>(expected), lines);
+		log.info("END testExternalSortMultiPass");
+	}
+}
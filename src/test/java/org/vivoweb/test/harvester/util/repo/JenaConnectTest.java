@@ -10,19 +10,39 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.GraphFingerprint;
 import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.CompactJenaConnect;
+import org.vivoweb.harvester.util.repo.FileJenaConnect;
+import org.vivoweb.harvester.util.repo.JDBCConnectionPool;
 import org.vivoweb.harvester.util.repo.JDBCRecordHandler;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.vivoweb.harvester.util.repo.RDBJenaConnect;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.SDBJenaConnect;
+import org.vivoweb.harvester.util.repo.SpillingGraph;
+import org.vivoweb.harvester.util.repo.TDBJenaConnect;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.sys.TDBMaker;
 
 /**
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
@@ -77,9 +97,16 @@ public class JenaConnectTest extends TestCase {
 	 * 
 	 */
 	private void runWriteTest() {
-		Resource res = this.jc.getJenaModel().createResource();
-		Property prop = this.jc.getJenaModel().createProperty(namespace, "testProperty");
-		this.jc.getJenaModel().add(res, prop, "testValue");
+		runWriteTestOn(this.jc);
+	}
+	
+	/**
+	 * @param target the model to write to
+	 */
+	private static void runWriteTestOn(JenaConnect target) {
+		Resource res = target.getJenaModel().createResource();
+		Property prop = target.getJenaModel().createProperty(namespace, "testProperty");
+		target.getJenaModel().add(res, prop, "testValue");
 	}
 	
 	/**
@@ -232,4 +259,712 @@ public class JenaConnectTest extends TestCase {
 		log.info("END testContainsURI");
 	}
 	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#executeSelectQuery(String, QuerySolution, boolean, boolean)
+	 * executeSelectQuery(String queryTemplate, QuerySolution bindings, boolean copyResultSet, boolean datasetMode)}.
+	 * @throws IOException error
+	 */
+	public final void testParameterizedQuery() throws IOException {
+		log.info("BEGIN testParameterizedQuery");
+		this.jc = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		String template = "SELECT ?o WHERE { ?s ?p ?o }";
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		bindings.add("p", this.jc.getJenaModel().createProperty("http://www.w3schools.com/rdf/title"));
+		ResultSet rs = this.jc.executeSelectQuery(template, bindings, true, false);
+		assertTrue(rs.hasNext());
+		assertEquals("W3Schools", rs.next().getLiteral("o").getString());
+		assertFalse(rs.hasNext());
+		bindings = new QuerySolutionMap();
+		bindings.add("o", this.jc.getJenaModel().createLiteral("W3Schools"));
+		assertTrue(this.jc.executeAskQuery("ASK { ?s ?p ?o }", bindings, false));
+		bindings = new QuerySolutionMap();
+		bindings.add("o", this.jc.getJenaModel().createLiteral("Not\" } Here"));
+		assertFalse(this.jc.executeAskQuery("ASK { ?s ?p ?o }", bindings, false));
+		rs = this.jc.executeSelectQuery(template, null, true, false);
+		int rows = 0;
+		while(rs.hasNext()) {
+			rs.next();
+			rows++;
+		}
+		assertEquals(2, rows);
+		log.info("END testParameterizedQuery");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#executeUpdateQuery(String, QuerySolution, boolean)
+	 * executeUpdateQuery(String queryTemplate, QuerySolution bindings, boolean datasetMode)} and for reusing parsed
+	 * queries from several threads.
+	 * @throws Exception error
+	 */
+	public final void testParsedQueryReuse() throws Exception {
+		log.info("BEGIN testParsedQueryReuse");
+		final JenaConnect mem = new MemJenaConnect();
+		this.jc = mem;
+		String update = "INSERT { ?s <" + namespace + "p> ?o } WHERE { }";
+		for(int x = 0; x < 20; x++) {
+			QuerySolutionMap bindings = new QuerySolutionMap();
+			bindings.add("s", mem.getJenaModel().createResource(namespace + "s" + x));
+			bindings.add("o", mem.getJenaModel().createTypedLiteral(Integer.valueOf(x)));
+			mem.executeUpdateQuery(update, bindings, false);
+		}
+		assertEquals(20, mem.getJenaModel().size());
+		final String template = "SELECT ?o WHERE { ?s <" + namespace + "p> ?o }";
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 4; t++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int x = 0; x < 200; x++) {
+							QuerySolutionMap bindings = new QuerySolutionMap();
+							bindings.add("s", mem.getJenaModel().createResource(namespace + "s" + (x % 20)));
+							ResultSet rs = mem.executeSelectQuery(template, bindings, true, false);
+							assertEquals(x % 20, rs.next().getLiteral("o").getInt());
+							assertFalse(rs.hasNext());
+						}
+					} catch(Throwable e) {
+						synchronized(failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.toString(), failures.isEmpty());
+		log.info("END testParsedQueryReuse");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.MemJenaConnect#MemJenaConnect(String, long)
+	 * MemJenaConnect(String modelName, long spillThreshold)}.
+	 */
+	public final void testJenaConnectMemSpill() {
+		log.info("BEGIN testJenaConnectMemSpill");
+		this.jc = new MemJenaConnect(null, 3);
+		SpillingGraph g = (SpillingGraph)this.jc.getJenaModel().getGraph();
+		Property prop = this.jc.getJenaModel().createProperty(namespace, "testProperty");
+		Resource res = this.jc.getJenaModel().createResource(namespace + "spill");
+		for(int x = 0; x < 3; x++) {
+			this.jc.getJenaModel().add(res, prop, "value" + x);
+		}
+		assertFalse(g.isSpilled());
+		for(int x = 3; x < 10; x++) {
+			this.jc.getJenaModel().add(res, prop, "value" + x);
+		}
+		assertTrue(g.isSpilled());
+		assertEquals(10, this.jc.getJenaModel().listStatements().toList().size());
+		assertTrue(this.jc.getJenaModel().contains(res, prop, "value0"));
+		assertTrue(this.jc.getJenaModel().contains(res, prop, "value9"));
+		log.info("END testJenaConnectMemSpill");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.SpillingGraph#close() close()}.
+	 * @throws IOException error
+	 */
+	public final void testSpillingGraphClose() throws IOException {
+		log.info("BEGIN testSpillingGraphClose");
+		SpillingGraph g = new SpillingGraph(3);
+		Node subject = Node.createURI(namespace + "spill");
+		Node predicate = Node.createURI(namespace + "testProperty");
+		for(int x = 0; x < 10; x++) {
+			g.add(Triple.create(subject, predicate, Node.createLiteral("value" + x)));
+		}
+		assertTrue(g.isSpilled());
+		File dir = g.getSpillDirectory();
+		g.close();
+		assertFalse(dir.exists());
+		// a dataset left in tdb's cache would hand back the old triples for a new directory at the same location
+		assertTrue(dir.mkdir());
+		DatasetGraphTDB dsg = TDBFactory.createDatasetGraph(dir.getAbsolutePath());
+		try {
+			assertEquals(0, dsg.getDefaultGraph().size());
+		} finally {
+			TDBMaker.releaseDataset(dsg);
+			dsg.close();
+			FileAide.delete(dir.getAbsolutePath());
+		}
+		log.info("END testSpillingGraphClose");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.CompactJenaConnect#CompactJenaConnect(java.lang.String)
+	 * CompactJenaConnect(String modelName)}.
+	 * @throws IOException error
+	 */
+	public final void testJenaConnectCompact() throws IOException {
+		log.info("BEGIN testJenaConnectCompact");
+		CompactJenaConnect cjc = new CompactJenaConnect(modelName);
+		this.jc = cjc;
+		this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		Property prop = this.jc.getJenaModel().createProperty(namespace, "testProperty");
+		Resource res = this.jc.getJenaModel().createResource(namespace + "compact");
+		for(int x = 0; x < 10; x++) {
+			this.jc.getJenaModel().add(res, prop, "value" + x);
+		}
+		cjc.compact();
+		this.jc.getJenaModel().add(res, prop, "pending");
+		this.jc.getJenaModel().remove(res, prop, this.jc.getJenaModel().createLiteral("value0"));
+		assertEquals(12, this.jc.getJenaModel().size());
+		assertEquals(12, this.jc.getJenaModel().listStatements().toList().size());
+		assertEquals(10, this.jc.getJenaModel().listStatements(res, null, (String)null).toList().size());
+		assertEquals(10, this.jc.getJenaModel().listStatements(null, prop, (String)null).toList().size());
+		assertEquals(1, this.jc.getJenaModel().listStatements(null, null, "value5").toList().size());
+		assertTrue(this.jc.getJenaModel().contains(res, prop, "pending"));
+		assertFalse(this.jc.getJenaModel().contains(res, prop, "value0"));
+		assertTrue(this.jc.executeAskQuery("ASK { ?s <http://www.w3schools.com/rdf/title> \"W3Schools\" }"));
+		this.jc.getJenaModel().removeAll(res, null, null);
+		assertEquals(2, this.jc.getJenaModel().listStatements().toList().size());
+		this.jc.truncate();
+		assertTrue(this.jc.isEmpty());
+		log.info("END testJenaConnectCompact");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.CompactJenaConnect#close() close()} on a neighbor and a
+	 * clone.
+	 * @throws IOException error
+	 */
+	public final void testCompactNeighborClose() throws IOException {
+		log.info("BEGIN testCompactNeighborClose");
+		this.jc = new CompactJenaConnect(modelName);
+		this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		JenaConnect clone = this.jc.neighborConnectClone(modelName);
+		JenaConnect neighbor = this.jc.neighborConnectClone(modelName2);
+		neighbor.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		assertEquals(2, clone.getJenaModel().size());
+		clone.close();
+		neighbor.close();
+		assertEquals(2, this.jc.getJenaModel().size());
+		assertTrue(this.jc.executeAskQuery("ASK { ?s <http://www.w3schools.com/rdf/title> \"W3Schools\" }"));
+		// the neighbor was freed with its last connection
+		JenaConnect reopened = this.jc.neighborConnectClone(modelName2);
+		assertTrue(reopened.isEmpty());
+		reopened.close();
+		log.info("END testCompactNeighborClose");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.FileJenaConnect#sync() sync()}.
+	 * @throws IOException error
+	 */
+	public final void testFileJenaConnectSync() throws IOException {
+		log.info("BEGIN testFileJenaConnectSync");
+		File ntFile = FileAide.createTempFile("fileJC", ".nt");
+		try {
+			String original = "<http://www.w3schools.com> <http://www.w3schools.com/rdf/title> \"W3Schools\" .\n";
+			FileAide.setTextContent(ntFile.getAbsolutePath(), original);
+			this.jc = new FileJenaConnect(ntFile.getAbsolutePath(), "N-TRIPLE");
+			this.jc.sync();
+			assertEquals(original.trim(), FileAide.getTextContent(ntFile.getAbsolutePath()));
+			Resource res = this.jc.getJenaModel().createResource(namespace + "file");
+			Property prop = this.jc.getJenaModel().createProperty(namespace, "testProperty");
+			this.jc.getJenaModel().add(res, prop, "testValue");
+			this.jc.sync();
+			String appended = FileAide.getTextContent(ntFile.getAbsolutePath());
+			assertTrue(appended.startsWith(original.trim()));
+			assertTrue(appended.contains("<" + namespace + "file>"));
+			this.jc.getJenaModel().remove(res, prop, this.jc.getJenaModel().createLiteral("testValue"));
+			this.jc.getJenaModel().add(res, prop, "otherValue");
+			this.jc.close();
+			this.jc = new FileJenaConnect(ntFile.getAbsolutePath(), "N-TRIPLE");
+			assertEquals(2, this.jc.getJenaModel().listStatements().toList().size());
+			assertTrue(this.jc.getJenaModel().contains(res, prop, "otherValue"));
+			assertFalse(this.jc.getJenaModel().contains(res, prop, "testValue"));
+		} finally {
+			ntFile.delete();
+		}
+		log.info("END testFileJenaConnectSync");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#exportRdfToFiles(String, String, long)
+	 * exportRdfToFiles(String fileName, String language, long chunkSize)}.
+	 * @throws IOException error
+	 */
+	public final void testExportNTriples() throws IOException {
+		log.info("BEGIN testExportNTriples");
+		File dir = FileAide.createTempFile("export", ".dir");
+		dir.delete();
+		dir.mkdir();
+		try {
+			this.jc = new MemJenaConnect(modelName);
+			this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			String ntPath = new File(dir, "dump.nt").getAbsolutePath();
+			this.jc.exportRdfToFile(ntPath);
+			String nt = FileAide.getTextContent(ntPath);
+			assertTrue(nt.contains("<http://www.w3schools.com> <http://www.w3schools.com/rdf/title> \"W3Schools\" ."));
+			assertFalse(nt.contains("rdf:RDF"));
+			String nq = this.jc.exportRdfToString("N-QUADS");
+			assertTrue(nq.contains("\"W3Schools\" <" + modelName + "> ."));
+			String gzPath = new File(dir, "dump.nt.gz").getAbsolutePath();
+			this.jc.exportRdfToFile(gzPath);
+			JenaConnect gzJC = new FileJenaConnect(gzPath);
+			assertEquals(2, gzJC.getJenaModel().size());
+			gzJC.close();
+			List<String> chunks = this.jc.exportRdfToFiles(gzPath, null, 1);
+			assertEquals(2, chunks.size());
+			assertEquals(new File(dir, "dump.00001.nt.gz").getAbsolutePath(), chunks.get(0));
+			JenaConnect chunkJC = new MemJenaConnect();
+			for(String chunk : chunks) {
+				JenaConnect part = new FileJenaConnect(chunk);
+				assertEquals(1, part.getJenaModel().size());
+				chunkJC.loadRdfFromJC(part);
+				part.close();
+			}
+			assertTrue(chunkJC.getJenaModel().isIsomorphicWith(this.jc.getJenaModel()));
+			chunkJC.close();
+		} finally {
+			for(File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		log.info("END testExportNTriples");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#loadRdfFromFile(String, String, String)
+	 * loadRdfFromFile(String fileName, String namespace, String language)} with a compressed dump.
+	 * @throws IOException error
+	 */
+	public final void testLoadGzipFile() throws IOException {
+		log.info("BEGIN testLoadGzipFile");
+		File dir = FileAide.createTempFile("loadGzip", ".dir");
+		dir.delete();
+		dir.mkdir();
+		try {
+			JenaConnect source = new MemJenaConnect();
+			source.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			String gzPath = new File(dir, "dump.nt.gz").getAbsolutePath();
+			source.exportRdfToFile(gzPath);
+			this.jc = new MemJenaConnect();
+			this.jc.loadRdfFromFile(gzPath, null, null);
+			assertTrue(this.jc.getJenaModel().isIsomorphicWith(source.getJenaModel()));
+			this.jc.removeRdfFromFile(gzPath, null, null);
+			assertEquals(0, this.jc.getJenaModel().size());
+			this.jc.loadNTriplesFromFile(gzPath, null, 2);
+			assertTrue(this.jc.getJenaModel().isIsomorphicWith(source.getJenaModel()));
+			this.jc.removeNTriplesFromFile(gzPath, null, 2);
+			assertEquals(0, this.jc.getJenaModel().size());
+			this.jc.close();
+			// an empty tdb model takes the bulk loader
+			this.jc = new TDBJenaConnect(new File(dir, "tdb").getAbsolutePath(), modelName);
+			this.jc.loadNTriplesFromFile(gzPath, null, 2);
+			assertTrue(this.jc.getJenaModel().isIsomorphicWith(source.getJenaModel()));
+			source.close();
+		} finally {
+			this.jc.close();
+			this.jc = null;
+			FileAide.delete(dir.getAbsolutePath());
+		}
+		log.info("END testLoadGzipFile");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#loadNTriplesFromFile(String, String, int)
+	 * loadNTriplesFromFile(String fileName, String namespace, int threads)}.
+	 * @throws IOException error
+	 */
+	public final void testLoadNTriplesParallel() throws IOException {
+		log.info("BEGIN testLoadNTriplesParallel");
+		File ntFile = FileAide.createTempFile("parallelJC", ".nt");
+		try {
+			// large enough to be split into several chunks, with a blank node shared by the first and last chunk
+			BufferedWriter bw = new BufferedWriter(new FileWriter(ntFile));
+			bw.write("# comment\r\n_:shared <" + namespace + "label> \"first\" .\r\n");
+			for(int x = 0; x < 50000; x++) {
+				bw.write("<" + namespace + "item" + x + "> <" + namespace + "value> \"value number " + x + "\"@en .\n");
+			}
+			bw.write("_:shared <" + namespace + "label> \"last\" .");
+			bw.close();
+			this.jc = new MemJenaConnect();
+			this.jc.setTransferBatchSize(1000);
+			this.jc.loadNTriplesFromFile(ntFile.getAbsolutePath(), null, 4);
+			assertEquals(50002, this.jc.getJenaModel().size());
+			Property label = this.jc.getJenaModel().createProperty(namespace, "label");
+			assertEquals(1, this.jc.getJenaModel().listSubjectsWithProperty(label).toList().size());
+			Property value = this.jc.getJenaModel().createProperty(namespace, "value");
+			Resource last = this.jc.getJenaModel().createResource(namespace + "item49999");
+			assertTrue(this.jc.getJenaModel().contains(last, value, "value number 49999", "en"));
+			this.jc.removeNTriplesFromFile(ntFile.getAbsolutePath(), null, 2);
+			assertEquals(0, this.jc.getJenaModel().listStatements(null, value, (String)null).toList().size());
+		} finally {
+			ntFile.delete();
+		}
+		log.info("END testLoadNTriplesParallel");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JDBCConnectionPool#getConnection(String, String, String, String)
+	 * getConnection(String driverClass, String url, String user, String pass)}.
+	 * @throws Exception error
+	 */
+	public final void testJenaConnectDBPooled() throws Exception {
+		log.info("BEGIN testJenaConnectDBPooled");
+		File dbDir = FileAide.createTempFile("pooledJC", ".db");
+		dbDir.delete();
+		dbDir.mkdir();
+		String fileUrl = "jdbc:h2:" + dbDir.getAbsolutePath() + "/pooled";
+		try {
+			Connection first = JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+			String physical = first.toString();
+			first.setAutoCommit(false);
+			first.createStatement().execute("CREATE TABLE pooltest (id INT)");
+			first.close();
+			first.close();
+			assertTrue(first.isClosed());
+			try {
+				first.createStatement();
+				fail("closed connection should not be usable");
+			} catch(SQLException e) {
+				// expected
+			}
+			Connection second = JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+			assertEquals(physical, second.toString());
+			assertTrue(second.getAutoCommit());
+			second.close();
+			// neighbor models each take a connection, and give it back when closed
+			this.jc = new SDBJenaConnect(fileUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+			JenaConnect neighbor = this.jc.neighborConnectClone(modelName2);
+			neighbor.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			neighbor.close();
+			JenaConnect reopened = this.jc.neighborConnectClone(modelName2);
+			assertEquals(2, reopened.getJenaModel().listStatements().toList().size());
+			reopened.close();
+			this.jc.close();
+			this.jc = null;
+		} finally {
+			JDBCConnectionPool.closeIdleConnections();
+			for(File f : dbDir.listFiles()) {
+				f.delete();
+			}
+			dbDir.delete();
+		}
+		log.info("END testJenaConnectDBPooled");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JDBCConnectionPool#setMaxActive(int) setMaxActive(int
+	 * max)}.
+	 * @throws Exception error
+	 */
+	public final void testJDBCPoolMaxActive() throws Exception {
+		log.info("BEGIN testJDBCPoolMaxActive");
+		File dbDir = FileAide.createTempFile("maxActiveJC", ".db");
+		dbDir.delete();
+		dbDir.mkdir();
+		String fileUrl = "jdbc:h2:" + dbDir.getAbsolutePath() + "/active";
+		JDBCConnectionPool.setMaxActive(2);
+		JDBCConnectionPool.setMaxWait(100);
+		try {
+			Connection first = JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+			final Connection second = JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+			try {
+				JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+				fail("third connection should not be handed out while two are in use");
+			} catch(IOException e) {
+				// expected
+			}
+			first.close();
+			Connection third = JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+			// a waiting caller gets the connection closed by another thread
+			JDBCConnectionPool.setMaxWait(10000);
+			Thread closer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(200);
+						second.close();
+					} catch(Exception e) {
+						log.error(e.getMessage(), e);
+					}
+				}
+			};
+			closer.start();
+			Connection fourth = JDBCConnectionPool.getConnection(dbClass, fileUrl, dbUser, dbPass);
+			closer.join();
+			assertTrue(second.isClosed());
+			third.close();
+			fourth.close();
+		} finally {
+			JDBCConnectionPool.setMaxActive(JDBCConnectionPool.DEFAULT_MAX_ACTIVE);
+			JDBCConnectionPool.setMaxWait(JDBCConnectionPool.DEFAULT_MAX_WAIT);
+			JDBCConnectionPool.closeIdleConnections();
+			for(File f : dbDir.listFiles()) {
+				f.delete();
+			}
+			dbDir.delete();
+		}
+		log.info("END testJDBCPoolMaxActive");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.DBJenaConnect#sharesStoreWith(JenaConnect)
+	 * sharesStoreWith(JenaConnect other)}.
+	 * @throws IOException error
+	 */
+	public final void testDBSharesStore() throws IOException {
+		log.info("BEGIN testDBSharesStore");
+		this.jc = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		JenaConnect neighbor = this.jc.neighborConnectClone(modelName2);
+		JenaConnect otherDb = new SDBJenaConnect("jdbc:h2:mem:TestJCmodelOther", dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		JenaConnect rdb = new RDBJenaConnect("jdbc:h2:mem:TestSharesRDB;MODE=HSQLDB", dbUser, dbPass, "HSQLDB", dbClass, modelName);
+		JenaConnect rdbNeighbor = rdb.neighborConnectClone(modelName2);
+		try {
+			assertTrue(this.jc.sharesStoreWith(neighbor));
+			assertTrue(neighbor.sharesStoreWith(this.jc));
+			assertFalse(this.jc.sharesStoreWith(otherDb));
+			assertFalse(this.jc.sharesStoreWith(new MemJenaConnect()));
+			assertTrue(rdb.sharesStoreWith(rdbNeighbor));
+			assertFalse(rdb.sharesStoreWith(this.jc));
+			// copying between models of one store stages the source on disk before writing
+			neighbor.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			this.jc.loadRdfFromJC(neighbor);
+			assertEquals(2, this.jc.getJenaModel().size());
+		} finally {
+			neighbor.close();
+			otherDb.close();
+			rdbNeighbor.close();
+			rdb.close();
+		}
+		log.info("END testDBSharesStore");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#loadRdfFromJC(JenaConnect) loadRdfFromJC(JenaConnect
+	 * jc)} between two models of one SDB store, in more than one batch.
+	 * @throws IOException error
+	 */
+	public final void testSDBSharedStoreTransfer() throws IOException {
+		log.info("BEGIN testSDBSharedStoreTransfer");
+		this.jc = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		JenaConnect neighbor = this.jc.neighborConnectClone(modelName2);
+		try {
+			Property p = neighbor.getJenaModel().createProperty(namespace + "p");
+			for(int x = 0; x < 20; x++) {
+				Resource blank = neighbor.getJenaModel().createResource();
+				neighbor.getJenaModel().createResource(namespace + "s" + x).addProperty(p, blank);
+				blank.addProperty(p, "value " + x);
+			}
+			this.jc.setTransferBatchSize(7);
+			this.jc.loadRdfFromJC(neighbor);
+			assertEquals(40, this.jc.getJenaModel().size());
+			assertTrue(this.jc.getJenaModel().isIsomorphicWith(neighbor.getJenaModel()));
+			this.jc.removeRdfFromJC(neighbor);
+			assertTrue(this.jc.getJenaModel().isEmpty());
+			assertEquals(40, neighbor.getJenaModel().size());
+		} finally {
+			neighbor.close();
+		}
+		log.info("END testSDBSharedStoreTransfer");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.RDBJenaConnect#getDataset() getDataset()}.
+	 * @throws IOException error
+	 */
+	public final void testRDBDataset() throws IOException {
+		log.info("BEGIN testRDBDataset");
+		this.jc = new RDBJenaConnect("jdbc:h2:mem:TestRDBDataset;MODE=HSQLDB", dbUser, dbPass, "HSQLDB", dbClass, modelName);
+		JenaConnect neighbor = this.jc.neighborConnectClone(modelName2);
+		neighbor.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		neighbor.close();
+		Dataset ds = this.jc.getDataset();
+		assertSame(ds, this.jc.getDataset());
+		assertTrue(ds.containsNamedModel(modelName2));
+		assertFalse(ds.containsNamedModel(namespace + "missing"));
+		assertEquals(2, ds.getNamedModel(modelName2).size());
+		ResultSet rs = this.jc.executeSelectQuery("SELECT ?g (COUNT(?s) AS ?n) WHERE { GRAPH ?g { ?s ?p ?o } } GROUP BY ?g", false, true);
+		int graphs = 0;
+		while(rs.hasNext()) {
+			QuerySolution row = rs.next();
+			assertEquals(modelName2, row.getResource("g").getURI());
+			assertEquals(2, row.getLiteral("n").getInt());
+			graphs++;
+		}
+		assertEquals(1, graphs);
+		log.info("END testRDBDataset");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.TDBJenaConnect#close() close()}.
+	 * @throws IOException error
+	 */
+	public final void testJenaConnectTDBShared() throws IOException {
+		log.info("BEGIN testJenaConnectTDBShared");
+		File tdbDir = FileAide.createTempFile("tdbJC", ".tdb");
+		tdbDir.delete();
+		try {
+			JenaConnect first = new TDBJenaConnect(tdbDir.getAbsolutePath(), modelName);
+			JenaConnect second = first.neighborConnectClone(modelName2);
+			assertSame(first.getDataset(), second.getDataset());
+			first.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			first.close();
+			runWriteTestOn(second);
+			assertEquals(1, second.getJenaModel().listStatements().toList().size());
+			second.close();
+			this.jc = new TDBJenaConnect(tdbDir.getAbsolutePath(), modelName);
+			assertEquals(2, this.jc.getJenaModel().listStatements().toList().size());
+			this.jc.close();
+			this.jc = null;
+		} finally {
+			FileAide.delete(tdbDir.getAbsolutePath());
+		}
+		log.info("END testJenaConnectTDBShared");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.TDBJenaConnect#close() close()} when the same directory is
+	 * opened under two spellings.
+	 * @throws IOException error
+	 */
+	public final void testTDBDirectorySpellings() throws IOException {
+		log.info("BEGIN testTDBDirectorySpellings");
+		File tdbDir = FileAide.createTempFile("tdbSpellJC", ".tdb");
+		tdbDir.delete();
+		try {
+			JenaConnect first = new TDBJenaConnect(tdbDir.getAbsolutePath(), modelName);
+			JenaConnect second = new TDBJenaConnect(tdbDir.getParent() + File.separator + "." + File.separator + tdbDir.getName(), modelName2);
+			assertSame(first.getDataset(), second.getDataset());
+			second.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			second.close();
+			// closing the other spelling must leave this connection's dataset open
+			first.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			assertEquals(2, first.getJenaModel().listStatements().toList().size());
+			first.close();
+		} finally {
+			FileAide.delete(tdbDir.getAbsolutePath());
+		}
+		log.info("END testTDBDirectorySpellings");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.TDBJenaConnect#loadRdfFromStream(java.io.InputStream, java.lang.String, java.lang.String)
+	 * loadRdfFromStream(InputStream in, String namespace, String language)} using the bulk loader.
+	 * @throws IOException error
+	 */
+	public final void testJenaConnectTDBBulkLoad() throws IOException {
+		log.info("BEGIN testJenaConnectTDBBulkLoad");
+		File tdbDir = FileAide.createTempFile("tdbBulkJC", ".tdb");
+		tdbDir.delete();
+		try {
+			TDBJenaConnect tdbJC = new TDBJenaConnect(tdbDir.getAbsolutePath(), modelName);
+			this.jc = tdbJC;
+			// empty model, so this goes through the bulk loader
+			this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+			assertEquals(2, this.jc.getJenaModel().listStatements().toList().size());
+			tdbJC.setBulkLoad(Boolean.TRUE);
+			String nt = "<" + namespace + "bulk> <" + namespace + "testProperty> \"testValue\" .\n_:b1 <" + namespace + "testProperty> _:b2 .\n";
+			this.jc.loadRdfFromStream(new ByteArrayInputStream(nt.getBytes()), null, "N-TRIPLE");
+			assertEquals(4, this.jc.getJenaModel().listStatements().toList().size());
+			assertTrue(this.jc.executeAskQuery("ASK { <" + namespace + "bulk> ?p \"testValue\" }"));
+			tdbJC.setBulkLoad(Boolean.FALSE);
+			runWriteTest();
+			assertEquals(5, this.jc.getJenaModel().listStatements().toList().size());
+			this.jc.close();
+			this.jc = null;
+		} finally {
+			FileAide.delete(tdbDir.getAbsolutePath());
+		}
+		log.info("END testJenaConnectTDBBulkLoad");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#loadRdfFromJC(JenaConnect) loadRdfFromJC(JenaConnect jc)}
+	 * and {@link org.vivoweb.harvester.util.repo.JenaConnect#removeRdfFromJC(JenaConnect) removeRdfFromJC(JenaConnect inputJC)}.
+	 */
+	public final void testLoadRdfFromJCBatched() {
+		log.info("BEGIN testLoadRdfFromJCBatched");
+		JenaConnect source = new MemJenaConnect();
+		try {
+			Property prop = source.getJenaModel().createProperty(namespace, "testProperty");
+			Resource res = source.getJenaModel().createResource(namespace + "batched");
+			for(int x = 0; x < 10; x++) {
+				source.getJenaModel().add(res, prop, "value" + x);
+			}
+			this.jc = new MemJenaConnect();
+			this.jc.setTransferBatchSize(3);
+			this.jc.loadRdfFromJC(source);
+			assertEquals(10, this.jc.getJenaModel().listStatements().toList().size());
+			this.jc.setParallelTransfer(true);
+			source.getJenaModel().add(res, prop, "value10");
+			this.jc.loadRdfFromJC(source);
+			assertEquals(11, this.jc.getJenaModel().listStatements().toList().size());
+			source.getJenaModel().remove(res, prop, source.getJenaModel().createLiteral("value0"));
+			this.jc.removeRdfFromJC(source);
+			assertEquals(1, this.jc.getJenaModel().listStatements().toList().size());
+			this.jc.setParallelTransfer(false);
+			this.jc.removeRdfFromJC(this.jc);
+			assertEquals(0, this.jc.getJenaModel().listStatements().toList().size());
+		} finally {
+			source.close();
+		}
+		log.info("END testLoadRdfFromJCBatched");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#size() size()}.
+	 * @throws IOException error
+	 */
+	public final void testSize() throws IOException {
+		log.info("BEGIN testSize");
+		this.jc = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		this.jc.truncate();
+		assertEquals(0, this.jc.size());
+		this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		assertEquals(2, this.jc.size());
+		runWriteTest();
+		assertEquals(3, this.jc.size());
+		this.jc.executeUpdateQuery("DELETE { ?s <" + namespace + "testProperty> ?o } WHERE { ?s <" + namespace + "testProperty> ?o }");
+		assertEquals(2, this.jc.size());
+		this.jc.truncate();
+		assertEquals(0, this.jc.size());
+		log.info("END testSize");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#getFingerprint() getFingerprint()}.
+	 * @throws IOException error
+	 */
+	public final void testFingerprint() throws IOException {
+		log.info("BEGIN testFingerprint");
+		this.jc = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		JenaConnect other = new MemJenaConnect();
+		try {
+			Resource res = other.getJenaModel().createResource("http://www.w3schools.com");
+			other.getJenaModel().add(res, other.getJenaModel().createProperty("http://www.w3schools.com/rdf/", "title"), "W3Schools");
+			other.getJenaModel().add(res, other.getJenaModel().createProperty("http://www.w3schools.com/rdf/", "author"), "Jan Egil Refsnes");
+			GraphFingerprint fp = this.jc.getFingerprint();
+			assertEquals(2, fp.getCount());
+			assertEquals(fp, other.getFingerprint());
+			Triple added = Triple.create(res.asNode(), Node.createURI(namespace + "testProperty"), Node.createLiteral("testValue"));
+			other.getJenaModel().getGraph().add(added);
+			// the cached fingerprint is dropped when the model changes
+			assertFalse(fp.equals(other.getFingerprint()));
+			fp.add(added);
+			assertEquals(fp, other.getFingerprint());
+			fp.remove(added);
+			assertEquals(fp, this.jc.getFingerprint());
+			other.getJenaModel().getGraph().delete(added);
+			assertEquals(fp, other.getFingerprint());
+			other.executeUpdateQuery("INSERT DATA { <" + namespace + "s> <" + namespace + "p> \"o\" }");
+			assertEquals(3, other.getFingerprint().getCount());
+		} finally {
+			other.close();
+		}
+		log.info("END testFingerprint");
+	}
+	
 }
@@ -5,22 +5,30 @@
  ******************************************************************************/
 package org.vivoweb.test.harvester.util.repo;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.repo.H2RecordHandler;
 import org.vivoweb.harvester.util.repo.JDBCRecordHandler;
 import org.vivoweb.harvester.util.repo.JenaRecordHandler;
 import org.vivoweb.harvester.util.repo.MapRecordHandler;
 import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordBatch;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordMetaData;
 import org.vivoweb.harvester.util.repo.SDBJenaConnect;
+import org.vivoweb.harvester.util.repo.SegmentFileRecordHandler;
 import org.vivoweb.harvester.util.repo.TextFileRecordHandler;
 
 /**
@@ -144,6 +152,65 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testJDBCAddRecord");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JDBCRecordHandler#setBatchSize(int) setBatchSize(int
+	 * size)}.
+	 * @throws IOException error
+	 */
+	public void testJDBCBatchedAddRecord() throws IOException {
+		log.info("BEGIN testJDBCBatchedAddRecord");
+		JDBCRecordHandler jdbcRH = new JDBCRecordHandler("org.h2.Driver", "jdbc:h2:mem:TestRH-JDBCBatch", "sa", "", "testdb", "data");
+		this.rh = jdbcRH;
+		jdbcRH.setBatchSize(50);
+		runBattery();
+		for(int x = 0; x < 120; x++) {
+			assertTrue(this.rh.addRecord("batch" + x, "data for batch" + x, RecordHandlerTest.class));
+		}
+		assertFalse(this.rh.addRecord("batch7", "data for batch7", RecordHandlerTest.class));
+		assertEquals("data for batch119", this.rh.getRecord("batch119").getData());
+		assertEquals(120, this.rh.find("batch").size());
+		try {
+			this.rh.addRecord("batch3", "new data for batch3", RecordHandlerTest.class, false);
+			fail("Adding an existing record without overwrite should throw IOException");
+		} catch(IOException e) {
+			// expected
+		}
+		assertTrue(this.rh.addRecord("batch3", "new data for batch3", RecordHandlerTest.class));
+		this.rh.flush();
+		assertEquals("new data for batch3", this.rh.getRecord("batch3").getData());
+		log.info("END testJDBCBatchedAddRecord");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JDBCRecordHandler#iterator() iterator()} over several
+	 * blocks of records, writing metadata while iterating.
+	 * @throws IOException error
+	 */
+	public void testJDBCIterateBlocks() throws IOException {
+		log.info("BEGIN testJDBCIterateBlocks");
+		this.rh = new JDBCRecordHandler("org.h2.Driver", "jdbc:h2:mem:TestRH-JDBCBlocks", "sa", "", "testdb", "data");
+		RecordBatch batch = new RecordBatch(this.rh, RecordHandlerTest.class);
+		for(int x = 0; x < 1234; x++) {
+			batch.add(String.format("block%05d", Integer.valueOf(x)), "data for block" + x);
+		}
+		batch.close();
+		int count = 0;
+		String last = "";
+		for(Record r : this.rh) {
+			assertTrue(r.getID().compareTo(last) > 0);
+			last = r.getID();
+			assertEquals("data for block" + Integer.parseInt(r.getID().substring(5)), r.getData());
+			assertTrue(r.needsProcessed(RecordHandlerTest.class));
+			r.setProcessed(RecordHandlerTest.class);
+			count++;
+		}
+		assertEquals(1234, count);
+		for(Record r : this.rh) {
+			assertFalse(r.needsProcessed(RecordHandlerTest.class));
+		}
+		log.info("END testJDBCIterateBlocks");
+	}
+	
 	/**
 	 * Test method for
 	 * {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler#TextFileRecordHandler(java.lang.String)
@@ -157,6 +224,89 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testTextFileAddRecord");
 	}
 	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler#TextFileRecordHandler(java.lang.String, boolean)
+	 * TextFileRecordHandler(String fileDir, boolean useMetaDataLog)}.
+	 * @throws IOException error
+	 */
+	public void testTextFileMetaDataLog() throws IOException {
+		log.info("BEGIN testTextFileMetaDataLog");
+		String tfrhDir = "tmp://testLogTFRH";
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		this.rh.addRecord("xmlRec", "data in record 'xmlRec'", RecordHandlerTest.class);
+		this.rh.getRecord("xmlRec").setProcessed(RecordHandlerTest.class);
+		this.rh.close();
+		// existing xml metadata is moved into the log
+		this.rh = new TextFileRecordHandler(tfrhDir, true);
+		assertFalse(FileAide.exists(tfrhDir + "/.metadata/xmlRec"));
+		assertFalse(this.rh.needsProcessed("xmlRec", RecordHandlerTest.class));
+		assertFalse(this.rh.addRecord("xmlRec", "data in record 'xmlRec'", RecordHandlerTest.class));
+		runBattery();
+		this.rh.addRecord("logRec", "data in record 'logRec'", RecordHandlerTest.class);
+		assertTrue(this.rh.needsProcessed("logRec", RecordHandlerTest.class));
+		this.rh.getRecord("logRec").setProcessed(RecordHandlerTest.class);
+		this.rh.close();
+		this.rh = new TextFileRecordHandler(tfrhDir, true);
+		assertFalse(this.rh.needsProcessed("logRec", RecordHandlerTest.class));
+		assertFalse(this.rh.addRecord("logRec", "data in record 'logRec'", RecordHandlerTest.class));
+		assertTrue(this.rh.addRecord("logRec", "new data in record 'logRec'", RecordHandlerTest.class));
+		assertTrue(this.rh.needsProcessed("logRec", RecordHandlerTest.class));
+		this.rh.getRecord("logRec").setProcessed(RecordHandlerTest.class);
+		this.rh.close();
+		// once migrated, the log is used even when it is not asked for
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		assertFalse(this.rh.needsProcessed("xmlRec", RecordHandlerTest.class));
+		assertFalse(this.rh.needsProcessed("logRec", RecordHandlerTest.class));
+		this.rh.close();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("rhClass", TextFileRecordHandler.class.getCanonicalName());
+		params.put("fileDir", tfrhDir);
+		this.rh = RecordHandler.parseConfig((String)null, params);
+		assertFalse(this.rh.needsProcessed("logRec", RecordHandlerTest.class));
+		this.rh.close();
+		params.put("metaDataStore", "xml");
+		try {
+			this.rh = RecordHandler.parseConfig((String)null, params);
+			fail("xml metadata store accepted for a migrated directory");
+		} catch(IllegalArgumentException e) {
+			this.rh = null;
+		}
+		log.info("END testTextFileMetaDataLog");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.RecordMetaDataLog#get(java.lang.String) get(String
+	 * recID)} with lines written by other tools: an older entry that must not replace a newer one, and an md5 that is
+	 * not lower case hex.
+	 * @throws IOException error
+	 */
+	public void testMetaDataLogEntries() throws IOException {
+		log.info("BEGIN testMetaDataLogEntries");
+		File dir = FileAide.createTempFile("logRH", ".dir");
+		dir.delete();
+		try {
+			this.rh = new TextFileRecordHandler(dir.getAbsolutePath(), true);
+			this.rh.addRecord("r1", "data in record 'r1'", RecordHandlerTest.class);
+			this.rh.getRecord("r1").setProcessed(RecordHandlerTest.class);
+			this.rh.close();
+			FileWriter fw = new FileWriter(new File(dir, ".metadata/.log"), true);
+			fw.write("r1\t1000\twritten\t" + RecordHandlerTest.class.getName() + "\t" + RecordMetaData.md5hex("old data") + "\n");
+			fw.write("r1\t" + (System.currentTimeMillis() + 60000) + "\tprocessed\tjava.lang.String\tNOT-AN-MD5\n");
+			fw.close();
+			this.rh = new TextFileRecordHandler(dir.getAbsolutePath(), true);
+			assertFalse(this.rh.addRecord("r1", "data in record 'r1'", RecordHandlerTest.class));
+			assertFalse(this.rh.needsProcessed("r1", RecordHandlerTest.class));
+			assertFalse(this.rh.needsProcessed("r1", String.class));
+			assertTrue(this.rh.needsProcessed("r1", Integer.class));
+			this.rh.close();
+			this.rh = null;
+		} finally {
+			FileAide.delete(dir.getAbsolutePath());
+		}
+		log.info("END testMetaDataLogEntries");
+	}
+	
 	/**
 	 * Test method for {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler#iterator()
 	 * iterator()}.
@@ -177,6 +327,222 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testNoMetaTextFileIterate");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler#find(java.lang.String)
+	 * find(String idText)}.
+	 * @throws Exception error
+	 */
+	public void testTextFileFind() throws Exception {
+		log.info("BEGIN testTextFileFind");
+		String tfrhDir = "tmp://testFindTFRH";
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		this.rh.addRecord("pub-1", "data for 'pub-1'", RecordHandlerTest.class);
+		this.rh.addRecord("pub-2", "data for 'pub-2'", RecordHandlerTest.class);
+		this.rh.addRecord("person-1", "data for 'person-1'", RecordHandlerTest.class);
+		assertEquals(2, this.rh.find("pub-").size());
+		this.rh.delRecord("pub-2");
+		assertEquals(1, this.rh.find("pub-").size());
+		this.rh.close();
+		// a new handler reads the saved index
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		assertEquals(1, this.rh.find("pub-").size());
+		assertEquals(2, this.rh.find("-1").size());
+		this.rh.close();
+		// records written behind the handler's back cause the index to be rebuilt, even when written in the same
+		// timestamp tick the index was saved in
+		FileAide.setTextContent(tfrhDir + "/pub-3", "data for 'pub-3'");
+		FileAide.setLastModified(tfrhDir + "/.metadata/.index", FileAide.getLastModified(tfrhDir));
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		assertEquals(2, this.rh.find("pub-").size());
+		int count = 0;
+		for(Record r : this.rh) {
+			assertTrue(r.getData().endsWith("'" + r.getID() + "'"));
+			count++;
+		}
+		assertEquals(3, count);
+		log.info("END testTextFileFind");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.SegmentFileRecordHandler#SegmentFileRecordHandler(java.lang.String)
+	 * SegmentFileRecordHandler(String directory)}.
+	 * @throws IOException error
+	 */
+	public void testSegmentFileAddRecord() throws IOException {
+		log.info("BEGIN testSegmentFileAddRecord");
+		File dir = FileAide.createTempFile("segmentRH", ".dir");
+		dir.delete();
+		Map<String, String> overrideParams = new HashMap<String, String>();
+		overrideParams.put("rhClass", SegmentFileRecordHandler.class.getCanonicalName());
+		overrideParams.put("fileDir", dir.getAbsolutePath());
+		this.rh = RecordHandler.parseConfig((String)null, overrideParams);
+		assertTrue(this.rh instanceof SegmentFileRecordHandler);
+		runBattery();
+		log.info("END testSegmentFileAddRecord");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.SegmentFileRecordHandler#compact() compact()}.
+	 * @throws IOException error
+	 */
+	public void testSegmentFileReopen() throws IOException {
+		log.info("BEGIN testSegmentFileReopen");
+		File dir = FileAide.createTempFile("segmentRH", ".dir");
+		dir.delete();
+		SegmentFileRecordHandler sfrh = new SegmentFileRecordHandler(dir.getAbsolutePath());
+		sfrh.setSegmentSize(200);
+		for(int x = 0; x < 30; x++) {
+			sfrh.addRecord("seg" + x, "data for 'seg" + x + "'", RecordHandlerTest.class);
+		}
+		for(int x = 0; x < 30; x += 3) {
+			sfrh.addRecord("seg" + x, "new data for 'seg" + x + "'", RecordHandlerTest.class);
+		}
+		sfrh.delRecord("seg1");
+		sfrh.getRecord("seg2").setProcessed(RecordHandlerTest.class);
+		sfrh.close();
+		int segments = dir.list().length;
+		// a new handler reads the saved index
+		this.rh = new SegmentFileRecordHandler(dir.getAbsolutePath());
+		assertSegmentRecords();
+		assertFalse(this.rh.needsProcessed("seg2", RecordHandlerTest.class));
+		((SegmentFileRecordHandler)this.rh).compact();
+		assertTrue(dir.list().length < segments);
+		assertSegmentRecords();
+		this.rh.close();
+		// without the index the records are read back from the segments, and a torn last entry is dropped
+		new File(dir, "records.index").delete();
+		File lastSegment = null;
+		for(File f : dir.listFiles()) {
+			if(f.getName().startsWith("segment-") && ((lastSegment == null) || (f.getName().compareTo(lastSegment.getName()) > 0))) {
+				lastSegment = f;
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(lastSegment, "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[]{0, 0, 0, 10, 's', 'e'});
+		raf.close();
+		this.rh = new SegmentFileRecordHandler(dir.getAbsolutePath());
+		assertSegmentRecords();
+		assertTrue(this.rh.addRecord("seg31", "data for 'seg31'", RecordHandlerTest.class));
+		assertEquals("data for 'seg31'", this.rh.getRecord("seg31").getData());
+		log.info("END testSegmentFileReopen");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.SegmentFileRecordHandler#find(java.lang.String)
+	 * find(String idText)} and {@link org.vivoweb.harvester.util.repo.SegmentFileRecordHandler#iterator() iterator()}
+	 * over records both in the saved index and written since it was saved.
+	 * @throws IOException error
+	 */
+	public void testSegmentFileIndexOverlay() throws IOException {
+		log.info("BEGIN testSegmentFileIndexOverlay");
+		File dir = FileAide.createTempFile("segmentRH", ".dir");
+		dir.delete();
+		this.rh = new SegmentFileRecordHandler(dir.getAbsolutePath());
+		for(int x = 0; x < 20; x += 2) {
+			this.rh.addRecord("rec" + (100 + x), "data for 'rec" + (100 + x) + "'", RecordHandlerTest.class);
+		}
+		this.rh.close();
+		this.rh = new SegmentFileRecordHandler(dir.getAbsolutePath());
+		this.rh.addRecord("rec101", "data for 'rec101'", RecordHandlerTest.class);
+		this.rh.addRecord("rec104", "new data for 'rec104'", RecordHandlerTest.class, true);
+		this.rh.delRecord("rec106");
+		this.rh.delRecord("rec108");
+		this.rh.addRecord("rec108", "again data for 'rec108'", RecordHandlerTest.class);
+		this.rh.addRecord("rec200", "data for 'rec200'", RecordHandlerTest.class);
+		String expected = "[rec100, rec101, rec102, rec104, rec108, rec110, rec112, rec114, rec116, rec118, rec200]";
+		for(int pass = 0; pass < 2; pass++) {
+			assertEquals(expected, this.rh.find("rec").toString());
+			List<String> ids = new ArrayList<String>();
+			for(Record r : this.rh) {
+				assertTrue(r.getData().endsWith("'" + r.getID() + "'"));
+				ids.add(r.getID());
+			}
+			assertEquals(expected, ids.toString());
+			assertEquals("new data for 'rec104'", this.rh.getRecord("rec104").getData());
+			assertEquals("again data for 'rec108'", this.rh.getRecord("rec108").getData());
+			assertFalse(this.rh.addRecord("rec112", "data for 'rec112'", RecordHandlerTest.class));
+			try {
+				this.rh.getRecordData("rec106");
+				fail("deleted record found");
+			} catch(IllegalArgumentException e) {
+				// expected
+			}
+			// the changes are merged into the saved index
+			this.rh.close();
+			this.rh = new SegmentFileRecordHandler(dir.getAbsolutePath());
+		}
+		log.info("END testSegmentFileIndexOverlay");
+	}
+	
+	/**
+	 * Check the records written by testSegmentFileReopen
+	 * @throws IOException error
+	 */
+	private void assertSegmentRecords() throws IOException {
+		assertEquals(29, this.rh.find("seg").size());
+		assertFalse(this.rh.find("seg").contains("seg1"));
+		assertEquals("new data for 'seg3'", this.rh.getRecord("seg3").getData());
+		assertEquals("data for 'seg4'", this.rh.getRecord("seg4").getData());
+		assertFalse(this.rh.addRecord("seg5", "data for 'seg5'", RecordHandlerTest.class));
+		int count = 0;
+		for(Record r : this.rh) {
+			assertTrue(r.getData().endsWith("'" + r.getID() + "'"));
+			count++;
+		}
+		assertEquals(29, count);
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.H2RecordHandler#setParams(java.util.Map) setParams(Map
+	 * params)}.
+	 * @throws IOException error
+	 */
+	public void testH2AddRecord() throws IOException {
+		log.info("BEGIN testH2AddRecord");
+		File dir = FileAide.createTempFile("h2RH", ".dir");
+		dir.delete();
+		Map<String, String> overrideParams = new HashMap<String, String>();
+		overrideParams.put("rhClass", H2RecordHandler.class.getCanonicalName());
+		overrideParams.put("fileDir", dir.getAbsolutePath());
+		this.rh = RecordHandler.parseConfig((String)null, overrideParams);
+		assertTrue(this.rh instanceof H2RecordHandler);
+		runBattery();
+		log.info("END testH2AddRecord");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.H2RecordHandler#H2RecordHandler(java.lang.String)
+	 * H2RecordHandler(String directory)}.
+	 * @throws IOException error
+	 */
+	public void testH2Reopen() throws IOException {
+		log.info("BEGIN testH2Reopen");
+		File dir = FileAide.createTempFile("h2RH", ".dir");
+		dir.delete();
+		H2RecordHandler h2rh = new H2RecordHandler(dir.getAbsolutePath());
+		for(int x = 0; x < 30; x++) {
+			h2rh.addRecord("h2rec" + x, "data for 'h2rec" + x + "'", RecordHandlerTest.class);
+		}
+		assertEquals("data for 'h2rec7'", h2rh.getRecord("h2rec7").getData());
+		h2rh.delRecord("h2rec1");
+		h2rh.getRecord("h2rec2").setProcessed(RecordHandlerTest.class);
+		// tools do not always close their recordhandlers, so writes must be stored without a flush or close
+		this.rh = new H2RecordHandler(dir.getAbsolutePath());
+		assertEquals(29, this.rh.find("h2rec").size());
+		assertFalse(this.rh.needsProcessed("h2rec2", RecordHandlerTest.class));
+		this.rh.close();
+		h2rh.close();
+		this.rh = new H2RecordHandler(dir.getAbsolutePath());
+		assertEquals(29, this.rh.find("h2rec").size());
+		assertFalse(this.rh.find("h2rec").contains("h2rec1"));
+		assertEquals("data for 'h2rec4'", this.rh.getRecord("h2rec4").getData());
+		assertFalse(this.rh.needsProcessed("h2rec2", RecordHandlerTest.class));
+		assertFalse(this.rh.addRecord("h2rec5", "data for 'h2rec5'", RecordHandlerTest.class));
+		log.info("END testH2Reopen");
+	}
+	
 	/**
 	 * Test method for {@link org.vivoweb.harvester.util.repo.MapRecordHandler#MapRecordHandler() MapRecordHandler()}.
 	 * @throws IOException error
@@ -201,6 +567,34 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testJenaAddRecord");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.Record#getData() getData()} on records returned by
+	 * {@link org.vivoweb.harvester.util.repo.RecordHandler#iterator() iterator()}.
+	 * @throws IOException error
+	 */
+	public void testLazyRecordData() throws IOException {
+		log.info("BEGIN testLazyRecordData");
+		this.rh = new MapRecordHandler();
+		this.rh.addRecord("lazy1", "first data", RecordHandlerTest.class);
+		Iterator<Record> it = this.rh.iterator();
+		assertTrue(it.hasNext());
+		Record r = it.next();
+		assertEquals("lazy1", r.getID());
+		// data is read on first use, not when iterating
+		this.rh.addRecord("lazy1", "second data", RecordHandlerTest.class);
+		assertEquals("second data", r.getData());
+		this.rh.addRecord("lazy1", "third data", RecordHandlerTest.class);
+		assertEquals("second data", r.getData());
+		this.rh.setCacheRecordData(false);
+		it = this.rh.iterator();
+		assertTrue(it.hasNext());
+		r = it.next();
+		assertEquals("third data", r.getData());
+		this.rh.addRecord("lazy1", "fourth data", RecordHandlerTest.class);
+		assertEquals("fourth data", r.getData());
+		log.info("END testLazyRecordData");
+	}
+	
 	/**
 	 * @throws IOException error
 	 */
@@ -209,6 +603,7 @@ public class RecordHandlerTest extends TestCase {
 		runNoModRecord();
 		runModRecord();
 		runDelRecord();
+		runAddRecords();
 	}
 	
 	/**
@@ -266,4 +661,28 @@ public class RecordHandlerTest extends TestCase {
 		log.info("End del test");
 	}
 	
+	/**
+	 * @throws IOException error
+	 */
+	private void runAddRecords() throws IOException {
+		log.info("Start add records test");
+		RecordBatch batch = new RecordBatch(this.rh, this.getClass(), 3);
+		for(int x = 0; x < 7; x++) {
+			batch.add("batch" + x, "batch data " + x);
+		}
+		batch.add("batch2", "batch data 2");
+		batch.add("batch5", "new batch data 5");
+		batch.close();
+		assertEquals(8, batch.getAdded());
+		assertEquals(7, this.rh.find("batch").size());
+		assertEquals("batch data 6", this.rh.getRecord("batch6").getData().trim());
+		Record source = this.rh.getRecord("batch0");
+		assertTrue(source.needsProcessed(this.getClass()));
+		batch.add("copy0", source.getData(), source);
+		batch.flush();
+		assertFalse(this.rh.needsProcessed("batch0", this.getClass()));
+		assertEquals(9, batch.getAdded());
+		log.info("End add records test");
+	}
+	
 }